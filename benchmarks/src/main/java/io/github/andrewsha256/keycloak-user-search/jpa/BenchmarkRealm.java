@@ -0,0 +1,282 @@
+package io.github.andrewsha256.keycloak_user_search.jpa;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.Consumer;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+
+import org.keycloak.models.OTPPolicy;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.jpa.entities.GroupEntity;
+import org.keycloak.models.jpa.entities.RealmEntity;
+import org.keycloak.models.jpa.entities.UserAttributeEntity;
+import org.keycloak.models.jpa.entities.UserEntity;
+import org.keycloak.models.jpa.entities.UserGroupMembershipEntity;
+
+import io.github.andrewsha256.keycloak_user_search.jpa.entities.UserSearchValueEntity;
+
+/**
+ * Synthetic realm in embedded H2 database
+ *
+ * Schema is created by Hibernate from Keycloak's JPA entities (persistence
+ * unit `keycloak-default`), users are generated with fixed seed, so every
+ * run searches the same data.
+ *
+ * `create(users)` generates simple uniform realm of benchmark shapes, other
+ * data (eg load test realm) is generated by `create(users, generator,
+ * properties)`.
+ */
+public class BenchmarkRealm {
+
+	public static final String REALM_ID = "benchmark";
+
+	public static final long SEED = 42L;
+
+	public static final int CITIES = 50;
+
+	public static final int GROUPS = 20;
+
+	public static final String[] TYPES = { "basic", "premium", "trial" };
+
+	private static final String[] DOMAINS = { "gmail.com", "mail.ru",
+			"example.com", "yahoo.com" };
+
+	private static final int FLUSH_SIZE = 500;
+
+	private static final String[] INDEXES = {
+		"IDX_USER_EMAIL on USER_ENTITY (EMAIL)",
+		"IDX_USER_ATTRIBUTE on USER_ATTRIBUTE (USER_ID)",
+		"IDX_USER_GROUP_MAPPING on USER_GROUP_MEMBERSHIP (USER_ID)",
+		"IDX_USER_SEARCH_ATTR_VALUE on USER_ATTRIBUTE (NAME, VALUE)",
+		"IDX_USER_SEARCH_GROUP_NAME on KEYCLOAK_GROUP (NAME)"
+	};
+
+	private final EntityManagerFactory emf;
+
+	private final int users;
+
+	private BenchmarkRealm(EntityManagerFactory emf, int users) {
+		this.emf = emf;
+		this.users = users;
+	}
+
+	/**
+	 * Creates in-memory database with `users` generated users
+	 *
+	 * @param users
+	 * @return
+	 */
+	public static BenchmarkRealm create(int users) {
+		return create(users, em -> _generate(em, users),
+				Collections.<String, Object>emptyMap());
+	}
+
+	/**
+	 * Creates in-memory database and fills it by `generator` in single
+	 * transaction
+	 *
+	 * @param users amount of users (part of database name only)
+	 * @param generator
+	 * @param extraProperties additional persistence unit properties
+	 * @return
+	 */
+	public static BenchmarkRealm create(int users,
+			Consumer<EntityManager> generator,
+			Map<String, Object> extraProperties) {
+
+		Map<String, Object> properties = new HashMap<>();
+		properties.put("javax.persistence.jdbc.url", "jdbc:h2:mem:benchmark-"
+				+ users + "-" + System.nanoTime() + ";DB_CLOSE_DELAY=-1");
+		properties.put("javax.persistence.jdbc.driver", "org.h2.Driver");
+		properties.put("javax.persistence.jdbc.user", "sa");
+		properties.put("hibernate.dialect", "org.hibernate.dialect.H2Dialect");
+		properties.put("hibernate.hbm2ddl.auto", "create");
+		properties.put("hibernate.show_sql", "false");
+		List<Class<?>> classes = new ArrayList<>();
+		classes.add(UserSearchValueEntity.class);
+		properties.put("hibernate.ejb.loaded.classes", classes);
+		properties.putAll(extraProperties);
+
+		BenchmarkRealm realm = new BenchmarkRealm(
+				Persistence.createEntityManagerFactory("keycloak-default",
+						properties),
+				users);
+
+		EntityManager em = realm.createEntityManager();
+		em.getTransaction().begin();
+		try {
+			_createIndexes(em);
+			generator.accept(em);
+			em.getTransaction().commit();
+		}
+		finally {
+			em.close();
+		}
+		return realm;
+	}
+
+	public EntityManager createEntityManager() {
+		return emf.createEntityManager();
+	}
+
+	public EntityManagerFactory getEntityManagerFactory() {
+		return emf;
+	}
+
+	public int getUsers() {
+		return users;
+	}
+
+	public void close() {
+		emf.close();
+	}
+
+	/**
+	 * `RealmModel` that answers realm id, name and default OTP policy only
+	 * (all that providers and user representations need)
+	 *
+	 * @return
+	 */
+	public static RealmModel realmModel() {
+		return (RealmModel) Proxy.newProxyInstance(
+				BenchmarkRealm.class.getClassLoader(),
+				new Class<?>[] { RealmModel.class },
+				(proxy, method, args) -> {
+					switch (method.getName()) {
+						case "getId":
+						case "getName":
+							return REALM_ID;
+						case "getOTPPolicy":
+							return OTPPolicy.DEFAULT_POLICY;
+						case "hashCode":
+							return REALM_ID.hashCode();
+						case "equals":
+							return proxy == args[0];
+						default:
+							return null;
+					}
+				});
+	}
+
+	/**
+	 * Settings of Keycloak deployment with default plan cache size and
+	 * filter planner (other caches are disabled, so every call reaches
+	 * database)
+	 *
+	 * @return
+	 */
+	public static SearchSettings searchSettings() {
+		return new SearchSettings()
+				.setPlanCache(new QueryPlanCache(
+						UserProviderExtendedFactory.DEFAULT_PLAN_CACHE_SIZE))
+				.setPlanner(new FilterPlanner(
+						FilterPlanner.DEFAULT_STATISTICS_TTL));
+	}
+
+	public static String city(int i) {
+		return "City" + i;
+	}
+
+	public static String group(int i) {
+		return "group" + i;
+	}
+
+	/**
+	 * Indexes of Keycloak's and service's changelogs that matter for search
+	 * (Hibernate creates tables, primary and unique keys only)
+	 *
+	 * @param em
+	 */
+	private static void _createIndexes(EntityManager em) {
+		for (String index : INDEXES) {
+			em.createNativeQuery("create index " + index).executeUpdate();
+		}
+	}
+
+	/**
+	 * Persists realm entity of `REALM_ID`
+	 *
+	 * @param em
+	 * @return
+	 */
+	public static RealmEntity persistRealm(EntityManager em) {
+		RealmEntity realm = new RealmEntity();
+		realm.setId(REALM_ID);
+		realm.setName(REALM_ID);
+		em.persist(realm);
+		return realm;
+	}
+
+	private static void _generate(EntityManager em, int users) {
+		Random random = new Random(SEED);
+		RealmEntity realm = persistRealm(em);
+
+		List<String> groupIds = new ArrayList<>();
+		for (int i = 0; i < GROUPS; i++) {
+			GroupEntity group = new GroupEntity();
+			group.setId("g" + i);
+			group.setName(group(i));
+			group.setRealm(realm);
+			em.persist(group);
+			groupIds.add(group.getId());
+		}
+
+		for (int i = 0; i < users; i++) {
+			UserEntity user = new UserEntity();
+			user.setId(String.format("u%08d", i));
+			user.setRealmId(REALM_ID);
+			user.setUsername(String.format("user%08d", i));
+			user.setEmail(String.format("user%08d@%s", i,
+					DOMAINS[random.nextInt(DOMAINS.length)]), false);
+			user.setFirstName("First" + random.nextInt(1000));
+			user.setLastName("Last" + random.nextInt(5000));
+			user.setEnabled(true);
+			user.setCreatedTimestamp(0L);
+			em.persist(user);
+
+			persistAttribute(em, user, "city",
+					city(random.nextInt(CITIES)));
+			persistAttribute(em, user, "type",
+					TYPES[random.nextInt(TYPES.length)]);
+
+			int groups = 1 + random.nextInt(3);
+			for (int g = 0; g < groups; g++) {
+				UserGroupMembershipEntity membership = new UserGroupMembershipEntity();
+				membership.setUser(user);
+				membership.setGroupId(groupIds.get((i + g * 7) % GROUPS));
+				em.persist(membership);
+			}
+
+			if (i % FLUSH_SIZE == FLUSH_SIZE - 1) {
+				em.flush();
+				em.clear();
+			}
+		}
+	}
+
+	/**
+	 * Persists user attribute with id `<userId>-<name>`
+	 *
+	 * @param em
+	 * @param user
+	 * @param name
+	 * @param value
+	 */
+	public static void persistAttribute(EntityManager em, UserEntity user,
+			String name, String value) {
+		UserAttributeEntity attribute = new UserAttributeEntity();
+		attribute.setId(user.getId() + "-" + name);
+		attribute.setUser(user);
+		attribute.setName(name);
+		attribute.setValue(value);
+		em.persist(attribute);
+	}
+}
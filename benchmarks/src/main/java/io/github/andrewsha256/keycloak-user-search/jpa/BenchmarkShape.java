@@ -0,0 +1,99 @@
+package io.github.andrewsha256.keycloak_user_search.jpa;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Search query shapes of benchmarks: search terms with order field
+ */
+public enum BenchmarkShape {
+
+	/**
+	 * One term with suffix pattern
+	 */
+	SINGLE_TERM("username") {
+		@Override
+		Map<String, List<String>> query() {
+			return _query("email", "%gmail.com");
+		}
+	},
+
+	/**
+	 * One attribute term with 20 "OR" values
+	 */
+	MANY_OR_VALUES("username") {
+		@Override
+		Map<String, List<String>> query() {
+			StringBuilder cities = new StringBuilder();
+			for (int i = 0; i < 20; i++) {
+				if (i > 0) {
+					cities.append("||");
+				}
+				cities.append(BenchmarkRealm.city(i));
+			}
+			return _query("city", cities.toString());
+		}
+	},
+
+	/**
+	 * Default field, attributes and group terms at once
+	 */
+	MANY_TERMS("username") {
+		@Override
+		Map<String, List<String>> query() {
+			return _query("email", "%gmail.com",
+					"firstName", "first1%",
+					"city", BenchmarkRealm.city(1) + "||" + BenchmarkRealm.city(2),
+					"type", "premium",
+					JpaUserProviderExtended.GROUP_FIELD, BenchmarkRealm.group(3));
+		}
+	},
+
+	/**
+	 * Attribute term, ordering by attribute
+	 */
+	ORDER_BY_ATTRIBUTE("city") {
+		@Override
+		Map<String, List<String>> query() {
+			return _query("type", "premium");
+		}
+	},
+
+	/**
+	 * Default field term, ordering by group
+	 */
+	ORDER_BY_GROUP(JpaUserProviderExtended.GROUP_FIELD) {
+		@Override
+		Map<String, List<String>> query() {
+			return _query("email", "%mail.ru");
+		}
+	};
+
+	private final String orderBy;
+
+	BenchmarkShape(String orderBy) {
+		this.orderBy = orderBy;
+	}
+
+	/**
+	 * Search terms as `UserResource` passes them
+	 *
+	 * @return
+	 */
+	abstract Map<String, List<String>> query();
+
+	String getOrderBy() {
+		return orderBy;
+	}
+
+	private static Map<String, List<String>> _query(String... labelsAndValues) {
+		Map<String, List<String>> result = new HashMap<>();
+		for (int i = 0; i < labelsAndValues.length; i += 2) {
+			result.put(labelsAndValues[i],
+					Collections.singletonList(labelsAndValues[i + 1]));
+		}
+		return result;
+	}
+}
@@ -0,0 +1,53 @@
+package io.github.andrewsha256.keycloak_user_search.jpa;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Search attributes parsing: request parameters to search terms
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ParseBenchmark {
+
+	@Param({ "SINGLE_TERM", "MANY_OR_VALUES", "MANY_TERMS" })
+	public BenchmarkShape shape;
+
+	private JpaUserProviderExtended provider;
+
+	private Map<String, List<String>> query;
+
+	@Setup
+	public void setup() {
+		provider = new JpaUserProviderExtended(null,
+				StubEntityManager.create(), BenchmarkRealm.searchSettings());
+		query = shape.query();
+	}
+
+	@Benchmark
+	public SearchTermMap parseSearchAttributes() {
+		return provider.parseSearchAttributes(query);
+	}
+
+	@Benchmark
+	public List<SearchTerm> canonicalTerms() {
+		return provider.parseSearchAttributes(query).canonicalTerms();
+	}
+}
@@ -0,0 +1,83 @@
+package io.github.andrewsha256.keycloak_user_search.jpa;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.keycloak.models.RealmModel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Everything search, count and index do besides SQL: parsing, filter
+ * subqueries building (`_filterQueries`) and parameters binding
+ *
+ * `planCacheSize=0` builds JPQL on every call, `1000` takes it from
+ * `QueryPlanCache`. `plannerStatisticsTtl=0` keeps terms in canonical order,
+ * otherwise `FilterPlanner` orders them by (stub, so empty) realm
+ * statistics as it does in Keycloak.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class QueryBuildingBenchmark {
+
+	@Param({ "SINGLE_TERM", "MANY_OR_VALUES", "MANY_TERMS",
+			"ORDER_BY_ATTRIBUTE", "ORDER_BY_GROUP" })
+	public BenchmarkShape shape;
+
+	@Param({ "0", "1000" })
+	public int planCacheSize;
+
+	@Param({ "ENTITIES", "SHADOW" })
+	public SearchSource searchSource;
+
+	@Param({ "0", "600000" })
+	public long plannerStatisticsTtl;
+
+	private JpaUserProviderExtended provider;
+
+	private RealmModel realm;
+
+	private Map<String, List<String>> query;
+
+	@Setup
+	public void setup() {
+		provider = new JpaUserProviderExtended(null,
+				StubEntityManager.create(), new SearchSettings()
+						.setPlanCache(new QueryPlanCache(planCacheSize))
+						.setSearchSource(searchSource)
+						.setPlanner(new FilterPlanner(plannerStatisticsTtl)));
+		realm = BenchmarkRealm.realmModel();
+		query = shape.query();
+	}
+
+	@Benchmark
+	public UserList search() {
+		return provider.searchForUserExtended(query, realm, 0, null, 15,
+				shape.getOrderBy(), OrderDirect.ASC);
+	}
+
+	@Benchmark
+	public TotalCount countUsers() {
+		return provider.countUsers(query, realm, CountStrategy.EXACT);
+	}
+
+	@Benchmark
+	public List<String> index() {
+		return provider.index(realm, "city", "%", query, 0, 15,
+				OrderDirect.ASC);
+	}
+}
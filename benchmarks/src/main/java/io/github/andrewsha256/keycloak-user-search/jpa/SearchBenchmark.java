@@ -0,0 +1,92 @@
+package io.github.andrewsha256.keycloak_user_search.jpa;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.EntityManager;
+
+import org.keycloak.models.RealmModel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End-to-end search, count and index against embedded H2 database with
+ * synthetic realm of `users` users (`-p users=100000` for bigger one)
+ *
+ * Result caches are disabled, query plans are cached as in production.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class SearchBenchmark {
+
+	@Param({ "10000" })
+	public int users;
+
+	@Param({ "SINGLE_TERM", "MANY_OR_VALUES", "MANY_TERMS",
+			"ORDER_BY_ATTRIBUTE", "ORDER_BY_GROUP" })
+	public BenchmarkShape shape;
+
+	private BenchmarkRealm benchmarkRealm;
+
+	private EntityManager em;
+
+	private JpaUserProviderExtended provider;
+
+	private RealmModel realm;
+
+	private Map<String, List<String>> query;
+
+	@Setup
+	public void setup() {
+		benchmarkRealm = BenchmarkRealm.create(users);
+		em = benchmarkRealm.createEntityManager();
+		// providers flush after queries, as in Keycloak's request transaction
+		em.getTransaction().begin();
+		provider = new JpaUserProviderExtended(null, em,
+				BenchmarkRealm.searchSettings());
+		realm = BenchmarkRealm.realmModel();
+		query = shape.query();
+	}
+
+	@TearDown
+	public void tearDown() {
+		em.getTransaction().rollback();
+		em.close();
+		benchmarkRealm.close();
+	}
+
+	@Benchmark
+	public int search() {
+		int result = provider.searchForUserExtended(query, realm, 0, null, 15,
+				shape.getOrderBy(), OrderDirect.ASC).getUsers().size();
+		em.clear();
+		return result;
+	}
+
+	@Benchmark
+	public long countUsers() {
+		return provider.countUsers(query, realm, CountStrategy.EXACT)
+				.getValue();
+	}
+
+	@Benchmark
+	public List<String> index() {
+		return provider.index(realm, "city", "%", query, 0, 15,
+				OrderDirect.ASC);
+	}
+}
@@ -0,0 +1,90 @@
+package io.github.andrewsha256.keycloak_user_search.jpa;
+
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.Collections;
+
+import javax.persistence.EntityManager;
+import javax.persistence.TypedQuery;
+
+/**
+ * `EntityManager` whose queries return nothing without database
+ *
+ * Provider methods called with it do everything but SQL: parse search terms,
+ * plan filters, build (or take cached) `QueryPlan` and bind parameters. Count
+ * queries return `0` (or rows of zeros, eg filter planner statistics), so
+ * callers should not rely on results.
+ */
+class StubEntityManager {
+
+	private StubEntityManager() {
+	}
+
+	static EntityManager create() {
+		TypedQuery<?> query = _query(null);
+		return (EntityManager) Proxy.newProxyInstance(
+				StubEntityManager.class.getClassLoader(),
+				new Class<?>[] { EntityManager.class },
+				(proxy, method, args) -> {
+					if (!method.getName().startsWith("create")
+							|| !method.getReturnType().isInstance(query)) {
+						return null;
+					}
+					return args.length > 1 && Object[].class == args[1]
+							? _query(new Object[_selectItems((String) args[0])])
+							: query;
+				});
+	}
+
+	/**
+	 * Query which single result is `0` or, for `Object[]` results, a row of
+	 * zeros
+	 *
+	 * @param row `Object[]` result of query, `null` if result is a number
+	 * @return
+	 */
+	private static TypedQuery<?> _query(Object[] row) {
+		if (row != null) {
+			Arrays.fill(row, 0L);
+		}
+		return (TypedQuery<?>) Proxy.newProxyInstance(
+				StubEntityManager.class.getClassLoader(),
+				new Class<?>[] { TypedQuery.class },
+				(proxy, method, args) -> {
+					switch (method.getName()) {
+						case "getResultList":
+							return Collections.emptyList();
+						case "getSingleResult":
+							return row != null ? row : 0L;
+						default:
+							return method.getReturnType().isInstance(proxy)
+									? proxy : null;
+					}
+				});
+	}
+
+	/**
+	 * Amount of items between `select` and `from` of `jpql` (commas out of
+	 * parentheses)
+	 *
+	 * @param jpql
+	 * @return
+	 */
+	private static int _selectItems(String jpql) {
+		int items = 1;
+		int depth = 0;
+		String select = jpql.substring(0, jpql.indexOf(" from "));
+		for (char c : select.toCharArray()) {
+			if (c == '(') {
+				depth++;
+			}
+			else if (c == ')') {
+				depth--;
+			}
+			else if (c == ',' && depth == 0) {
+				items++;
+			}
+		}
+		return items;
+	}
+}
@@ -0,0 +1,191 @@
+package io.github.andrewsha256.keycloak_user_search.loadtest;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.keycloak.models.RealmModel;
+
+import io.github.andrewsha256.keycloak_user_search.jpa.CountStrategy;
+import io.github.andrewsha256.keycloak_user_search.jpa.JpaUserProviderExtended;
+import io.github.andrewsha256.keycloak_user_search.jpa.OrderDirect;
+import io.github.andrewsha256.keycloak_user_search.jpa.UserProviderExtended;
+
+/**
+ * Request kinds of load test
+ *
+ * Search requests do what `UserResource::search` does: count, then portion
+ * of `PORTION_SIZE` users. Search values are drawn from `RealmGenerator`
+ * distributions.
+ */
+public enum LoadShape {
+
+	SEARCH_ATTRIBUTE {
+		@Override
+		int execute(UserProviderExtended provider, RealmModel realm,
+				RealmGenerator data, Random random) {
+			int attribute = random.nextInt(RealmGenerator.MIN_ATTRIBUTES);
+			return _search(provider, realm, _query(
+					RealmGenerator.attributeName(attribute),
+					data.attributeValue(attribute, random)), "username");
+		}
+	},
+
+	SEARCH_ATTRIBUTE_OR {
+		@Override
+		int execute(UserProviderExtended provider, RealmModel realm,
+				RealmGenerator data, Random random) {
+			int attribute = 5;
+			StringBuilder values = new StringBuilder();
+			for (int i = 0; i < 5; i++) {
+				if (i > 0) {
+					values.append("||");
+				}
+				values.append(data.attributeValue(attribute, random));
+			}
+			return _search(provider, realm, _query(
+					RealmGenerator.attributeName(attribute), values.toString()),
+					"username");
+		}
+	},
+
+	SEARCH_USERNAME_PREFIX {
+		@Override
+		int execute(UserProviderExtended provider, RealmModel realm,
+				RealmGenerator data, Random random) {
+			String username = data.username(random.nextInt(data.getUsers()));
+			return _search(provider, realm, _query("username",
+					username.substring(0, username.length() - 3) + "%"),
+					"username");
+		}
+	},
+
+	SEARCH_GROUP {
+		@Override
+		int execute(UserProviderExtended provider, RealmModel realm,
+				RealmGenerator data, Random random) {
+			return _search(provider, realm,
+					_query(JpaUserProviderExtended.GROUP_FIELD,
+							data.groupName(random)),
+					"username");
+		}
+	},
+
+	SEARCH_MULTI {
+		@Override
+		int execute(UserProviderExtended provider, RealmModel realm,
+				RealmGenerator data, Random random) {
+			return _search(provider, realm, _multiQuery(data, random),
+					"username");
+		}
+	},
+
+	SEARCH_ORDER_BY_ATTRIBUTE {
+		@Override
+		int execute(UserProviderExtended provider, RealmModel realm,
+				RealmGenerator data, Random random) {
+			return _search(provider, realm, _query(
+					RealmGenerator.attributeName(1),
+					data.attributeValue(1, random)),
+					RealmGenerator.attributeName(2));
+		}
+	},
+
+	COUNT_MULTI {
+		@Override
+		int execute(UserProviderExtended provider, RealmModel realm,
+				RealmGenerator data, Random random) {
+			provider.countUsers(_multiQuery(data, random), realm,
+					CountStrategy.EXACT);
+			return 1;
+		}
+	},
+
+	INDEX_ATTRIBUTE {
+		@Override
+		int execute(UserProviderExtended provider, RealmModel realm,
+				RealmGenerator data, Random random) {
+			Map<String, List<String>> filter = _query(
+					JpaUserProviderExtended.GROUP_FIELD, data.groupName(random));
+			String label = RealmGenerator.attributeName(4);
+			provider.countIndex(realm, label, "%", filter,
+					CountStrategy.EXACT);
+			return provider.index(realm, label, "%", filter, 0, PORTION_SIZE,
+					OrderDirect.ASC).size();
+		}
+	},
+
+	FACETS {
+		@Override
+		int execute(UserProviderExtended provider, RealmModel realm,
+				RealmGenerator data, Random random) {
+			int rows = 0;
+			for (List<?> values : provider.facets(
+					_query(RealmGenerator.attributeName(0),
+							data.attributeValue(0, random)),
+					realm, Arrays.asList(JpaUserProviderExtended.GROUP_FIELD,
+							RealmGenerator.attributeName(3)),
+					10).values()) {
+				rows += values.size();
+			}
+			return rows;
+		}
+	};
+
+	public static final int PORTION_SIZE = 15;
+
+	/**
+	 * Default mix: `shape=weight` pairs
+	 */
+	public static final String DEFAULT_MIX = "SEARCH_ATTRIBUTE=25,"
+			+ "SEARCH_ATTRIBUTE_OR=10,SEARCH_USERNAME_PREFIX=10,"
+			+ "SEARCH_GROUP=10,SEARCH_MULTI=15,SEARCH_ORDER_BY_ATTRIBUTE=10,"
+			+ "COUNT_MULTI=10,INDEX_ATTRIBUTE=5,FACETS=5";
+
+	/**
+	 * Makes single request
+	 *
+	 * @param provider
+	 * @param realm
+	 * @param data
+	 * @param random
+	 * @return amount of rows (users, values) returned
+	 */
+	abstract int execute(UserProviderExtended provider, RealmModel realm,
+			RealmGenerator data, Random random);
+
+	private static int _search(UserProviderExtended provider,
+			RealmModel realm, Map<String, List<String>> query,
+			String orderBy) {
+
+		if (provider.countUsers(query, realm, CountStrategy.EXACT)
+				.isZero()) {
+			return 0;
+		}
+		return provider.searchForUserExtended(query, realm, 0, null,
+				PORTION_SIZE, orderBy, OrderDirect.ASC).getUsers().size();
+	}
+
+	private static Map<String, List<String>> _multiQuery(RealmGenerator data,
+			Random random) {
+
+		return _query(
+				RealmGenerator.attributeName(0), data.attributeValue(0, random),
+				RealmGenerator.attributeName(3), data.attributeValue(3, random),
+				JpaUserProviderExtended.GROUP_FIELD, data.groupName(random));
+	}
+
+	private static Map<String, List<String>> _query(
+			String... labelsAndValues) {
+
+		Map<String, List<String>> result = new HashMap<>();
+		for (int i = 0; i < labelsAndValues.length; i += 2) {
+			result.put(labelsAndValues[i],
+					Collections.singletonList(labelsAndValues[i + 1]));
+		}
+		return result;
+	}
+}
@@ -0,0 +1,237 @@
+package io.github.andrewsha256.keycloak_user_search.loadtest;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.persistence.EntityManager;
+
+import org.keycloak.models.RealmModel;
+import org.keycloak.util.JsonSerialization;
+
+import io.github.andrewsha256.keycloak_user_search.jpa.BenchmarkRealm;
+import io.github.andrewsha256.keycloak_user_search.jpa.JpaUserProviderExtended;
+import io.github.andrewsha256.keycloak_user_search.jpa.SearchSettings;
+import io.github.andrewsha256.keycloak_user_search.jpa.StatementCounter;
+import io.github.andrewsha256.keycloak_user_search.jpa.UserProviderExtended;
+
+/**
+ * Load test of `JpaUserProviderExtended` without Keycloak
+ *
+ * Generates seeded realm (see `RealmGenerator`) in embedded H2 database and
+ * drives providers from `threads` threads with weighted mix of request
+ * shapes (see `LoadShape`). Every thread has its own session, query plan
+ * cache and filter planner are shared as in Keycloak. Result caches are
+ * disabled, so every request reaches database.
+ *
+ * Reports p50/p95/p99 latency, throughput, rows and SQL statements per
+ * request of every shape to JSON file, results of different versions are
+ * compared by the same arguments (same seed gives the same data and the
+ * same requests sequence of every thread).
+ *
+ * <pre>
+ * java -cp target/benchmarks.jar \
+ *   io.github.andrewsha256.keycloak_user_search.loadtest.LoadTest \
+ *   --users 20000 --threads 8 --duration 60 --output result.json
+ * </pre>
+ */
+public class LoadTest {
+
+	private static final Map<String, String> DEFAULTS = new LinkedHashMap<>();
+
+	static {
+		DEFAULTS.put("users", "20000");
+		DEFAULTS.put("threads", "8");
+		DEFAULTS.put("warmup", "10");
+		DEFAULTS.put("duration", "60");
+		DEFAULTS.put("seed", "42");
+		DEFAULTS.put("exponent", String.valueOf(RealmGenerator.DEFAULT_EXPONENT));
+		DEFAULTS.put("mix", LoadShape.DEFAULT_MIX);
+		DEFAULTS.put("output", "load-test.json");
+	}
+
+	private final Map<String, String> options;
+
+	private final RealmGenerator data;
+
+	private final LoadShape[] shapes;
+
+	private final int[] weights;
+
+	private final int totalWeight;
+
+	LoadTest(Map<String, String> options) {
+		this.options = options;
+		this.data = new RealmGenerator(this._int("users"),
+				Long.parseLong(options.get("seed")),
+				Double.parseDouble(options.get("exponent")));
+
+		List<LoadShape> mixShapes = new ArrayList<>();
+		List<Integer> mixWeights = new ArrayList<>();
+		for (String part : options.get("mix").split(",")) {
+			String[] shapeWeight = part.trim().split("=");
+			if (shapeWeight.length != 2) {
+				throw new IllegalArgumentException("Wrong mix part `" + part
+						+ "`, `SHAPE=weight` expected");
+			}
+			mixShapes.add(LoadShape.valueOf(shapeWeight[0].trim()));
+			mixWeights.add(Integer.parseInt(shapeWeight[1].trim()));
+		}
+		this.shapes = mixShapes.toArray(new LoadShape[0]);
+		this.weights = new int[mixWeights.size()];
+		int sum = 0;
+		for (int i = 0; i < weights.length; i++) {
+			weights[i] = mixWeights.get(i);
+			sum += weights[i];
+		}
+		this.totalWeight = sum;
+	}
+
+	public static void main(String[] args) throws Exception {
+		Map<String, String> options = new LinkedHashMap<>(DEFAULTS);
+		for (int i = 0; i < args.length; i++) {
+			String name = args[i].startsWith("--") ? args[i].substring(2) : null;
+			if (name == null || !DEFAULTS.containsKey(name)
+					|| i + 1 == args.length) {
+				System.err.println("Options (with defaults): " + DEFAULTS);
+				System.exit(1);
+			}
+			options.put(name, args[++i]);
+		}
+		new LoadTest(options).run();
+	}
+
+	void run() throws Exception {
+		long started = System.currentTimeMillis();
+		BenchmarkRealm realm = BenchmarkRealm.create(data.getUsers(), data,
+				Collections.<String, Object>emptyMap());
+		System.out.printf("Realm of %d users is generated in %d ms%n",
+				data.getUsers(), System.currentTimeMillis() - started);
+
+		int threads = this._int("threads");
+		SearchSettings settings = BenchmarkRealm.searchSettings();
+
+		long warmupEnd = System.nanoTime() + this._int("warmup") * 1000000000L;
+		long end = warmupEnd + this._int("duration") * 1000000000L;
+
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		List<Future<Map<LoadShape, ShapeStats>>> futures = new ArrayList<>();
+		try {
+			for (int i = 0; i < threads; i++) {
+				long seed = Long.parseLong(options.get("seed")) + i;
+				futures.add(executor.submit(() -> this._worker(realm,
+						settings, seed, warmupEnd, end)));
+			}
+
+			Map<LoadShape, ShapeStats> total = new EnumMap<>(LoadShape.class);
+			for (Future<Map<LoadShape, ShapeStats>> future : futures) {
+				for (Map.Entry<LoadShape, ShapeStats> entry
+						: future.get().entrySet()) {
+					total.computeIfAbsent(entry.getKey(), shape -> new ShapeStats())
+							.merge(entry.getValue());
+				}
+			}
+			this._report(total);
+		}
+		finally {
+			executor.shutdownNow();
+			realm.close();
+		}
+	}
+
+	private Map<LoadShape, ShapeStats> _worker(BenchmarkRealm benchmarkRealm,
+			SearchSettings settings, long seed, long warmupEnd, long end) {
+
+		Random random = new Random(seed);
+		RealmModel realm = BenchmarkRealm.realmModel();
+		Map<LoadShape, ShapeStats> stats = new EnumMap<>(LoadShape.class);
+
+		EntityManager em = benchmarkRealm.createEntityManager();
+		em.getTransaction().begin();
+		try {
+			UserProviderExtended provider = new JpaUserProviderExtended(null,
+					em, settings);
+			StatementCounter counter = new StatementCounter().register(em);
+
+			long now;
+			while ((now = System.nanoTime()) < end) {
+				LoadShape shape = this._nextShape(random);
+				ShapeStats shapeStats = stats.computeIfAbsent(shape,
+						s -> new ShapeStats());
+				long before = counter.get();
+				try {
+					int rows = shape.execute(provider, realm, data, random);
+					long latency = System.nanoTime() - now;
+					if (now >= warmupEnd) {
+						shapeStats.add(latency, rows, counter.get() - before);
+					}
+				}
+				catch (RuntimeException e) {
+					if (now >= warmupEnd) {
+						shapeStats.addError();
+					}
+				}
+				em.clear();
+			}
+		}
+		finally {
+			em.getTransaction().rollback();
+			em.close();
+		}
+		return stats;
+	}
+
+	private LoadShape _nextShape(Random random) {
+		int point = random.nextInt(totalWeight);
+		for (int i = 0; i < shapes.length; i++) {
+			point -= weights[i];
+			if (point < 0) {
+				return shapes[i];
+			}
+		}
+		return shapes[shapes.length - 1];
+	}
+
+	private void _report(Map<LoadShape, ShapeStats> stats) throws IOException {
+		double seconds = this._int("duration");
+
+		ShapeStats all = new ShapeStats();
+		Map<String, Object> shapeReports = new LinkedHashMap<>();
+		for (Map.Entry<LoadShape, ShapeStats> entry : stats.entrySet()) {
+			if (entry.getValue().isEmpty()) {
+				// drawn during warmup only
+				continue;
+			}
+			shapeReports.put(entry.getKey().name(),
+					entry.getValue().report(seconds));
+			all.merge(entry.getValue());
+		}
+
+		Map<String, Object> result = new LinkedHashMap<>();
+		result.put("options", options);
+		result.put("total", all.report(seconds));
+		result.put("shapes", shapeReports);
+
+		String json = JsonSerialization.writeValueAsPrettyString(result);
+		System.out.println(json);
+		try (OutputStream out = new FileOutputStream(
+				new File(options.get("output")))) {
+			JsonSerialization.writeValuePrettyToStream(out, result);
+		}
+	}
+
+	private int _int(String option) {
+		return Integer.parseInt(options.get(option));
+	}
+}
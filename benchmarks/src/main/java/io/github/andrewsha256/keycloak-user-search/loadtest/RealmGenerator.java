@@ -0,0 +1,156 @@
+package io.github.andrewsha256.keycloak_user_search.loadtest;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.function.Consumer;
+
+import javax.persistence.EntityManager;
+
+import org.keycloak.models.jpa.entities.GroupEntity;
+import org.keycloak.models.jpa.entities.RealmEntity;
+import org.keycloak.models.jpa.entities.UserEntity;
+import org.keycloak.models.jpa.entities.UserGroupMembershipEntity;
+
+import io.github.andrewsha256.keycloak_user_search.jpa.BenchmarkRealm;
+
+/**
+ * Seeded realm with realistic distributions
+ *
+ * Every user has `MIN_ATTRIBUTES..MAX_ATTRIBUTES` attributes: `attr00` to
+ * `attr<N-1>`, so low attributes are set for every user and high ones for
+ * few. Attribute `i` has `2 + i * i` distinct values, values, group
+ * memberships (`0..MAX_USER_GROUPS` of `GROUPS` groups), first and last
+ * names and email domains are Zipfian.
+ *
+ * The same instance draws search values for load test requests with the
+ * same distributions, so frequent values are searched more often.
+ */
+public class RealmGenerator implements Consumer<EntityManager> {
+
+	public static final int GROUPS = 200;
+
+	public static final int MAX_USER_GROUPS = 20;
+
+	public static final int MIN_ATTRIBUTES = 10;
+
+	public static final int MAX_ATTRIBUTES = 50;
+
+	public static final double DEFAULT_EXPONENT = 1.0;
+
+	private static final int FIRST_NAMES = 2000;
+
+	private static final int LAST_NAMES = 10000;
+
+	private static final int DOMAINS = 20;
+
+	private static final int FLUSH_SIZE = 100;
+
+	private final int users;
+
+	private final long seed;
+
+	private final Zipf[] attributeValues = new Zipf[MAX_ATTRIBUTES];
+
+	private final Zipf groups;
+
+	private final Zipf firstNames;
+
+	private final Zipf lastNames;
+
+	private final Zipf domains;
+
+	public RealmGenerator(int users, long seed, double exponent) {
+		this.users = users;
+		this.seed = seed;
+		for (int i = 0; i < MAX_ATTRIBUTES; i++) {
+			attributeValues[i] = new Zipf(2 + i * i, exponent);
+		}
+		this.groups = new Zipf(GROUPS, exponent);
+		this.firstNames = new Zipf(FIRST_NAMES, exponent);
+		this.lastNames = new Zipf(LAST_NAMES, exponent);
+		this.domains = new Zipf(DOMAINS, exponent);
+	}
+
+	public int getUsers() {
+		return users;
+	}
+
+	public static String attributeName(int attribute) {
+		return String.format("attr%02d", attribute);
+	}
+
+	public String attributeValue(int attribute, Random random) {
+		return "value" + attributeValues[attribute].next(random);
+	}
+
+	public String groupName(Random random) {
+		return "group" + groups.next(random);
+	}
+
+	public String username(int user) {
+		return String.format("user%08d", user);
+	}
+
+	@Override
+	public void accept(EntityManager em) {
+		Random random = new Random(seed);
+		RealmEntity realm = BenchmarkRealm.persistRealm(em);
+
+		for (int i = 0; i < GROUPS; i++) {
+			GroupEntity group = new GroupEntity();
+			group.setId("g" + i);
+			group.setName("group" + i);
+			group.setRealm(realm);
+			em.persist(group);
+		}
+
+		for (int i = 0; i < users; i++) {
+			UserEntity user = new UserEntity();
+			user.setId(String.format("u%08d", i));
+			user.setRealmId(BenchmarkRealm.REALM_ID);
+			user.setUsername(this.username(i));
+			user.setEmail(this.username(i) + "@domain" + domains.next(random)
+					+ ".com", false);
+			user.setFirstName("First" + firstNames.next(random));
+			user.setLastName("Last" + lastNames.next(random));
+			user.setEnabled(true);
+			user.setCreatedTimestamp(0L);
+			em.persist(user);
+
+			int attributes = MIN_ATTRIBUTES
+					+ random.nextInt(MAX_ATTRIBUTES - MIN_ATTRIBUTES + 1);
+			for (int a = 0; a < attributes; a++) {
+				BenchmarkRealm.persistAttribute(em, user, attributeName(a),
+						this.attributeValue(a, random));
+			}
+
+			for (String groupId : this._groupIds(random)) {
+				UserGroupMembershipEntity membership = new UserGroupMembershipEntity();
+				membership.setUser(user);
+				membership.setGroupId(groupId);
+				em.persist(membership);
+			}
+
+			if (i % FLUSH_SIZE == FLUSH_SIZE - 1) {
+				em.flush();
+				em.clear();
+			}
+		}
+	}
+
+	private List<String> _groupIds(Random random) {
+		int amount = random.nextInt(MAX_USER_GROUPS + 1);
+		Set<Integer> result = new LinkedHashSet<>();
+		while (result.size() < amount) {
+			result.add(groups.next(random));
+		}
+		List<String> ids = new ArrayList<>(amount);
+		for (int group : result) {
+			ids.add("g" + group);
+		}
+		return ids;
+	}
+}
@@ -0,0 +1,98 @@
+package io.github.andrewsha256.keycloak_user_search.loadtest;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Latencies, rows and SQL statements of requests of one shape
+ *
+ * Not thread-safe: every load test thread has its own stats, they are
+ * merged when test is over.
+ */
+class ShapeStats {
+
+	private long[] latencies = new long[1024];
+
+	private int requests;
+
+	private int errors;
+
+	private long rows;
+
+	private long statements;
+
+	void add(long latencyNanos, int rows, long statements) {
+		if (requests == latencies.length) {
+			latencies = Arrays.copyOf(latencies, requests * 2);
+		}
+		latencies[requests++] = latencyNanos;
+		this.rows += rows;
+		this.statements += statements;
+	}
+
+	void addError() {
+		errors++;
+	}
+
+	void merge(ShapeStats other) {
+		for (int i = 0; i < other.requests; i++) {
+			this.add(other.latencies[i], 0, 0);
+		}
+		rows += other.rows;
+		statements += other.statements;
+		errors += other.errors;
+	}
+
+	boolean isEmpty() {
+		return requests == 0 && errors == 0;
+	}
+
+	/**
+	 * Report of JSON result
+	 *
+	 * @param seconds measurement duration
+	 * @return
+	 */
+	Map<String, Object> report(double seconds) {
+		long[] sorted = Arrays.copyOf(latencies, requests);
+		Arrays.sort(sorted);
+
+		Map<String, Object> result = new LinkedHashMap<>();
+		result.put("requests", requests);
+		result.put("errors", errors);
+		result.put("throughput", _round(requests / seconds));
+		result.put("p50Ms", _millis(_percentile(sorted, 0.50)));
+		result.put("p95Ms", _millis(_percentile(sorted, 0.95)));
+		result.put("p99Ms", _millis(_percentile(sorted, 0.99)));
+		result.put("maxMs", _millis(requests == 0 ? 0 : sorted[requests - 1]));
+		result.put("rowsPerRequest",
+				_round(requests == 0 ? 0 : (double) rows / requests));
+		result.put("queriesPerRequest",
+				_round(requests == 0 ? 0 : (double) statements / requests));
+		return result;
+	}
+
+	/**
+	 * Nearest-rank percentile
+	 *
+	 * @param sorted
+	 * @param percentile
+	 * @return
+	 */
+	private static long _percentile(long[] sorted, double percentile) {
+		if (sorted.length == 0) {
+			return 0;
+		}
+		int rank = (int) Math.ceil(percentile * sorted.length);
+		return sorted[Math.max(rank, 1) - 1];
+	}
+
+	private static double _millis(long nanos) {
+		return _round(nanos / 1e6);
+	}
+
+	private static double _round(double value) {
+		return Math.round(value * 1000) / 1000.0;
+	}
+}
@@ -0,0 +1,38 @@
+package io.github.andrewsha256.keycloak_user_search.loadtest;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Zipfian distribution of ranks `0..size-1`: rank `k` is drawn with
+ * probability proportional to `1 / (k + 1)^exponent`, so few values are
+ * very frequent and most values are rare
+ *
+ * Immutable, `Random` is passed by caller, so one instance is shared by
+ * threads.
+ */
+class Zipf {
+
+	private final double[] cdf;
+
+	Zipf(int size, double exponent) {
+		cdf = new double[size];
+		double sum = 0;
+		for (int k = 0; k < size; k++) {
+			sum += 1 / Math.pow(k + 1, exponent);
+			cdf[k] = sum;
+		}
+		for (int k = 0; k < size; k++) {
+			cdf[k] /= sum;
+		}
+	}
+
+	int next(Random random) {
+		int index = Arrays.binarySearch(cdf, random.nextDouble());
+		return Math.min(index >= 0 ? index : -index - 1, cdf.length - 1);
+	}
+
+	int size() {
+		return cdf.length;
+	}
+}
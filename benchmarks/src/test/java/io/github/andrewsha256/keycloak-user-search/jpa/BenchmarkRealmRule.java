@@ -0,0 +1,82 @@
+package io.github.andrewsha256.keycloak_user_search.jpa;
+
+import javax.persistence.EntityManager;
+
+import org.junit.rules.ExternalResource;
+
+/**
+ * `BenchmarkRealm` of test class (`@ClassRule`)
+ *
+ * Every test gets its own entity manager and provider from `transaction()`
+ * rule, and its transaction is rolled back after test, so tests don't see
+ * changes of each other.
+ */
+public class BenchmarkRealmRule extends ExternalResource {
+
+	private final int users;
+
+	private BenchmarkRealm realm;
+
+	/**
+	 * @param users amount of generated users
+	 */
+	public BenchmarkRealmRule(int users) {
+		this.users = users;
+	}
+
+	@Override
+	protected void before() {
+		realm = BenchmarkRealm.create(users);
+	}
+
+	@Override
+	protected void after() {
+		realm.close();
+	}
+
+	public BenchmarkRealm getRealm() {
+		return realm;
+	}
+
+	/**
+	 * Test transaction rule (`@Rule`)
+	 *
+	 * @return
+	 */
+	public Transaction transaction() {
+		return new Transaction();
+	}
+
+	/**
+	 * Entity manager with active transaction and provider over it
+	 * (`BenchmarkRealm.searchSettings()`)
+	 */
+	public class Transaction extends ExternalResource {
+
+		private EntityManager em;
+
+		private JpaUserProviderExtended provider;
+
+		@Override
+		protected void before() {
+			em = realm.createEntityManager();
+			em.getTransaction().begin();
+			provider = new JpaUserProviderExtended(null, em,
+					BenchmarkRealm.searchSettings());
+		}
+
+		@Override
+		protected void after() {
+			em.getTransaction().rollback();
+			em.close();
+		}
+
+		public EntityManager getEntityManager() {
+			return em;
+		}
+
+		public JpaUserProviderExtended getProvider() {
+			return provider;
+		}
+	}
+}
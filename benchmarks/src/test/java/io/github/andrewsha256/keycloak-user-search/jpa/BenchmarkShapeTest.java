@@ -0,0 +1,66 @@
+package io.github.andrewsha256.keycloak_user_search.jpa;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Every benchmark of every shape runs once (stub `EntityManager` and small
+ * in-memory realm), so broken shape fails build instead of JMH run
+ */
+public class BenchmarkShapeTest {
+
+	private static final int USERS = 200;
+
+	@Test
+	public void parseBenchmarkRuns() {
+		for (BenchmarkShape shape : BenchmarkShape.values()) {
+			ParseBenchmark benchmark = new ParseBenchmark();
+			benchmark.shape = shape;
+			benchmark.setup();
+			assertNotNull(benchmark.parseSearchAttributes());
+			assertFalse(shape.name(), benchmark.canonicalTerms().isEmpty());
+		}
+	}
+
+	@Test
+	public void queryBuildingBenchmarkRuns() {
+		for (BenchmarkShape shape : BenchmarkShape.values()) {
+			for (int planCacheSize : new int[] { 0, 1000 }) {
+				for (SearchSource searchSource : SearchSource.values()) {
+					QueryBuildingBenchmark benchmark = new QueryBuildingBenchmark();
+					benchmark.shape = shape;
+					benchmark.planCacheSize = planCacheSize;
+					benchmark.searchSource = searchSource;
+					benchmark.setup();
+					assertNotNull(benchmark.search());
+					assertNotNull(benchmark.countUsers());
+					assertNotNull(benchmark.index());
+				}
+			}
+		}
+	}
+
+	@Test
+	public void searchBenchmarkRuns() {
+		for (BenchmarkShape shape : BenchmarkShape.values()) {
+			SearchBenchmark benchmark = new SearchBenchmark();
+			benchmark.users = USERS;
+			benchmark.shape = shape;
+			benchmark.setup();
+			try {
+				int found = benchmark.search();
+				long count = benchmark.countUsers();
+				assertTrue(shape.name(), found <= 15 && found <= count);
+				assertEquals(shape.name(), found > 0, count > 0);
+				assertNotNull(benchmark.index());
+			}
+			finally {
+				benchmark.tearDown();
+			}
+		}
+	}
+}
@@ -0,0 +1,333 @@
+package io.github.andrewsha256.keycloak_user_search.jpa;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.persistence.EntityManager;
+
+import org.junit.ClassRule;
+import org.junit.Rule;
+import org.junit.Test;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.jpa.entities.UserEntity;
+
+/**
+ * Index matches, values and facets of hand-made documents, and bitmap
+ * provider finds the same users as database search on benchmark realm
+ * (small results are selected among index matches, big ones by database)
+ */
+public class BitmapIndexTest {
+
+	private static final int USERS = 1500;
+
+	@ClassRule
+	public static final BenchmarkRealmRule realmRule = new BenchmarkRealmRule(
+			USERS);
+
+	@Rule
+	public final BenchmarkRealmRule.Transaction db = realmRule.transaction();
+
+	private final RealmModel realm = BenchmarkRealm.realmModel();
+
+	@Test
+	public void termsAreIntersectedAndValuesUnited() {
+		BitmapIndex index = this._smallIndex();
+		assertEquals(Arrays.asList("1", "3"), this._match(index,
+				_field(UserModel.LAST_NAME, "jerome", "petr%")));
+		assertEquals(Arrays.asList("2"), this._match(index,
+				_field(UserModel.LAST_NAME, "jérôme", "%ov"),
+				_attribute("city", "Paris")));
+		assertEquals(Arrays.asList("1", "3"), this._match(index,
+				_attribute("city", "mos%")));
+		assertEquals(Arrays.asList("1", "2"), this._match(index,
+				_group("adm_ns")));
+		assertEquals(Collections.emptyList(), this._match(index,
+				_attribute("city", "paris"), _group("users")));
+		assertEquals(Collections.emptyList(), this._match(index,
+				_attribute("country", "%")));
+		assertEquals(Arrays.asList("1", "2", "3"), this._match(index));
+	}
+
+	@Test
+	public void changedUsersAreReindexed() {
+		BitmapIndex index = this._smallIndex();
+		index.put(_document("1", "Ivanov", "Paris", "g2", "users"));
+		index.remove("3");
+		assertEquals(Collections.emptyList(), this._match(index,
+				_attribute("city", "mos%")));
+		assertEquals(Arrays.asList("1", "2"), this._match(index,
+				_attribute("city", "paris")));
+		assertEquals(Collections.emptyList(), this._match(index,
+				_field(UserModel.LAST_NAME, "jerome")));
+		assertEquals(2, index.size());
+
+		index.renameGroup("g3", "owners");
+		assertEquals(Arrays.asList("2"), this._match(index,
+				_group("owners")));
+		index.removeGroup("g2");
+		assertEquals(Collections.emptyList(), this._match(index,
+				_group("users")));
+	}
+
+	@Test
+	public void valuesAreOrderedByNormalizedValue() {
+		BitmapIndex index = this._smallIndex();
+		SearchTerm lastNames = _field(UserModel.LAST_NAME, "%");
+		List<SearchTerm> noFilter = Collections.emptyList();
+		assertEquals(Arrays.asList("Ivanov", "Jérôme", "petrov"), index.values(
+				lastNames, noFilter, 0, -1, OrderDirect.ASC));
+		assertEquals(Arrays.asList("Jérôme", "Ivanov"), index.values(
+				lastNames, noFilter, 1, 2, OrderDirect.DESC));
+		assertEquals(Arrays.asList("Jérôme", "petrov"), index.values(
+				lastNames, Arrays.asList(_attribute("city", "Moscow")), 0, -1,
+				OrderDirect.ASC));
+		assertEquals(Arrays.asList("admins"), index.values(_group("a%"),
+				noFilter, 0, -1, OrderDirect.ASC));
+		assertEquals(2, index.countValues(_attribute("city", "%"), noFilter));
+	}
+
+	@Test
+	public void facetsCountMatchedUsers() {
+		BitmapIndex index = this._smallIndex();
+		BitSet all = index.match(Collections.<SearchTerm>emptyList());
+		assertEquals("[Moscow=2, Paris=1]", _facet(index.facet(
+				_attribute("city", "%"), all, 10)));
+		assertEquals("[Moscow=2]", _facet(index.facet(
+				_attribute("city", "%"), all, 1)));
+		// groups with the same name are one value
+		assertEquals("[admins=2, users=1]", _facet(index.facet(
+				_group("%"), all, 10)));
+		assertEquals("[admins=1]", _facet(index.facet(_group("%"),
+				index.match(Arrays.asList(_attribute("city", "paris"))), 10)));
+	}
+
+	@Test
+	public void bitmapSearchMatchesDatabase() {
+		BitmapUserProviderExtended bitmap = this._bitmapProvider();
+		JpaUserProviderExtended jpa = db.getProvider();
+		for (Map<String, List<String>> query : this._queries()) {
+			assertEquals(query.toString(), jpa.searchIdsExtended(query, realm,
+					5, null, 50, "username", OrderDirect.ASC).getIds(),
+					bitmap.searchIdsExtended(query, realm, 5, null, 50,
+							"username", OrderDirect.ASC).getIds());
+			assertEquals(query.toString(), this._ids(jpa.searchForUserExtended(
+					query, realm, 0, null, 20, "city", OrderDirect.DESC)
+					.getUsers()),
+					this._ids(bitmap.searchForUserExtended(query, realm, 0,
+							null, 20, "city", OrderDirect.DESC).getUsers()));
+			TotalCount count = bitmap.countUsers(query, realm,
+					CountStrategy.EXACT);
+			assertEquals(query.toString(), jpa.countUsers(query, realm,
+					CountStrategy.EXACT).getValue(), count.getValue());
+			assertEquals(CountStrategy.Type.EXACT,
+					count.getStrategy().getType());
+			assertEquals(query.toString(), _facets(jpa.facets(query, realm,
+					Arrays.asList("type", JpaUserProviderExtended.GROUP_FIELD),
+					5)), _facets(bitmap.facets(query, realm, Arrays.asList(
+							"type", JpaUserProviderExtended.GROUP_FIELD), 5)));
+		}
+	}
+
+	@Test
+	public void indexMatchesDatabase() {
+		BitmapUserProviderExtended bitmap = this._bitmapProvider();
+		JpaUserProviderExtended jpa = db.getProvider();
+		Map<String, List<String>> noFilter = Collections.emptyMap();
+		Map<String, List<String>> filter = new LinkedHashMap<>();
+		filter.put("type", Arrays.asList("premium"));
+		filter.put(JpaUserProviderExtended.GROUP_FIELD,
+				Arrays.asList("group1%"));
+		for (String[] request : new String[][] { { "city", "%" },
+				{ "city", "city1%" }, { "city", "%9" }, { "firstName", "first2%" },
+				{ JpaUserProviderExtended.GROUP_FIELD, "group%" },
+				{ "email", "user0000001%" } }) {
+			String label = request[0];
+			String value = request[1];
+			for (Map<String, List<String>> query : Arrays.asList(noFilter,
+					filter)) {
+				String message = label + "=" + value + " " + query;
+				for (OrderDirect orderDirect : OrderDirect.values()) {
+					assertEquals(message, jpa.index(realm, label, value, query,
+							0, 1000, orderDirect), bitmap.index(realm, label,
+									value, query, 0, 1000, orderDirect));
+				}
+				assertEquals(message, jpa.index(realm, label, value, query, 3,
+						5, OrderDirect.ASC), bitmap.index(realm, label, value,
+								query, 3, 5, OrderDirect.ASC));
+				// amount of values (database counts users of default fields)
+				assertEquals(message, bitmap.index(realm, label, value, query,
+						0, -1, OrderDirect.ASC).size(), bitmap.countIndex(realm,
+								label, value, query, CountStrategy.EXACT)
+								.getValue());
+			}
+		}
+	}
+
+	@Test
+	public void accentsDoNotChangeDatabaseResults() {
+		EntityManager em = db.getEntityManager();
+		UserEntity user = new UserEntity();
+		user.setId("accented");
+		user.setRealmId(BenchmarkRealm.REALM_ID);
+		user.setUsername("accented");
+		user.setLastName("Jérôme");
+		user.setCreatedTimestamp(0L);
+		em.persist(user);
+		em.flush();
+
+		BitmapUserProviderExtended bitmap = this._bitmapProvider();
+		Map<String, List<String>> query = Collections.singletonMap("lastName",
+				Arrays.asList("jerome"));
+		assertTrue(bitmap.searchIdsExtended(query, realm, 0, null, 10,
+				"username", OrderDirect.ASC).getIds().isEmpty());
+		assertEquals(0, bitmap.countUsers(query, realm, CountStrategy.EXACT)
+				.getValue());
+		assertEquals(Arrays.asList("accented"), bitmap.searchIdsExtended(
+				Collections.singletonMap("lastName", Arrays.asList("jérôme")),
+				realm, 0, null, 10, "username", OrderDirect.ASC).getIds());
+	}
+
+	@Test
+	public void bigMatchesAreEstimatedByIndex() {
+		BitmapUserProviderExtended bitmap = this._bitmapProvider();
+		Map<String, List<String>> query = Collections.singletonMap("username",
+				Arrays.asList("user%"));
+		TotalCount count = bitmap.countUsers(query, realm,
+				CountStrategy.ESTIMATE);
+		assertEquals(USERS, count.getValue());
+		assertEquals(CountStrategy.Type.ESTIMATE,
+				count.getStrategy().getType());
+		assertEquals(11, bitmap.countUsers(query, realm,
+				CountStrategy.capped(10)).getValue());
+	}
+
+	/**
+	 * Queries with less and more than `IN_PARAMS_CHUNK_SIZE` matches
+	 *
+	 * @return
+	 */
+	private List<Map<String, List<String>>> _queries() {
+		List<Map<String, List<String>>> result = new ArrayList<>();
+		result.add(Collections.singletonMap("username",
+				Arrays.asList("user0000019%", "%0042")));
+		result.add(Collections.singletonMap("city", Arrays.asList("City1")));
+		result.add(Collections.singletonMap(JpaUserProviderExtended.GROUP_FIELD,
+				Arrays.asList("group1_")));
+		result.add(Collections.singletonMap("email",
+				Arrays.asList("%gmail.com")));
+		result.add(Collections.singletonMap("username",
+				Arrays.asList("user%")));
+		Map<String, List<String>> combined = new LinkedHashMap<>();
+		combined.put("city", Arrays.asList("city1%"));
+		combined.put("type", Arrays.asList("premium"));
+		combined.put(JpaUserProviderExtended.GROUP_FIELD,
+				Arrays.asList("group%"));
+		result.add(combined);
+		return result;
+	}
+
+	/**
+	 * Provider with index built from benchmark realm (and changes of test
+	 * transaction)
+	 *
+	 * @return
+	 */
+	private BitmapUserProviderExtended _bitmapProvider() {
+		EntityManager em = db.getEntityManager();
+		BitmapIndex index = new BitmapIndex();
+		String lastId = null;
+		List<UserDocument> documents;
+		do {
+			documents = UserDocument.loadBatch(em, BenchmarkRealm.REALM_ID,
+					lastId, 500);
+			for (UserDocument document : documents) {
+				index.put(document);
+				lastId = document.getUserId();
+			}
+		}
+		while (!documents.isEmpty());
+		em.clear();
+
+		BitmapIndexRegistry bitmaps = new BitmapIndexRegistry(0,
+				BitmapIndexRegistry.DEFAULT_BATCH_SIZE);
+		bitmaps.put(BenchmarkRealm.REALM_ID, index);
+		return new BitmapUserProviderExtended(null, em,
+				BenchmarkRealm.searchSettings().setBitmaps(bitmaps));
+	}
+
+	/**
+	 * Three users: `1` (Jérôme, Moscow, admins), `2` (Ivanov, Paris, admins
+	 * in other group with the same name) and `3` (petrov, Moscow, users)
+	 *
+	 * @return
+	 */
+	private BitmapIndex _smallIndex() {
+		BitmapIndex index = new BitmapIndex();
+		index.put(_document("1", "Jérôme", "Moscow", "g1", "admins"));
+		index.put(_document("2", "Ivanov", "Paris", "g3", "admins"));
+		index.put(_document("3", "petrov", "Moscow", "g2", "users"));
+		return index;
+	}
+
+	private List<String> _match(BitmapIndex index, SearchTerm... terms) {
+		return index.userIds(index.match(Arrays.asList(terms)));
+	}
+
+	private List<String> _ids(List<UserModel> users) {
+		List<String> ids = new ArrayList<>();
+		for (UserModel user : users) {
+			ids.add(user.getId());
+		}
+		return ids;
+	}
+
+	private static UserDocument _document(String id, String lastName,
+			String city, String groupId, String group) {
+		UserDocument document = new UserDocument(id);
+		document.getFields().put(UserModel.USERNAME, "user" + id);
+		document.getFields().put(UserModel.LAST_NAME, lastName);
+		document.getAttributes().add(new String[] { "city", city });
+		document.getGroups().put(groupId, group);
+		return document;
+	}
+
+	private static SearchTerm _field(String field, String... values) {
+		return new SearchTerm(field, Arrays.asList(values), true);
+	}
+
+	private static SearchTerm _attribute(String name, String... values) {
+		return new SearchTerm(name, Arrays.asList(values), false);
+	}
+
+	private static SearchTerm _group(String... values) {
+		return new SearchTerm(JpaUserProviderExtended.GROUP_FIELD,
+				Arrays.asList(values), false);
+	}
+
+	private static String _facet(List<FacetValue> values) {
+		List<String> result = new ArrayList<>();
+		for (FacetValue value : values) {
+			result.add(value.getValue() + "=" + value.getCount());
+		}
+		return result.toString();
+	}
+
+	private static Map<String, String> _facets(
+			Map<String, List<FacetValue>> facets) {
+		Map<String, String> result = new HashMap<>();
+		for (Map.Entry<String, List<FacetValue>> facet : facets.entrySet()) {
+			result.put(facet.getKey(), _facet(facet.getValue()));
+		}
+		return result;
+	}
+}
@@ -0,0 +1,65 @@
+package io.github.andrewsha256.keycloak_user_search.jpa;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.ClassRule;
+import org.junit.Rule;
+import org.junit.Test;
+import org.keycloak.models.RealmModel;
+
+/**
+ * `capped:N` count is made by database in limited subquery
+ */
+public class CappedCountTest {
+
+	private static final int USERS = 200;
+
+	@ClassRule
+	public static final BenchmarkRealmRule realmRule = new BenchmarkRealmRule(
+			USERS);
+
+	@Rule
+	public final BenchmarkRealmRule.Transaction db = realmRule.transaction();
+
+	private final RealmModel realm = BenchmarkRealm.realmModel();
+
+	@Test
+	public void cappedCountStopsAfterCap() {
+		JpaUserProviderExtended provider = db.getProvider();
+		Map<String, List<String>> query = Collections.singletonMap("username",
+				Arrays.asList("user%"));
+		long exact = provider.countUsers(query, realm, CountStrategy.EXACT)
+				.getValue();
+		assertEquals(USERS, exact);
+		assertEquals(11, provider.countUsers(query, realm,
+				CountStrategy.capped(10)).getValue());
+		assertEquals(exact, provider.countUsers(query, realm,
+				CountStrategy.capped(USERS * 2)).getValue());
+	}
+
+	@Test
+	public void cappedIndexCountStopsAfterCap() {
+		JpaUserProviderExtended provider = db.getProvider();
+		Map<String, List<String>> query = Collections.emptyMap();
+		assertEquals(BenchmarkRealm.CITIES, provider.countIndex(realm, "city",
+				"%", query, CountStrategy.EXACT).getValue());
+		assertEquals(6, provider.countIndex(realm, "city", "%", query,
+				CountStrategy.capped(5)).getValue());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void capIsLimited() {
+		CountStrategy.parse("capped:" + Integer.MAX_VALUE);
+	}
+
+	@Test
+	public void maxCapIsParsed() {
+		assertEquals(CountStrategy.capped(CountStrategy.MAX_CAP),
+				CountStrategy.parse("capped:" + CountStrategy.MAX_CAP));
+	}
+}
@@ -0,0 +1,173 @@
+package io.github.andrewsha256.keycloak_user_search.jpa;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.ClassRule;
+import org.junit.Rule;
+import org.junit.Test;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+
+/**
+ * Facets have the same counts whichever way they are made: over ids of
+ * matching users in one or several `IN` chunks, or with search filters
+ * when more than `FACET_IDS_LIMIT` users match
+ */
+public class FacetsTest {
+
+	private static final int USERS = JpaUserProviderExtended.FACET_IDS_LIMIT
+			+ 1000;
+
+	private static final List<String> LABELS = Arrays.asList(
+			JpaUserProviderExtended.GROUP_FIELD, "city", "type",
+			UserModel.FIRST_NAME, UserModel.LAST_NAME);
+
+	@ClassRule
+	public static final BenchmarkRealmRule realmRule = new BenchmarkRealmRule(
+			USERS);
+
+	@Rule
+	public final BenchmarkRealmRule.Transaction db = realmRule.transaction();
+
+	private final RealmModel realm = BenchmarkRealm.realmModel();
+
+	@Test
+	public void singleChunkFacetsMatchUsers() {
+		this._assertFacets(_query("city", "City1"), 0,
+				JpaUserProviderExtended.IN_PARAMS_CHUNK_SIZE);
+	}
+
+	@Test
+	public void chunkedFacetsMatchUsers() {
+		this._assertFacets(_query("email", "%gmail.com"),
+				JpaUserProviderExtended.IN_PARAMS_CHUNK_SIZE,
+				JpaUserProviderExtended.FACET_IDS_LIMIT);
+	}
+
+	@Test
+	public void filteredFacetsMatchUsers() {
+		this._assertFacets(_query("username", "user%"),
+				JpaUserProviderExtended.FACET_IDS_LIMIT, USERS);
+		this._assertFacets(Collections.<String, List<String>>emptyMap(),
+				JpaUserProviderExtended.FACET_IDS_LIMIT, USERS);
+	}
+
+	@Test
+	public void chunksAreQueriedPerFacet() {
+		JpaUserProviderExtended provider = db.getProvider();
+		Map<String, List<String>> query = _query("email", "%gmail.com");
+		// planner statistics are gathered by the first search
+		provider.facets(query, realm, LABELS, 10);
+
+		int matching = provider.searchIdsExtended(query, realm, 0, null, USERS,
+				"username", OrderDirect.ASC).getIds().size();
+		int chunks = (matching + JpaUserProviderExtended.IN_PARAMS_CHUNK_SIZE
+				- 1) / JpaUserProviderExtended.IN_PARAMS_CHUNK_SIZE;
+		assertTrue(chunks > 1);
+
+		StatementCounter counter = new StatementCounter()
+				.register(db.getEntityManager());
+		long before = counter.get();
+		provider.facets(query, realm, LABELS, 10);
+		assertEquals(1 + LABELS.size() * chunks, counter.get() - before);
+	}
+
+	/**
+	 * Compares facets of `query` with values of matching users for several
+	 * sizes
+	 *
+	 * @param query
+	 * @param minMatching matching users are more than that
+	 * @param maxMatching matching users are at most that
+	 */
+	private void _assertFacets(Map<String, List<String>> query,
+			int minMatching, int maxMatching) {
+		JpaUserProviderExtended provider = db.getProvider();
+		Set<String> ids = new HashSet<>(provider.searchIdsExtended(query,
+				realm, 0, null, USERS, "username", OrderDirect.ASC).getIds());
+		assertTrue(ids.size() > minMatching && ids.size() <= maxMatching);
+
+		for (int topK : new int[] { 1, 3, 10, 100 }) {
+			Map<String, List<FacetValue>> facets = provider.facets(query, realm,
+					LABELS, topK);
+			assertEquals(LABELS, new ArrayList<>(facets.keySet()));
+			for (String label : LABELS) {
+				assertEquals(label + " " + topK,
+						this._expected(label, ids, topK),
+						this._values(facets.get(label)));
+			}
+		}
+	}
+
+	/**
+	 * `value=count` of `topK` values of `label` among users `ids`, counted
+	 * from all values of all realm's users
+	 *
+	 * @param label
+	 * @param ids
+	 * @param topK
+	 * @return
+	 */
+	private List<String> _expected(String label, Set<String> ids, int topK) {
+		String jpql;
+		if (JpaUserProviderExtended.GROUP_FIELD.equals(label)) {
+			jpql = "select m.user.id, g.name from UserGroupMembershipEntity m,"
+					+ " GroupEntity g where m.groupId = g.id";
+		}
+		else if (UserModel.FIRST_NAME.equals(label)
+				|| UserModel.LAST_NAME.equals(label)) {
+			jpql = "select u.id, u." + label + " from UserEntity u";
+		}
+		else {
+			jpql = "select a.user.id, a.value from UserAttributeEntity a"
+					+ " where a.name = '" + label + "'";
+		}
+
+		Map<String, Set<String>> users = new HashMap<>();
+		for (Object[] row : db.getEntityManager()
+				.createQuery(jpql, Object[].class).getResultList()) {
+			if (ids.contains(row[0]) && row[1] != null) {
+				users.computeIfAbsent((String) row[1], value -> new HashSet<>())
+						.add((String) row[0]);
+			}
+		}
+
+		Map<String, Integer> counts = new LinkedHashMap<>();
+		for (Map.Entry<String, Set<String>> entry : users.entrySet()) {
+			counts.put(entry.getKey(), entry.getValue().size());
+		}
+		List<String> values = new ArrayList<>(counts.keySet());
+		values.sort((a, b) -> counts.get(a).equals(counts.get(b))
+				? a.compareTo(b) : counts.get(b) - counts.get(a));
+
+		List<String> result = new ArrayList<>();
+		for (String value : values.subList(0, Math.min(topK, values.size()))) {
+			result.add(value + "=" + counts.get(value));
+		}
+		return result;
+	}
+
+	private List<String> _values(List<FacetValue> facet) {
+		List<String> result = new ArrayList<>();
+		for (FacetValue value : facet) {
+			result.add(value.getValue() + "=" + value.getCount());
+		}
+		return result;
+	}
+
+	private static Map<String, List<String>> _query(String name,
+			String value) {
+		return Collections.singletonMap(name, Arrays.asList(value));
+	}
+}
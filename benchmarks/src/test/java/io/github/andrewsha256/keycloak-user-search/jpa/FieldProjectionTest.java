@@ -0,0 +1,120 @@
+package io.github.andrewsha256.keycloak_user_search.jpa;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.ClassRule;
+import org.junit.Rule;
+import org.junit.Test;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+
+/**
+ * `_fields` search returns the same users in the same order as entity
+ * search, with the same values of requested fields
+ */
+public class FieldProjectionTest {
+
+	private static final int USERS = 200;
+
+	private static final Map<String, List<String>> QUERY = Collections
+			.singletonMap("username", Arrays.asList("user%"));
+
+	@ClassRule
+	public static final BenchmarkRealmRule realmRule = new BenchmarkRealmRule(
+			USERS);
+
+	@Rule
+	public final BenchmarkRealmRule.Transaction db = realmRule.transaction();
+
+	private final RealmModel realm = BenchmarkRealm.realmModel();
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void fieldsMatchEntities() {
+		JpaUserProviderExtended provider = db.getProvider();
+		for (String orderBy : Arrays.asList("username", "city",
+				JpaUserProviderExtended.GROUP_FIELD)) {
+			List<UserModel> users = provider.searchForUserExtended(QUERY, realm,
+					10, null, 20, orderBy, OrderDirect.DESC).getUsers();
+			List<UserRow> rows = provider.searchForUserFields(QUERY, realm, 10,
+					null, 20, orderBy, OrderDirect.DESC,
+					FieldProjection.parse("username,email,attr:city,groups"))
+					.getRows();
+			assertEquals(orderBy, this._ids(users), this._rowIds(rows));
+
+			Map<String, List<String>> groupNames = provider.getGroupNames(realm,
+					this._ids(users));
+			for (int i = 0; i < users.size(); i++) {
+				UserModel user = users.get(i);
+				Map<String, Object> properties = rows.get(i).getProperties();
+				assertEquals(Arrays.asList("username", "email", "attributes",
+						FieldProjection.GROUPS),
+						new ArrayList<>(properties.keySet()));
+				assertEquals(user.getUsername(), properties.get("username"));
+				assertEquals(user.getEmail(), properties.get("email"));
+				assertEquals(user.getAttribute("city"),
+						((Map<String, List<String>>) properties.get("attributes"))
+								.get("city"));
+				assertEquals(new HashSet<>(groupNames.get(user.getId())),
+						new HashSet<>((List<String>) properties
+								.get(FieldProjection.GROUPS)));
+			}
+			db.getEntityManager().clear();
+		}
+	}
+
+	@Test
+	public void cursorPagesFollowEachOther() {
+		JpaUserProviderExtended provider = db.getProvider();
+		FieldProjection fields = FieldProjection.parse("username");
+		UserRowList first = provider.searchForUserFields(QUERY, realm, 0, null,
+				15, "username", OrderDirect.ASC, fields);
+		UserRowList second = provider.searchForUserFields(QUERY, realm, 0,
+				first.getNextCursor(), 15, "username", OrderDirect.ASC, fields);
+		List<String> pages = new ArrayList<>(this._rowIds(first.getRows()));
+		pages.addAll(this._rowIds(second.getRows()));
+
+		assertEquals(this._rowIds(provider.searchForUserFields(QUERY, realm, 0,
+				null, 30, "username", OrderDirect.ASC, fields).getRows()),
+				pages);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void unknownFieldIsRejected() {
+		FieldProjection.parse("username,password");
+	}
+
+	@Test
+	public void fieldsAreParsedOnce() {
+		FieldProjection fields = FieldProjection
+				.parse(" email , username,email, attr:city,groups,attr:city");
+		assertEquals(Arrays.asList(UserModel.EMAIL, UserModel.USERNAME),
+				fields.getColumns());
+		assertEquals(Arrays.asList("city"), fields.getAttributes());
+		assertFalse(FieldProjection.parse("email").hasGroups());
+	}
+
+	private List<String> _ids(List<UserModel> users) {
+		List<String> ids = new ArrayList<>();
+		for (UserModel user : users) {
+			ids.add(user.getId());
+		}
+		return ids;
+	}
+
+	private List<String> _rowIds(List<UserRow> rows) {
+		List<String> ids = new ArrayList<>();
+		for (UserRow row : rows) {
+			ids.add(row.getId());
+		}
+		return ids;
+	}
+}
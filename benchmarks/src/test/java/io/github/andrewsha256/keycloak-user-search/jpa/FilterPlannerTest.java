@@ -0,0 +1,148 @@
+package io.github.andrewsha256.keycloak_user_search.jpa;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.ClassRule;
+import org.junit.Rule;
+import org.junit.Test;
+import org.keycloak.models.RealmModel;
+
+import io.github.andrewsha256.keycloak_user_search.jpa.FilterPlan.Form;
+
+/**
+ * Planner orders terms from the most selective one by realm statistics,
+ * broad terms become `exists`, and planned search finds the same users as
+ * canonical one
+ */
+public class FilterPlannerTest {
+
+	private static final int USERS = 2000;
+
+	@ClassRule
+	public static final BenchmarkRealmRule realmRule = new BenchmarkRealmRule(
+			USERS);
+
+	@Rule
+	public final BenchmarkRealmRule.Transaction db = realmRule.transaction();
+
+	private final RealmModel realm = BenchmarkRealm.realmModel();
+
+	@Test
+	public void selectiveTermsGoFirst() {
+		FilterPlan plan = this._plan(new FilterPlanner(60000),
+				_attribute("type", "premium"), _attribute("city", "City1"),
+				_group("group1"));
+		assertEquals(Arrays.asList("city", JpaUserProviderExtended.GROUP_FIELD,
+				"type"), this._labels(plan));
+		// ~40 cities, ~200 members, ~670 types: all below EXISTS_MIN_ROWS
+		assertEquals(Arrays.asList(Form.IN, Form.IN, Form.IN),
+				this._forms(plan));
+	}
+
+	@Test
+	public void broadTermsBecomeExists() {
+		FilterPlan plan = this._plan(new FilterPlanner(60000),
+				_field("username", "%"), _field("email", "%gmail.com"),
+				_attribute("city", "City1"));
+		assertEquals(Arrays.asList("city", "email", "username"),
+				this._labels(plan));
+		// every user matches `%`, `%gmail.com` is estimated below
+		// EXISTS_MIN_ROWS
+		assertEquals(Arrays.asList(Form.IN, Form.IN, Form.EXISTS),
+				this._forms(plan));
+	}
+
+	@Test
+	public void equalEstimatesKeepCanonicalOrder() {
+		FilterPlan plan = this._plan(new FilterPlanner(60000),
+				_field("username", "user00000001"),
+				_field("email", "user00000001@gmail.com"));
+		assertEquals(Arrays.asList("username", "email"), this._labels(plan));
+	}
+
+	@Test
+	public void disabledPlannerKeepsCanonicalOrder() {
+		FilterPlan plan = this._plan(new FilterPlanner(0),
+				_field("username", "%"), _attribute("city", "City1"));
+		assertEquals(Arrays.asList("username", "city"), this._labels(plan));
+		assertEquals(Arrays.asList(Form.IN, Form.IN), this._forms(plan));
+	}
+
+	@Test
+	public void statisticsAreGatheredOnce() {
+		FilterPlanner planner = new FilterPlanner(60000);
+		StatementCounter counter = new StatementCounter()
+				.register(db.getEntityManager());
+		this._plan(planner, _field("username", "%"), _attribute("city", "%"));
+		long gathered = counter.get();
+		this._plan(planner, _attribute("type", "basic"), _group("group2"));
+		assertEquals(gathered, counter.get());
+		assertEquals(1, planner.getSize());
+
+		planner.removeRealm(BenchmarkRealm.REALM_ID);
+		assertEquals(0, planner.getSize());
+		this._plan(planner, _attribute("type", "basic"), _group("group2"));
+		assertEquals(gathered * 2, counter.get());
+	}
+
+	@Test
+	public void plannedSearchMatchesCanonical() {
+		JpaUserProviderExtended planned = db.getProvider();
+		JpaUserProviderExtended canonical = new JpaUserProviderExtended(null,
+				db.getEntityManager(), new SearchSettings());
+		Map<String, List<String>> query = new LinkedHashMap<>();
+		query.put("username", Arrays.asList("user%"));
+		query.put("email", Arrays.asList("%gmail.com", "%mail.ru"));
+		query.put("type", Arrays.asList("premium"));
+		query.put(JpaUserProviderExtended.GROUP_FIELD,
+				Arrays.asList("group1%"));
+		query.put("city", Arrays.asList("City1", "City2"));
+		assertEquals(canonical.searchIdsExtended(query, realm, 0, null, USERS,
+				"username", OrderDirect.ASC).getIds(),
+				planned.searchIdsExtended(query, realm, 0, null, USERS,
+						"username", OrderDirect.ASC).getIds());
+		assertEquals(canonical.countUsers(query, realm, CountStrategy.EXACT)
+				.getValue(), planned.countUsers(query, realm,
+						CountStrategy.EXACT).getValue());
+	}
+
+	private FilterPlan _plan(FilterPlanner planner, SearchTerm... terms) {
+		return planner.plan(db.getEntityManager(), BenchmarkRealm.REALM_ID,
+				Arrays.asList(terms));
+	}
+
+	private List<String> _labels(FilterPlan plan) {
+		List<String> result = new ArrayList<>();
+		for (SearchTerm term : plan.getTerms()) {
+			result.add(term.getLabel());
+		}
+		return result;
+	}
+
+	private List<Form> _forms(FilterPlan plan) {
+		List<Form> result = new ArrayList<>();
+		for (int i = 0; i < plan.getTerms().size(); i++) {
+			result.add(plan.getForm(i));
+		}
+		return result;
+	}
+
+	private static SearchTerm _field(String field, String... values) {
+		return new SearchTerm(field, Arrays.asList(values), true);
+	}
+
+	private static SearchTerm _attribute(String name, String... values) {
+		return new SearchTerm(name, Arrays.asList(values), false);
+	}
+
+	private static SearchTerm _group(String... values) {
+		return new SearchTerm(JpaUserProviderExtended.GROUP_FIELD,
+				Arrays.asList(values), false);
+	}
+}
@@ -0,0 +1,86 @@
+package io.github.andrewsha256.keycloak_user_search.jpa;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.ClassRule;
+import org.junit.Rule;
+import org.junit.Test;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+
+/**
+ * `_idsOnly` search returns ids of the same users in the same order as
+ * entity search with one statement per page
+ */
+public class IdsSearchTest {
+
+	private static final int USERS = 200;
+
+	private static final Map<String, List<String>> QUERY = Collections
+			.singletonMap("username", Arrays.asList("user%"));
+
+	@ClassRule
+	public static final BenchmarkRealmRule realmRule = new BenchmarkRealmRule(
+			USERS);
+
+	@Rule
+	public final BenchmarkRealmRule.Transaction db = realmRule.transaction();
+
+	private final RealmModel realm = BenchmarkRealm.realmModel();
+
+	@Test
+	public void idsMatchEntities() {
+		JpaUserProviderExtended provider = db.getProvider();
+		for (String orderBy : Arrays.asList("username", "city",
+				JpaUserProviderExtended.GROUP_FIELD)) {
+			List<String> ids = new ArrayList<>();
+			for (UserModel user : provider.searchForUserExtended(QUERY, realm,
+					10, null, 20, orderBy, OrderDirect.ASC).getUsers()) {
+				ids.add(user.getId());
+			}
+			assertEquals(orderBy, ids, provider.searchIdsExtended(QUERY, realm,
+					10, null, 20, orderBy, OrderDirect.ASC).getIds());
+			db.getEntityManager().clear();
+		}
+	}
+
+	@Test
+	public void cursorPagesFollowEachOther() {
+		JpaUserProviderExtended provider = db.getProvider();
+		List<String> pages = new ArrayList<>();
+		SearchCursor cursor = null;
+		do {
+			UserIdList page = provider.searchIdsExtended(QUERY, realm, 0,
+					cursor, 70, "username", OrderDirect.DESC);
+			pages.addAll(page.getIds());
+			cursor = page.getNextCursor();
+		}
+		while (cursor != null);
+
+		assertEquals(provider.searchIdsExtended(QUERY, realm, 0, null, USERS,
+				"username", OrderDirect.DESC).getIds(), pages);
+		assertEquals(USERS, pages.size());
+		assertNull(provider.searchIdsExtended(QUERY, realm, 0, null,
+				USERS + 1, "username", OrderDirect.DESC).getNextCursor());
+	}
+
+	@Test
+	public void pageIsOneStatement() {
+		StatementCounter counter = new StatementCounter()
+				.register(db.getEntityManager());
+		for (int pageSize : new int[] { 5, 50 }) {
+			long before = counter.get();
+			assertEquals(pageSize, db.getProvider().searchIdsExtended(QUERY,
+					realm, 0, null, pageSize, "city", OrderDirect.ASC).getIds()
+					.size());
+			assertEquals(1, counter.get() - before);
+		}
+	}
+}
@@ -0,0 +1,46 @@
+package io.github.andrewsha256.keycloak_user_search.jpa;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+/**
+ * Results read before invalidation are not cached after it
+ */
+public class IndexResultCacheTest {
+
+	@Test
+	public void resultOfCurrentGenerationIsCached() {
+		IndexResultCache cache = new IndexResultCache(10, 60000L);
+		cache.put("realm", "key", "value", cache.generation("realm"));
+		assertEquals("value", cache.<String>get("realm", "key"));
+	}
+
+	@Test
+	public void resultReadBeforeInvalidationIsDropped() {
+		IndexResultCache cache = new IndexResultCache(10, 60000L);
+		long generation = cache.generation("realm");
+		cache.invalidate("realm");
+		cache.put("realm", "key", "stale", generation);
+		assertNull(cache.get("realm", "key"));
+	}
+
+	@Test
+	public void invalidateAllChangesEveryGeneration() {
+		IndexResultCache cache = new IndexResultCache(10, 60000L);
+		long generation = cache.generation("realm");
+		cache.invalidateAll();
+		cache.put("realm", "key", "stale", generation);
+		assertNull(cache.get("realm", "key"));
+	}
+
+	@Test
+	public void otherRealmsAreNotAffected() {
+		IndexResultCache cache = new IndexResultCache(10, 60000L);
+		long generation = cache.generation("other");
+		cache.invalidate("realm");
+		cache.put("other", "key", "value", generation);
+		assertEquals("value", cache.<String>get("other", "key"));
+	}
+}
@@ -0,0 +1,178 @@
+package io.github.andrewsha256.keycloak_user_search.jpa;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceException;
+
+import org.hibernate.HibernateException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakTransaction;
+import org.keycloak.models.KeycloakTransactionManager;
+import org.keycloak.models.RealmModel;
+
+/**
+ * Reads are routed to replica database (second in-memory database with
+ * other amount of users) and go to primary one after replica failure,
+ * except export
+ */
+public class ReadReplicaTest {
+
+	private static final int PRIMARY_USERS = 100;
+
+	private static final int REPLICA_USERS = 300;
+
+	private static final Map<String, List<String>> ALL_USERS = Collections
+			.emptyMap();
+
+	private BenchmarkRealm primaryDb;
+
+	private BenchmarkRealm replicaDb;
+
+	private ReadReplica replica;
+
+	private EntityManager primaryEm;
+
+	/**
+	 * Transactions that replica enlists in Keycloak session
+	 */
+	private final List<KeycloakTransaction> enlisted = new ArrayList<>();
+
+	private UserProviderExtended provider;
+
+	private RealmModel realm;
+
+	@Before
+	public void setUp() {
+		primaryDb = BenchmarkRealm.create(PRIMARY_USERS);
+		replicaDb = BenchmarkRealm.create(REPLICA_USERS);
+		replica = new ReadReplica(replicaDb.getEntityManagerFactory(),
+				ReadReplica.DEFAULT_MAX_LAG, 60000L, null);
+		realm = BenchmarkRealm.realmModel();
+
+		KeycloakSession session = this._session();
+		primaryEm = primaryDb.createEntityManager();
+		primaryEm.getTransaction().begin();
+		EntityManager replicaEm = replica.entityManager(session);
+		assertNotNull(replicaEm);
+		provider = replica.route(this._provider(session, replicaEm),
+				this._provider(session, primaryEm));
+	}
+
+	@After
+	public void tearDown() {
+		for (KeycloakTransaction transaction : enlisted) {
+			transaction.commit();
+		}
+		primaryEm.getTransaction().rollback();
+		primaryEm.close();
+		replica.close();
+		primaryDb.close();
+	}
+
+	@Test
+	public void readsGoToReplica() {
+		assertEquals(REPLICA_USERS, provider.countUsers(ALL_USERS, realm));
+		assertTrue(replica.isAvailable());
+	}
+
+	@Test
+	public void failedReplicaReadGoesToPrimary() {
+		this._dropReplica();
+		assertEquals(PRIMARY_USERS, provider.countUsers(ALL_USERS, realm));
+		assertFalse(replica.isAvailable());
+		// replica is not asked until the next check
+		assertEquals(PRIMARY_USERS, provider.countUsers(ALL_USERS, realm));
+	}
+
+	@Test
+	public void failedExportIsNotRepeated() {
+		this._dropReplica();
+		AtomicLong exported = new AtomicLong();
+		try {
+			provider.exportUsers(ALL_USERS, realm, "username", OrderDirect.ASC,
+					50, users -> exported.addAndGet(users.size()));
+			fail("Export of failed replica is repeated");
+		}
+		catch (PersistenceException | HibernateException e) {
+			// expected
+		}
+		assertEquals(0, exported.get());
+		assertFalse(replica.isAvailable());
+	}
+
+	private UserProviderExtended _provider(KeycloakSession session,
+			EntityManager em) {
+		return new JpaUserProviderExtended(session, em,
+				BenchmarkRealm.searchSettings());
+	}
+
+	/**
+	 * Drops all tables of replica database, so replica queries fail
+	 */
+	private void _dropReplica() {
+		EntityManager em = replicaDb.createEntityManager();
+		try {
+			em.getTransaction().begin();
+			em.createNativeQuery("drop all objects").executeUpdate();
+			em.getTransaction().commit();
+		}
+		finally {
+			em.close();
+		}
+	}
+
+	/**
+	 * Keycloak session with attributes and transaction manager that only
+	 * collects enlisted transactions
+	 *
+	 * @return
+	 */
+	private KeycloakSession _session() {
+		KeycloakTransactionManager transactionManager = (KeycloakTransactionManager) Proxy
+				.newProxyInstance(
+						KeycloakTransactionManager.class.getClassLoader(),
+						new Class<?>[] { KeycloakTransactionManager.class },
+						(proxy, method, args) -> {
+							if ("enlistAfterCompletion".equals(method.getName())) {
+								enlisted.add((KeycloakTransaction) args[0]);
+								return null;
+							}
+							throw new UnsupportedOperationException(
+									method.getName());
+						});
+		Map<String, Object> attributes = new HashMap<>();
+		return (KeycloakSession) Proxy.newProxyInstance(
+				KeycloakSession.class.getClassLoader(),
+				new Class<?>[] { KeycloakSession.class },
+				(proxy, method, args) -> {
+					switch (method.getName()) {
+					case "getAttribute":
+						return attributes.get(args[0]);
+					case "setAttribute":
+						attributes.put((String) args[0], args[1]);
+						return null;
+					case "getTransactionManager":
+						return transactionManager;
+					default:
+						throw new UnsupportedOperationException(
+								method.getName());
+					}
+				});
+	}
+}
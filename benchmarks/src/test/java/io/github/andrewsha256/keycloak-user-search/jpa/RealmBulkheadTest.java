@@ -0,0 +1,109 @@
+package io.github.andrewsha256.keycloak_user_search.jpa;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Realm can't take more than its permits, and free permit goes to realm
+ * with fewer running calls even if it came later
+ */
+public class RealmBulkheadTest {
+
+	private static final long WAIT = 5000L;
+
+	@Test
+	public void quietRealmIsServedFirst() throws InterruptedException {
+		RealmBulkhead bulkhead = new RealmBulkhead(2, 2, 10, WAIT,
+				Collections.<String, Double>emptyMap());
+		bulkhead.acquire("busy");
+		bulkhead.acquire("busy");
+
+		List<String> granted = new CopyOnWriteArrayList<>();
+		Thread busy = this._acquire(bulkhead, "busy", granted);
+		this._awaitWaiting(bulkhead, "busy", 1);
+		Thread quiet = this._acquire(bulkhead, "quiet", granted);
+		this._awaitWaiting(bulkhead, "quiet", 1);
+
+		bulkhead.release("busy");
+		quiet.join(WAIT);
+		assertEquals(Collections.singletonList("quiet"), granted);
+
+		bulkhead.release("busy");
+		busy.join(WAIT);
+		assertEquals(2, granted.size());
+		assertEquals("busy", granted.get(1));
+	}
+
+	@Test
+	public void realmPermitsFollowWeight() {
+		RealmBulkhead bulkhead = new RealmBulkhead(4, 1, 0, WAIT,
+				RealmBulkhead.parseWeights("heavy:2"));
+		bulkhead.acquire("heavy");
+		bulkhead.acquire("heavy");
+		bulkhead.acquire("light");
+		assertEquals(2, bulkhead.getStatus("heavy").get("realmPermits"));
+		assertEquals(1, bulkhead.getStatus("light").get("realmPermits"));
+		try {
+			bulkhead.acquire("light");
+			fail("Realm took more permits than its weight");
+		}
+		catch (RealmBusyException e) {
+			// queue size is 0
+		}
+		assertEquals(1L, bulkhead.getStatus("light").get("realmRejected"));
+	}
+
+	@Test
+	public void waitingTooLongIsRejected() {
+		RealmBulkhead bulkhead = new RealmBulkhead(1, 1, 10, 50,
+				Collections.<String, Double>emptyMap());
+		bulkhead.acquire("realm");
+		long started = System.nanoTime();
+		try {
+			bulkhead.acquire("realm");
+			fail("Call waited longer than timeout");
+		}
+		catch (RealmBusyException e) {
+			assertTrue(TimeUnit.NANOSECONDS
+					.toMillis(System.nanoTime() - started) >= 50);
+		}
+		assertEquals(0, bulkhead.getStatus("realm").get("realmWaiting"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void notPositiveWeightIsRejected() {
+		RealmBulkhead.parseWeights("realm:0");
+	}
+
+	/**
+	 * Thread that acquires permit of `realm` and adds it to `granted`
+	 */
+	private Thread _acquire(RealmBulkhead bulkhead, String realm,
+			List<String> granted) {
+		Thread thread = new Thread(() -> {
+			bulkhead.acquire(realm);
+			granted.add(realm);
+		});
+		thread.start();
+		return thread;
+	}
+
+	private void _awaitWaiting(RealmBulkhead bulkhead, String realm,
+			int waiting) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + WAIT;
+		while (!Integer.valueOf(waiting)
+				.equals(bulkhead.getStatus(realm).get("realmWaiting"))) {
+			assertTrue("Call is not waiting",
+					System.currentTimeMillis() < deadline);
+			Thread.sleep(5);
+		}
+	}
+}
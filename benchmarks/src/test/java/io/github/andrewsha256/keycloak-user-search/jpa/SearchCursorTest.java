@@ -0,0 +1,134 @@
+package io.github.andrewsha256.keycloak_user_search.jpa;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import javax.persistence.EntityManager;
+
+import org.junit.ClassRule;
+import org.junit.Rule;
+import org.junit.Test;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.jpa.entities.UserEntity;
+
+/**
+ * Cursor survives its string form, and cursor pages follow each other
+ * without gaps or repeats when many users have the same sort key
+ */
+public class SearchCursorTest {
+
+	private static final int USERS = 300;
+
+	private static final Map<String, List<String>> QUERY = Collections
+			.singletonMap("username", Arrays.asList("user%"));
+
+	@ClassRule
+	public static final BenchmarkRealmRule realmRule = new BenchmarkRealmRule(
+			USERS);
+
+	@Rule
+	public final BenchmarkRealmRule.Transaction db = realmRule.transaction();
+
+	private final RealmModel realm = BenchmarkRealm.realmModel();
+
+	@Test
+	public void cursorIsDecodedFromItsString() {
+		for (SearchCursor cursor : Arrays.asList(
+				new SearchCursor("Jérôme.Łukasz/+?", "u00000001"),
+				new SearchCursor("", "id.with.dots"),
+				new SearchCursor(null, "u00000002"))) {
+			String encoded = cursor.encode();
+			assertFalse(encoded, encoded.matches(".*[+/=].*"));
+			SearchCursor decoded = SearchCursor.decode(encoded);
+			assertEquals(cursor.getSortKey(), decoded.getSortKey());
+			assertEquals(cursor.getId(), decoded.getId());
+		}
+		assertEquals("", new SearchCursor(null, "u").getSortKey());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void cursorWithoutIdIsRejected() {
+		SearchCursor.decode(".c29ydA");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void cursorWithoutDelimiterIsRejected() {
+		SearchCursor.decode("dTAwMDAwMDAx");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void notBase64CursorIsRejected() {
+		SearchCursor.decode("u0000000*.c29ydA");
+	}
+
+	@Test
+	public void equalSortKeysArePagedById() {
+		// ~6 users per city, some users have no first name at all
+		EntityManager em = db.getEntityManager();
+		for (int i = 0; i < USERS; i += 4) {
+			em.find(UserEntity.class, String.format("u%08d", i))
+					.setFirstName(null);
+		}
+		em.flush();
+		em.clear();
+
+		for (String orderBy : Arrays.asList("city", UserModel.FIRST_NAME,
+				JpaUserProviderExtended.GROUP_FIELD)) {
+			for (OrderDirect orderDirect : OrderDirect.values()) {
+				// ordered by group, user is listed once per group
+				List<String> expected = this._ids(db.getProvider()
+						.searchForUserExtended(QUERY, realm, 0, null,
+								USERS * 4, orderBy, orderDirect).getUsers());
+				assertEquals(orderBy + " " + orderDirect, expected,
+						this._cursorPages(orderBy, orderDirect, 7));
+			}
+		}
+	}
+
+	@Test
+	public void lastPageHasNoCursor() {
+		UserList page = db.getProvider().searchForUserExtended(QUERY, realm, 0,
+				null, USERS - 1, "city", OrderDirect.ASC);
+		page = db.getProvider().searchForUserExtended(QUERY, realm, 0,
+				SearchCursor.decode(page.getNextCursor().encode()), USERS,
+				"city", OrderDirect.ASC);
+		assertEquals(1, page.getUsers().size());
+		assertNull(page.getNextCursor());
+	}
+
+	/**
+	 * Ids of all users read by cursor pages of `pageSize`, cursor goes
+	 * through its string form as it does for clients
+	 */
+	private List<String> _cursorPages(String orderBy,
+			OrderDirect orderDirect, int pageSize) {
+		List<String> result = new ArrayList<>();
+		SearchCursor cursor = null;
+		do {
+			UserList page = db.getProvider().searchForUserExtended(QUERY, realm,
+					0, cursor, pageSize, orderBy, orderDirect);
+			result.addAll(this._ids(page.getUsers()));
+			cursor = page.getNextCursor() == null ? null
+					: SearchCursor.decode(page.getNextCursor().encode());
+			db.getEntityManager().clear();
+		}
+		while (cursor != null);
+		return result;
+	}
+
+	private List<String> _ids(List<UserModel> users) {
+		List<String> ids = new ArrayList<>();
+		for (UserModel user : users) {
+			ids.add(user.getId());
+		}
+		return ids;
+	}
+}
@@ -0,0 +1,118 @@
+package io.github.andrewsha256.keycloak_user_search.jpa;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import javax.persistence.EntityManager;
+
+import org.junit.Test;
+import org.keycloak.models.RealmModel;
+
+/**
+ * Provider calls and requests are written as series of realm, method and
+ * query shape
+ */
+public class SearchMetricsTest {
+
+	private static final String REALM = "realm=\"" + BenchmarkRealm.REALM_ID
+			+ "\"";
+
+	private final RealmModel realm = BenchmarkRealm.realmModel();
+
+	@Test
+	public void providerCallsAreMeasured() throws IOException {
+		BenchmarkRealm benchmarkRealm = BenchmarkRealm.create(100);
+		EntityManager em = benchmarkRealm.createEntityManager();
+		em.getTransaction().begin();
+		try {
+			JpaUserProviderExtended provider = new JpaUserProviderExtended(null,
+					em, BenchmarkRealm.searchSettings());
+			SearchMetrics metrics = new SearchMetrics(
+					SearchMetrics.DEFAULT_MAX_SERIES);
+			UserProviderExtended instrumented = metrics.instrument(provider,
+					new StatementCounter().register(em));
+
+			Map<String, List<String>> query = Collections.singletonMap(
+					"username", Arrays.asList("user%"));
+			instrumented.countUsers(query, realm, CountStrategy.EXACT);
+			instrumented.countUsers(query, realm, CountStrategy.EXACT);
+			instrumented.searchForUserExtended(query, realm, 0, null, 15,
+					"username", OrderDirect.ASC);
+
+			String labels = "shape=\""
+					+ SearchMetrics.escape(provider.queryShape(query)) + "\"";
+			String out = this._write(metrics);
+			assertTrue(out, out.contains("user_search_query_duration_seconds_count{"
+					+ REALM + ",method=\"countUsers\"," + labels + "} 2\n"));
+			assertTrue(out, out.contains("user_search_query_rows_bucket{"
+					+ REALM + ",method=\"searchForUserExtended\"," + labels
+					+ ",le=\"15.0\"} 1\n"));
+			assertFalse(out, out.contains("user_search_query_statements_bucket{"
+					+ REALM + ",method=\"countUsers\"," + labels
+					+ ",le=\"+Inf\"} 0\n"));
+		}
+		finally {
+			em.getTransaction().rollback();
+			em.close();
+			benchmarkRealm.close();
+		}
+	}
+
+	@Test
+	public void failedCallsAreCountedAsErrors() throws IOException {
+		UserProviderExtended failing = (UserProviderExtended) Proxy
+				.newProxyInstance(UserProviderExtended.class.getClassLoader(),
+						new Class<?>[] { UserProviderExtended.class },
+						(proxy, method, args) -> {
+							if ("queryShape".equals(method.getName())) {
+								return "failing";
+							}
+							throw new IllegalStateException("failed");
+						});
+		SearchMetrics metrics = new SearchMetrics(
+				SearchMetrics.DEFAULT_MAX_SERIES);
+		try {
+			metrics.instrument(failing, new StatementCounter()).countUsers(
+					Collections.<String, List<String>>emptyMap(), realm,
+					CountStrategy.EXACT);
+			fail("Error is not rethrown");
+		}
+		catch (IllegalStateException e) {
+			// expected
+		}
+		String out = this._write(metrics);
+		assertTrue(out, out.contains("user_search_query_errors_total{" + REALM
+				+ ",method=\"countUsers\",shape=\"failing\"} 1\n"));
+		assertTrue(out, out.contains("user_search_query_duration_seconds_count{"
+				+ REALM + ",method=\"countUsers\",shape=\"failing\"} 0\n"));
+	}
+
+	@Test
+	public void shapesOverMaxSeriesAreOther() throws IOException {
+		SearchMetrics metrics = new SearchMetrics(1);
+		metrics.recordRequest(BenchmarkRealm.REALM_ID, "search", "first",
+				1000000L, 15, 2);
+		metrics.recordRequest(BenchmarkRealm.REALM_ID, "search", "second",
+				1000000L, 15, 2);
+		String out = this._write(metrics);
+		assertTrue(out, out.contains("shape=\"first\""));
+		assertTrue(out, out.contains("shape=\"" + SearchMetrics.OTHER_SHAPE
+				+ "\""));
+		assertFalse(out, out.contains("shape=\"second\""));
+	}
+
+	private String _write(SearchMetrics metrics) throws IOException {
+		StringWriter out = new StringWriter();
+		metrics.write(out, BenchmarkRealm.REALM_ID);
+		return out.toString();
+	}
+}
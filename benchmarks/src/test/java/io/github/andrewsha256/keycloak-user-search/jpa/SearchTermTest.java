@@ -0,0 +1,102 @@
+package io.github.andrewsha256.keycloak_user_search.jpa;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.ClassRule;
+import org.junit.Rule;
+import org.junit.Test;
+import org.keycloak.models.RealmModel;
+
+import io.github.andrewsha256.keycloak_user_search.jpa.SearchTerm.ValueKind;
+
+/**
+ * Value kinds are decided by wildcards, and prefix range (`>= prefix and
+ * < upperBound`) finds the same users as `like`
+ */
+public class SearchTermTest {
+
+	private static final int USERS = 200;
+
+	@ClassRule
+	public static final BenchmarkRealmRule realmRule = new BenchmarkRealmRule(
+			USERS);
+
+	@Rule
+	public final BenchmarkRealmRule.Transaction db = realmRule.transaction();
+
+	private final RealmModel realm = BenchmarkRealm.realmModel();
+
+	@Test
+	public void valuesAreClassified() {
+		assertEquals(ValueKind.EXACT, SearchTerm.classify(""));
+		assertEquals(ValueKind.EXACT, SearchTerm.classify("ivan"));
+		assertEquals(ValueKind.CONTAINS, SearchTerm.classify("_"));
+		assertEquals(ValueKind.CONTAINS, SearchTerm.classify("iv_n"));
+		assertEquals(ValueKind.CONTAINS, SearchTerm.classify("ivan_%"));
+		assertEquals(ValueKind.CONTAINS, SearchTerm.classify("%"));
+		assertEquals(ValueKind.CONTAINS, SearchTerm.classify("%van%"));
+		assertEquals(ValueKind.PREFIX, SearchTerm.classify("ivan%"));
+		assertEquals(ValueKind.PREFIX, SearchTerm.classify("Ivan%"));
+		assertEquals(ValueKind.SUFFIX, SearchTerm.classify("%gmail.com"));
+	}
+
+	@Test
+	public void prefixWithoutBoundIsNotRange() {
+		assertEquals(ValueKind.CONTAINS, SearchTerm.classify("z%"));
+		assertEquals(ValueKind.CONTAINS, SearchTerm.classify("9%"));
+		assertEquals(ValueKind.CONTAINS, SearchTerm.classify("-%"));
+		assertEquals(ValueKind.PREFIX, SearchTerm.classify("az%"));
+		assertEquals(ValueKind.PREFIX, SearchTerm.classify("user9%"));
+	}
+
+	@Test
+	public void upperBoundIncrementsLastLetterOrDigit() {
+		assertEquals("ivao", SearchTerm.upperBound("ivan"));
+		assertEquals("b", SearchTerm.upperBound("az-"));
+		assertEquals("b", SearchTerm.upperBound("az"));
+		assertEquals("uses", SearchTerm.upperBound("user9"));
+		assertEquals("user1", SearchTerm.upperBound("user0"));
+		assertNull(SearchTerm.upperBound("zz"));
+		assertNull(SearchTerm.upperBound("9-"));
+		assertNull(SearchTerm.upperBound(""));
+		assertEquals("ivan", SearchTerm.prefix("ivan%"));
+		assertEquals("ivan", SearchTerm.prefix("ivan"));
+	}
+
+	@Test
+	public void shapeHasValueKinds() {
+		assertEquals("u.username:PEC", new SearchTerm("username",
+				Arrays.asList("ivan%", "ivan", "%v_n"), true).shape());
+		assertEquals("attr:S", new SearchTerm("city",
+				Arrays.asList("%1"), false).shape());
+		assertEquals("group:E", new SearchTerm(
+				JpaUserProviderExtended.GROUP_FIELD, Arrays.asList("admins"),
+				false).shape());
+	}
+
+	@Test
+	public void prefixRangeFindsLikeMatches() {
+		for (String prefix : Arrays.asList("user0000019", "USER000001",
+				"user0000010", "user000001", "user00000199", "user0000020",
+				"user00000", "user0000099", "user9", "z")) {
+			List<String> expected = new ArrayList<>();
+			for (int i = 0; i < USERS; i++) {
+				if (String.format("user%08d", i)
+						.startsWith(prefix.toLowerCase())) {
+					expected.add(String.format("u%08d", i));
+				}
+			}
+			assertEquals(prefix, expected, db.getProvider().searchIdsExtended(
+					Collections.singletonMap("username",
+							Arrays.asList(prefix + "%")),
+					realm, 0, null, USERS + 1, "username", OrderDirect.ASC)
+					.getIds());
+		}
+	}
+}
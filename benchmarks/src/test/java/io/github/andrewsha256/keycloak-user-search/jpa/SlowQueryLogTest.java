@@ -0,0 +1,108 @@
+package io.github.andrewsha256.keycloak_user_search.jpa;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import javax.persistence.EntityManager;
+import javax.persistence.TypedQuery;
+
+import org.junit.ClassRule;
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * Slow operations are kept with SQL, redacted parameters, phases and plan,
+ * fast ones are not
+ */
+public class SlowQueryLogTest {
+
+	private static final String JPQL = "select u.id from UserEntity u "
+			+ "where u.realmId = :realmId and u.username like :username";
+
+	@ClassRule
+	public static final BenchmarkRealmRule realmRule = new BenchmarkRealmRule(
+			100);
+
+	@Rule
+	public final BenchmarkRealmRule.Transaction db = realmRule.transaction();
+
+	@Test
+	public void slowOperationIsRecorded() throws InterruptedException {
+		SlowQueryLog log = new SlowQueryLog(1, 10, true);
+		this._slowSearch(log, "user%");
+
+		List<SlowQueryEntry> entries = log.getEntries(BenchmarkRealm.REALM_ID);
+		assertEquals(1, entries.size());
+		SlowQueryEntry entry = entries.get(0);
+		assertEquals("search", entry.getOperation());
+		assertEquals("shape", entry.getShape());
+		assertEquals(100, entry.getRows());
+		assertTrue(entry.getDurationMillis() >= 5);
+		assertFalse(entry.getSql(), entry.getSql().contains("UserEntity"));
+		assertEquals("String(5)", entry.getParameters().get("username"));
+		assertEquals(Arrays.asList("build", "execute"),
+				Arrays.asList(entry.getPhases().keySet().toArray()));
+		assertNotNull(entry.getPlan());
+		assertFalse(entry.getPlan(), entry.getPlan().startsWith("EXPLAIN failed"));
+		assertTrue(log.getEntries("other").isEmpty());
+	}
+
+	@Test
+	public void onlyRecentEntriesAreKept() throws InterruptedException {
+		SlowQueryLog log = new SlowQueryLog(1, 2, false);
+		this._slowSearch(log, "a%");
+		this._slowSearch(log, "bb%");
+		this._slowSearch(log, "ccc%");
+
+		List<SlowQueryEntry> entries = log.getEntries(BenchmarkRealm.REALM_ID);
+		assertEquals(2, entries.size());
+		assertEquals("String(4)", entries.get(0).getParameters().get("username"));
+		assertEquals("String(3)", entries.get(1).getParameters().get("username"));
+	}
+
+	@Test
+	public void fastOperationsAreNotRecorded() {
+		Map<String, List<String>> query = Collections.singletonMap("username",
+				Arrays.asList("user%"));
+		for (SlowQueryLog log : Arrays.asList(new SlowQueryLog(60000, 10, true),
+				new SlowQueryLog(0, 10, true))) {
+			JpaUserProviderExtended provider = new JpaUserProviderExtended(null,
+					db.getEntityManager(),
+					BenchmarkRealm.searchSettings().setSlowQueryLog(log));
+			provider.searchForUserExtended(query, BenchmarkRealm.realmModel(),
+					0, null, 15, "username", OrderDirect.ASC);
+			provider.countUsers(query, BenchmarkRealm.realmModel(),
+					CountStrategy.EXACT);
+			assertTrue(log.getEntries(BenchmarkRealm.REALM_ID).isEmpty());
+		}
+	}
+
+	/**
+	 * Traced query that takes at least 5 ms
+	 *
+	 * @param log
+	 * @param username
+	 * @throws InterruptedException
+	 */
+	private void _slowSearch(SlowQueryLog log, String username)
+			throws InterruptedException {
+		QueryTrace trace = log.start("search");
+		EntityManager em = db.getEntityManager();
+		TypedQuery<String> query = em.createQuery(JPQL, String.class)
+				.setParameter("realmId", BenchmarkRealm.REALM_ID)
+				.setParameter("username", username);
+		trace.phase("build");
+		Thread.sleep(5);
+		List<String> result = query.getResultList();
+		trace.phase("execute");
+		log.finish(trace, em, BenchmarkRealm.REALM_ID, "shape", JPQL, query,
+				result.size());
+	}
+}
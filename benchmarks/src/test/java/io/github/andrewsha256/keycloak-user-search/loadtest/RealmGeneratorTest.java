@@ -0,0 +1,108 @@
+package io.github.andrewsha256.keycloak_user_search.loadtest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import javax.persistence.EntityManager;
+
+import org.junit.Test;
+import org.keycloak.models.RealmModel;
+
+import io.github.andrewsha256.keycloak_user_search.jpa.BenchmarkRealm;
+import io.github.andrewsha256.keycloak_user_search.jpa.JpaUserProviderExtended;
+
+/**
+ * Realm of the same seed is the same, values are Zipfian and every load
+ * shape runs on generated realm
+ */
+public class RealmGeneratorTest {
+
+	private static final int USERS = 200;
+
+	private static final long SEED = 7L;
+
+	@Test
+	public void sameSeedGivesSameRealm() {
+		assertEquals(this._rows(SEED), this._rows(SEED));
+	}
+
+	@Test
+	public void zipfPrefersLowRanks() {
+		Zipf zipf = new Zipf(100, RealmGenerator.DEFAULT_EXPONENT);
+		Random random = new Random(SEED);
+		int[] counts = new int[zipf.size()];
+		for (int i = 0; i < 10000; i++) {
+			counts[zipf.next(random)]++;
+		}
+		assertTrue(counts[0] > counts[1]);
+		assertTrue(counts[1] > counts[50]);
+	}
+
+	@Test
+	public void everyShapeRuns() {
+		RealmGenerator data = new RealmGenerator(USERS, SEED,
+				RealmGenerator.DEFAULT_EXPONENT);
+		BenchmarkRealm benchmarkRealm = BenchmarkRealm.create(USERS, data,
+				Collections.<String, Object>emptyMap());
+		EntityManager em = benchmarkRealm.createEntityManager();
+		em.getTransaction().begin();
+		try {
+			JpaUserProviderExtended provider = new JpaUserProviderExtended(null,
+					em, BenchmarkRealm.searchSettings());
+			RealmModel realm = BenchmarkRealm.realmModel();
+			Random random = new Random(SEED);
+			for (LoadShape shape : LoadShape.values()) {
+				int rows = shape.execute(provider, realm, data, random);
+				assertTrue(shape.name(), rows >= 0);
+			}
+		}
+		finally {
+			em.getTransaction().rollback();
+			em.close();
+			benchmarkRealm.close();
+		}
+	}
+
+	/**
+	 * Attribute and membership rows of realm generated with `seed`
+	 *
+	 * @param seed
+	 * @return
+	 */
+	private List<?> _rows(long seed) {
+		BenchmarkRealm benchmarkRealm = BenchmarkRealm.create(USERS,
+				new RealmGenerator(USERS, seed, RealmGenerator.DEFAULT_EXPONENT),
+				Collections.<String, Object>emptyMap());
+		EntityManager em = benchmarkRealm.createEntityManager();
+		try {
+			List<?> rows = em.createQuery("select a.user.id, a.name, a.value, "
+					+ "a.user.email, a.user.firstName, a.user.lastName "
+					+ "from UserAttributeEntity a "
+					+ "order by a.user.id, a.name").getResultList();
+			List<?> memberships = em.createQuery("select m.user.id, m.groupId "
+					+ "from UserGroupMembershipEntity m "
+					+ "order by m.user.id, m.groupId").getResultList();
+			assertFalse(rows.isEmpty());
+			assertFalse(memberships.isEmpty());
+			List<Object> result = new ArrayList<>();
+			for (Object row : rows) {
+				result.add(Arrays.asList((Object[]) row));
+			}
+			for (Object row : memberships) {
+				result.add(Arrays.asList((Object[]) row));
+			}
+			return result;
+		}
+		finally {
+			em.close();
+			benchmarkRealm.close();
+		}
+	}
+}
@@ -0,0 +1,67 @@
+package io.github.andrewsha256.keycloak_user_search.rest;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+/**
+ * Authorization read before invalidation of its user is not cached
+ */
+public class AdminAuthCacheTest {
+
+	private static final long HOUR = 3600000L;
+
+	@Test
+	public void disabledByZeroSize() {
+		AdminAuthCache cache = new AdminAuthCache(0);
+		assertFalse(cache.isEnabled());
+		cache.put("key", this._entry(cache, "user"));
+		assertNull(cache.get("key"));
+	}
+
+	@Test
+	public void entryIsCached() {
+		AdminAuthCache cache = new AdminAuthCache(10);
+		cache.put("key", this._entry(cache, "user"));
+		assertNotNull(cache.get("key"));
+	}
+
+	@Test
+	public void entryOfInvalidatedUserIsNotCached() {
+		AdminAuthCache cache = new AdminAuthCache(10);
+		AdminAuthCache.Entry entry = this._entry(cache, "user");
+		cache.invalidateUser("user");
+		cache.put("key", entry);
+		assertNull(cache.get("key"));
+
+		cache.put("key", this._entry(cache, "user"));
+		assertNotNull(cache.get("key"));
+	}
+
+	@Test
+	public void entryReadBeforeInvalidateAllIsNotCached() {
+		AdminAuthCache cache = new AdminAuthCache(10);
+		AdminAuthCache.Entry entry = this._entry(cache, "user");
+		cache.invalidateAll();
+		cache.put("key", entry);
+		assertNull(cache.get("key"));
+	}
+
+	@Test
+	public void otherUsersAreNotAffected() {
+		AdminAuthCache cache = new AdminAuthCache(10);
+		cache.put("key", this._entry(cache, "user"));
+		AdminAuthCache.Entry other = this._entry(cache, "other");
+		cache.invalidateUser("user");
+		assertNull(cache.get("key"));
+		cache.put("other", other);
+		assertNotNull(cache.get("other"));
+	}
+
+	private AdminAuthCache.Entry _entry(AdminAuthCache cache, String userId) {
+		return new AdminAuthCache.Entry("realm", userId, "client",
+				System.currentTimeMillis() + HOUR, cache.generation(userId));
+	}
+}
@@ -0,0 +1,322 @@
+package io.github.andrewsha256.keycloak_user_search.rest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.persistence.EntityManager;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.TimeoutHandler;
+import javax.ws.rs.core.Response;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.KeycloakContext;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.KeycloakTransactionManager;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RealmProvider;
+
+import io.github.andrewsha256.keycloak_user_search.jpa.BenchmarkRealm;
+import io.github.andrewsha256.keycloak_user_search.jpa.SearchSettings;
+import io.github.andrewsha256.keycloak_user_search.jpa.UserProviderExtended;
+import io.github.andrewsha256.keycloak_user_search.jpa.UserProviderExtendedFactory;
+
+/**
+ * Every submitted request is resumed: with result, with any thrown error
+ * or with `503` after timeout
+ */
+public class AsyncRequestExecutorTest {
+
+	private static final long WAIT = 5000L;
+
+	private final RealmModel realm = BenchmarkRealm.realmModel();
+
+	private KeycloakSession session;
+
+	private AsyncRequestExecutor executor;
+
+	@Before
+	public void setUp() {
+		session = this._session();
+		executor = new AsyncRequestExecutor(1, 1, 2, 60000L,
+				new UserProviderExtendedFactory(new SearchSettings()) {
+					@Override
+					public UserProviderExtended create(
+							KeycloakSession session) {
+						return null;
+					}
+				});
+	}
+
+	@After
+	public void tearDown() {
+		executor.close();
+	}
+
+	@Test
+	public void resultIsResumed() throws InterruptedException {
+		TestResponse response = new TestResponse();
+		assertTrue(executor.submit(session, realm, response,
+				(taskSession, taskRealm, provider) -> taskRealm.getId()));
+		assertEquals(BenchmarkRealm.REALM_ID, response.await());
+	}
+
+	@Test
+	public void errorIsResumed() throws InterruptedException {
+		TestResponse response = new TestResponse();
+		assertTrue(executor.submit(session, realm, response,
+				(taskSession, taskRealm, provider) -> {
+					throw new StackOverflowError();
+				}));
+		assertTrue(response.await() instanceof StackOverflowError);
+	}
+
+	@Test
+	public void startedRequestQueriesAreLimited()
+			throws InterruptedException {
+		TestResponse response = new TestResponse();
+		assertTrue(executor.submit(session, realm, response,
+				(taskSession, taskRealm, provider) -> taskSession
+						.getProvider(JpaConnectionProvider.class)
+						.getEntityManager().getProperties()
+						.get("javax.persistence.query.timeout")));
+		int timeout = (Integer) response.await();
+		assertTrue(timeout > 50000 && timeout <= 60000);
+		assertEquals(0, timeout % 1000);
+
+		assertEquals(BenchmarkRealm.REALM_ID, executor.run(
+				session.getKeycloakSessionFactory(), realm.getId(),
+				(taskSession, taskRealm, provider) -> {
+					assertFalse(taskSession
+							.getProvider(JpaConnectionProvider.class)
+							.getEntityManager().getProperties().containsKey(
+									"javax.persistence.query.timeout"));
+					return taskRealm.getId();
+				}));
+	}
+
+	@Test
+	public void timedOutRequestIsAnsweredAndNotStarted()
+			throws InterruptedException {
+		CountDownLatch release = new CountDownLatch(1);
+		TestResponse running = new TestResponse();
+		executor.submit(session, realm, running,
+				(taskSession, taskRealm, provider) -> {
+					try {
+						release.await();
+					}
+					catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+					return "running";
+				});
+
+		AtomicBoolean started = new AtomicBoolean();
+		TestResponse queued = new TestResponse();
+		assertTrue(executor.submit(session, realm, queued,
+				(taskSession, taskRealm, provider) -> {
+					started.set(true);
+					return "queued";
+				}));
+		assertEquals(60000L, queued.timeout);
+		assertNotNull(queued.timeoutHandler);
+
+		// container calls handler after `setTimeout`
+		queued.timeoutHandler.handleTimeout(queued);
+		Object timedOut = queued.await();
+		assertEquals(503, ((Response) timedOut).getStatus());
+		assertEquals("2", ((Response) timedOut).getHeaderString("Retry-After"));
+
+		release.countDown();
+		assertEquals("running", running.await());
+		Thread.sleep(100);
+		assertFalse(started.get());
+		assertEquals(1L, executor.getStatus().get("timedOut"));
+	}
+
+	/**
+	 * Session factory of sessions that answer realm, context, transaction
+	 * manager and `EntityManager` (that keeps properties only)
+	 *
+	 * @return request session
+	 */
+	private KeycloakSession _session() {
+		KeycloakSessionFactory[] sessionFactory = new KeycloakSessionFactory[1];
+		sessionFactory[0] = _proxy(KeycloakSessionFactory.class,
+				(proxy, method, args) -> {
+					if (!"create".equals(method.getName())) {
+						return null;
+					}
+					boolean[] active = new boolean[1];
+					KeycloakTransactionManager transactionManager = _proxy(
+							KeycloakTransactionManager.class,
+							(tmProxy, tmMethod, tmArgs) -> {
+								switch (tmMethod.getName()) {
+								case "begin":
+									active[0] = true;
+									return null;
+								case "commit":
+								case "rollback":
+									active[0] = false;
+									return null;
+								case "isActive":
+									return active[0];
+								case "getRollbackOnly":
+									return false;
+								default:
+									return null;
+								}
+							});
+					RealmProvider realms = _proxy(RealmProvider.class,
+							(realmsProxy, realmsMethod, realmsArgs) -> realm);
+					KeycloakContext context = _proxy(KeycloakContext.class,
+							(contextProxy, contextMethod, contextArgs) -> null);
+					Map<String, Object> properties = new HashMap<>();
+					EntityManager em = _proxy(EntityManager.class,
+							(emProxy, emMethod, emArgs) -> {
+								if ("setProperty".equals(emMethod.getName())) {
+									properties.put((String) emArgs[0],
+											emArgs[1]);
+								}
+								return "getProperties".equals(emMethod
+										.getName()) ? properties : null;
+							});
+					JpaConnectionProvider connection = _proxy(
+							JpaConnectionProvider.class,
+							(connectionProxy, connectionMethod,
+									connectionArgs) -> em);
+					return _proxy(KeycloakSession.class,
+							(sessionProxy, sessionMethod, sessionArgs) -> {
+								switch (sessionMethod.getName()) {
+								case "getTransactionManager":
+									return transactionManager;
+								case "realms":
+									return realms;
+								case "getContext":
+									return context;
+								case "getKeycloakSessionFactory":
+									return sessionFactory[0];
+								case "getProvider":
+									return connection;
+								default:
+									return null;
+								}
+							});
+				});
+		return sessionFactory[0].create();
+	}
+
+	private static <T> T _proxy(Class<T> type, InvocationHandler handler) {
+		return type.cast(Proxy.newProxyInstance(type.getClassLoader(),
+				new Class<?>[] { type }, handler));
+	}
+
+	/**
+	 * `AsyncResponse` that keeps resumed value and timeout settings
+	 */
+	private static class TestResponse implements AsyncResponse {
+
+		final BlockingQueue<Object> resumed = new ArrayBlockingQueue<>(2);
+
+		volatile long timeout;
+
+		volatile TimeoutHandler timeoutHandler;
+
+		Object await() throws InterruptedException {
+			Object result = resumed.poll(WAIT, TimeUnit.MILLISECONDS);
+			assertNotNull("Response is not resumed", result);
+			return result;
+		}
+
+		@Override
+		public boolean resume(Object response) {
+			return resumed.offer(response);
+		}
+
+		@Override
+		public boolean resume(Throwable response) {
+			return resumed.offer(response);
+		}
+
+		@Override
+		public boolean cancel() {
+			return false;
+		}
+
+		@Override
+		public boolean cancel(int retryAfter) {
+			return false;
+		}
+
+		@Override
+		public boolean cancel(Date retryAfter) {
+			return false;
+		}
+
+		@Override
+		public boolean isSuspended() {
+			return resumed.isEmpty();
+		}
+
+		@Override
+		public boolean isCancelled() {
+			return false;
+		}
+
+		@Override
+		public boolean isDone() {
+			return !resumed.isEmpty();
+		}
+
+		@Override
+		public boolean setTimeout(long time, TimeUnit unit) {
+			this.timeout = unit.toMillis(time);
+			return true;
+		}
+
+		@Override
+		public void setTimeoutHandler(TimeoutHandler handler) {
+			this.timeoutHandler = handler;
+		}
+
+		@Override
+		public Collection<Class<?>> register(Class<?> callback) {
+			return Collections.emptyList();
+		}
+
+		@Override
+		public Map<Class<?>, Collection<Class<?>>> register(
+				Class<?> callback, Class<?>... callbacks) {
+			return Collections.emptyMap();
+		}
+
+		@Override
+		public Collection<Class<?>> register(Object callback) {
+			return Collections.emptyList();
+		}
+
+		@Override
+		public Map<Class<?>, Collection<Class<?>>> register(
+				Object callback, Object... callbacks) {
+			return Collections.emptyMap();
+		}
+	}
+}
@@ -0,0 +1,329 @@
+package io.github.andrewsha256.keycloak_user_search.rest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import javax.persistence.EntityManager;
+import javax.ws.rs.BadRequestException;
+
+import org.junit.After;
+import org.junit.ClassRule;
+import org.junit.Rule;
+import org.junit.Test;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.KeycloakTransactionManager;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RealmProvider;
+import org.keycloak.models.UserCredentialManager;
+import org.keycloak.representations.idm.UserRepresentation;
+import org.keycloak.services.resources.admin.permissions.AdminPermissionEvaluator;
+import org.keycloak.services.resources.admin.permissions.UserPermissionEvaluator;
+
+import io.github.andrewsha256.keycloak_user_search.jpa.BenchmarkRealm;
+import io.github.andrewsha256.keycloak_user_search.jpa.BenchmarkRealmRule;
+import io.github.andrewsha256.keycloak_user_search.jpa.CountStrategy;
+import io.github.andrewsha256.keycloak_user_search.jpa.JpaUserProviderExtended;
+import io.github.andrewsha256.keycloak_user_search.jpa.OrderDirect;
+import io.github.andrewsha256.keycloak_user_search.jpa.UserProviderExtended;
+import io.github.andrewsha256.keycloak_user_search.jpa.UserProviderExtendedFactory;
+
+/**
+ * Batch is validated as a whole, its results are in order of queries in
+ * both search modes, and client error of one query is its result only
+ */
+public class UserBatchTest {
+
+	private static final int USERS = 300;
+
+	@ClassRule
+	public static final BenchmarkRealmRule realmRule = new BenchmarkRealmRule(
+			USERS);
+
+	@Rule
+	public final BenchmarkRealmRule.Transaction db = realmRule.transaction();
+
+	private final RealmModel realm = BenchmarkRealm.realmModel();
+
+	/**
+	 * Entity managers of count sessions of `CONCURRENT` executor, their
+	 * transactions are rolled back after test
+	 */
+	private final Queue<EntityManager> countEntityManagers = new ConcurrentLinkedQueue<>();
+
+	private SearchExecutor searchExecutor;
+
+	@After
+	public void tearDown() {
+		if (searchExecutor != null) {
+			searchExecutor.close();
+		}
+		for (EntityManager em : countEntityManagers) {
+			em.getTransaction().rollback();
+			em.close();
+		}
+	}
+
+	@Test(expected = BadRequestException.class)
+	public void batchWithoutQueriesIsRejected() {
+		this._resource(SearchExecutionMode.SEQUENTIAL)
+				.batch(new ArrayList<>());
+	}
+
+	@Test(expected = BadRequestException.class)
+	public void nullBatchIsRejected() {
+		this._resource(SearchExecutionMode.SEQUENTIAL).batch(null);
+	}
+
+	@Test(expected = BadRequestException.class)
+	public void tooBigBatchIsRejected() {
+		List<BatchQuery> queries = new ArrayList<>();
+		for (int i = 0; i <= UserResource.MAX_BATCH_SIZE; i++) {
+			queries.add(_query(BatchQuery.COUNT));
+		}
+		this._resource(SearchExecutionMode.SEQUENTIAL).batch(queries);
+	}
+
+	@Test(expected = BadRequestException.class)
+	public void nullQueryIsRejected() {
+		this._resource(SearchExecutionMode.SEQUENTIAL).batch(
+				Arrays.asList(_query(BatchQuery.COUNT), null));
+	}
+
+	@Test
+	public void queryWithoutTermsCountsAllUsers() {
+		BatchQuery query = _query(BatchQuery.COUNT);
+		query.setQuery(null);
+		BatchResult result = this._resource(SearchExecutionMode.SEQUENTIAL)
+				.batch(Arrays.asList(query)).get(0);
+		assertEquals(USERS, ((CountResponse) result.getResult())
+				.getTotalSize());
+	}
+
+	@Test
+	public void sequentialResultsAreInOrderOfQueries() {
+		this._assertResults(this._resource(SearchExecutionMode.SEQUENTIAL));
+	}
+
+	@Test
+	public void concurrentResultsAreInOrderOfQueries() {
+		this._assertResults(this._resource(SearchExecutionMode.CONCURRENT));
+	}
+
+	/**
+	 * Mixed batch: valid `search`, `index` and `count` queries between
+	 * queries with client errors, results are compared with provider
+	 *
+	 * @param resource
+	 */
+	private void _assertResults(UserResource resource) {
+		JpaUserProviderExtended provider = db.getProvider();
+
+		BatchQuery gmail = _query(BatchQuery.COUNT, "email", "%gmail.com");
+		BatchQuery search = _query(BatchQuery.SEARCH, "username",
+				"user0000001%");
+		search.setMax(5);
+		search.setOrderDirect(OrderDirect.DESC);
+		BatchQuery cities = _query(BatchQuery.INDEX, "type", "premium");
+		cities.setLabel("city");
+		cities.setMax(7);
+		BatchQuery wrongCount = _query(BatchQuery.COUNT);
+		wrongCount.setCount("sometimes");
+		BatchQuery wrongCursor = _query(BatchQuery.SEARCH);
+		wrongCursor.setAfter("*");
+		BatchQuery noLabel = _query(BatchQuery.INDEX);
+		BatchQuery unknown = _query("delete");
+		BatchQuery mailRu = _query(BatchQuery.COUNT, "email", "%mail.ru");
+		mailRu.setCount("estimate");
+
+		List<BatchResult> results = resource.batch(Arrays.asList(gmail,
+				search, wrongCount, cities, wrongCursor, noLabel, unknown,
+				mailRu));
+		assertEquals(8, results.size());
+
+		CountResponse gmailCount = (CountResponse) this._result(results, 0);
+		assertEquals(provider.countUsers(gmail.getQuery(), realm),
+				gmailCount.getTotalSize());
+		assertEquals("exact", gmailCount.getTotalStrategy());
+
+		SearchResponse users = (SearchResponse) this._result(results, 1);
+		assertEquals(10, users.getTotalSize());
+		List<String> ids = new ArrayList<>();
+		for (Object user : users.getUsers()) {
+			ids.add(((UserRepresentation) user).getId());
+		}
+		assertEquals(Arrays.asList("u00000019", "u00000018", "u00000017",
+				"u00000016", "u00000015"), ids);
+		assertNotNull(users.getNextCursor());
+
+		IndexResponse values = (IndexResponse) this._result(results, 3);
+		assertEquals(provider.index(realm, "city", "%", cities.getQuery(), 0,
+				7, OrderDirect.ASC), values.getValues());
+		assertEquals(provider.countIndex(realm, "city", "%",
+				cities.getQuery(), CountStrategy.parse("exact")).getValue(),
+				values.getTotalSize());
+
+		for (int i : new int[] { 2, 4, 5, 6 }) {
+			assertEquals("query " + i, 400, results.get(i).getStatus());
+			assertNull(results.get(i).getResult());
+			assertNotNull(results.get(i).getError());
+		}
+		assertTrue(results.get(6).getError().contains("`delete`"));
+
+		CountResponse mailRuCount = (CountResponse) this._result(results, 7);
+		assertEquals(provider.countUsers(mailRu.getQuery(), realm,
+				CountStrategy.parse("estimate")).getValue(),
+				mailRuCount.getTotalSize());
+	}
+
+	private Object _result(List<BatchResult> results, int i) {
+		BatchResult result = results.get(i);
+		assertEquals(result.getError(), 200, result.getStatus());
+		assertNull(result.getError());
+		return result.getResult();
+	}
+
+	/**
+	 * Resource of admin who can view all users, `CONCURRENT` executor makes
+	 * queries in sessions with their own entity managers
+	 *
+	 * @param mode
+	 * @return
+	 */
+	private UserResource _resource(SearchExecutionMode mode) {
+		searchExecutor = new SearchExecutor(mode, 2, 10,
+				new UserProviderExtendedFactory(BenchmarkRealm.searchSettings()) {
+					@Override
+					public UserProviderExtended create(
+							KeycloakSession session) {
+						EntityManager em = realmRule.getRealm()
+								.createEntityManager();
+						em.getTransaction().begin();
+						countEntityManagers.add(em);
+						return new JpaUserProviderExtended(session, em,
+								BenchmarkRealm.searchSettings());
+					}
+				});
+
+		KeycloakSessionFactory sessionFactory = _proxy(
+				KeycloakSessionFactory.class, (proxy, method, args) -> {
+					if (!"create".equals(method.getName())) {
+						return null;
+					}
+					return this._countSession();
+				});
+		EntityManager em = db.getEntityManager();
+		JpaConnectionProvider connection = _proxy(JpaConnectionProvider.class,
+				(proxy, method, args) -> em);
+		UserCredentialManager credentials = _proxy(UserCredentialManager.class,
+				(proxy, method, args) -> "isConfiguredFor".equals(method
+						.getName()) ? false : Collections.emptySet());
+		KeycloakSession session = _proxy(KeycloakSession.class,
+				(proxy, method, args) -> {
+					switch (method.getName()) {
+					case "getProvider":
+						return connection;
+					case "users":
+						return db.getProvider();
+					case "userCredentialManager":
+						return credentials;
+					case "getKeycloakSessionFactory":
+						return sessionFactory;
+					default:
+						throw new UnsupportedOperationException(
+								method.getName());
+					}
+				});
+		UserPermissionEvaluator users = _proxy(UserPermissionEvaluator.class,
+				(proxy, method, args) -> {
+					switch (method.getName()) {
+					case "canView":
+						return true;
+					case "canManage":
+					case "canImpersonate":
+						return false;
+					case "getAccess":
+						return new HashMap<String, Boolean>();
+					default:
+						return null;
+					}
+				});
+		AdminPermissionEvaluator auth = _proxy(AdminPermissionEvaluator.class,
+				(proxy, method, args) -> "users".equals(method.getName())
+						? users : null);
+		return new UserResource(realm, db.getProvider(), auth, session,
+				searchExecutor, null, null, null, null, null, null, null, null,
+				null, null, null);
+	}
+
+	/**
+	 * Session of count task: transaction manager and realm only, provider
+	 * is made by executor's factory
+	 *
+	 * @return
+	 */
+	private KeycloakSession _countSession() {
+		boolean[] active = new boolean[1];
+		KeycloakTransactionManager transactionManager = _proxy(
+				KeycloakTransactionManager.class, (proxy, method, args) -> {
+					switch (method.getName()) {
+					case "begin":
+						active[0] = true;
+						return null;
+					case "commit":
+					case "rollback":
+						active[0] = false;
+						return null;
+					case "isActive":
+						return active[0];
+					case "getRollbackOnly":
+						return false;
+					default:
+						return null;
+					}
+				});
+		RealmProvider realms = _proxy(RealmProvider.class,
+				(proxy, method, args) -> realm);
+		return _proxy(KeycloakSession.class, (proxy, method, args) -> {
+			switch (method.getName()) {
+			case "getTransactionManager":
+				return transactionManager;
+			case "realms":
+				return realms;
+			default:
+				return null;
+			}
+		});
+	}
+
+	private static BatchQuery _query(String type, String... term) {
+		BatchQuery query = new BatchQuery();
+		query.setType(type);
+		Map<String, List<String>> terms = new HashMap<>();
+		if (term.length > 0) {
+			terms.put(term[0], Arrays.asList(term[1]));
+		}
+		query.setQuery(terms);
+		return query;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T> T _proxy(Class<T> type, InvocationHandler handler) {
+		return (T) Proxy.newProxyInstance(type.getClassLoader(),
+				new Class<?>[] { type }, handler);
+	}
+}
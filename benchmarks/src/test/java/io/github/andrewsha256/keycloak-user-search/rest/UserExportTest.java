@@ -0,0 +1,188 @@
+package io.github.andrewsha256.keycloak_user_search.rest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.persistence.EntityManager;
+import javax.ws.rs.BadRequestException;
+
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Rule;
+import org.junit.Test;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserCredentialManager;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.jpa.UserAdapter;
+import org.keycloak.representations.idm.UserRepresentation;
+import org.keycloak.services.resources.admin.permissions.AdminPermissionEvaluator;
+import org.keycloak.services.resources.admin.permissions.UserPermissionEvaluator;
+import org.keycloak.util.JsonSerialization;
+
+import io.github.andrewsha256.keycloak_user_search.jpa.BenchmarkRealm;
+import io.github.andrewsha256.keycloak_user_search.jpa.BenchmarkRealmRule;
+import io.github.andrewsha256.keycloak_user_search.jpa.JpaUserProviderExtended;
+import io.github.andrewsha256.keycloak_user_search.jpa.OrderDirect;
+
+/**
+ * Export writes one `UserRepresentation` per line in search order, and
+ * users of written portions are detached from persistence context
+ */
+public class UserExportTest {
+
+	private static final int USERS = 300;
+
+	private static final int FETCH_SIZE = 7;
+
+	/**
+	 * ~75 users: several full portions and the last partial one
+	 */
+	private static final Map<String, List<String>> QUERY = Collections
+			.singletonMap("email", Arrays.asList("%gmail.com"));
+
+	@ClassRule
+	public static final BenchmarkRealmRule realmRule = new BenchmarkRealmRule(
+			USERS);
+
+	@Rule
+	public final BenchmarkRealmRule.Transaction db = realmRule.transaction();
+
+	private final RealmModel realm = BenchmarkRealm.realmModel();
+
+	/**
+	 * Resource of admin who can view all users
+	 */
+	private UserResource resource;
+
+	@Before
+	public void setUp() {
+		EntityManager em = db.getEntityManager();
+		JpaConnectionProvider connection = _proxy(JpaConnectionProvider.class,
+				(proxy, method, args) -> em);
+		UserCredentialManager credentials = _proxy(UserCredentialManager.class,
+				(proxy, method, args) -> "isConfiguredFor".equals(method
+						.getName()) ? false : Collections.emptySet());
+		KeycloakSession session = _proxy(KeycloakSession.class,
+				(proxy, method, args) -> {
+					switch (method.getName()) {
+					case "getProvider":
+						return connection;
+					case "users":
+						return db.getProvider();
+					case "userCredentialManager":
+						return credentials;
+					default:
+						throw new UnsupportedOperationException(
+								method.getName());
+					}
+				});
+		UserPermissionEvaluator users = _proxy(UserPermissionEvaluator.class,
+				(proxy, method, args) -> {
+					switch (method.getName()) {
+					case "canView":
+						return true;
+					case "canManage":
+					case "canImpersonate":
+						return false;
+					case "getAccess":
+						Map<String, Boolean> access = new HashMap<>();
+						access.put("view", true);
+						return access;
+					default:
+						return null;
+					}
+				});
+		AdminPermissionEvaluator auth = _proxy(AdminPermissionEvaluator.class,
+				(proxy, method, args) -> "users".equals(method.getName())
+						? users : null);
+		resource = new UserResource(realm, db.getProvider(), auth, session,
+				null, null, null, null, null, null, null, null, null, null,
+				null, null);
+	}
+
+	@Test
+	public void usersAreWrittenOnePerLine() throws IOException {
+		JpaUserProviderExtended provider = db.getProvider();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		long exported = provider.exportUsers(QUERY, realm, "city",
+				OrderDirect.DESC, FETCH_SIZE,
+				users -> resource.writeUsers(out, users));
+
+		List<String> expected = provider.searchIdsExtended(QUERY, realm, 0,
+				null, USERS, "city", OrderDirect.DESC).getIds();
+		assertTrue(expected.size() > FETCH_SIZE * 2);
+		assertEquals(expected.size(), exported);
+
+		String output = new String(out.toByteArray(), StandardCharsets.UTF_8);
+		assertTrue(output.endsWith("\n"));
+		List<String> ids = new ArrayList<>();
+		for (String line : output.split("\n")) {
+			UserRepresentation user = JsonSerialization.readValue(line,
+					UserRepresentation.class);
+			assertTrue(user.getEmail(), user.getEmail().endsWith("@gmail.com"));
+			assertNotNull(user.getAttributes().get("city"));
+			assertFalse(user.getGroups().isEmpty());
+			assertEquals(Boolean.TRUE, user.getAccess().get("view"));
+			ids.add(user.getId());
+		}
+		assertEquals(expected, ids);
+	}
+
+	@Test
+	public void writtenPortionsAreDetached() {
+		EntityManager em = db.getEntityManager();
+		List<List<UserModel>> portions = new ArrayList<>();
+		db.getProvider().exportUsers(QUERY, realm, "username",
+				OrderDirect.ASC, FETCH_SIZE, users -> {
+					for (List<UserModel> previous : portions) {
+						for (UserModel user : previous) {
+							assertFalse(user.getId(), em.contains(
+									((UserAdapter) user).getEntity()));
+						}
+					}
+					for (UserModel user : users) {
+						assertTrue(user.getId(), em.contains(
+								((UserAdapter) user).getEntity()));
+					}
+					portions.add(users);
+				});
+
+		assertTrue(portions.size() > 2);
+		for (int i = 0; i < portions.size(); i++) {
+			int size = portions.get(i).size();
+			assertTrue(i < portions.size() - 1 ? size == FETCH_SIZE
+					: size > 0 && size <= FETCH_SIZE);
+			for (UserModel user : portions.get(i)) {
+				assertFalse(em.contains(((UserAdapter) user).getEntity()));
+			}
+		}
+	}
+
+	@Test(expected = BadRequestException.class)
+	public void exportIsNotOrderedByGroup() {
+		resource.export(null, JpaUserProviderExtended.GROUP_FIELD,
+				OrderDirect.ASC);
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T> T _proxy(Class<T> type, InvocationHandler handler) {
+		return (T) Proxy.newProxyInstance(type.getClassLoader(),
+				new Class<?>[] { type }, handler);
+	}
+}
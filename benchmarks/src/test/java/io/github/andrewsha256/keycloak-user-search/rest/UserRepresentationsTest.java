@@ -0,0 +1,211 @@
+package io.github.andrewsha256.keycloak_user_search.rest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.persistence.EntityManager;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Rule;
+import org.junit.Test;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.credential.CredentialModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserCredentialManager;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.jpa.JpaUserCredentialStore;
+import org.keycloak.models.jpa.entities.CredentialAttributeEntity;
+import org.keycloak.models.jpa.entities.CredentialEntity;
+import org.keycloak.models.jpa.entities.UserEntity;
+import org.keycloak.representations.idm.UserRepresentation;
+
+import io.github.andrewsha256.keycloak_user_search.jpa.BenchmarkRealm;
+import io.github.andrewsha256.keycloak_user_search.jpa.BenchmarkRealmRule;
+import io.github.andrewsha256.keycloak_user_search.jpa.JpaUserProviderExtended;
+import io.github.andrewsha256.keycloak_user_search.jpa.OrderDirect;
+import io.github.andrewsha256.keycloak_user_search.jpa.StatementCounter;
+
+/**
+ * Search page with user representations takes the same amount of SQL
+ * statements whatever page size is, besides queries of credential providers
+ */
+public class UserRepresentationsTest {
+
+	private static final int USERS = 300;
+
+	@ClassRule
+	public static final BenchmarkRealmRule realmRule = new BenchmarkRealmRule(
+			USERS);
+
+	@Rule
+	public final BenchmarkRealmRule.Transaction db = realmRule.transaction();
+
+	private final RealmModel realm = BenchmarkRealm.realmModel();
+
+	/**
+	 * Session with JPA connection, users provider and credential manager
+	 * which answers as OTP credential provider does: by credential store
+	 * query per call
+	 */
+	private KeycloakSession session;
+
+	/**
+	 * Credential store queries made by credential manager of `session`
+	 */
+	private final AtomicLong credentialQueries = new AtomicLong();
+
+	@BeforeClass
+	public static void createCredentials() {
+		EntityManager em = realmRule.getRealm().createEntityManager();
+		em.getTransaction().begin();
+		try {
+			for (int i = 0; i < USERS; i++) {
+				UserEntity user = em.getReference(UserEntity.class,
+						String.format("u%08d", i));
+				_persistCredential(em, user, CredentialModel.PASSWORD);
+				if (i % 3 == 0) {
+					CredentialEntity totp = _persistCredential(em, user,
+							CredentialModel.TOTP);
+					CredentialAttributeEntity device = new CredentialAttributeEntity();
+					device.setId(totp.getId() + "-device");
+					device.setCredential(totp);
+					device.setName("device");
+					device.setValue("phone");
+					em.persist(device);
+				}
+			}
+			em.getTransaction().commit();
+		}
+		finally {
+			em.close();
+		}
+	}
+
+	@Before
+	public void setUp() {
+		EntityManager em = db.getEntityManager();
+		JpaUserCredentialStore store = new JpaUserCredentialStore(null, em);
+		UserCredentialManager credentials = _proxy(UserCredentialManager.class,
+				(proxy, method, args) -> {
+					credentialQueries.incrementAndGet();
+					boolean otp = !store.getStoredCredentialsByType(
+							(RealmModel) args[0], (UserModel) args[1],
+							CredentialModel.TOTP).isEmpty();
+					switch (method.getName()) {
+					case "isConfiguredFor":
+						return otp && CredentialModel.OTP.equals(args[2]);
+					case "getDisableableCredentialTypes":
+						return otp ? Collections.singleton(CredentialModel.OTP)
+								: Collections.emptySet();
+					default:
+						throw new UnsupportedOperationException(
+								method.getName());
+					}
+				});
+		JpaConnectionProvider connection = _proxy(JpaConnectionProvider.class,
+				(proxy, method, args) -> em);
+		session = _proxy(KeycloakSession.class, (proxy, method, args) -> {
+			switch (method.getName()) {
+			case "getProvider":
+				return connection;
+			case "users":
+				return db.getProvider();
+			case "userCredentialManager":
+				return credentials;
+			default:
+				throw new UnsupportedOperationException(method.getName());
+			}
+		});
+	}
+
+	@Test
+	public void statementsDoNotDependOnPageSize() {
+		long small = this._pageStatements(5);
+		long big = this._pageStatements(50);
+		assertEquals(small, big);
+	}
+
+	@Test
+	public void credentialsAreAnsweredByProviders() {
+		List<UserRepresentation> users = this._page(6);
+		assertEquals(6, users.size());
+		for (UserRepresentation user : users) {
+			int i = Integer.parseInt(user.getId().substring(1));
+			boolean otp = i % 3 == 0;
+			assertEquals(otp, user.isTotp());
+			assertEquals(otp, user.getDisableableCredentialTypes()
+					.contains(CredentialModel.OTP));
+			assertEquals(Integer.valueOf(0), user.getNotBefore());
+			assertFalse(user.getGroups().isEmpty());
+			assertTrue(user.getAttributes().containsKey("city"));
+		}
+	}
+
+	@Test
+	public void credentialsAreLoadedWithAttributes() {
+		this._page(6);
+		List<CredentialModel> credentials = new JpaUserCredentialStore(null,
+				db.getEntityManager()).getStoredCredentialsByType(realm,
+						db.getProvider().getUserById("u00000003", realm),
+						CredentialModel.TOTP);
+		assertEquals(1, credentials.size());
+		assertEquals("phone",
+				credentials.get(0).getConfig().getFirst("device"));
+	}
+
+	/**
+	 * Statements of search and conversion of page with `pageSize` users
+	 * except credential store queries
+	 *
+	 * @param pageSize
+	 * @return
+	 */
+	private long _pageStatements(int pageSize) {
+		StatementCounter counter = new StatementCounter()
+				.register(db.getEntityManager());
+		long before = counter.get();
+		long queriesBefore = credentialQueries.get();
+		assertEquals(pageSize, this._page(pageSize).size());
+		return counter.get() - before
+				- (credentialQueries.get() - queriesBefore);
+	}
+
+	private List<UserRepresentation> _page(int pageSize) {
+		db.getEntityManager().clear();
+		JpaUserProviderExtended provider = db.getProvider();
+		Map<String, List<String>> query = Collections.singletonMap("username",
+				Arrays.asList("user%"));
+		List<UserModel> users = provider.searchForUserExtended(query, realm,
+				0, null, pageSize, "username", OrderDirect.ASC).getUsers();
+		return UserRepresentations.toRepresentations(session, realm, provider,
+				users);
+	}
+
+	private static CredentialEntity _persistCredential(EntityManager em,
+			UserEntity user, String type) {
+		CredentialEntity credential = new CredentialEntity();
+		credential.setId(user.getId() + "-" + type);
+		credential.setUser(user);
+		credential.setType(type);
+		em.persist(credential);
+		return credential;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T> T _proxy(Class<T> type, InvocationHandler handler) {
+		return (T) Proxy.newProxyInstance(type.getClassLoader(),
+				new Class<?>[] { type }, handler);
+	}
+}
@@ -0,0 +1,145 @@
+package io.github.andrewsha256.keycloak_user_search.events;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.persistence.EntityManager;
+
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.AbstractKeycloakTransaction;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.jpa.entities.GroupEntity;
+
+import io.github.andrewsha256.keycloak_user_search.jpa.BitmapIndexRegistry;
+import io.github.andrewsha256.keycloak_user_search.jpa.SearchSource;
+import io.github.andrewsha256.keycloak_user_search.jpa.ShadowSearchIndexer;
+import io.github.andrewsha256.keycloak_user_search.jpa.UserDocument;
+import io.github.andrewsha256.keycloak_user_search.jpa.UserProviderExtendedFactory;
+
+/**
+ * Applies changes of users and groups to search indexes that are in use:
+ * `USER_SEARCH_VALUE` table (in session transaction) and `BitmapIndex`
+ * (after session transaction is committed).
+ */
+class SearchIndexSync {
+
+	private final KeycloakSession session;
+
+	private final boolean shadow;
+
+	private final BitmapIndexRegistry bitmaps;
+
+	SearchIndexSync(KeycloakSession session,
+			UserProviderExtendedFactory providerFactory) {
+		this.session = session;
+		this.shadow = providerFactory.getSearchSource() == SearchSource.SHADOW;
+		this.bitmaps = providerFactory.getBitmaps();
+	}
+
+	boolean isEnabled() {
+		return shadow || bitmaps != null;
+	}
+
+	void usersChanged(final String realmId, Collection<String> userIds) {
+		if (shadow) {
+			this._indexer().reindexUsers(realmId, userIds);
+		}
+		if (bitmaps != null) {
+			final List<UserDocument> documents = UserDocument.load(this._em(),
+					userIds);
+			final Set<String> removed = new HashSet<>(userIds);
+			for (UserDocument document : documents) {
+				removed.remove(document.getUserId());
+			}
+			this.afterCommit(() -> bitmaps.update(realmId, documents, removed));
+		}
+	}
+
+	void userRemoved(final String realmId, final String userId) {
+		if (shadow) {
+			this._indexer().removeUsers(Collections.singleton(userId));
+		}
+		if (bitmaps != null) {
+			this.afterCommit(() -> bitmaps.update(realmId,
+					Collections.<UserDocument>emptyList(),
+					Collections.singleton(userId)));
+		}
+	}
+
+	void groupChanged(final String realmId, final String groupId) {
+		GroupEntity group = this._em().find(GroupEntity.class, groupId);
+		if (group == null) {
+			this.groupRemoved(realmId, groupId);
+			return;
+		}
+		if (shadow) {
+			this._indexer().reindexGroup(groupId);
+		}
+		if (bitmaps != null) {
+			final String name = group.getName();
+			this.afterCommit(() -> bitmaps.renameGroup(realmId, groupId, name));
+		}
+	}
+
+	void groupRemoved(final String realmId, final String groupId) {
+		if (shadow) {
+			this._indexer().removeGroup(groupId);
+		}
+		if (bitmaps != null) {
+			this.afterCommit(() -> bitmaps.removeGroup(realmId, groupId));
+		}
+	}
+
+	/**
+	 * Drops groups which don't exist anymore (eg subgroups of removed group)
+	 * 
+	 * @param realmId
+	 */
+	void staleGroupsRemoved(String realmId) {
+		if (shadow) {
+			this._indexer().removeStaleGroups(realmId);
+		}
+	}
+
+	void realmRemoved(final String realmId) {
+		if (shadow) {
+			this._indexer().removeRealm(realmId);
+		}
+		if (bitmaps != null) {
+			this.afterCommit(() -> bitmaps.removeRealm(realmId));
+		}
+	}
+
+	/**
+	 * Runs `action` after session transaction is committed (nothing is run
+	 * on rollback)
+	 * 
+	 * @param action
+	 */
+	void afterCommit(final Runnable action) {
+		session.getTransactionManager().enlistAfterCompletion(
+				new AbstractKeycloakTransaction() {
+					@Override
+					protected void commitImpl() {
+						action.run();
+					}
+
+					@Override
+					protected void rollbackImpl() {
+						// nothing was changed
+					}
+				});
+	}
+
+	private ShadowSearchIndexer _indexer() {
+		return new ShadowSearchIndexer(this._em());
+	}
+
+	private EntityManager _em() {
+		return session.getProvider(JpaConnectionProvider.class)
+				.getEntityManager();
+	}
+}
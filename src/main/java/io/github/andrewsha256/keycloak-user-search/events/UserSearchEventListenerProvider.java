@@ -0,0 +1,161 @@
+package io.github.andrewsha256.keycloak_user_search.events;
+
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+
+import org.keycloak.events.Event;
+import org.keycloak.events.EventListenerProvider;
+import org.keycloak.events.EventType;
+import org.keycloak.events.admin.AdminEvent;
+import org.keycloak.events.admin.OperationType;
+import org.keycloak.events.admin.ResourceType;
+
+import io.github.andrewsha256.keycloak_user_search.jpa.IndexResultCache;
+import io.github.andrewsha256.keycloak_user_search.rest.AdminAuthCache;
+
+/**
+ * Keeps search caches fresh: drops realm's cached `index` results when its
+ * users, user attributes, groups or group memberships change. Events are
+ * sent before request transaction is committed, so caches are dropped after
+ * commit: otherwise concurrent request could cache data that is not
+ * committed yet.
+ * 
+ * With `shadow` search source or `bitmap` search engine also reindexes
+ * changed users and groups (see `SearchIndexSync`).
+ * 
+ * Drops cached admin authorization (`AdminAuthCache`) when roles, role
+ * mappings, group memberships or authorization policies change (after
+ * commit too).
+ * 
+ * Listener has to be added to realm's "Event Listeners" (`user-search`).
+ */
+public class UserSearchEventListenerProvider implements EventListenerProvider {
+
+	/**
+	 * Admin events that change searchable user data
+	 */
+	static final Set<ResourceType> USER_DATA_RESOURCES = EnumSet.of(
+			ResourceType.USER, ResourceType.GROUP,
+			ResourceType.GROUP_MEMBERSHIP, ResourceType.REALM);
+
+	/**
+	 * Admin events that change admin permissions of users
+	 */
+	static final Set<ResourceType> AUTH_RESOURCES = EnumSet.of(
+			ResourceType.USER, ResourceType.GROUP_MEMBERSHIP,
+			ResourceType.REALM_ROLE, ResourceType.REALM_ROLE_MAPPING,
+			ResourceType.CLIENT_ROLE, ResourceType.CLIENT_ROLE_MAPPING,
+			ResourceType.AUTHORIZATION_RESOURCE_SERVER,
+			ResourceType.AUTHORIZATION_RESOURCE,
+			ResourceType.AUTHORIZATION_SCOPE,
+			ResourceType.AUTHORIZATION_POLICY);
+
+	/**
+	 * User events that change searchable user data
+	 */
+	static final Set<EventType> USER_DATA_EVENTS = EnumSet.of(
+			EventType.REGISTER, EventType.UPDATE_PROFILE,
+			EventType.UPDATE_EMAIL, EventType.IDENTITY_PROVIDER_FIRST_LOGIN);
+
+	private final IndexResultCache indexCache;
+
+	private final SearchIndexSync sync;
+
+	private final AdminAuthCache authCache;
+
+	UserSearchEventListenerProvider(IndexResultCache indexCache,
+			SearchIndexSync sync, AdminAuthCache authCache) {
+		this.indexCache = indexCache;
+		this.sync = sync;
+		this.authCache = authCache;
+	}
+
+	@Override
+	public void onEvent(Event event) {
+		if (event.getError() == null
+				&& USER_DATA_EVENTS.contains(event.getType())) {
+			this._invalidateIndex(event.getRealmId());
+			if (sync.isEnabled() && event.getUserId() != null) {
+				sync.usersChanged(event.getRealmId(),
+						Collections.singleton(event.getUserId()));
+			}
+		}
+	}
+
+	@Override
+	public void onEvent(AdminEvent event, boolean includeRepresentation) {
+		if (event.getError() == null
+				&& USER_DATA_RESOURCES.contains(event.getResourceType())) {
+			this._invalidateIndex(event.getRealmId());
+			if (sync.isEnabled()) {
+				this._sync(event);
+			}
+		}
+		if (event.getError() == null
+				&& AUTH_RESOURCES.contains(event.getResourceType())) {
+			this._invalidateAuth(event);
+		}
+	}
+
+	@Override
+	public void close() {
+	}
+
+	/**
+	 * Drops cached `index` results of realm after commit
+	 * 
+	 * @param realmId
+	 */
+	private void _invalidateIndex(final String realmId) {
+		sync.afterCommit(() -> indexCache.invalidate(realmId));
+	}
+
+	/**
+	 * Drops cached authorization of user from resource path `users/<id>/...`
+	 * or of all users if roles, groups or policies change (after commit)
+	 * 
+	 * @param event
+	 */
+	private void _invalidateAuth(AdminEvent event) {
+		String[] path = event.getResourcePath() == null ? new String[0]
+				: event.getResourcePath().split("/");
+		if (path.length >= 2 && "users".equals(path[0])) {
+			final String userId = path[1];
+			sync.afterCommit(() -> authCache.invalidateUser(userId));
+		}
+		else {
+			sync.afterCommit(authCache::invalidateAll);
+		}
+	}
+
+	/**
+	 * Reindexes user or group from admin event resource path: `users/<id>`,
+	 * `users/<id>/groups/<groupId>` or `groups/<id>`
+	 * 
+	 * @param event
+	 */
+	private void _sync(AdminEvent event) {
+		if (event.getResourcePath() == null) {
+			return;
+		}
+		String[] path = event.getResourcePath().split("/");
+		if (path.length < 2) {
+			return;
+		}
+		if ("users".equals(path[0])) {
+			sync.usersChanged(event.getRealmId(),
+					Collections.singleton(path[1]));
+		}
+		else if ("groups".equals(path[0])) {
+			if (event.getOperationType() == OperationType.DELETE) {
+				sync.groupRemoved(event.getRealmId(), path[1]);
+				sync.staleGroupsRemoved(event.getRealmId());
+			}
+			else {
+				sync.groupChanged(event.getRealmId(), path[1]);
+			}
+		}
+	}
+
+}
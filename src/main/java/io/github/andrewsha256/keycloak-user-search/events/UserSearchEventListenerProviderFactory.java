@@ -0,0 +1,94 @@
+package io.github.andrewsha256.keycloak_user_search.events;
+
+import org.keycloak.Config.Scope;
+import org.keycloak.events.EventListenerProvider;
+import org.keycloak.events.EventListenerProviderFactory;
+import org.keycloak.models.GroupModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.provider.ProviderEvent;
+import org.keycloak.services.resource.RealmResourceProvider;
+
+import io.github.andrewsha256.keycloak_user_search.jpa.UserProviderExtendedFactory;
+import io.github.andrewsha256.keycloak_user_search.rest.AdminAuthCache;
+import io.github.andrewsha256.keycloak_user_search.rest.UserResourceProviderFactory;
+
+public class UserSearchEventListenerProviderFactory
+		implements EventListenerProviderFactory {
+
+	/**
+	 * Listener name in realm's "Event Listeners"
+	 */
+	public static final String ID = "user-search";
+
+	private UserProviderExtendedFactory providerFactory;
+
+	private AdminAuthCache authCache;
+
+	@Override
+	public String getId() {
+		return ID;
+	}
+
+	@Override
+	public EventListenerProvider create(KeycloakSession session) {
+		return new UserSearchEventListenerProvider(
+				providerFactory.getIndexCache(),
+				new SearchIndexSync(session, providerFactory), authCache);
+	}
+
+	@Override
+	public void init(Scope config) {
+		// we have nothing to do here
+	}
+
+	@Override
+	public void postInit(KeycloakSessionFactory factory) {
+		// caches are owned by search service factory
+		UserResourceProviderFactory resourceFactory =
+				(UserResourceProviderFactory) factory.getProviderFactory(
+						RealmResourceProvider.class,
+						UserResourceProviderFactory.ID);
+		providerFactory = resourceFactory.getProviderFactory();
+		authCache = resourceFactory.getAuthCache();
+
+		// removals are published for every realm, even when listener is not
+		// added to realm's "Event Listeners"
+		factory.register(this::_onRemoved);
+	}
+
+	@Override
+	public void close() {
+		// we have nothing to do here
+	}
+
+	private void _onRemoved(ProviderEvent event) {
+		if (event instanceof UserModel.UserRemovedEvent) {
+			UserModel.UserRemovedEvent removed = (UserModel.UserRemovedEvent) event;
+			final String userId = removed.getUser().getId();
+			SearchIndexSync sync = this._sync(removed.getKeycloakSession());
+			sync.afterCommit(() -> authCache.invalidateUser(userId));
+			sync.userRemoved(removed.getRealm().getId(), userId);
+		}
+		else if (event instanceof GroupModel.GroupRemovedEvent) {
+			GroupModel.GroupRemovedEvent removed = (GroupModel.GroupRemovedEvent) event;
+			this._sync(removed.getKeycloakSession()).groupRemoved(
+					removed.getRealm().getId(), removed.getGroup().getId());
+		}
+		else if (event instanceof RealmModel.RealmRemovedEvent) {
+			RealmModel.RealmRemovedEvent removed = (RealmModel.RealmRemovedEvent) event;
+			final String realmId = removed.getRealm().getId();
+			SearchIndexSync sync = this._sync(removed.getKeycloakSession());
+			sync.afterCommit(
+					() -> providerFactory.getPlanner().removeRealm(realmId));
+			sync.realmRemoved(realmId);
+		}
+	}
+
+	private SearchIndexSync _sync(KeycloakSession session) {
+		return new SearchIndexSync(session, providerFactory);
+	}
+
+}
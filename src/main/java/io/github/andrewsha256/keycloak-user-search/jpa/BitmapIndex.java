@@ -0,0 +1,563 @@
+package io.github.andrewsha256.keycloak_user_search.jpa;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Pattern;
+
+/**
+ * In-memory inverted index of realm's users
+ *
+ * Users get dense numbers ("slots"). Every normalized (see
+ * `SearchValueNormalizer`) value of default field or attribute has set of
+ * slots of users with this value, every group has set of its members. Search
+ * term becomes union of sets of its matching values and search query becomes
+ * intersection of its terms, so amount of found users is just a cardinality.
+ *
+ * Values are kept in per-field dictionaries sorted by normalized value (and
+ * by original value within it), so `value%` patterns are range lookups,
+ * other patterns scan dictionary of the field. The same dictionaries answer
+ * `index` requests: distinct original values in sorted order with amount of
+ * their users.
+ *
+ * Thread-safe: searches share read lock, updates take write lock.
+ */
+public class BitmapIndex {
+
+	/**
+	 * Dictionary of user ids (`id` search field)
+	 */
+	static final String ID_FIELD = "id";
+
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	private final Map<String, Integer> slots = new HashMap<>();
+
+	private final List<UserDocument> documents = new ArrayList<>();
+
+	private final BitSet alive = new BitSet();
+
+	/**
+	 * `F:<field>` or `A:<attribute>` => value => users
+	 */
+	private final Map<String, TreeMap<ValueKey, Postings>> dictionaries =
+			new HashMap<>();
+
+	private final Map<String, Postings> groupMembers = new HashMap<>();
+
+	/**
+	 * groupId => group name
+	 */
+	private final Map<String, ValueKey> groupNames = new HashMap<>();
+
+	/**
+	 * Adds or replaces user
+	 *
+	 * @param document
+	 */
+	public void put(UserDocument document) {
+		lock.writeLock().lock();
+		try {
+			Integer slot = slots.get(document.getUserId());
+			if (slot == null) {
+				slot = documents.size();
+				documents.add(null);
+				slots.put(document.getUserId(), slot);
+			}
+			else {
+				this._unindex(slot);
+			}
+			this._index(slot, document);
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	public void remove(String userId) {
+		lock.writeLock().lock();
+		try {
+			Integer slot = slots.remove(userId);
+			if (slot != null) {
+				this._unindex(slot);
+			}
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Sets group name (members are changed via `put`)
+	 *
+	 * @param groupId
+	 * @param name
+	 */
+	public void renameGroup(String groupId, String name) {
+		lock.writeLock().lock();
+		try {
+			if (groupNames.containsKey(groupId)) {
+				groupNames.put(groupId, new ValueKey(name));
+			}
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	public void removeGroup(String groupId) {
+		lock.writeLock().lock();
+		try {
+			groupNames.remove(groupId);
+			groupMembers.remove(groupId);
+		}
+		finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Users matching all search terms
+	 *
+	 * @param terms
+	 * @return slots of matching users
+	 */
+	BitSet match(List<SearchTerm> terms) {
+		lock.readLock().lock();
+		try {
+			return this._match(terms);
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Distinct values of `term` label matching `term` value pattern that
+	 * users matching `filter` have, ordered by normalized value
+	 *
+	 * @param term label and single value pattern
+	 * @param filter
+	 * @param firstResult `-1` for no offset
+	 * @param maxResults `-1` for no limit
+	 * @param orderDirect
+	 * @return original (not normalized) values
+	 */
+	List<String> values(SearchTerm term, List<SearchTerm> filter,
+			int firstResult, int maxResults, OrderDirect orderDirect) {
+		lock.readLock().lock();
+		try {
+			List<String> result = new ArrayList<>();
+			Iterator<ValueKey> keys = this._valueKeys(term, filter,
+					orderDirect);
+			for (int i = 0; keys.hasNext()
+					&& (maxResults == -1 || result.size() < maxResults); i++) {
+				ValueKey key = keys.next();
+				if (i >= firstResult) {
+					result.add(key.value);
+				}
+			}
+			return result;
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Amount of `values`
+	 *
+	 * @param term
+	 * @param filter
+	 * @return
+	 */
+	long countValues(SearchTerm term, List<SearchTerm> filter) {
+		lock.readLock().lock();
+		try {
+			long result = 0;
+			Iterator<ValueKey> keys = this._valueKeys(term, filter,
+					OrderDirect.ASC);
+			for (; keys.hasNext(); keys.next()) {
+				result++;
+			}
+			return result;
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Facet of matched users: `topK` values of `term` label they have most
+	 * often
+	 *
+	 * @param term label (value is ignored)
+	 * @param matched
+	 * @param topK
+	 * @return original (not normalized) values with amounts of users
+	 */
+	List<FacetValue> facet(SearchTerm term, BitSet matched, int topK) {
+		lock.readLock().lock();
+		try {
+			Map<String, Long> counts = new HashMap<>();
+			if (JpaUserProviderExtended.GROUP_FIELD.equals(term.getLabel())) {
+				// groups with the same name are one value
+				Map<String, List<Postings>> members = new HashMap<>();
+				for (Map.Entry<String, ValueKey> group : groupNames.entrySet()) {
+					members.computeIfAbsent(group.getValue().value,
+							name -> new ArrayList<>())
+						.add(groupMembers.get(group.getKey()));
+				}
+				for (Map.Entry<String, List<Postings>> group
+						: members.entrySet()) {
+					long amount = _cardinality(group.getValue(), matched);
+					if (amount > 0) {
+						counts.put(group.getKey(), amount);
+					}
+				}
+			}
+			else {
+				TreeMap<ValueKey, Postings> dictionary = dictionaries.get(
+						_dictionaryKey(term));
+				if (dictionary != null) {
+					for (Map.Entry<ValueKey, Postings> entry
+							: dictionary.entrySet()) {
+						int amount = entry.getValue().cardinality(matched);
+						if (amount > 0) {
+							counts.put(entry.getKey().value, (long) amount);
+						}
+					}
+				}
+			}
+			return FacetValue.top(counts, topK);
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * User ids of slots
+	 *
+	 * @param matched
+	 * @return
+	 */
+	List<String> userIds(BitSet matched) {
+		lock.readLock().lock();
+		try {
+			List<String> result = new ArrayList<>(matched.cardinality());
+			for (int slot = matched.nextSetBit(0); slot >= 0;
+					slot = matched.nextSetBit(slot + 1)) {
+				UserDocument document = documents.get(slot);
+				if (document != null) {
+					result.add(document.getUserId());
+				}
+			}
+			return result;
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Amount of indexed users
+	 *
+	 * @return
+	 */
+	public int size() {
+		lock.readLock().lock();
+		try {
+			return alive.cardinality();
+		}
+		finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	private BitSet _match(List<SearchTerm> terms) {
+		BitSet result = (BitSet) alive.clone();
+		for (SearchTerm term : terms) {
+			if (result.isEmpty()) {
+				break;
+			}
+			result.and(this._matchTerm(term));
+		}
+		return result;
+	}
+
+	private Iterator<ValueKey> _valueKeys(SearchTerm term,
+			List<SearchTerm> filter, OrderDirect orderDirect) {
+
+		BitSet filterSet = filter.isEmpty() ? null : this._match(filter);
+		String value = term.getValues().get(0);
+
+		NavigableMap<ValueKey, Postings> candidates;
+		if (JpaUserProviderExtended.GROUP_FIELD.equals(term.getLabel())) {
+			// groups with the same name are one value
+			candidates = new TreeMap<>();
+			Pattern pattern = likePattern(value);
+			for (Map.Entry<String, ValueKey> group : groupNames.entrySet()) {
+				if (pattern.matcher(group.getValue().normalized).matches()) {
+					Postings members = groupMembers.get(group.getKey());
+					if (!members.isEmpty()) {
+						candidates.merge(group.getValue(), members,
+								(a, b) -> _intersects(a, filterSet) ? a : b);
+					}
+				}
+			}
+		}
+		else {
+			TreeMap<ValueKey, Postings> dictionary = dictionaries.get(
+					_dictionaryKey(term));
+			candidates = dictionary == null ? new TreeMap<>()
+					: _matchValues(dictionary, value);
+		}
+		if (OrderDirect.DESC.equals(orderDirect)) {
+			candidates = candidates.descendingMap();
+		}
+		return candidates.entrySet().stream()
+				.filter(entry -> _intersects(entry.getValue(), filterSet))
+				.map(Map.Entry::getKey)
+				.iterator();
+	}
+
+	/**
+	 * Amount of `matched` users in union of `postings`
+	 *
+	 * @param postings
+	 * @param matched
+	 * @return
+	 */
+	private static long _cardinality(List<Postings> postings, BitSet matched) {
+		if (postings.size() == 1) {
+			return postings.get(0).cardinality(matched);
+		}
+		BitSet union = new BitSet(matched.length());
+		for (Postings members : postings) {
+			members.orInto(union);
+		}
+		union.and(matched);
+		return union.cardinality();
+	}
+
+	private static boolean _intersects(Postings postings, BitSet filterSet) {
+		return filterSet == null ? !postings.isEmpty()
+				: postings.intersects(filterSet);
+	}
+
+	private BitSet _matchTerm(SearchTerm term) {
+		BitSet result = new BitSet(documents.size());
+		String label = term.getLabel();
+		if (JpaUserProviderExtended.GROUP_FIELD.equals(label)) {
+			for (String value : term.getValues()) {
+				Pattern pattern = likePattern(value);
+				for (Map.Entry<String, ValueKey> group : groupNames.entrySet()) {
+					if (pattern.matcher(group.getValue().normalized).matches()) {
+						groupMembers.get(group.getKey()).orInto(result);
+					}
+				}
+			}
+			return result;
+		}
+		TreeMap<ValueKey, Postings> dictionary = dictionaries.get(
+				_dictionaryKey(term));
+		if (dictionary == null) {
+			return result;
+		}
+		for (String value : term.getValues()) {
+			for (Postings postings : _matchValues(dictionary, value).values()) {
+				postings.orInto(result);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Dictionary entries matching `like` pattern
+	 *
+	 * @param dictionary
+	 * @param value
+	 * @return
+	 */
+	private static NavigableMap<ValueKey, Postings> _matchValues(
+			TreeMap<ValueKey, Postings> dictionary, String value) {
+
+		String normalized = SearchValueNormalizer.normalize(value);
+		int wildcard = firstWildcard(normalized);
+		if (wildcard < 0) {
+			// all original values of normalized one
+			return dictionary.subMap(new ValueKey(normalized, ""), true,
+					new ValueKey(normalized + Character.MIN_VALUE, ""), false);
+		}
+		String prefix = normalized.substring(0, wildcard);
+		NavigableMap<ValueKey, Postings> range = prefix.isEmpty() ? dictionary
+				: dictionary.subMap(new ValueKey(prefix, ""), true,
+						new ValueKey(prefix + Character.MAX_VALUE, ""), false);
+		if (wildcard == normalized.length() - 1
+				&& normalized.charAt(wildcard) == '%') {
+			return range;
+		}
+		Pattern pattern = likePattern(normalized);
+		TreeMap<ValueKey, Postings> result = new TreeMap<>();
+		for (Map.Entry<ValueKey, Postings> entry : range.entrySet()) {
+			if (pattern.matcher(entry.getKey().normalized).matches()) {
+				result.put(entry.getKey(), entry.getValue());
+			}
+		}
+		return result;
+	}
+
+	private static String _dictionaryKey(SearchTerm term) {
+		if (ID_FIELD.equals(term.getLabel())) {
+			return "F:" + ID_FIELD;
+		}
+		if (term.isLabelDefault()) {
+			return "F:" + JpaUserProviderExtended.canonicalFieldName(
+					term.getLabel());
+		}
+		return "A:" + term.getLabel();
+	}
+
+	private void _index(int slot, UserDocument document) {
+		documents.set(slot, document);
+		alive.set(slot);
+		this._add("F:" + ID_FIELD, document.getUserId(), slot);
+		for (Map.Entry<String, String> field : document.getFields().entrySet()) {
+			this._add("F:" + field.getKey(), field.getValue(), slot);
+		}
+		for (String[] attr : document.getAttributes()) {
+			this._add("A:" + attr[0], attr[1], slot);
+		}
+		for (Map.Entry<String, String> group : document.getGroups().entrySet()) {
+			groupNames.put(group.getKey(), new ValueKey(group.getValue()));
+			groupMembers.computeIfAbsent(group.getKey(), id -> new Postings())
+					.add(slot);
+		}
+	}
+
+	private void _unindex(int slot) {
+		UserDocument document = documents.get(slot);
+		documents.set(slot, null);
+		alive.clear(slot);
+		if (document == null) {
+			return;
+		}
+		this._remove("F:" + ID_FIELD, document.getUserId(), slot);
+		for (Map.Entry<String, String> field : document.getFields().entrySet()) {
+			this._remove("F:" + field.getKey(), field.getValue(), slot);
+		}
+		for (String[] attr : document.getAttributes()) {
+			this._remove("A:" + attr[0], attr[1], slot);
+		}
+		for (String groupId : document.getGroups().keySet()) {
+			Postings members = groupMembers.get(groupId);
+			if (members != null) {
+				members.remove(slot);
+			}
+		}
+	}
+
+	private void _add(String key, String value, int slot) {
+		dictionaries.computeIfAbsent(key, k -> new TreeMap<>())
+				.computeIfAbsent(new ValueKey(value), v -> new Postings())
+				.add(slot);
+	}
+
+	private void _remove(String key, String value, int slot) {
+		TreeMap<ValueKey, Postings> dictionary = dictionaries.get(key);
+		if (dictionary == null) {
+			return;
+		}
+		ValueKey valueKey = new ValueKey(value);
+		Postings postings = dictionary.get(valueKey);
+		if (postings != null) {
+			postings.remove(slot);
+			if (postings.isEmpty()) {
+				dictionary.remove(valueKey);
+			}
+		}
+	}
+
+	static int firstWildcard(String value) {
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '%' || c == '_') {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * SQL `like` pattern as regular expression: `%` is any string, `_` is
+	 * any character
+	 *
+	 * @param value
+	 * @return
+	 */
+	static Pattern likePattern(String value) {
+		String normalized = SearchValueNormalizer.normalize(value);
+		StringBuilder regex = new StringBuilder();
+		StringBuilder literal = new StringBuilder();
+		for (int i = 0; i < normalized.length(); i++) {
+			char c = normalized.charAt(i);
+			if (c == '%' || c == '_') {
+				if (literal.length() > 0) {
+					regex.append(Pattern.quote(literal.toString()));
+					literal.setLength(0);
+				}
+				regex.append(c == '%' ? ".*" : ".");
+			}
+			else {
+				literal.append(c);
+			}
+		}
+		if (literal.length() > 0) {
+			regex.append(Pattern.quote(literal.toString()));
+		}
+		return Pattern.compile(regex.toString(), Pattern.DOTALL);
+	}
+
+	/**
+	 * Dictionary key: normalized value, then original value
+	 */
+	static final class ValueKey implements Comparable<ValueKey> {
+
+		final String normalized;
+
+		final String value;
+
+		ValueKey(String value) {
+			this(SearchValueNormalizer.normalize(value), value);
+		}
+
+		ValueKey(String normalized, String value) {
+			this.normalized = normalized;
+			this.value = value;
+		}
+
+		@Override
+		public int compareTo(ValueKey other) {
+			int result = normalized.compareTo(other.normalized);
+			return result != 0 ? result : value.compareTo(other.value);
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof ValueKey && this.compareTo((ValueKey) o) == 0;
+		}
+
+		@Override
+		public int hashCode() {
+			return value.hashCode();
+		}
+	}
+}
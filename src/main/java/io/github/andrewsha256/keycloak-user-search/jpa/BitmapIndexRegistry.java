@@ -0,0 +1,307 @@
+package io.github.andrewsha256.keycloak_user_search.jpa;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.EntityManager;
+
+import org.jboss.logging.Logger;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+/**
+ * `BitmapIndex` of every realm
+ *
+ * Indexes are built on background thread at start (and on first request of
+ * realm created later) and are updated by `user-search` event listener after
+ * every committed change. Until realm's index is built its searches go to
+ * database. Index being built gets changes too, and users changed during
+ * build are loaded again after the last batch: batch may have been read
+ * before the change and put into index after it.
+ *
+ * Every index is rebuilt each `refreshInterval` to pick up changes that
+ * don't produce events or were made on other cluster nodes.
+ *
+ * One instance per deployment, created by `UserResourceProviderFactory`.
+ */
+public class BitmapIndexRegistry {
+
+	private static final Logger logger = Logger
+			.getLogger(BitmapIndexRegistry.class);
+
+	public static final long DEFAULT_REFRESH_INTERVAL = 900000L;
+
+	public static final int DEFAULT_BATCH_SIZE = 1000;
+
+	private final long refreshInterval;
+
+	private final int batchSize;
+
+	private final Map<String, BitmapIndex> ready = new ConcurrentHashMap<>();
+
+	/**
+	 * Indexes being built: they get updates too, so changes made during
+	 * build are not lost
+	 */
+	private final Map<String, Build> building = new ConcurrentHashMap<>();
+
+	private final ScheduledExecutorService executor;
+
+	private volatile KeycloakSessionFactory sessionFactory;
+
+	/**
+	 * @param refreshInterval full rebuild interval in ms, `0` disables
+	 *                        rebuilds
+	 * @param batchSize amount of users loaded in one transaction
+	 */
+	public BitmapIndexRegistry(long refreshInterval, int batchSize) {
+		this.refreshInterval = refreshInterval;
+		this.batchSize = batchSize;
+		ScheduledThreadPoolExecutor scheduled = new ScheduledThreadPoolExecutor(1,
+				runnable -> {
+					Thread thread = new Thread(runnable, "user-search-bitmap");
+					thread.setDaemon(true);
+					return thread;
+				});
+		scheduled.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+		this.executor = scheduled;
+	}
+
+	/**
+	 * Starts building indexes of all realms
+	 *
+	 * @param sessionFactory
+	 */
+	public void start(KeycloakSessionFactory sessionFactory) {
+		this.sessionFactory = sessionFactory;
+		executor.execute(() -> {
+			List<String> realmIds = new ArrayList<>();
+			KeycloakModelUtils.runJobInTransaction(sessionFactory,
+					(KeycloakSession session) -> {
+						for (RealmModel realm : session.realms().getRealms()) {
+							realmIds.add(realm.getId());
+						}
+					});
+			for (String realmId : realmIds) {
+				this._schedule(realmId);
+			}
+		});
+	}
+
+	/**
+	 * Built index of realm or `null` if it is not ready yet
+	 *
+	 * @param realmId
+	 * @return
+	 */
+	public BitmapIndex get(String realmId) {
+		BitmapIndex index = ready.get(realmId);
+		if (index == null && sessionFactory != null
+				&& !building.containsKey(realmId)) {
+			this._schedule(realmId);
+		}
+		return index;
+	}
+
+	/**
+	 * Applies committed changes of users
+	 *
+	 * @param realmId
+	 * @param documents changed users
+	 * @param removedIds removed users
+	 */
+	public void update(String realmId, Collection<UserDocument> documents,
+			Collection<String> removedIds) {
+		// recorded before index is changed, so build can't miss it
+		Build build = building.get(realmId);
+		if (build != null) {
+			for (UserDocument document : documents) {
+				build.changed.add(document.getUserId());
+			}
+			build.changed.addAll(removedIds);
+		}
+		for (BitmapIndex index : this._indexes(realmId)) {
+			for (UserDocument document : documents) {
+				index.put(document);
+			}
+			for (String userId : removedIds) {
+				index.remove(userId);
+			}
+		}
+	}
+
+	/**
+	 * Makes `index` built by caller ready index of realm (eg in tests, which
+	 * have no session factory to build it)
+	 *
+	 * @param realmId
+	 * @param index
+	 */
+	void put(String realmId, BitmapIndex index) {
+		ready.put(realmId, index);
+	}
+
+	public void renameGroup(String realmId, String groupId, String name) {
+		for (BitmapIndex index : this._indexes(realmId)) {
+			index.renameGroup(groupId, name);
+		}
+	}
+
+	public void removeGroup(String realmId, String groupId) {
+		for (BitmapIndex index : this._indexes(realmId)) {
+			index.removeGroup(groupId);
+		}
+	}
+
+	public void removeRealm(String realmId) {
+		ready.remove(realmId);
+	}
+
+	/**
+	 * Amount of built indexes
+	 *
+	 * @return
+	 */
+	public int getSize() {
+		return ready.size();
+	}
+
+	/**
+	 * Amount of users in all built indexes
+	 *
+	 * @return
+	 */
+	public long getUsers() {
+		long result = 0;
+		for (BitmapIndex index : ready.values()) {
+			result += index.size();
+		}
+		return result;
+	}
+
+	public void close() {
+		executor.shutdownNow();
+	}
+
+	private List<BitmapIndex> _indexes(String realmId) {
+		List<BitmapIndex> result = new ArrayList<>(2);
+		BitmapIndex index = ready.get(realmId);
+		if (index != null) {
+			result.add(index);
+		}
+		Build build = building.get(realmId);
+		if (build != null) {
+			result.add(build.index);
+		}
+		return result;
+	}
+
+	private void _schedule(String realmId) {
+		Build build = new Build();
+		if (building.putIfAbsent(realmId, build) != null) {
+			return;
+		}
+		executor.execute(() -> this._build(realmId, build));
+	}
+
+	private void _build(String realmId, Build build) {
+		BitmapIndex index = build.index;
+		try {
+			long start = System.currentTimeMillis();
+			String[] lastId = { null };
+			boolean[] realmExists = { true };
+			do {
+				KeycloakModelUtils.runJobInTransaction(sessionFactory,
+						(KeycloakSession session) -> {
+							if (session.realms().getRealm(realmId) == null) {
+								realmExists[0] = false;
+								lastId[0] = null;
+								return;
+							}
+							List<UserDocument> documents = UserDocument.loadBatch(
+									session.getProvider(JpaConnectionProvider.class)
+											.getEntityManager(),
+									realmId, lastId[0], batchSize);
+							for (UserDocument document : documents) {
+								index.put(document);
+							}
+							lastId[0] = documents.isEmpty() ? null
+									: documents.get(documents.size() - 1)
+											.getUserId();
+						});
+			}
+			while (lastId[0] != null && !Thread.currentThread().isInterrupted());
+
+			// changes made after reload has read them are recorded again
+			while (realmExists[0] && !build.changed.isEmpty()
+					&& !Thread.currentThread().isInterrupted()) {
+				Set<String> changed = new HashSet<>(build.changed);
+				build.changed.removeAll(changed);
+				KeycloakModelUtils.runJobInTransaction(sessionFactory,
+						(KeycloakSession session) -> this._reload(index,
+								session.getProvider(JpaConnectionProvider.class)
+										.getEntityManager(),
+								changed));
+			}
+
+			if (!realmExists[0]) {
+				ready.remove(realmId);
+				return;
+			}
+			ready.put(realmId, index);
+			logger.debugf("Bitmap index of realm %s is built in %d ms: %d users",
+					realmId, System.currentTimeMillis() - start, index.size());
+			if (refreshInterval > 0) {
+				executor.schedule(() -> this._schedule(realmId),
+						refreshInterval, TimeUnit.MILLISECONDS);
+			}
+		}
+		catch (RuntimeException e) {
+			logger.errorf(e, "Bitmap index of realm %s was not built", realmId);
+		}
+		finally {
+			building.remove(realmId, build);
+		}
+	}
+
+	/**
+	 * Puts current documents of `userIds` into index, removes users that
+	 * don't exist anymore
+	 *
+	 * @param index
+	 * @param em
+	 * @param userIds
+	 */
+	private void _reload(BitmapIndex index, EntityManager em,
+			Set<String> userIds) {
+		Set<String> removed = new HashSet<>(userIds);
+		for (UserDocument document : UserDocument.load(em, userIds)) {
+			index.put(document);
+			removed.remove(document.getUserId());
+		}
+		for (String userId : removed) {
+			index.remove(userId);
+		}
+	}
+
+	/**
+	 * Index being built and users changed since build has started
+	 */
+	private static final class Build {
+
+		final BitmapIndex index = new BitmapIndex();
+
+		final Set<String> changed = ConcurrentHashMap.newKeySet();
+	}
+}
@@ -0,0 +1,231 @@
+package io.github.andrewsha256.keycloak_user_search.jpa;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.persistence.EntityManager;
+
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+
+/**
+ * `JpaUserProviderExtended` that evaluates search terms with realm's
+ * in-memory `BitmapIndex`
+ *
+ * Index compares values normalized by `SearchValueNormalizer` (as
+ * `SearchSource.SHADOW` does), so its matched set is a superset of users
+ * found by `SearchSource.ENTITIES` search, which is accent-sensitive. That's
+ * why matched users are only candidates: portions of users are selected by
+ * database among them with the same search terms, when there are not more
+ * than `IN_PARAMS_CHUNK_SIZE` of them; bigger result sets and realms which
+ * index is not built yet are searched by `JpaUserProviderExtended` queries.
+ *
+ * Counts are cardinalities of matched sets with `SearchSource.SHADOW`
+ * (exact, whatever strategy is). With `SearchSource.ENTITIES` candidates
+ * are counted by database when there are not more than
+ * `IN_PARAMS_CHUNK_SIZE` of them, bigger sets give their cardinality as
+ * `estimate` (it's never less than exact amount) and are counted by
+ * database for other strategies.
+ *
+ * `index`, `countIndex` and `facets` are answered by index dictionaries
+ * without database at all, so they are accent-insensitive whatever search
+ * source is, and `index` values are ordered case- and
+ * accent-insensitively.
+ */
+public class BitmapUserProviderExtended extends JpaUserProviderExtended {
+
+	private final BitmapIndexRegistry bitmaps;
+
+	/**
+	 * `true` if database search compares normalized values as index does
+	 */
+	private final boolean normalized;
+
+	/**
+	 * @param session
+	 * @param em
+	 * @param settings must have bitmaps
+	 */
+	public BitmapUserProviderExtended(KeycloakSession session,
+			EntityManager em, SearchSettings settings) {
+		super(session, em, settings);
+		this.bitmaps = settings.getBitmaps();
+		this.normalized = settings.getSearchSource() == SearchSource.SHADOW;
+	}
+
+	@Override
+	public List<UserModel> searchForUserExtended(
+			Map<String, List<String>> attributes, RealmModel realm,
+			int firstResult, int maxResults, String orderBy,
+			OrderDirect orderDirect) {
+
+		return this.searchForUserExtended(attributes, realm, firstResult, null,
+				maxResults, orderBy, orderDirect).getUsers();
+	}
+
+	@Override
+	public UserList searchForUserExtended(
+			Map<String, List<String>> attributes, RealmModel realm,
+			int firstResult, SearchCursor after, int maxResults,
+			String orderBy, OrderDirect orderDirect) {
+
+		BitmapIndex index = bitmaps.get(realm.getId());
+		if (index == null) {
+			return super.searchForUserExtended(attributes, realm, firstResult,
+					after, maxResults, orderBy, orderDirect);
+		}
+
+		BitSet matched = this._match(index, attributes);
+		int cardinality = matched.cardinality();
+		if (cardinality == 0) {
+			return new UserList(UserList.TOTAL_UNKNOWN,
+					new ArrayList<UserModel>());
+		}
+		if (cardinality > JpaUserProviderExtended.IN_PARAMS_CHUNK_SIZE) {
+			return super.searchForUserExtended(attributes, realm, firstResult,
+					after, maxResults, orderBy, orderDirect);
+		}
+		return this.searchForUserIn(attributes, index.userIds(matched), realm,
+				firstResult, after, maxResults, orderBy, orderDirect);
+	}
+
+	@Override
+	public UserRowList searchForUserFields(
+			Map<String, List<String>> attributes, RealmModel realm,
+			int firstResult, SearchCursor after, int maxResults,
+			String orderBy, OrderDirect orderDirect, FieldProjection fields) {
+
+		BitmapIndex index = bitmaps.get(realm.getId());
+		if (index == null) {
+			return super.searchForUserFields(attributes, realm, firstResult,
+					after, maxResults, orderBy, orderDirect, fields);
+		}
+
+		BitSet matched = this._match(index, attributes);
+		int cardinality = matched.cardinality();
+		if (cardinality == 0) {
+			return new UserRowList(new ArrayList<UserRow>(), null);
+		}
+		if (cardinality > JpaUserProviderExtended.IN_PARAMS_CHUNK_SIZE) {
+			return super.searchForUserFields(attributes, realm, firstResult,
+					after, maxResults, orderBy, orderDirect, fields);
+		}
+		return this.searchForUserFieldsIn(attributes, index.userIds(matched),
+				realm, firstResult, after, maxResults, orderBy, orderDirect,
+				fields);
+	}
+
+	@Override
+	public UserIdList searchIdsExtended(
+			Map<String, List<String>> attributes, RealmModel realm,
+			int firstResult, SearchCursor after, int maxResults,
+			String orderBy, OrderDirect orderDirect) {
+
+		BitmapIndex index = bitmaps.get(realm.getId());
+		if (index == null) {
+			return super.searchIdsExtended(attributes, realm, firstResult,
+					after, maxResults, orderBy, orderDirect);
+		}
+
+		BitSet matched = this._match(index, attributes);
+		int cardinality = matched.cardinality();
+		if (cardinality == 0) {
+			return new UserIdList(new ArrayList<String>(), null);
+		}
+		if (cardinality > JpaUserProviderExtended.IN_PARAMS_CHUNK_SIZE) {
+			return super.searchIdsExtended(attributes, realm, firstResult,
+					after, maxResults, orderBy, orderDirect);
+		}
+		return this.searchIdsIn(attributes, index.userIds(matched), realm,
+				firstResult, after, maxResults, orderBy, orderDirect);
+	}
+
+	@Override
+	public TotalCount countUsers(Map<String, List<String>> attributes,
+			RealmModel realm, CountStrategy strategy) {
+
+		BitmapIndex index = bitmaps.get(realm.getId());
+		if (index == null || strategy.getType() == CountStrategy.Type.NONE) {
+			return super.countUsers(attributes, realm, strategy);
+		}
+
+		BitSet matched = this._match(index, attributes);
+		int cardinality = matched.cardinality();
+		if (normalized || cardinality == 0) {
+			return new TotalCount(cardinality, CountStrategy.EXACT);
+		}
+		if (cardinality <= JpaUserProviderExtended.IN_PARAMS_CHUNK_SIZE) {
+			return new TotalCount(this.searchIdsIn(attributes,
+					index.userIds(matched), realm, 0, null, cardinality,
+					UserModel.USERNAME, OrderDirect.ASC).getIds().size(),
+					CountStrategy.EXACT);
+		}
+		if (strategy.getType() == CountStrategy.Type.ESTIMATE) {
+			return new TotalCount(cardinality, CountStrategy.ESTIMATE);
+		}
+		return super.countUsers(attributes, realm, strategy);
+	}
+
+	@Override
+	public List<String> index(RealmModel realm, String label, String value,
+			Map<String, List<String>> filter, int firstResult, int maxResults,
+			OrderDirect orderDirect) {
+
+		BitmapIndex index = bitmaps.get(realm.getId());
+		if (index == null) {
+			return super.index(realm, label, value, filter, firstResult,
+					maxResults, orderDirect);
+		}
+		return index.values(this._labelTerm(label, value),
+				this.parseSearchAttributes(filter).canonicalTerms(),
+				firstResult, maxResults, orderDirect);
+	}
+
+	@Override
+	public TotalCount countIndex(RealmModel realm, String label, String value,
+			Map<String, List<String>> filter, CountStrategy strategy) {
+
+		BitmapIndex index = bitmaps.get(realm.getId());
+		if (index == null || strategy.getType() == CountStrategy.Type.NONE) {
+			return super.countIndex(realm, label, value, filter, strategy);
+		}
+		return new TotalCount(index.countValues(this._labelTerm(label, value),
+				this.parseSearchAttributes(filter).canonicalTerms()),
+				CountStrategy.EXACT);
+	}
+
+	@Override
+	public Map<String, List<FacetValue>> facets(
+			Map<String, List<String>> attributes, RealmModel realm,
+			List<String> labels, int topK) {
+
+		BitmapIndex index = bitmaps.get(realm.getId());
+		if (index == null) {
+			return super.facets(attributes, realm, labels, topK);
+		}
+
+		BitSet matched = this._match(index, attributes);
+		Map<String, List<FacetValue>> result = new LinkedHashMap<>();
+		for (String label : labels) {
+			result.put(label, index.facet(this._labelTerm(label, "%"), matched,
+					topK));
+		}
+		return result;
+	}
+
+	private BitSet _match(BitmapIndex index,
+			Map<String, List<String>> attributes) {
+		return index.match(this.parseSearchAttributes(attributes)
+				.canonicalTerms());
+	}
+
+	private SearchTerm _labelTerm(String label, String value) {
+		return new SearchTerm(label, Collections.singletonList(value),
+				this.isDefaultField(label));
+	}
+}
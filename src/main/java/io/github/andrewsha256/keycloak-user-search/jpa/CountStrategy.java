@@ -0,0 +1,124 @@
+package io.github.andrewsha256.keycloak_user_search.jpa;
+
+/**
+ * How total amount of search (or index) results is counted
+ * 
+ * String form (eg `_count` argument) is one of `exact`, `capped:N`,
+ * `estimate` or `none`.
+ */
+public class CountStrategy {
+
+	public enum Type {
+		/**
+		 * `count(*)` over all matching rows
+		 */
+		EXACT,
+		/**
+		 * Counts not more than `N + 1` rows: result `N + 1` means "more than N"
+		 */
+		CAPPED,
+		/**
+		 * Database planner row estimate (PostgreSQL only, other databases
+		 * fall back to `capped` with `DEFAULT_CAP`)
+		 */
+		ESTIMATE,
+		/**
+		 * No counting at all
+		 */
+		NONE
+	}
+
+	public static final int DEFAULT_CAP = 10000;
+
+	/**
+	 * Max `N` of `capped:N`: bigger caps count almost as long as `exact`
+	 */
+	public static final int MAX_CAP = 1000000;
+
+	public static final CountStrategy EXACT = new CountStrategy(Type.EXACT, 0);
+
+	public static final CountStrategy ESTIMATE = new CountStrategy(
+			Type.ESTIMATE, 0);
+
+	public static final CountStrategy NONE = new CountStrategy(Type.NONE, 0);
+
+	private final Type type;
+
+	private final int cap;
+
+	private CountStrategy(Type type, int cap) {
+		this.type = type;
+		this.cap = cap;
+	}
+
+	public static CountStrategy capped(int cap) {
+		return new CountStrategy(Type.CAPPED, cap);
+	}
+
+	/**
+	 * Parses `exact`, `capped:N`, `estimate` or `none`
+	 * 
+	 * @param value
+	 * @return
+	 * @throws IllegalArgumentException if value has wrong format or cap is
+	 *                                  bigger than `MAX_CAP`
+	 */
+	public static CountStrategy parse(String value) {
+		String normalized = value.trim().toLowerCase();
+		if (normalized.startsWith("capped")) {
+			int cap = DEFAULT_CAP;
+			if (normalized.startsWith("capped:")) {
+				try {
+					cap = Integer.parseInt(normalized.substring(7));
+				}
+				catch (NumberFormatException e) {
+					throw new IllegalArgumentException(
+							"Wrong count cap: " + value);
+				}
+			}
+			else if (!"capped".equals(normalized)) {
+				throw new IllegalArgumentException(
+						"Unknown count strategy: " + value);
+			}
+			if (cap < 0 || cap > MAX_CAP) {
+				throw new IllegalArgumentException("Wrong count cap: " + value);
+			}
+			return capped(cap);
+		}
+		return new CountStrategy(Type.valueOf(normalized.toUpperCase()), 0);
+	}
+
+	public Type getType() {
+		return type;
+	}
+
+	/**
+	 * Max amount of counted rows for `CAPPED` type
+	 * @return
+	 */
+	public int getCap() {
+		return cap;
+	}
+
+	@Override
+	public String toString() {
+		if (type == Type.CAPPED) {
+			return "capped:" + cap;
+		}
+		return type.name().toLowerCase();
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (!(obj instanceof CountStrategy)) {
+			return false;
+		}
+		CountStrategy other = (CountStrategy) obj;
+		return type == other.type && cap == other.cap;
+	}
+
+	@Override
+	public int hashCode() {
+		return type.hashCode() * 31 + cap;
+	}
+}
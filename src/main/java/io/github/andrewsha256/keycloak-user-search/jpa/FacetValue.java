@@ -0,0 +1,52 @@
+package io.github.andrewsha256.keycloak_user_search.jpa;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Single value of facet (group name, default field or attribute value) with
+ * amount of matching users that have it
+ */
+public class FacetValue {
+
+	private final String value;
+
+	private final long count;
+
+	public FacetValue(String value, long count) {
+		this.value = value;
+		this.count = count;
+	}
+
+	public String getValue() {
+		return value;
+	}
+
+	/**
+	 * Amount of users matching search query that have `value`
+	 * @return
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	/**
+	 * `topK` values with the biggest counts, ties are ordered by value
+	 *
+	 * @param counts value => amount of users
+	 * @param topK
+	 * @return
+	 */
+	static List<FacetValue> top(Map<String, Long> counts, int topK) {
+		List<FacetValue> result = new ArrayList<>(counts.size());
+		for (Map.Entry<String, Long> entry : counts.entrySet()) {
+			result.add(new FacetValue(entry.getKey(), entry.getValue()));
+		}
+		result.sort(Comparator.comparingLong(FacetValue::getCount).reversed()
+				.thenComparing(FacetValue::getValue));
+		return result.size() > topK ? new ArrayList<>(result.subList(0, topK))
+				: result;
+	}
+}
@@ -0,0 +1,167 @@
+package io.github.andrewsha256.keycloak_user_search.jpa;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.keycloak.models.UserModel;
+
+/**
+ * Fields of `_fields` search argument: user columns, attributes and groups
+ *
+ * `_fields=id,username,email,attr:city,groups` selects only those columns
+ * by projection query, attribute values and group names are loaded by one
+ * query per `IN_PARAMS_CHUNK_SIZE` users each (see
+ * `UserProviderExtended::searchForUserFields`).
+ */
+public class FieldProjection {
+
+	/**
+	 * Label of user groups
+	 */
+	public static final String GROUPS = "groups";
+
+	/**
+	 * Prefix of attribute labels: `attr:<name>`
+	 */
+	public static final String ATTRIBUTE_PREFIX = "attr:";
+
+	/**
+	 * `UserEntity` columns that can be selected
+	 */
+	public static final List<String> COLUMNS = Collections.unmodifiableList(
+			Arrays.asList("id", UserModel.USERNAME, UserModel.EMAIL,
+					UserModel.FIRST_NAME, UserModel.LAST_NAME, "enabled",
+					"emailVerified", "createdTimestamp"));
+
+	/**
+	 * No fields: search selects only sort key and user id
+	 */
+	static final FieldProjection IDS = new FieldProjection(
+			Collections.<String>emptyList(), Collections.<String>emptyList(),
+			false);
+
+	private final List<String> columns;
+
+	private final List<String> attributes;
+
+	private final boolean groups;
+
+	private FieldProjection(List<String> columns, List<String> attributes,
+			boolean groups) {
+		this.columns = columns;
+		this.attributes = attributes;
+		this.groups = groups;
+	}
+
+	/**
+	 * Parses `_fields` argument: comma-separated column names, `attr:<name>`
+	 * and `groups`
+	 *
+	 * @param fields
+	 * @return
+	 * @throws IllegalArgumentException if there are no fields or field is
+	 *                                  unknown
+	 */
+	public static FieldProjection parse(String fields) {
+		List<String> columns = new ArrayList<>();
+		List<String> attributes = new ArrayList<>();
+		boolean groups = false;
+
+		for (String field : fields.split(",")) {
+			field = field.trim();
+			if (field.isEmpty()) {
+				continue;
+			}
+			if (GROUPS.equals(field)) {
+				groups = true;
+			}
+			else if (field.startsWith(ATTRIBUTE_PREFIX)
+					&& field.length() > ATTRIBUTE_PREFIX.length()) {
+				String name = field.substring(ATTRIBUTE_PREFIX.length());
+				if (!attributes.contains(name)) {
+					attributes.add(name);
+				}
+			}
+			else {
+				String column = _column(field);
+				if (column == null) {
+					throw new IllegalArgumentException(
+							"Unknown field `" + field + "`");
+				}
+				if (!columns.contains(column)) {
+					columns.add(column);
+				}
+			}
+		}
+
+		if (columns.isEmpty() && attributes.isEmpty() && !groups) {
+			throw new IllegalArgumentException("No fields");
+		}
+
+		return new FieldProjection(columns, attributes, groups);
+	}
+
+	/**
+	 * `UserEntity` columns in order of argument
+	 *
+	 * @return
+	 */
+	public List<String> getColumns() {
+		return columns;
+	}
+
+	/**
+	 * Attribute names in order of argument
+	 *
+	 * @return
+	 */
+	public List<String> getAttributes() {
+		return attributes;
+	}
+
+	public boolean hasGroups() {
+		return groups;
+	}
+
+	/**
+	 * Select list of columns of user `alias` with trailing comma (empty if
+	 * there are no columns)
+	 *
+	 * @param alias
+	 * @return
+	 */
+	String select(String alias) {
+		StringBuilder select = new StringBuilder();
+		for (String column : columns) {
+			select.append(alias).append('.').append(column).append(", ");
+		}
+		return select.toString();
+	}
+
+	/**
+	 * Part of query shape: selected columns (attributes and groups don't
+	 * change main query)
+	 *
+	 * @return
+	 */
+	String shape() {
+		return "fields:" + String.join(",", columns);
+	}
+
+	/**
+	 * Column name in its `UserEntity` case or `null` if it's unknown
+	 *
+	 * @param field
+	 * @return
+	 */
+	private static String _column(String field) {
+		for (String column : COLUMNS) {
+			if (column.equalsIgnoreCase(field)) {
+				return column;
+			}
+		}
+		return null;
+	}
+}
@@ -0,0 +1,97 @@
+package io.github.andrewsha256.keycloak_user_search.jpa;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Order and form of search term filters chosen by `FilterPlanner`
+ *
+ * Terms are ordered from the most selective one, so `QueryArguments` must
+ * be created with `getTerms()` (parameter bindings refer to term indexes).
+ */
+class FilterPlan {
+
+	/**
+	 * How term filter is attached to outer query
+	 */
+	enum Form {
+
+		/**
+		 * `and <outerId> in (select ...)`: subquery result is built once,
+		 * best for selective terms
+		 */
+		IN,
+
+		/**
+		 * `and exists (select ... and <userId> = <outerId>)`: subquery is
+		 * probed for rows left by other filters, best for broad terms
+		 */
+		EXISTS
+	}
+
+	private final List<SearchTerm> terms;
+
+	private final List<Form> forms;
+
+	private final List<Double> estimates;
+
+	FilterPlan(List<SearchTerm> terms, List<Form> forms,
+			List<Double> estimates) {
+		this.terms = terms;
+		this.forms = forms;
+		this.estimates = estimates;
+	}
+
+	/**
+	 * Plan without statistics: terms in canonical order, every one is `IN`
+	 *
+	 * @param terms
+	 * @return
+	 */
+	static FilterPlan canonical(List<SearchTerm> terms) {
+		List<Form> forms = new ArrayList<>(terms.size());
+		for (int i = 0; i < terms.size(); i++) {
+			forms.add(Form.IN);
+		}
+		return new FilterPlan(terms, forms, Collections.<Double>emptyList());
+	}
+
+	List<SearchTerm> getTerms() {
+		return terms;
+	}
+
+	Form getForm(int termIndex) {
+		return forms.get(termIndex);
+	}
+
+	/**
+	 * Query-shape part of plan: term shapes with their forms in plan order
+	 *
+	 * @return
+	 */
+	String shape() {
+		StringBuilder shape = new StringBuilder();
+		for (int i = 0; i < terms.size(); i++) {
+			shape.append(terms.get(i).shape()).append('/')
+				.append(forms.get(i)).append(',');
+		}
+		return shape.toString();
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder result = new StringBuilder();
+		for (int i = 0; i < terms.size(); i++) {
+			if (i > 0) {
+				result.append(", ");
+			}
+			result.append(terms.get(i).getLabel()).append(' ')
+				.append(forms.get(i));
+			if (i < estimates.size()) {
+				result.append(" ~").append(Math.round(estimates.get(i)));
+			}
+		}
+		return result.toString();
+	}
+}
@@ -0,0 +1,454 @@
+package io.github.andrewsha256.keycloak_user_search.jpa;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import javax.persistence.EntityManager;
+
+import org.jboss.logging.Logger;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+/**
+ * Planner stage between search attributes parsing and query building
+ *
+ * Every search term becomes a subquery, and database usually evaluates them
+ * in the order they are written, so a broad term (`status=active`) may be
+ * materialized before a tiny one (`group=auditors`). Planner estimates
+ * amount of rows matched by every term with cheap per-realm statistics and
+ * orders terms from the most selective one. The most selective term stays
+ * `in (subquery)`, terms that match many times more rows become correlated
+ * `exists (subquery)`, which is probed only for rows left by other filters.
+ *
+ * Statistics (users amount, group sizes, attribute rows and distinct values
+ * amounts, most frequent attribute values) are gathered by few aggregate
+ * queries and are kept for `statisticsTtl`. After `start` they are gathered
+ * on background thread, one realm at a time: searches don't wait for them,
+ * they use expired statistics (or canonical order, until the first ones are
+ * gathered) meanwhile. Without `start` (eg in benchmarks) statistics are
+ * gathered by the first search that needs them, concurrent searches don't
+ * wait for it either.
+ *
+ * One instance per deployment, shared by all providers.
+ */
+public class FilterPlanner {
+
+	private static final Logger logger = Logger.getLogger(FilterPlanner.class);
+
+	public static final long DEFAULT_STATISTICS_TTL = 600000L;
+
+	/**
+	 * Share of rows matched by `prefix%` value
+	 */
+	static final double PREFIX_SELECTIVITY = 0.1;
+
+	/**
+	 * Share of rows matched by other patterns (`%infix%`, `a_c`)
+	 */
+	static final double PATTERN_SELECTIVITY = 0.3;
+
+	/**
+	 * Term becomes `exists` when it's expected to match at least
+	 * `EXISTS_RATIO` times more rows than the most selective term...
+	 */
+	static final double EXISTS_RATIO = 10;
+
+	/**
+	 * ...and at least `EXISTS_MIN_ROWS` rows: small subqueries are cheap
+	 * anyway
+	 */
+	static final double EXISTS_MIN_ROWS = JpaUserProviderExtended.IN_PARAMS_CHUNK_SIZE;
+
+	/**
+	 * Attribute values of at least 1 of `FREQUENT_VALUE_SHARE` users are
+	 * counted one by one
+	 */
+	static final int FREQUENT_VALUE_SHARE = 100;
+
+	static final int FREQUENT_VALUES_LIMIT = 1000;
+
+	private final long statisticsTtl;
+
+	private final Map<String, RealmStatistics> realms = new ConcurrentHashMap<>();
+
+	/**
+	 * Realms whose statistics are being gathered
+	 */
+	private final Set<String> loading = ConcurrentHashMap.newKeySet();
+
+	private final ThreadPoolExecutor executor;
+
+	private volatile KeycloakSessionFactory sessionFactory;
+
+	/**
+	 * @param statisticsTtl realm statistics lifetime in ms, `0` disables
+	 *                      planning (terms are used in canonical order)
+	 */
+	public FilterPlanner(long statisticsTtl) {
+		this.statisticsTtl = statisticsTtl;
+		// thread is started by first task
+		this.executor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue<>(), runnable -> {
+					Thread thread = new Thread(runnable, "user-search-planner");
+					thread.setDaemon(true);
+					return thread;
+				});
+	}
+
+	/**
+	 * Moves gathering of statistics to background thread
+	 *
+	 * @param sessionFactory
+	 */
+	public void start(KeycloakSessionFactory sessionFactory) {
+		this.sessionFactory = sessionFactory;
+	}
+
+	public boolean isEnabled() {
+		return statisticsTtl > 0;
+	}
+
+	/**
+	 * Orders terms by estimated selectivity and chooses their forms
+	 *
+	 * @param em
+	 * @param realmId
+	 * @param terms search terms in canonical order
+	 * @return
+	 */
+	FilterPlan plan(EntityManager em, String realmId, List<SearchTerm> terms) {
+
+		if (!this.isEnabled() || terms.size() < 2) {
+			return FilterPlan.canonical(terms);
+		}
+
+		RealmStatistics statistics = this._statistics(em, realmId);
+		if (statistics == null) {
+			return FilterPlan.canonical(terms);
+		}
+
+		List<Integer> order = new ArrayList<>(terms.size());
+		double[] estimates = new double[terms.size()];
+		for (int i = 0; i < terms.size(); i++) {
+			order.add(i);
+			estimates[i] = statistics.estimate(terms.get(i));
+		}
+		// stable sort: equal terms keep canonical order, so shapes are stable
+		order.sort(Comparator.comparingDouble(i -> estimates[i]));
+
+		double driving = estimates[order.get(0)];
+		List<SearchTerm> planTerms = new ArrayList<>(terms.size());
+		List<FilterPlan.Form> forms = new ArrayList<>(terms.size());
+		List<Double> planEstimates = new ArrayList<>(terms.size());
+		for (int i : order) {
+			planTerms.add(terms.get(i));
+			planEstimates.add(estimates[i]);
+			forms.add(forms.isEmpty() || estimates[i] < EXISTS_MIN_ROWS
+					|| estimates[i] < driving * EXISTS_RATIO
+					? FilterPlan.Form.IN : FilterPlan.Form.EXISTS);
+		}
+
+		FilterPlan plan = new FilterPlan(planTerms, forms, planEstimates);
+		logger.debugf("Filter plan of realm %s: %s", realmId, plan);
+		return plan;
+	}
+
+	/**
+	 * Drops statistics of removed realm
+	 *
+	 * @param realmId
+	 */
+	public void removeRealm(String realmId) {
+		realms.remove(realmId);
+	}
+
+	public long getStatisticsTtl() {
+		return statisticsTtl;
+	}
+
+	/**
+	 * Amount of realms with gathered statistics
+	 *
+	 * @return
+	 */
+	public int getSize() {
+		return realms.size();
+	}
+
+	public void close() {
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Statistics of realm, expired ones while new are gathered, `null` if
+	 * there are none yet
+	 *
+	 * @param em
+	 * @param realmId
+	 * @return
+	 */
+	private RealmStatistics _statistics(EntityManager em, String realmId) {
+		RealmStatistics statistics = realms.get(realmId);
+		if (statistics != null
+				&& statistics.expiresAt >= System.currentTimeMillis()
+				|| !loading.add(realmId)) {
+			return statistics;
+		}
+
+		KeycloakSessionFactory factory = sessionFactory;
+		if (factory == null) {
+			try {
+				return this._load(em, realmId);
+			}
+			finally {
+				loading.remove(realmId);
+			}
+		}
+
+		try {
+			executor.execute(() -> {
+				try {
+					KeycloakModelUtils.runJobInTransaction(factory,
+							(KeycloakSession session) -> this._load(
+									session.getProvider(JpaConnectionProvider.class)
+											.getEntityManager(),
+									realmId));
+				}
+				catch (RuntimeException e) {
+					logger.errorf(e, "Filter statistics of realm %s were not"
+							+ " gathered", realmId);
+				}
+				finally {
+					loading.remove(realmId);
+				}
+			});
+		}
+		catch (RejectedExecutionException e) {
+			// planner is closed
+			loading.remove(realmId);
+		}
+		return statistics;
+	}
+
+	private RealmStatistics _load(EntityManager em, String realmId) {
+		long now = System.currentTimeMillis();
+		RealmStatistics statistics = RealmStatistics.load(em, realmId,
+				now + statisticsTtl);
+		realms.put(realmId, statistics);
+		logger.debugf("Filter statistics of realm %s are gathered in %d ms",
+				realmId, System.currentTimeMillis() - now);
+		return statistics;
+	}
+
+	/**
+	 * Estimated amount of rows matched by `like` values
+	 *
+	 * @param values
+	 * @param rows rows that may match (eg attribute rows)
+	 * @param distinct amount of distinct values among `rows`
+	 * @param frequent amounts of frequent values (normalized)
+	 * @return
+	 */
+	private static double _estimate(List<String> values, double rows,
+			double distinct, AttributeStatistics frequent) {
+
+		double rareRows = Math.max(0, rows - frequent.frequentRows);
+		double rareDistinct = Math.max(1, distinct - frequent.values.size());
+
+		double result = 0;
+		for (String value : values) {
+			String normalized = SearchValueNormalizer.normalize(value);
+			int wildcard = BitmapIndex.firstWildcard(normalized);
+			if (wildcard < 0) {
+				Long amount = frequent.values.get(normalized);
+				result += amount != null ? amount : rareRows / rareDistinct;
+				continue;
+			}
+			if ("%".equals(normalized)) {
+				return rows;
+			}
+			Pattern pattern = BitmapIndex.likePattern(normalized);
+			for (Map.Entry<String, Long> entry : frequent.values.entrySet()) {
+				if (pattern.matcher(entry.getKey()).matches()) {
+					result += entry.getValue();
+				}
+			}
+			boolean prefix = wildcard > 0 && wildcard == normalized.length() - 1
+					&& normalized.charAt(wildcard) == '%';
+			result += rareRows
+					* (prefix ? PREFIX_SELECTIVITY : PATTERN_SELECTIVITY);
+		}
+		return Math.min(result, rows);
+	}
+
+	/**
+	 * Rows and values amounts of single attribute
+	 */
+	private static final class AttributeStatistics {
+
+		static final AttributeStatistics NONE = new AttributeStatistics(0, 0);
+
+		final long rows;
+
+		final long distinct;
+
+		/**
+		 * Frequent normalized values with their rows amounts
+		 */
+		final Map<String, Long> values = new HashMap<>();
+
+		long frequentRows;
+
+		AttributeStatistics(long rows, long distinct) {
+			this.rows = rows;
+			this.distinct = distinct;
+		}
+	}
+
+	private static final class RealmStatistics {
+
+		final long expiresAt;
+
+		long users;
+
+		long firstNames;
+
+		long lastNames;
+
+		/**
+		 * Normalized group name => amount of members
+		 */
+		final Map<String, Long> groups = new HashMap<>();
+
+		final Map<String, AttributeStatistics> attributes = new HashMap<>();
+
+		RealmStatistics(long expiresAt) {
+			this.expiresAt = expiresAt;
+		}
+
+		static RealmStatistics load(EntityManager em, String realmId,
+				long expiresAt) {
+
+			RealmStatistics result = new RealmStatistics(expiresAt);
+
+			Object[] users = em.createQuery("select count(u),"
+					+ " count(distinct u.firstName), count(distinct u.lastName)"
+					+ " from UserEntity u where u.realmId = :realmId",
+					Object[].class)
+					.setParameter("realmId", realmId)
+					.getSingleResult();
+			result.users = ((Number) users[0]).longValue();
+			result.firstNames = ((Number) users[1]).longValue();
+			result.lastNames = ((Number) users[2]).longValue();
+
+			List<Object[]> groups = em.createQuery("select g.name,"
+					+ " count(gm.groupId) from UserGroupMembershipEntity gm"
+					+ " join GroupEntity g on gm.groupId = g.id"
+					+ " where g.realm.id = :realmId group by g.name",
+					Object[].class)
+					.setParameter("realmId", realmId)
+					.getResultList();
+			for (Object[] row : groups) {
+				result.groups.merge(SearchValueNormalizer.normalize(
+						(String) row[0]), ((Number) row[1]).longValue(),
+						Long::sum);
+			}
+
+			List<Object[]> attributes = em.createQuery("select attr.name,"
+					+ " count(attr.id), count(distinct attr.value)"
+					+ " from UserAttributeEntity attr"
+					+ " where attr.user.realmId = :realmId group by attr.name",
+					Object[].class)
+					.setParameter("realmId", realmId)
+					.getResultList();
+			for (Object[] row : attributes) {
+				result.attributes.put((String) row[0], new AttributeStatistics(
+						((Number) row[1]).longValue(),
+						((Number) row[2]).longValue()));
+			}
+
+			List<Object[]> frequent = em.createQuery("select attr.name,"
+					+ " attr.value, count(attr.id)"
+					+ " from UserAttributeEntity attr"
+					+ " where attr.user.realmId = :realmId and attr.value is not null"
+					+ " group by attr.name, attr.value"
+					+ " having count(attr.id) >= :minCount"
+					+ " order by count(attr.id) desc", Object[].class)
+					.setParameter("realmId", realmId)
+					.setParameter("minCount", Math.max(2L,
+							result.users / FREQUENT_VALUE_SHARE))
+					.setMaxResults(FREQUENT_VALUES_LIMIT)
+					.getResultList();
+			for (Object[] row : frequent) {
+				AttributeStatistics attribute = result.attributes.get(row[0]);
+				if (attribute == null) {
+					continue;
+				}
+				long amount = ((Number) row[2]).longValue();
+				attribute.values.merge(SearchValueNormalizer.normalize(
+						(String) row[1]), amount, Long::sum);
+				attribute.frequentRows += amount;
+			}
+
+			return result;
+		}
+
+		/**
+		 * Estimated amount of users matched by term
+		 *
+		 * @param term
+		 * @return
+		 */
+		double estimate(SearchTerm term) {
+			String label = term.getLabel();
+			List<String> values = term.getValues();
+			if (JpaUserProviderExtended.GROUP_FIELD.equals(label)
+					&& !term.isLabelDefault()) {
+				double result = 0;
+				for (Map.Entry<String, Long> group : groups.entrySet()) {
+					for (String value : values) {
+						if (BitmapIndex.likePattern(value).matcher(group.getKey())
+								.matches()) {
+							result += group.getValue();
+							break;
+						}
+					}
+				}
+				return Math.min(result, users);
+			}
+			if (!term.isLabelDefault()) {
+				AttributeStatistics attribute = attributes.getOrDefault(label,
+						AttributeStatistics.NONE);
+				return _estimate(values, attribute.rows, attribute.distinct,
+						attribute);
+			}
+			long distinct;
+			String field = JpaUserProviderExtended.canonicalFieldName(label);
+			if (field.equals(UserModel.FIRST_NAME)) {
+				distinct = firstNames;
+			}
+			else if (field.equals(UserModel.LAST_NAME)) {
+				distinct = lastNames;
+			}
+			else {
+				// id, username and email are unique
+				distinct = users;
+			}
+			return _estimate(values, users, distinct, AttributeStatistics.NONE);
+		}
+	}
+}
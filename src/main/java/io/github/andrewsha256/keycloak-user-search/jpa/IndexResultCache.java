@@ -0,0 +1,192 @@
+package io.github.andrewsha256.keycloak_user_search.jpa;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-realm cache of `index` and `countIndex` results
+ * 
+ * Autocomplete calls `index` with the same arguments on every keystroke, so
+ * results are kept for `ttlMillis` in per-realm LRU map of `maxSize`
+ * entries. Realm entries are dropped by `invalidate` when users, their
+ * attributes or group memberships change (see
+ * `UserSearchEventListenerProvider`, it invalidates after transaction
+ * commit).
+ * 
+ * Every invalidation increments realm's generation. Provider reads it
+ * before query and `put` drops result if generation has changed since
+ * then: query could have read data that was changed by concurrent
+ * transaction committed before invalidation.
+ * 
+ * Invalidation is local to Keycloak node: in cluster other nodes see changes
+ * after `ttlMillis`.
+ * 
+ * One instance per deployment, shared by all providers.
+ */
+public class IndexResultCache {
+
+	private final int maxSize;
+
+	private final long ttlMillis;
+
+	private final Map<String, Map<String, Entry>> realms = new ConcurrentHashMap<>();
+
+	private final Map<String, AtomicLong> generations = new ConcurrentHashMap<>();
+
+	/**
+	 * Generation of `invalidateAll` calls, part of every realm's generation
+	 */
+	private final AtomicLong allGeneration = new AtomicLong();
+
+	private final AtomicLong hits = new AtomicLong();
+
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * @param maxSize max amount of cached results per realm, `0` disables
+	 *                cache
+	 * @param ttlMillis
+	 */
+	public IndexResultCache(int maxSize, long ttlMillis) {
+		this.maxSize = maxSize;
+		this.ttlMillis = ttlMillis;
+	}
+
+	public boolean isEnabled() {
+		return maxSize > 0 && ttlMillis > 0;
+	}
+
+	/**
+	 * Cached result or `null`
+	 * 
+	 * @param realmId
+	 * @param key
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	<T> T get(String realmId, String key) {
+		Map<String, Entry> realmEntries = realms.get(realmId);
+		Entry entry = null;
+		if (realmEntries != null) {
+			synchronized (realmEntries) {
+				entry = realmEntries.get(key);
+				if (entry != null && entry.expiresAt < System.currentTimeMillis()) {
+					realmEntries.remove(key);
+					entry = null;
+				}
+			}
+		}
+		if (entry == null) {
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		return (T) entry.value;
+	}
+
+	/**
+	 * Current generation of realm's results: it is read before query and
+	 * passed to `put`
+	 * 
+	 * @param realmId
+	 * @return
+	 */
+	long generation(String realmId) {
+		AtomicLong generation = generations.get(realmId);
+		return allGeneration.get() + (generation == null ? 0 : generation.get());
+	}
+
+	/**
+	 * Caches result (it must not be changed after that) if realm is not
+	 * invalidated since `generation`
+	 * 
+	 * @param realmId
+	 * @param key
+	 * @param value
+	 * @param generation realm generation read before query
+	 */
+	void put(String realmId, String key, Object value, long generation) {
+		if (!this.isEnabled()) {
+			return;
+		}
+		Map<String, Entry> realmEntries = realms.computeIfAbsent(realmId,
+				id -> new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+
+					private static final long serialVersionUID = 1L;
+
+					@Override
+					protected boolean removeEldestEntry(
+							Map.Entry<String, Entry> eldest) {
+						return size() > maxSize;
+					}
+				});
+		synchronized (realmEntries) {
+			// invalidation increments generation before it drops entries
+			if (generation != this.generation(realmId)) {
+				return;
+			}
+			realmEntries.put(key, new Entry(value,
+					System.currentTimeMillis() + ttlMillis));
+		}
+	}
+
+	/**
+	 * Drops all cached results of realm
+	 * 
+	 * @param realmId
+	 */
+	public void invalidate(String realmId) {
+		generations.computeIfAbsent(realmId, id -> new AtomicLong())
+				.incrementAndGet();
+		realms.remove(realmId);
+	}
+
+	public void invalidateAll() {
+		allGeneration.incrementAndGet();
+		realms.clear();
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	public long getTtlMillis() {
+		return ttlMillis;
+	}
+
+	/**
+	 * Current amount of cached results in all realms
+	 * @return
+	 */
+	public int getSize() {
+		int size = 0;
+		for (Map<String, Entry> realmEntries : realms.values()) {
+			synchronized (realmEntries) {
+				size += realmEntries.size();
+			}
+		}
+		return size;
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	private static class Entry {
+
+		final Object value;
+
+		final long expiresAt;
+
+		Entry(Object value, long expiresAt) {
+			this.value = value;
+			this.expiresAt = expiresAt;
+		}
+	}
+}
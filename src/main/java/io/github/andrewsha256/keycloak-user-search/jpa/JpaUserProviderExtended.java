@@ -2,12 +2,24 @@ package io.github.andrewsha256.keycloak_user_search.jpa;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
 
 import javax.persistence.EntityManager;
 import javax.persistence.TypedQuery;
 
+import org.hibernate.Query;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.RealmModel;
 import org.keycloak.models.UserModel;
@@ -15,9 +27,15 @@ import org.keycloak.models.jpa.JpaUserProvider;
 import org.keycloak.models.jpa.UserAdapter;
 import org.keycloak.models.jpa.entities.UserEntity;
 
+import io.github.andrewsha256.keycloak_user_search.jpa.entities.UserSearchValueEntity;
+
 /**
  * Extended Keycloak's JpaUserProvider with searching by user attributes and
  * groups
+ * 
+ * All queries are built as `QueryPlan`s (JPQL with parameter-binding plan)
+ * and cached in `QueryPlanCache` by query shape, so JPQL is concatenated
+ * only once per shape.
  */
 public class JpaUserProviderExtended extends JpaUserProvider
 		implements UserProviderExtended {
@@ -35,11 +53,45 @@ public class JpaUserProviderExtended extends JpaUserProvider
 
 	public static final OrderDirect DEFAULT_ORDER_DIRECT = OrderDirect.ASC;
 
+	/**
+	 * Max amount of values in one `in (:ids)` parameter: some databases
+	 * (eg Oracle) don't allow more than 1000
+	 */
+	public static final int IN_PARAMS_CHUNK_SIZE = 1000;
+
+	/**
+	 * Max amount of matching users which ids are selected once and shared by
+	 * all facet queries; facets of bigger result sets are grouped with
+	 * search filters
+	 */
+	public static final int FACET_IDS_LIMIT = 10 * IN_PARAMS_CHUNK_SIZE;
+
 	private final KeycloakSession session;
 
-	public JpaUserProviderExtended(KeycloakSession session, EntityManager em) {
+	private final QueryPlanCache planCache;
+
+	private final IndexResultCache indexCache;
+
+	private final SearchSource searchSource;
+
+	private final FilterPlanner planner;
+
+	private final SlowQueryLog slowLog;
+
+	/**
+	 * @param session
+	 * @param em
+	 * @param settings caches, search source, planner and slow query log
+	 */
+	public JpaUserProviderExtended(KeycloakSession session, EntityManager em,
+			SearchSettings settings) {
 		super(session, em);
 		this.session = session;
+		this.planCache = settings.getPlanCache();
+		this.indexCache = settings.getIndexCache();
+		this.searchSource = settings.getSearchSource();
+		this.planner = settings.getPlanner();
+		this.slowLog = settings.getSlowQueryLog();
 	}
 
 	/**
@@ -58,8 +110,10 @@ public class JpaUserProviderExtended extends JpaUserProvider
 		// maxResults);
 		// }
 
-		return _search(attrs, realm, firstResult, maxResults,
-				UserModel.USERNAME, JpaUserProviderExtended.DEFAULT_ORDER_DIRECT);
+		return _search(attrs, realm, firstResult, null, maxResults,
+				UserModel.USERNAME, JpaUserProviderExtended.DEFAULT_ORDER_DIRECT,
+				null)
+				.getUsers();
 
 	}
 
@@ -86,44 +140,223 @@ public class JpaUserProviderExtended extends JpaUserProvider
 			int firstResult, int maxResults, String orderBy,
 			OrderDirect orderDirect) {
 
-		SearchTermMap attrs = _parseSearchAttributes(attributes);
+		SearchTermMap attrs = this.parseSearchAttributes(attributes);
 
-		return _search(attrs, realm, firstResult, maxResults, orderBy,
-				orderDirect);
+		return _search(attrs, realm, firstResult, null, maxResults, orderBy,
+				orderDirect, null).getUsers();
 	
 	}
 
 	@Override
-	public long countUsers(Map<String, List<String>> attributes,
-			RealmModel realm) {
+	public UserList searchForUserExtended(
+			Map<String, List<String>> attributes, RealmModel realm,
+			int firstResult, SearchCursor after, int maxResults,
+			String orderBy, OrderDirect orderDirect) {
+
+		SearchTermMap attrs = this.parseSearchAttributes(attributes);
+
+		return _search(attrs, realm, firstResult, after, maxResults, orderBy,
+				orderDirect, null);
+	}
+
+	/**
+	 * `searchForUserExtended` among given users only: `userIds` are
+	 * candidates found by caller (eg `BitmapUserProviderExtended`), search
+	 * terms are applied to them by database as usual.
+	 * 
+	 * `userIds` must fit into one `in (:ids)` parameter
+	 * (`IN_PARAMS_CHUNK_SIZE`).
+	 * 
+	 * @param attributes
+	 * @param userIds
+	 * @param realm
+	 * @param firstResult
+	 * @param after
+	 * @param maxResults
+	 * @param orderBy
+	 * @param orderDirect
+	 * @return
+	 */
+	protected UserList searchForUserIn(Map<String, List<String>> attributes,
+			Collection<String> userIds, RealmModel realm, int firstResult,
+			SearchCursor after, int maxResults, String orderBy,
+			OrderDirect orderDirect) {
+
+		return _search(this.parseSearchAttributes(attributes), realm,
+				firstResult, after, maxResults, orderBy, orderDirect, userIds);
+	}
+
+	@Override
+	public UserRowList searchForUserFields(
+			Map<String, List<String>> attributes, RealmModel realm,
+			int firstResult, SearchCursor after, int maxResults,
+			String orderBy, OrderDirect orderDirect, FieldProjection fields) {
+
+		SearchTermMap attrs = this.parseSearchAttributes(attributes);
+
+		return this._searchFields(attrs, realm, firstResult, after, maxResults,
+				orderBy, orderDirect, null, fields);
+	}
 
-		SearchTermMap filterTerms = this._parseSearchAttributes(attributes);
+	/**
+	 * `searchForUserFields` among given users only, see `searchForUserIn`
+	 * 
+	 * @param attributes
+	 * @param userIds
+	 * @param realm
+	 * @param firstResult
+	 * @param after
+	 * @param maxResults
+	 * @param orderBy
+	 * @param orderDirect
+	 * @param fields
+	 * @return
+	 */
+	protected UserRowList searchForUserFieldsIn(
+			Map<String, List<String>> attributes, Collection<String> userIds,
+			RealmModel realm, int firstResult, SearchCursor after,
+			int maxResults, String orderBy, OrderDirect orderDirect,
+			FieldProjection fields) {
+
+		return this._searchFields(this.parseSearchAttributes(attributes),
+				realm, firstResult, after, maxResults, orderBy, orderDirect,
+				userIds, fields);
+	}
 
-		List<String> filterStringList = this._filterQueries(filterTerms);
+	@Override
+	public UserIdList searchIdsExtended(
+			Map<String, List<String>> attributes, RealmModel realm,
+			int firstResult, SearchCursor after, int maxResults,
+			String orderBy, OrderDirect orderDirect) {
 
-		StringBuilder builder = new StringBuilder();
+		SearchTermMap attrs = this.parseSearchAttributes(attributes);
 
-		builder.append(" select count(u) from UserEntity u where u.realmId = :realmId ");
-		for(String filterEntry : filterStringList) {
-			builder.append(" and u.id in (")
-				.append(filterEntry)
-				.append(")");
+		return this._searchIds(attrs, realm, firstResult, after, maxResults,
+				orderBy, orderDirect, null);
+	}
+
+	/**
+	 * `searchIdsExtended` among given users only, see `searchForUserIn`
+	 * 
+	 * @param attributes
+	 * @param userIds
+	 * @param realm
+	 * @param firstResult
+	 * @param after
+	 * @param maxResults
+	 * @param orderBy
+	 * @param orderDirect
+	 * @return
+	 */
+	protected UserIdList searchIdsIn(Map<String, List<String>> attributes,
+			Collection<String> userIds, RealmModel realm, int firstResult,
+			SearchCursor after, int maxResults, String orderBy,
+			OrderDirect orderDirect) {
+
+		return this._searchIds(this.parseSearchAttributes(attributes), realm,
+				firstResult, after, maxResults, orderBy, orderDirect, userIds);
+	}
+
+	@Override
+	public long exportUsers(Map<String, List<String>> attributes,
+			RealmModel realm, String orderBy, OrderDirect orderDirect,
+			int fetchSize, Consumer<List<UserModel>> consumer) {
+
+		FilterPlan filters = this._planFilters(realm,
+				this.parseSearchAttributes(attributes));
+
+		QueryArguments args = new QueryArguments(realm.getId(),
+				filters.getTerms())
+				.setOrderBy(orderBy);
+
+		QueryPlan plan = this._searchPlan(this._searchShape(filters, orderBy,
+				orderDirect, false, false, null), filters, orderBy, orderDirect,
+				false, false, null);
+
+		TypedQuery<Object[]> query = em.createQuery(plan.getJpql(),
+				Object[].class);
+
+		plan.bind(query, args);
+
+		ScrollableResults results = query.unwrap(Query.class)
+				.setFetchSize(fetchSize)
+				.setReadOnly(true)
+				.scroll(ScrollMode.FORWARD_ONLY);
+
+		long exported = 0;
+		try {
+			List<UserEntity> portion = new ArrayList<>(fetchSize);
+			while (results.next()) {
+				portion.add((UserEntity) results.get(0));
+				if (portion.size() == fetchSize) {
+					exported += this._exportPortion(realm, portion, consumer);
+					portion.clear();
+				}
+			}
+			exported += this._exportPortion(realm, portion, consumer);
+		}
+		finally {
+			results.close();
 		}
+		return exported;
+	}
 
-		String q = builder.toString();
+	/**
+	 * Hydrates portion of exported users, passes it to consumer and clears
+	 * persistence context, so it doesn't grow with export
+	 * 
+	 * @param realm
+	 * @param entities
+	 * @param consumer
+	 * @return amount of users in portion
+	 */
+	private int _exportPortion(RealmModel realm, List<UserEntity> entities,
+			Consumer<List<UserModel>> consumer) {
 
-		TypedQuery<Long> query;
-		query = em.createQuery(q, Long.class);
+		if (entities.isEmpty()) {
+			return 0;
+		}
 
-		query.setParameter("realmId", realm.getId());
+		this._hydrate(entities);
 
-		this._injectSearchTermMapParamsToQuery(query, filterTerms);
+		List<UserModel> users = new ArrayList<>(entities.size());
+		for (UserEntity entity : entities) {
+			users.add(new UserAdapter(session, realm, em, entity));
+		}
 
-		long usersCount = query.getSingleResult();
+		consumer.accept(users);
 
-		em.flush();
+		em.clear();
 
-		return usersCount;
+		return users.size();
+	}
+
+	@Override
+	public long countUsers(Map<String, List<String>> attributes,
+			RealmModel realm) {
+
+		return this.countUsers(attributes, realm, CountStrategy.EXACT)
+				.getValue();
+	}
+
+	@Override
+	public TotalCount countUsers(Map<String, List<String>> attributes,
+			RealmModel realm, CountStrategy strategy) {
+
+		QueryTrace trace = slowLog.start("countUsers");
+
+		FilterPlan filters = this._planFilters(realm,
+				this.parseSearchAttributes(attributes));
+		List<SearchTerm> terms = filters.getTerms();
+
+		QueryArguments args = new QueryArguments(realm.getId(), terms);
+
+		String shape = this._shape("countUsers", filters);
+
+		trace.phase("plan");
+
+		return this._count(trace, shape, args, " select count(u) ",
+				" select u.id ", this._usersBody(filters), strategy);
 	}
 
 	/**
@@ -193,74 +426,87 @@ public class JpaUserProviderExtended extends JpaUserProvider
 			Map<String, List<String>> filter, int firstResult, int maxResults,
 			OrderDirect orderDirect) {
 
-		SearchTermMap filterTerms = this._parseSearchAttributes(filter);
-
-		List<String> filterStringList = this._filterQueries(filterTerms);
+		QueryTrace trace = slowLog.start("index");
 
-		StringBuilder builder = new StringBuilder();
+		FilterPlan filters = this._planFilters(realm,
+				this.parseSearchAttributes(filter));
+		List<SearchTerm> terms = filters.getTerms();
 
-		if(this.isDefaultField(label)) {
-			// Keycloak fields
-			builder.append("select u.")
-				.append(label)
-				.append(" from UserEntity u where u.realmId = :realmId ")
-				.append(" and lower(u." + label + ") like lower(:value)");
+		QueryArguments args = new QueryArguments(realm.getId(), terms)
+				.setLabel(label)
+				.setValue(value);
 
-			for(String filterEntry : filterStringList) {
-				builder.append(" and u.id in (")
-					.append(filterEntry)
-					.append(")");
-			}
+		String shape = this._shape("index", filters, this._labelShape(label),
+				orderDirect.name());
 
-			builder.append(" group by u.").append(label);
-			builder.append(" order by u.").append(label).append(" ")
-				.append(orderDirect);
-		}
-		else if(JpaUserProviderExtended.GROUP_FIELD.equals(label)) {
-			// group
-			builder.append("select g.name from GroupEntity g ")
-				.append(" join UserGroupMembershipEntity gm on g.id = gm.groupId ")
-				.append(" where g.realm.id = :realmId ")
-				.append(" and lower(g.name) like lower(:value) ");
+		trace.phase("plan");
 
-			for(String filterEntry : filterStringList) {
-				builder.append(" and gm.user.id in (")
-					.append(filterEntry)
-					.append(")");
+		String cacheKey = null;
+		long cacheGeneration = 0;
+		if (indexCache.isEnabled()) {
+			cacheKey = this._resultCacheKey(shape, terms, label, value,
+					firstResult, maxResults);
+			cacheGeneration = indexCache.generation(realm.getId());
+			List<String> cached = indexCache.get(realm.getId(), cacheKey);
+			if (cached != null) {
+				return cached;
 			}
-
-			builder.append(" group by g.name ");
-			builder.append(" order by g.name ").append(orderDirect);
 		}
-		else {
-			// user attributes
-			builder.append("select attr.value from UserAttributeEntity attr ")
-				.append(" where attr.user.realmId = :realmId ")
-				.append(" and attr.name = :label ")
-				.append(" and lower(attr.value) like lower(:value) ");
 
-			for(String filterEntry : filterStringList) {
-				builder.append(" and attr.user.id in (")
-					.append(filterEntry)
-					.append(")");
-			}
+		QueryPlan plan = planCache.getOrBuild(shape, () -> {
+			QueryPlanBuilder builder = new QueryPlanBuilder();
 
-			builder.append(" group by attr.value ");
-			builder.append(" order by attr.value ").append(orderDirect);
-		}
+			if(this.isDefaultField(label)) {
+				// Keycloak fields
+				builder.append("select u.")
+					.append(label)
+					.append(" from UserEntity u where u.realmId = ")
+					.param(ParamBinding.Source.REALM_ID)
+					.append(" and lower(u." + label + ") like lower(")
+					.param(ParamBinding.Source.VALUE).append(")");
+
+				this._filterQueries(builder, filters, "u.id");
 
-		String q = builder.toString();
+				builder.append(" group by u.").append(label);
+				builder.append(" order by u.").append(label).append(" ")
+					.append(orderDirect);
+			}
+			else if(JpaUserProviderExtended.GROUP_FIELD.equals(label)) {
+				// group
+				builder.append("select g.name from GroupEntity g ")
+					.append(" join UserGroupMembershipEntity gm on g.id = gm.groupId ")
+					.append(" where g.realm.id = ")
+					.param(ParamBinding.Source.REALM_ID)
+					.append(" and lower(g.name) like lower(")
+					.param(ParamBinding.Source.VALUE).append(") ");
+
+				this._filterQueries(builder, filters, "gm.user.id");
+
+				builder.append(" group by g.name ");
+				builder.append(" order by g.name ").append(orderDirect);
+			}
+			else {
+				// user attributes
+				builder.append("select attr.value from UserAttributeEntity attr ")
+					.append(" where attr.user.realmId = ")
+					.param(ParamBinding.Source.REALM_ID)
+					.append(" and attr.name = ")
+					.param(ParamBinding.Source.LABEL)
+					.append(" and lower(attr.value) like lower(")
+					.param(ParamBinding.Source.VALUE).append(") ");
+
+				this._filterQueries(builder, filters, "attr.user.id");
+
+				builder.append(" group by attr.value ");
+				builder.append(" order by attr.value ").append(orderDirect);
+			}
 
-		TypedQuery<String> query = em.createQuery(q, String.class);
+			return builder.build();
+		});
 
-		query.setParameter("realmId", realm.getId());
-		if(!JpaUserProviderExtended.GROUP_FIELD.equals(label)
-				&& !this.isDefaultField(label)) {
-			query.setParameter("label", label);
-		}
-		query.setParameter("value", value);
+		TypedQuery<String> query = em.createQuery(plan.getJpql(), String.class);
 
-		this._injectSearchTermMapParamsToQuery(query, filterTerms);
+		plan.bind(query, args);
 
 		if (firstResult != -1) {
 			query = query.setFirstResult(firstResult);
@@ -269,9 +515,20 @@ public class JpaUserProviderExtended extends JpaUserProvider
 			query = query.setMaxResults(maxResults);
 		}
 
+		trace.phase("build");
+
 		List<String> result = query.getResultList();
 
 		em.flush();
+
+		trace.phase("execute");
+		slowLog.finish(trace, em, realm.getId(), shape, plan.getJpql(), query,
+				result.size());
+
+		if (cacheKey != null) {
+			result = Collections.unmodifiableList(new ArrayList<>(result));
+			indexCache.put(realm.getId(), cacheKey, result, cacheGeneration);
+		}
 		
 		return result;
 	}
@@ -280,70 +537,322 @@ public class JpaUserProviderExtended extends JpaUserProvider
 	public long countIndex(RealmModel realm, String label, String value,
 			Map<String, List<String>> filter) {
 
-		// сюда сложим все отдельные строки фильтров, которые потом можно будет
-		// добавлять к запросу AND userId in (<...>)
-		List<String> filterStringList = new ArrayList<>();
-		
-		SearchTermMap filterTerms = this._parseSearchAttributes(filter);
+		return this.countIndex(realm, label, value, filter,
+				CountStrategy.EXACT).getValue();
+	}
 
-		filterStringList = this._filterQueries(filterTerms);
+	@Override
+	public TotalCount countIndex(RealmModel realm, String label, String value,
+			Map<String, List<String>> filter, CountStrategy strategy) {
 
-		StringBuilder builder = new StringBuilder();
+		QueryTrace trace = slowLog.start("countIndex");
 
-		if(this.isDefaultField(label)) {
-			builder.append(" select count(u) ")
-				.append(" from UserEntity u where u.realmId = :realmId ")
-				.append(" and lower(u." + label + ") like lower(:value)");
+		FilterPlan filters = this._planFilters(realm,
+				this.parseSearchAttributes(filter));
+		List<SearchTerm> terms = filters.getTerms();
 
-			for(String filterEntry : filterStringList) {
-				builder.append(" and u.id in (")
-					.append(filterEntry)
-					.append(")");
-			}
+		QueryArguments args = new QueryArguments(realm.getId(), terms)
+				.setLabel(label)
+				.setValue(value);
+
+		String shape = this._shape("countIndex", filters,
+				this._labelShape(label));
+
+		trace.phase("plan");
+
+		if (!indexCache.isEnabled()
+				|| strategy.getType() == CountStrategy.Type.NONE) {
+			return this._countIndex(trace, shape, args, label, filters,
+					strategy);
+		}
+
+		String cacheKey = this._resultCacheKey(shape, terms, label, value,
+				strategy);
+		long cacheGeneration = indexCache.generation(realm.getId());
+		TotalCount cached = indexCache.get(realm.getId(), cacheKey);
+		if (cached != null) {
+			return cached;
+		}
+
+		TotalCount total = this._countIndex(trace, shape, args, label,
+				filters, strategy);
+		indexCache.put(realm.getId(), cacheKey, total, cacheGeneration);
+		return total;
+	}
+
+	private TotalCount _countIndex(QueryTrace trace, String shape,
+			QueryArguments args, String label, FilterPlan filters,
+			CountStrategy strategy) {
+
+		if(this.isDefaultField(label)) {
+			return this._count(trace, shape, args, " select count(u) ",
+					" select u.id ", builder -> {
+						builder.append(" from UserEntity u where u.realmId = ")
+							.param(ParamBinding.Source.REALM_ID)
+							.append(" and lower(u." + label + ") like lower(")
+							.param(ParamBinding.Source.VALUE).append(")");
+
+						this._filterQueries(builder, filters, "u.id");
+					}, strategy);
 		}
 		else if(JpaUserProviderExtended.GROUP_FIELD.equals(label)) {
-			builder.append(" select count (distinct g) from GroupEntity g ")
-				.append(" join UserGroupMembershipEntity gm on g.id = gm.groupId ")
-				.append(" where g.realm.id = :realmId ")
-				.append(" and lower(g.name) like lower(:value) ");
+			return this._count(trace, shape, args, " select count (distinct g) ",
+					" select distinct g.id ", builder -> {
+						builder.append(" from GroupEntity g ")
+							.append(" join UserGroupMembershipEntity gm on g.id = gm.groupId ")
+							.append(" where g.realm.id = ")
+							.param(ParamBinding.Source.REALM_ID)
+							.append(" and lower(g.name) like lower(")
+							.param(ParamBinding.Source.VALUE).append(") ");
+
+						this._filterQueries(builder, filters, "gm.user.id");
+					}, strategy);
+		}
+		else {
+			return this._count(trace, shape, args,
+					" select count (distinct attr.value) ",
+					" select distinct attr.value ", builder -> {
+						builder.append(" from UserAttributeEntity attr ")
+							.append(" where attr.user.realmId = ")
+							.param(ParamBinding.Source.REALM_ID)
+							.append(" and attr.name = ")
+							.param(ParamBinding.Source.LABEL)
+							.append(" and lower(attr.value) like lower(")
+							.param(ParamBinding.Source.VALUE).append(") ");
+
+						this._filterQueries(builder, filters, "attr.user.id");
+					}, strategy);
+		}
+	}
 
-			for(String filterEntry : filterStringList) {
-				builder.append(" and gm.user.id in (")
-					.append(filterEntry)
-					.append(")");
+	/**
+	 * Facets of search results
+	 * 
+	 * Ids of matching users are selected once (up to `FACET_IDS_LIMIT`),
+	 * then every facet is one grouped query over them per
+	 * `IN_PARAMS_CHUNK_SIZE` ids:
+	 * <pre>
+	 *	SELECT keycloak_group.name, count(DISTINCT user_id) FROM user_group_membership
+	 *	JOIN keycloak_group ON user_group_membership.group_id = keycloak_group.id
+	 *	WHERE realm_id = 'RealmId' AND user_id IN (:ids)
+	 *	GROUP BY keycloak_group.name
+	 * </pre>
+	 * 
+	 * When more users match, every facet query has search filters itself
+	 * (as `index` does) and database cuts `topK` values.
+	 */
+	@Override
+	public Map<String, List<FacetValue>> facets(
+			Map<String, List<String>> attributes, RealmModel realm,
+			List<String> labels, int topK) {
+
+		FilterPlan filters = this._planFilters(realm,
+				this.parseSearchAttributes(attributes));
+		List<SearchTerm> terms = filters.getTerms();
+
+		QueryArguments args = new QueryArguments(realm.getId(), terms);
+
+		List<String> ids = null;
+		if (!terms.isEmpty()) {
+			// the same plan as `capped` count of search results
+			QueryPlan plan = this._countPlan(
+					this._shape("countUsers", filters) + "|rows",
+					" select u.id ", this._usersBody(filters));
+			TypedQuery<String> query = em.createQuery(plan.getJpql(),
+					String.class);
+			plan.bind(query, args);
+			query.setMaxResults(FACET_IDS_LIMIT + 1);
+			ids = query.getResultList();
+			if (ids.size() > FACET_IDS_LIMIT) {
+				ids = null;
 			}
 		}
-		else {
-			builder.append(" select count (distinct attr.value) from UserAttributeEntity attr ")
-				.append(" where attr.user.realmId = :realmId ")
-				.append(" and attr.name = :label ")
-				.append(" and lower(attr.value) like lower(:value) ");
 
-			for(String filterEntry : filterStringList) {
-				builder.append(" and attr.user.id in (")
-					.append(filterEntry)
-					.append(")");
+		Map<String, List<FacetValue>> result = new LinkedHashMap<>();
+		for (String label : labels) {
+			if (ids == null) {
+				result.put(label, this._facet(label, filters,
+						args.setLabel(label), topK));
+			}
+			else {
+				result.put(label, this._facetIn(label, realm, ids, topK));
 			}
 		}
 
-		String q = builder.toString();
-		
-		TypedQuery<Long> query = em.createQuery(q, Long.class);
+		em.flush();
 
-		query.setParameter("realmId", realm.getId());
-		if(!JpaUserProviderExtended.GROUP_FIELD.equals(label)
-				&& !this.isDefaultField(label)) {
-			query.setParameter("label", label);
+		return result;
+	}
+
+	/**
+	 * Facet with search filters
+	 * 
+	 * @param label
+	 * @param filters
+	 * @param args
+	 * @param topK
+	 * @return
+	 */
+	private List<FacetValue> _facet(String label, FilterPlan filters,
+			QueryArguments args, int topK) {
+
+		QueryPlan plan = this._facetPlan(label, filters, false);
+		TypedQuery<Object[]> query = em.createQuery(plan.getJpql(),
+				Object[].class);
+		plan.bind(query, args);
+		query.setMaxResults(topK);
+
+		Map<String, Long> counts = new HashMap<>();
+		for (Object[] row : query.getResultList()) {
+			counts.put((String) row[0], ((Number) row[1]).longValue());
 		}
-		query.setParameter("value", value);
+		return FacetValue.top(counts, topK);
+	}
 
-		this._injectSearchTermMapParamsToQuery(query, filterTerms);
+	/**
+	 * Facet over selected ids of matching users: chunk counts are summed
+	 * (chunks have different users)
+	 * 
+	 * @param label
+	 * @param realm
+	 * @param ids
+	 * @param topK
+	 * @return
+	 */
+	private List<FacetValue> _facetIn(String label, RealmModel realm,
+			List<String> ids, int topK) {
+
+		QueryPlan plan = this._facetPlan(label,
+				FilterPlan.canonical(Collections.<SearchTerm>emptyList()), true);
+
+		Map<String, Long> counts = new HashMap<>();
+		for (int from = 0; from < ids.size(); from += IN_PARAMS_CHUNK_SIZE) {
+			List<String> chunk = ids.subList(from,
+					Math.min(from + IN_PARAMS_CHUNK_SIZE, ids.size()));
+
+			TypedQuery<Object[]> query = em.createQuery(plan.getJpql(),
+					Object[].class);
+			plan.bind(query, new QueryArguments(realm.getId(),
+					Collections.<SearchTerm>emptyList())
+					.setLabel(label)
+					.setUserIds(chunk));
+			if (ids.size() <= IN_PARAMS_CHUNK_SIZE) {
+				query.setMaxResults(topK);
+			}
 
-		long indexCount = query.getSingleResult();
+			for (Object[] row : query.getResultList()) {
+				counts.merge((String) row[0], ((Number) row[1]).longValue(),
+						Long::sum);
+			}
+		}
+		return FacetValue.top(counts, topK);
+	}
 
-		em.flush();
+	/**
+	 * Grouped query of facet values ordered by amount of users
+	 * 
+	 * @param label
+	 * @param filters
+	 * @param userIds `true` for `in (:userIds)` filter instead of search
+	 *                filters
+	 * @return
+	 */
+	private QueryPlan _facetPlan(String label, FilterPlan filters,
+			boolean userIds) {
+
+		String shape = this._shape("facet", filters, this._labelShape(label),
+				userIds ? "ids" : "filters");
+
+		return planCache.getOrBuild(shape, () -> {
+			QueryPlanBuilder builder = new QueryPlanBuilder();
+
+			String value;
+			String count;
+			String userId;
+			if(this.isDefaultField(label)) {
+				value = "fu." + canonicalFieldName(label);
+				count = "count(fu.id)";
+				userId = "fu.id";
+				builder.append("select ").append(value).append(", ")
+					.append(count)
+					.append(" from UserEntity fu where fu.realmId = ")
+					.param(ParamBinding.Source.REALM_ID)
+					.append(" and ").append(value).append(" is not null");
+			}
+			else if(JpaUserProviderExtended.GROUP_FIELD.equals(label)) {
+				value = "fg.name";
+				count = "count(distinct fgm.user.id)";
+				userId = "fgm.user.id";
+				builder.append("select ").append(value).append(", ")
+					.append(count)
+					.append(" from UserGroupMembershipEntity fgm ")
+					.append(" join GroupEntity fg on fgm.groupId = fg.id ")
+					.append(" where fg.realm.id = ")
+					.param(ParamBinding.Source.REALM_ID);
+			}
+			else {
+				value = "fattr.value";
+				count = "count(distinct fattr.user.id)";
+				userId = "fattr.user.id";
+				builder.append("select ").append(value).append(", ")
+					.append(count)
+					.append(" from UserAttributeEntity fattr ")
+					.append(" where fattr.user.realmId = ")
+					.param(ParamBinding.Source.REALM_ID)
+					.append(" and fattr.name = ")
+					.param(ParamBinding.Source.LABEL)
+					.append(" and ").append(value).append(" is not null");
+			}
+
+			if (userIds) {
+				builder.append(" and ").append(userId).append(" in (")
+					.param(ParamBinding.Source.USER_IDS).append(")");
+			}
+			else {
+				this._filterQueries(builder, filters, userId);
+			}
 
-		return indexCount;
+			builder.append(" group by ").append(value)
+				.append(" order by ").append(count).append(" desc, ")
+				.append(value);
+
+			return builder.build();
+		});
+	}
+
+	@Override
+	public Map<String, List<String>> getGroupNames(RealmModel realm,
+			Collection<String> userIds) {
+
+		Map<String, List<String>> result = new HashMap<>();
+
+		List<String> ids = new ArrayList<>(userIds);
+
+		for (int from = 0; from < ids.size(); from += IN_PARAMS_CHUNK_SIZE) {
+			List<String> chunk = ids.subList(from,
+					Math.min(from + IN_PARAMS_CHUNK_SIZE, ids.size()));
+
+			TypedQuery<Object[]> query = em.createQuery(
+					"select gm.user.id, g.name from UserGroupMembershipEntity gm "
+					+ " join GroupEntity g on gm.groupId = g.id "
+					+ " where g.realm.id = :realmId and gm.user.id in (:ids) "
+					+ " order by g.name", Object[].class);
+
+			query.setParameter("realmId", realm.getId());
+			query.setParameter("ids", chunk);
+
+			for (Object[] row : query.getResultList()) {
+				String userId = (String) row[0];
+				List<String> groupNames = result.get(userId);
+				if (groupNames == null) {
+					groupNames = new ArrayList<>();
+					result.put(userId, groupNames);
+				}
+				groupNames.add((String) row[1]);
+			}
+		}
+
+		return result;
 	}
 
 	/**
@@ -359,14 +868,14 @@ public class JpaUserProviderExtended extends JpaUserProvider
 				|| UserModel.EMAIL.equalsIgnoreCase(name);
 	}
 
-	/**
-	 * Additional search term handling
-	 * 
-	 * @param searchTerm
-	 * @return
-	 */
-	private String _handleSearchTerm(String searchTerm) {
-		return searchTerm.toLowerCase();
+	@Override
+	public String queryShape(Map<String, List<String>> attributes) {
+		StringBuilder shape = new StringBuilder();
+		for (SearchTerm term : this.parseSearchAttributes(attributes)
+				.canonicalTerms()) {
+			shape.append(term.shape()).append(',');
+		}
+		return shape.toString();
 	}
 
 	/**
@@ -401,7 +910,7 @@ public class JpaUserProviderExtended extends JpaUserProvider
 	 * @param attributes
 	 * @return
 	 */
-	private SearchTermMap _parseSearchAttributes(
+	protected SearchTermMap parseSearchAttributes(
 			Map<String, List<String>> attributes) {
 
 		SearchTermMap result = new SearchTermMap();
@@ -430,73 +939,184 @@ public class JpaUserProviderExtended extends JpaUserProvider
 	/**
 	 * Search
 	 * 
+	 * Every query selects 3 columns: user, sort key and user id. Sort key and
+	 * id are used for keyset pagination: rows are ordered by
+	 * `sortKey, id` and when `after` cursor is set only rows that follow it
+	 * are selected, so database can seek instead of scanning and skipping
+	 * `firstResult` rows.
+	 * 
 	 * @param realm
 	 * @param attrs
 	 * @param firstResult
+	 * @param after
 	 * @param maxResults
 	 * @param orderBy
 	 * @param orderDirect
+	 * @param userIds users to search among or `null` for all realm's users
 	 * @return
 	 */
-	private List<UserModel> _search(SearchTermMap attrs, RealmModel realm,
-			int firstResult, int maxResults,
-			String orderBy, OrderDirect orderDirect) {
+	private UserList _search(SearchTermMap attrs, RealmModel realm,
+			int firstResult, SearchCursor after, int maxResults,
+			String orderBy, OrderDirect orderDirect,
+			Collection<String> userIds) {
+
+		return this._searchRows(attrs, realm, firstResult, after, maxResults,
+				orderBy, orderDirect, userIds, null, (results, nextCursor) -> {
+					List<UserEntity> entities = new ArrayList<UserEntity>();
+					for (Object entity[] : results) {
+						entities.add((UserEntity) entity[0]);
+					}
 
-		StringBuilder builder = new StringBuilder();
+					this._hydrate(entities);
 
-		List<String> filterStringList = this._filterQueries(attrs);
+					List<UserModel> users = new ArrayList<UserModel>();
 
-		if(this.isDefaultField(orderBy)) {
-			builder.append(" select u, u.id  ");
-			builder.append(" from UserEntity u where u.realmId = :realmId ");
+					for (UserEntity entity : entities) {
+						users.add(new UserAdapter(session, realm, em, entity));
+					}
 
-			for(String filterEntry : filterStringList) {
-				builder.append(" and u.id in (")
-					.append(filterEntry)
-					.append(")");
-			}
+					em.flush();
 
-			builder.append(" order by ").append(orderBy)
-				.append(' ').append(orderDirect);
-		}
-		else if(orderBy.equals(JpaUserProviderExtended.GROUP_FIELD)) {
-			builder.append(" select gm.user, lower(g.name)");
-			builder.append(" from UserGroupMembershipEntity gm left join GroupEntity g ");
-			builder.append(" on gm.groupId = g.id where g.realm.id = :realmId ");
+					return new UserList(UserList.TOTAL_UNKNOWN, users,
+							nextCursor);
+				});
+	}
 
-			for(String filterEntry : filterStringList) {
-				builder.append(" and gm.user.id in (")
-					.append(filterEntry)
-					.append(")");
-			}
+	/**
+	 * Search of requested fields only
+	 * 
+	 * Query selects `fields` columns instead of user entity (followed by sort
+	 * key and user id as in `_search`), so no entities get into persistence
+	 * context. Attribute values and group names are selected by
+	 * `IN_PARAMS_CHUNK_SIZE` users at once.
+	 * 
+	 * @param attrs
+	 * @param realm
+	 * @param firstResult
+	 * @param after
+	 * @param maxResults
+	 * @param orderBy
+	 * @param orderDirect
+	 * @param userIds users to search among or `null` for all realm's users
+	 * @param fields
+	 * @return
+	 */
+	private UserRowList _searchFields(SearchTermMap attrs, RealmModel realm,
+			int firstResult, SearchCursor after, int maxResults,
+			String orderBy, OrderDirect orderDirect,
+			Collection<String> userIds, FieldProjection fields) {
+
+		return this._searchRows(attrs, realm, firstResult, after, maxResults,
+				orderBy, orderDirect, userIds, fields, (results, nextCursor) -> {
+					int idColumn = fields.getColumns().size() + 1;
+
+					Map<String, UserRow> rows = new LinkedHashMap<>();
+					for (Object[] result : results) {
+						UserRow row = new UserRow((String) result[idColumn]);
+						for (int i = 0; i < fields.getColumns().size(); i++) {
+							row.put(fields.getColumns().get(i), result[i]);
+						}
+						if (!fields.getAttributes().isEmpty()) {
+							row.put("attributes", new LinkedHashMap<>());
+						}
+						rows.put(row.getId(), row);
+					}
 
-			builder.append(" order by g.name ")
-				.append(' ').append(orderDirect);
-			//builder.append(" group by gm.user.id ");
-		}
-		else {
-			builder.append(" select u, lower(attr.value) ");
-			builder.append(" from UserEntity u left join UserAttributeEntity attr ");
-			builder.append(" on attr.user.id = u.id where u.realmId = :realmId ");
+					if (!fields.getAttributes().isEmpty()) {
+						this._attributeValues(rows, fields.getAttributes());
+					}
 
-			for(String filterEntry : filterStringList) {
-				builder.append(" and u.id in (")
-					.append(filterEntry)
-					.append(")");
-			}
+					if (fields.hasGroups()) {
+						Map<String, List<String>> groupNames = this
+								.getGroupNames(realm, rows.keySet());
+						for (UserRow row : rows.values()) {
+							List<String> names = groupNames.get(row.getId());
+							row.put(FieldProjection.GROUPS,
+									names == null ? new ArrayList<>() : names);
+						}
+					}
 
-			builder.append(" order by attr.value ")
-				.append(' ').append(orderDirect);
-			//builder.append(" group by u.id ");
-		}
+					return new UserRowList(new ArrayList<>(rows.values()),
+							nextCursor);
+				});
+	}
+
+	/**
+	 * Search of user ids only: query selects sort key and user id
+	 * 
+	 * Users ordered by `group` have a row per group, ids are returned once.
+	 * 
+	 * @param attrs
+	 * @param realm
+	 * @param firstResult
+	 * @param after
+	 * @param maxResults
+	 * @param orderBy
+	 * @param orderDirect
+	 * @param userIds users to search among or `null` for all realm's users
+	 * @return
+	 */
+	private UserIdList _searchIds(SearchTermMap attrs, RealmModel realm,
+			int firstResult, SearchCursor after, int maxResults,
+			String orderBy, OrderDirect orderDirect,
+			Collection<String> userIds) {
+
+		return this._searchRows(attrs, realm, firstResult, after, maxResults,
+				orderBy, orderDirect, userIds, FieldProjection.IDS,
+				(results, nextCursor) -> {
+					Set<String> ids = new LinkedHashSet<>();
+					for (Object[] result : results) {
+						ids.add((String) result[1]);
+					}
+					return new UserIdList(new ArrayList<>(ids), nextCursor);
+				});
+	}
+
+	/**
+	 * Common part of `_search`, `_searchFields` and `_searchIds`: selects
+	 * portion of rows `[<columns>, sortKey, userId]` and passes them to
+	 * `hydrate` with cursor of the last row
+	 * 
+	 * @param attrs
+	 * @param realm
+	 * @param firstResult
+	 * @param after
+	 * @param maxResults
+	 * @param orderBy
+	 * @param orderDirect
+	 * @param userIds
+	 * @param fields selected columns, `null` selects user entity
+	 * @param hydrate
+	 * @return
+	 */
+	private <T> T _searchRows(SearchTermMap attrs, RealmModel realm,
+			int firstResult, SearchCursor after, int maxResults,
+			String orderBy, OrderDirect orderDirect,
+			Collection<String> userIds, FieldProjection fields,
+			BiFunction<List<Object[]>, SearchCursor, T> hydrate) {
+
+		QueryTrace trace = slowLog.start("search");
+
+		FilterPlan filters = this._planFilters(realm, attrs);
+		List<SearchTerm> terms = filters.getTerms();
 
-		String q = builder.toString();
+		QueryArguments args = new QueryArguments(realm.getId(), terms)
+				.setOrderBy(orderBy)
+				.setAfter(after)
+				.setUserIds(userIds);
 
-		TypedQuery<Object[]> query = em.createQuery(q, Object[].class);
+		String shape = this._searchShape(filters, orderBy, orderDirect,
+				after != null, userIds != null, fields);
 
-		query.setParameter("realmId", realm.getId());
+		trace.phase("plan");
 
-		this._injectSearchTermMapParamsToQuery(query, attrs);
+		QueryPlan plan = this._searchPlan(shape, filters, orderBy, orderDirect,
+				after != null, userIds != null, fields);
+
+		TypedQuery<Object[]> query = em.createQuery(plan.getJpql(),
+				Object[].class);
+
+		plan.bind(query, args);
 
 		if (firstResult != -1) {
 			query = query.setFirstResult(firstResult);
@@ -505,121 +1125,655 @@ public class JpaUserProviderExtended extends JpaUserProvider
 			query = query.setMaxResults(maxResults);
 		}
 
+		trace.phase("build");
+
 		List<Object[]> results = query.getResultList();
 
-		List<UserModel> users = new ArrayList<UserModel>();
+		trace.phase("execute");
 
-		for (Object entity[] : results) {
-			users.add(new UserAdapter(session, realm, em,
-					(UserEntity) entity[0]));
+		SearchCursor nextCursor = null;
+		if (maxResults != -1 && results.size() == maxResults) {
+			int sortColumn = fields == null ? 1 : fields.getColumns().size();
+			Object[] last = results.get(results.size() - 1);
+			nextCursor = new SearchCursor((String) last[sortColumn],
+					(String) last[sortColumn + 1]);
 		}
 
-		em.flush();
+		T result = hydrate.apply(results, nextCursor);
 
-		return users;
+		trace.phase("hydrate");
+		slowLog.finish(trace, em, realm.getId(), shape, plan.getJpql(), query,
+				results.size());
+
+		return result;
 	}
 
 	/**
-	 * Prepares SearchTermMap object to values injection with 
-	 * `_injectSearchTermMapParamsToQuery` method.
-	 * 
-	 * None user attributes values become `:username`, `:group` etc.,
-	 * user attributes values become `:attrNameName` and `:attrNameValue`.
+	 * Shape of search query plan
 	 * 
-	 * @param filter
+	 * @param filters
+	 * @param orderBy
+	 * @param orderDirect
+	 * @param after
+	 * @param userIds
+	 * @param fields
 	 * @return
 	 */
-	private List<String> _filterQueries(SearchTermMap filter) {
+	private String _searchShape(FilterPlan filters, String orderBy,
+			OrderDirect orderDirect, boolean after, boolean userIds,
+			FieldProjection fields) {
+
+		return this._shape("search", filters, this._labelShape(orderBy),
+				orderDirect.name(), after ? "after" : "", userIds ? "ids" : "",
+				fields == null ? "" : fields.shape());
+	}
 
-		List<String> result = new ArrayList<>();
+	/**
+	 * Search query plan: selects user (or `fields` columns), sort key and
+	 * user id
+	 * 
+	 * @param shape `_searchShape` of plan
+	 * @param filters
+	 * @param orderBy
+	 * @param orderDirect
+	 * @param after with keyset predicate
+	 * @param userIds with `in (:userIds)` predicate
+	 * @param fields selected columns, `null` selects user entity
+	 * @return
+	 */
+	private QueryPlan _searchPlan(String shape, FilterPlan filters,
+			String orderBy, OrderDirect orderDirect, boolean after,
+			boolean userIds, FieldProjection fields) {
 
-		for (SearchTermMap.Entry<String, SearchTerm> filterTermEntry : filter.entrySet()) {
+		return planCache.getOrBuild(shape, () -> {
+			QueryPlanBuilder builder = new QueryPlanBuilder();
 
-			String key = filterTermEntry.getKey();
+			String sortKey;
+			String idKey;
 
-			SearchTerm filterTerm = filterTermEntry.getValue();
-			int filterTermSize = filterTerm.getValues().size();
+			if(this.isDefaultField(orderBy)) {
+				sortKey = this._defaultFieldSortKey(orderBy);
+				idKey = "u.id";
 
-			String filterLabel = filterTerm.getLabel();
+				builder.append(" select ").append(this._searchSelect("u", fields))
+					.append(sortKey).append(", u.id ");
+				builder.append(" from UserEntity u where u.realmId = ")
+					.param(ParamBinding.Source.REALM_ID);
 
-			StringBuilder innerSelect = new StringBuilder();
-			if(this.isDefaultField(filterLabel)) {
-				innerSelect.append("select u.id from UserEntity u where u.realmId = :realmId")
-					.append(" and ( ");
-				for(int i = 0; i < filterTermSize; i++) {
-					if(i > 0) {
-						innerSelect.append(" or ");
-					}
-					innerSelect.append(" lower(u." + filterLabel + ") like lower(:" + key + i + ")");
-				}
-				innerSelect.append(" ) ");
+				this._filterQueries(builder, filters, "u.id");
 			}
-			else if(JpaUserProviderExtended.GROUP_FIELD.equals(filterLabel)) {
-				innerSelect.append("select gm.user.id from UserGroupMembershipEntity gm "
-					+ " join GroupEntity g on gm.groupId = g.id "
-					+ " where g.realm.id = :realmId "
-					+ " and (");
-				for(int i = 0; i < filterTermSize; i++) {
-					if(i > 0) {
-						innerSelect.append(" or ");
-					}
-					innerSelect.append(" lower(g.name) like lower(:" + key + i + ") ");
-				}
-				innerSelect.append(" ) ");
+			else if(orderBy.equals(JpaUserProviderExtended.GROUP_FIELD)) {
+				sortKey = "g.name";
+				idKey = "gm.user.id";
+
+				builder.append(" select ")
+					.append(this._searchSelect("gm.user", fields))
+					.append("g.name, gm.user.id ");
+				builder.append(" from UserGroupMembershipEntity gm left join GroupEntity g ");
+				builder.append(" on gm.groupId = g.id where g.realm.id = ")
+					.param(ParamBinding.Source.REALM_ID);
+
+				this._filterQueries(builder, filters, "gm.user.id");
+				//builder.append(" group by gm.user.id ");
 			}
 			else {
-				innerSelect.append("select attr.user.id from UserAttributeEntity attr"
-						+ " where attr.name = :" + key  + "Name "
-						+ " and (");
-				for(int i = 0; i < filterTermSize; i++) {
-					if(i > 0) {
-						innerSelect.append(" or ");
-					}
-					innerSelect.append(" lower(attr.value) like lower(:" + key + "Value" + i + ") ");
+				sortKey = "coalesce(attr.value, '')";
+				idKey = "u.id";
+
+				builder.append(" select ").append(this._searchSelect("u", fields))
+					.append(sortKey).append(", u.id ");
+				builder.append(" from UserEntity u left join UserAttributeEntity attr ");
+				builder.append(" on attr.user.id = u.id and attr.name = ")
+					.param(ParamBinding.Source.ORDER_BY_NAME);
+				builder.append(" where u.realmId = ")
+					.param(ParamBinding.Source.REALM_ID);
+
+				this._filterQueries(builder, filters, "u.id");
+				//builder.append(" group by u.id ");
+			}
+
+			if (userIds) {
+				builder.append(" and ").append(idKey).append(" in (")
+					.param(ParamBinding.Source.USER_IDS).append(")");
+			}
+
+			if (after) {
+				String comparator = OrderDirect.DESC.equals(orderDirect) ? " < " : " > ";
+				builder.append(" and (").append(sortKey).append(comparator)
+					.param(ParamBinding.Source.AFTER_KEY)
+					.append(" or (").append(sortKey).append(" = ")
+					.param(ParamBinding.Source.AFTER_KEY)
+					.append(" and ").append(idKey).append(comparator)
+					.param(ParamBinding.Source.AFTER_ID).append(")) ");
+			}
+
+			builder.append(" order by ").append(sortKey).append(' ')
+				.append(orderDirect).append(", ").append(idKey).append(' ')
+				.append(orderDirect);
+
+			return builder.build();
+		});
+	}
+
+	/**
+	 * Select list of search query before sort key: user entity or `fields`
+	 * columns of user `alias`
+	 * 
+	 * @param alias
+	 * @param fields
+	 * @return
+	 */
+	private String _searchSelect(String alias, FieldProjection fields) {
+		return fields == null ? alias + ", " : fields.select(alias);
+	}
+
+	/**
+	 * Counts rows of query `from ... where ...` (`body`) with `strategy`
+	 * 
+	 * `countSelect` is used for `exact` count (eg `select count(u)`),
+	 * `rowsSelect` selects counted rows themselves (eg `select u.id`) for
+	 * `capped` count (database counts them in limited subquery) and planner
+	 * estimate.
+	 * 
+	 * @param trace
+	 * @param shape
+	 * @param args
+	 * @param countSelect
+	 * @param rowsSelect
+	 * @param body
+	 * @param strategy
+	 * @return
+	 */
+	private TotalCount _count(QueryTrace trace, String shape,
+			QueryArguments args, String countSelect, String rowsSelect,
+			Consumer<QueryPlanBuilder> body, CountStrategy strategy) {
+
+		switch (strategy.getType()) {
+			case NONE:
+				return new TotalCount(UserList.TOTAL_UNKNOWN, strategy);
+
+			case CAPPED: {
+				QueryPlan plan = this._countPlan(shape + "|rows", rowsSelect,
+						body);
+				TypedQuery<Object> query = em.createQuery(plan.getJpql(),
+						Object.class);
+				plan.bind(query, args);
+				trace.phase("build");
+				long rows = new QueryInspector(em).countLimited(plan.getJpql(),
+						query, strategy.getCap() + 1);
+				trace.phase("execute");
+				slowLog.finish(trace, em, args.getRealmId(), shape + "|rows",
+						plan.getJpql(), query, rows);
+				return new TotalCount(rows, strategy);
+			}
+
+			case ESTIMATE: {
+				QueryInspector inspector = new QueryInspector(em);
+				if (!inspector.isEstimateSupported()) {
+					return this._count(trace, shape, args, countSelect,
+							rowsSelect, body,
+							CountStrategy.capped(CountStrategy.DEFAULT_CAP));
 				}
-				innerSelect.append(" ) ");
+				QueryPlan plan = this._countPlan(shape + "|rows", rowsSelect,
+						body);
+				TypedQuery<Object> query = em.createQuery(plan.getJpql(),
+						Object.class);
+				plan.bind(query, args);
+				trace.phase("build");
+				long estimate = inspector.estimateRows(plan.getJpql(), query);
+				trace.phase("execute");
+				slowLog.finish(trace, em, args.getRealmId(), shape + "|rows",
+						plan.getJpql(), query, estimate);
+				return new TotalCount(estimate, strategy);
+			}
+
+			default: {
+				QueryPlan plan = this._countPlan(shape + "|count", countSelect,
+						body);
+				TypedQuery<Long> query = em.createQuery(plan.getJpql(),
+						Long.class);
+				plan.bind(query, args);
+
+				trace.phase("build");
+
+				long count = query.getSingleResult();
+
+				em.flush();
+
+				trace.phase("execute");
+				slowLog.finish(trace, em, args.getRealmId(), shape + "|count",
+						plan.getJpql(), query, count);
+
+				return new TotalCount(count, strategy);
 			}
-			result.add(innerSelect.toString());
 		}
+	}
 
-		return result;
+	/**
+	 * `from` and `where` of search results count: realm's users matching
+	 * all search filters
+	 * 
+	 * @param filters
+	 * @return
+	 */
+	private Consumer<QueryPlanBuilder> _usersBody(FilterPlan filters) {
+		return builder -> {
+			builder.append(" from UserEntity u where u.realmId = ")
+				.param(ParamBinding.Source.REALM_ID);
+			this._filterQueries(builder, filters, "u.id");
+		};
+	}
+
+	private QueryPlan _countPlan(String shape, String select,
+			Consumer<QueryPlanBuilder> body) {
+
+		return planCache.getOrBuild(shape, () -> {
+			QueryPlanBuilder builder = new QueryPlanBuilder();
+			builder.append(select);
+			body.accept(builder);
+			return builder.build();
+		});
 	}
 
 	/**
-	 * Injecting search values to result of `_filterQueries` method
+	 * Hydration stage: initializes lazy `attributes` and `requiredActions`
+	 * collections of all page users before `UserAdapter`s are serialized.
+	 * 
+	 * Without it `ModelToRepresentation::toRepresentation` makes separate
+	 * query for every user. Here we have one fetch-join query per collection
+	 * per `IN_PARAMS_CHUNK_SIZE` users: entities are already in persistence
+	 * context, so Hibernate just fills their uninitialized collections.
 	 * 
-	 * @param <T>
+	 * Collections are fetched by separate queries as two bags can't be
+	 * fetched at once.
 	 * 
-	 * @param query
-	 * @param filter
+	 * @param entities
 	 */
-	private <T> void _injectSearchTermMapParamsToQuery(TypedQuery<T> query,
-			SearchTermMap filter) {
+	private void _hydrate(List<UserEntity> entities) {
 
-		for (SearchTermMap.Entry<String, SearchTerm> entry : filter.entrySet()) {
+		if (entities.isEmpty()) {
+			return;
+		}
 
-			String key = entry.getKey();
-			SearchTerm term = entry.getValue();
+		List<String> ids = new ArrayList<>();
+		for (UserEntity entity : entities) {
+			ids.add(entity.getId());
+		}
 
-			if (!term.isEmpty()) {
-				List<String> values = term.getValues();
+		for (int from = 0; from < ids.size(); from += IN_PARAMS_CHUNK_SIZE) {
+			List<String> chunk = ids.subList(from,
+					Math.min(from + IN_PARAMS_CHUNK_SIZE, ids.size()));
+
+			em.createQuery("select distinct u from UserEntity u "
+					+ " left join fetch u.attributes where u.id in (:ids)",
+					UserEntity.class)
+				.setParameter("ids", chunk)
+				.getResultList();
+
+			em.createQuery("select distinct u from UserEntity u "
+					+ " left join fetch u.requiredActions where u.id in (:ids)",
+					UserEntity.class)
+				.setParameter("ids", chunk)
+				.getResultList();
+		}
+	}
 
-				if (term.isLabelDefault()
-						|| JpaUserProviderExtended.GROUP_FIELD.equals(term.getLabel())) {
-					for(int i = 0; i < values.size(); i++) {
-						query.setParameter(key + i,
-								_handleSearchTerm(values.get(i)));
-					}
+	/**
+	 * Fills `attributes` of rows with values of attributes `names`: one
+	 * scalar query per `IN_PARAMS_CHUNK_SIZE` users
+	 * 
+	 * @param rows `userId => row`
+	 * @param names
+	 */
+	private void _attributeValues(Map<String, UserRow> rows,
+			List<String> names) {
+
+		List<String> ids = new ArrayList<>(rows.keySet());
+
+		for (int from = 0; from < ids.size(); from += IN_PARAMS_CHUNK_SIZE) {
+			List<String> chunk = ids.subList(from,
+					Math.min(from + IN_PARAMS_CHUNK_SIZE, ids.size()));
+
+			TypedQuery<Object[]> query = em.createQuery(
+					"select attr.user.id, attr.name, attr.value "
+					+ " from UserAttributeEntity attr "
+					+ " where attr.user.id in (:ids) and attr.name in (:names)",
+					Object[].class);
+
+			query.setParameter("ids", chunk);
+			query.setParameter("names", names);
+
+			for (Object[] row : query.getResultList()) {
+				rows.get((String) row[0]).addAttribute((String) row[1],
+						(String) row[2]);
+			}
+		}
+	}
+
+	/**
+	 * Sort key expression for "default" Keycloak fields. Nullable fields are
+	 * wrapped with `coalesce` so keyset predicate never compares `null`.
+	 * 
+	 * @param orderBy
+	 * @return
+	 */
+	private String _defaultFieldSortKey(String orderBy) {
+		if ("id".equals(orderBy) || UserModel.USERNAME.equals(orderBy)) {
+			return "u." + orderBy;
+		}
+		return "coalesce(u." + orderBy + ", '')";
+	}
+
+	/**
+	 * Canonical query-shape fingerprint: operation, shapes of terms with
+	 * their forms (in plan order) and other parts that change JPQL
+	 * 
+	 * @param operation
+	 * @param filters
+	 * @param parts
+	 * @return
+	 */
+	private String _shape(String operation, FilterPlan filters,
+			String... parts) {
+
+		StringBuilder shape = new StringBuilder(operation);
+		for (String part : parts) {
+			shape.append('|').append(part);
+		}
+		shape.append('|').append(filters.shape());
+		return shape.toString();
+	}
+
+	/**
+	 * Planner stage: orders canonical terms by selectivity and chooses
+	 * their forms (see `FilterPlanner`)
+	 * 
+	 * @param realm
+	 * @param attrs
+	 * @return
+	 */
+	private FilterPlan _planFilters(RealmModel realm, SearchTermMap attrs) {
+		return planner.plan(em, realm.getId(), attrs.canonicalTerms());
+	}
+
+	/**
+	 * `IndexResultCache` key: shape with all argument values
+	 * 
+	 * @param shape
+	 * @param terms
+	 * @param parts
+	 * @return
+	 */
+	private String _resultCacheKey(String shape, List<SearchTerm> terms,
+			Object... parts) {
+
+		StringBuilder key = new StringBuilder(shape);
+		for (Object part : parts) {
+			key.append('\u0000').append(part);
+		}
+		for (SearchTerm term : terms) {
+			key.append('\u0000').append(term.getLabel())
+				.append('=').append(term.getValues());
+		}
+		return key.toString();
+	}
+
+	/**
+	 * Shape of index label or order field: default field name, `group` or
+	 * `attr` (attribute name is a parameter)
+	 * 
+	 * @param label
+	 * @return
+	 */
+	private String _labelShape(String label) {
+		if (this.isDefaultField(label)) {
+			return "u." + label;
+		}
+		if (JpaUserProviderExtended.GROUP_FIELD.equals(label)) {
+			return GROUP_FIELD;
+		}
+		return "attr";
+	}
+
+	/**
+	 * Appends filter for every search term in plan order: `and <outerId> in
+	 * (<subquery>)` or `and exists (<subquery> and <userId> = <outerId>)`
+	 * 
+	 * None user attributes values become `:pN` parameters, user attributes
+	 * names and values become `:pN` parameters too, `QueryPlan` binds them.
+	 * 
+	 * Subquery aliases are suffixed with term index (`u0`, `attr1`), so
+	 * correlated subqueries don't hide outer query aliases.
+	 * 
+	 * @param builder
+	 * @param filters search terms with their forms
+	 * @param outerId user id expression of outer query
+	 */
+	private void _filterQueries(QueryPlanBuilder builder,
+			FilterPlan filters, String outerId) {
+
+		List<SearchTerm> terms = filters.getTerms();
+
+		for (int termIndex = 0; termIndex < terms.size(); termIndex++) {
+
+			SearchTerm filterTerm = terms.get(termIndex);
+
+			if (filters.getForm(termIndex) == FilterPlan.Form.EXISTS) {
+				builder.append(" and exists (");
+				this._filterQuery(builder, termIndex, filterTerm, outerId);
+			}
+			else {
+				builder.append(" and ").append(outerId).append(" in (");
+				this._filterQuery(builder, termIndex, filterTerm, null);
+			}
+			builder.append(")");
+		}
+	}
+
+	/**
+	 * Subquery selecting ids of users matching search term
+	 * 
+	 * @param builder
+	 * @param termIndex
+	 * @param filterTerm
+	 * @param correlatedId outer user id expression for `exists` form,
+	 *                     `null` for `in` form
+	 */
+	private void _filterQuery(QueryPlanBuilder builder, int termIndex,
+			SearchTerm filterTerm, String correlatedId) {
+
+		int filterTermSize = filterTerm.getValues().size();
+
+		String filterLabel = filterTerm.getLabel();
+
+		String userId;
+
+		if(searchSource == SearchSource.SHADOW && !"id".equals(filterLabel)) {
+			userId = this._shadowFilterQuery(builder, termIndex, filterTerm);
+		}
+		else if(this.isDefaultField(filterLabel)) {
+			String u = "u" + termIndex;
+			userId = u + ".id";
+			builder.append("select " + userId + " from UserEntity " + u
+					+ " where " + u + ".realmId = ")
+				.param(ParamBinding.Source.REALM_ID)
+				.append(" and ( ");
+			String column = this._lowerFieldColumn(u, filterLabel);
+			for(int i = 0; i < filterTermSize; i++) {
+				if(i > 0) {
+					builder.append(" or ");
 				}
-				else {
-					query.setParameter(key + "Name", term.getLabel());
-					for(int i = 0; i < values.size(); i++) {
-						query.setParameter(key + "Value" + i,
-								_handleSearchTerm(values.get(i)));
-					}
+				this._valuePredicate(builder, column, termIndex, filterTerm, i,
+						false);
+			}
+			builder.append(" ) ");
+		}
+		else if(JpaUserProviderExtended.GROUP_FIELD.equals(filterLabel)) {
+			String gm = "gm" + termIndex;
+			String g = "g" + termIndex;
+			userId = gm + ".user.id";
+			builder.append("select " + userId + " from UserGroupMembershipEntity " + gm
+				+ " join GroupEntity " + g + " on " + gm + ".groupId = " + g + ".id "
+				+ " where " + g + ".realm.id = ")
+				.param(ParamBinding.Source.REALM_ID)
+				.append(" and (");
+			for(int i = 0; i < filterTermSize; i++) {
+				if(i > 0) {
+					builder.append(" or ");
+				}
+				this._valuePredicate(builder, "lower(" + g + ".name)", termIndex,
+						filterTerm, i, false);
+			}
+			builder.append(" ) ");
+		}
+		else {
+			String attr = "attr" + termIndex;
+			userId = attr + ".user.id";
+			builder.append("select " + userId + " from UserAttributeEntity " + attr
+					+ " where " + attr + ".name = ")
+				.termName(termIndex)
+				.append(" and (");
+			for(int i = 0; i < filterTermSize; i++) {
+				if(i > 0) {
+					builder.append(" or ");
 				}
+				this._valuePredicate(builder, "lower(" + attr + ".value)",
+						termIndex, filterTerm, i, false);
+			}
+			builder.append(" ) ");
+		}
+
+		if(correlatedId != null) {
+			builder.append(" and ").append(userId).append(" = ")
+				.append(correlatedId);
+		}
+	}
+
+	/**
+	 * Subquery of `USER_SEARCH_VALUE` rows matching search term: values are
+	 * already normalized, so `value like :pN` may use index
+	 * 
+	 * @param builder
+	 * @param termIndex
+	 * @param filterTerm
+	 * @return user id expression of subquery
+	 */
+	private String _shadowFilterQuery(QueryPlanBuilder builder, int termIndex,
+			SearchTerm filterTerm) {
+
+		String filterLabel = filterTerm.getLabel();
+		String v = "v" + termIndex;
+
+		builder.append("select " + v + ".userId from UserSearchValueEntity " + v
+				+ " where " + v + ".realmId = ")
+			.param(ParamBinding.Source.REALM_ID);
+		if(this.isDefaultField(filterLabel)) {
+			// label is one of known fields, so it is safe to inline it
+			builder.append(" and " + v + ".kind = '" + UserSearchValueEntity.KIND_FIELD
+					+ "' and " + v + ".name = '" + canonicalFieldName(filterLabel) + "'");
+		}
+		else if(JpaUserProviderExtended.GROUP_FIELD.equals(filterLabel)) {
+			builder.append(" and " + v + ".kind = '" + UserSearchValueEntity.KIND_GROUP
+					+ "'");
+		}
+		else {
+			builder.append(" and " + v + ".kind = '" + UserSearchValueEntity.KIND_ATTRIBUTE
+					+ "' and " + v + ".name = ")
+				.termName(termIndex);
+		}
+		builder.append(" and (");
+		for(int i = 0; i < filterTerm.getValues().size(); i++) {
+			if(i > 0) {
+				builder.append(" or ");
+			}
+			this._valuePredicate(builder, v + ".value", termIndex, filterTerm, i,
+					true);
+		}
+		builder.append(" ) ");
+		return v + ".userId";
+	}
+
+	/**
+	 * Predicate of one search term value: `=` for exact values, index range
+	 * for prefix values (`like` keeps pattern semantics within range) and
+	 * `like` for others
+	 * 
+	 * @param builder
+	 * @param column lower-cased column expression
+	 * @param termIndex
+	 * @param filterTerm
+	 * @param valueIndex
+	 * @param normalized column holds `SearchValueNormalizer` values
+	 */
+	private void _valuePredicate(QueryPlanBuilder builder, String column,
+			int termIndex, SearchTerm filterTerm, int valueIndex,
+			boolean normalized) {
+
+		ParamBinding.Source value = normalized
+				? ParamBinding.Source.TERM_SEARCH_VALUE
+				: ParamBinding.Source.TERM_VALUE;
+
+		switch (filterTerm.getValueKind(valueIndex)) {
+			case EXACT:
+				builder.append(" " + column + " = ")
+					.termParam(value, termIndex, valueIndex);
+				break;
+
+			case PREFIX:
+				builder.append(" (" + column + " >= ")
+					.termParam(normalized
+							? ParamBinding.Source.TERM_SEARCH_LOWER_BOUND
+							: ParamBinding.Source.TERM_LOWER_BOUND,
+							termIndex, valueIndex)
+					.append(" and " + column + " < ")
+					.termParam(normalized
+							? ParamBinding.Source.TERM_SEARCH_UPPER_BOUND
+							: ParamBinding.Source.TERM_UPPER_BOUND,
+							termIndex, valueIndex)
+					.append(" and " + column + " like ")
+					.termParam(value, termIndex, valueIndex)
+					.append(") ");
+				break;
+
+			default:
+				builder.append(" " + column + " like ")
+					.termParam(value, termIndex, valueIndex);
+		}
+	}
+
+	/**
+	 * Lower-cased expression of default field: Keycloak stores `username`
+	 * and `email` lower-cased, so they are compared as is and may use
+	 * Keycloak's indexes, other fields are wrapped into `lower()` (see
+	 * functional indexes in `user-search-changelog.xml`)
+	 * 
+	 * @param alias
+	 * @param label
+	 * @return
+	 */
+	private String _lowerFieldColumn(String alias, String label) {
+		String field = canonicalFieldName(label);
+		if (UserModel.USERNAME.equals(field) || UserModel.EMAIL.equals(field)) {
+			return alias + "." + field;
+		}
+		return "lower(" + alias + "." + field + ")";
+	}
+
+	/**
+	 * `USER_SEARCH_VALUE.NAME` of default field (`isDefaultField` ignores
+	 * case of some fields)
+	 * 
+	 * @param label
+	 * @return
+	 */
+	static String canonicalFieldName(String label) {
+		for (String field : new String[] { UserModel.USERNAME,
+				UserModel.EMAIL, UserModel.FIRST_NAME, UserModel.LAST_NAME }) {
+			if (field.equalsIgnoreCase(label)) {
+				return field;
 			}
 		}
+		return label;
 	}
 
 }
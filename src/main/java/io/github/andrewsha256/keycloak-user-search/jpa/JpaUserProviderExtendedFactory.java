@@ -9,6 +9,16 @@ import org.keycloak.models.jpa.JpaUserProviderFactory;
 
 public class JpaUserProviderExtendedFactory extends JpaUserProviderFactory {
 
+	private final SearchSettings settings;
+
+	/**
+	 * @param settings creates `BitmapUserProviderExtended` if they have
+	 *                 bitmaps
+	 */
+	public JpaUserProviderExtendedFactory(SearchSettings settings) {
+		this.settings = settings;
+	}
+
 	@Override
 	public String getId() {
 		return "jpa";
@@ -16,9 +26,22 @@ public class JpaUserProviderExtendedFactory extends JpaUserProviderFactory {
 
 	@Override
 	public UserProvider create(KeycloakSession session) {
-		EntityManager em = session.getProvider(JpaConnectionProvider.class)
-				.getEntityManager();
-		return new JpaUserProviderExtended(session, em);
+		return this.create(session, session
+				.getProvider(JpaConnectionProvider.class).getEntityManager());
+	}
+
+	/**
+	 * Provider that reads and writes with `em` (eg read replica one)
+	 *
+	 * @param session
+	 * @param em
+	 * @return
+	 */
+	public UserProvider create(KeycloakSession session, EntityManager em) {
+		if (settings.getBitmaps() != null) {
+			return new BitmapUserProviderExtended(session, em, settings);
+		}
+		return new JpaUserProviderExtended(session, em, settings);
 	}
 
 }
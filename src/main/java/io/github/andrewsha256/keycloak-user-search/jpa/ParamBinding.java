@@ -0,0 +1,109 @@
+package io.github.andrewsha256.keycloak_user_search.jpa;
+
+/**
+ * Single step of `QueryPlan` parameter-binding plan: which query parameter
+ * gets which value of `QueryArguments`
+ */
+class ParamBinding {
+
+	enum Source {
+		REALM_ID,
+		LABEL,
+		VALUE,
+		ORDER_BY_NAME,
+		AFTER_KEY,
+		AFTER_ID,
+		USER_IDS,
+		TERM_NAME,
+		TERM_VALUE,
+		TERM_LOWER_BOUND,
+		TERM_UPPER_BOUND,
+		TERM_SEARCH_VALUE,
+		TERM_SEARCH_LOWER_BOUND,
+		TERM_SEARCH_UPPER_BOUND
+	}
+
+	private final String name;
+
+	private final Source source;
+
+	private final int termIndex;
+
+	private final int valueIndex;
+
+	ParamBinding(String name, Source source, int termIndex, int valueIndex) {
+		this.name = name;
+		this.source = source;
+		this.termIndex = termIndex;
+		this.valueIndex = valueIndex;
+	}
+
+	String getName() {
+		return name;
+	}
+
+	Source getSource() {
+		return source;
+	}
+
+	/**
+	 * Value of parameter for given arguments
+	 * 
+	 * @param args
+	 * @return
+	 */
+	Object resolve(QueryArguments args) {
+		switch (source) {
+			case REALM_ID:
+				return args.getRealmId();
+			case LABEL:
+				return args.getLabel();
+			case VALUE:
+				return args.getValue();
+			case ORDER_BY_NAME:
+				return args.getOrderBy();
+			case AFTER_KEY:
+				return args.getAfter().getSortKey();
+			case AFTER_ID:
+				return args.getAfter().getId();
+			case USER_IDS:
+				return args.getUserIds();
+			case TERM_NAME:
+				return args.getTerms().get(termIndex).getLabel();
+			case TERM_VALUE:
+				return this._termValue(args).toLowerCase();
+			case TERM_LOWER_BOUND:
+				return SearchTerm.prefix(this._termValue(args).toLowerCase());
+			case TERM_UPPER_BOUND:
+				return _upperBound(SearchTerm.prefix(
+						this._termValue(args).toLowerCase()));
+			case TERM_SEARCH_VALUE:
+				return SearchValueNormalizer.normalize(this._termValue(args));
+			case TERM_SEARCH_LOWER_BOUND:
+				return SearchTerm.prefix(SearchValueNormalizer.normalize(
+						this._termValue(args)));
+			case TERM_SEARCH_UPPER_BOUND:
+				return _upperBound(SearchTerm.prefix(
+						SearchValueNormalizer.normalize(this._termValue(args))));
+			default:
+				throw new IllegalStateException("Unknown source " + source);
+		}
+	}
+
+	private String _termValue(QueryArguments args) {
+		return args.getTerms().get(termIndex).getValues().get(valueIndex);
+	}
+
+	/**
+	 * `SearchTerm.upperBound`: prefix classified by lower-cased value always
+	 * has it, just in case bound of string greater than all its extensions
+	 * is returned
+	 * 
+	 * @param prefix
+	 * @return
+	 */
+	private static String _upperBound(String prefix) {
+		String bound = SearchTerm.upperBound(prefix);
+		return bound != null ? bound : prefix + Character.MAX_VALUE;
+	}
+}
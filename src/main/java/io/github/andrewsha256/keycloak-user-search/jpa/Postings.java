@@ -0,0 +1,132 @@
+package io.github.andrewsha256.keycloak_user_search.jpa;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Set of user slots (dense user numbers) of single `BitmapIndex` value
+ *
+ * Most values (emails, names) belong to few users, so small sets are stored
+ * as sorted `int` arrays and become `BitSet`s only when they are dense
+ * enough: BitSet of rare value would take `usersCount / 8` bytes.
+ *
+ * Not thread-safe, guarded by `BitmapIndex` lock.
+ */
+class Postings {
+
+	/**
+	 * Array of at least `DENSITY` slots becomes BitSet when it has more than
+	 * 1 slot of every `DENSITY` slots (`int` takes 32 bits)
+	 */
+	private static final int DENSITY = 32;
+
+	private int[] slots = new int[2];
+
+	private int size;
+
+	private BitSet bits;
+
+	void add(int slot) {
+		if (bits != null) {
+			bits.set(slot);
+			return;
+		}
+		int index = Arrays.binarySearch(slots, 0, size, slot);
+		if (index >= 0) {
+			return;
+		}
+		index = -index - 1;
+		if (size == slots.length) {
+			slots = Arrays.copyOf(slots, size * 2);
+		}
+		System.arraycopy(slots, index, slots, index + 1, size - index);
+		slots[index] = slot;
+		size++;
+		if (size >= DENSITY && (long) size * DENSITY > slots[size - 1]) {
+			this._toBits();
+		}
+	}
+
+	void remove(int slot) {
+		if (bits != null) {
+			bits.clear(slot);
+			return;
+		}
+		int index = Arrays.binarySearch(slots, 0, size, slot);
+		if (index >= 0) {
+			System.arraycopy(slots, index + 1, slots, index, size - index - 1);
+			size--;
+		}
+	}
+
+	int cardinality() {
+		return bits != null ? bits.cardinality() : size;
+	}
+
+	boolean isEmpty() {
+		return bits != null ? bits.isEmpty() : size == 0;
+	}
+
+	/**
+	 * `target |= this`
+	 *
+	 * @param target
+	 */
+	void orInto(BitSet target) {
+		if (bits != null) {
+			target.or(bits);
+			return;
+		}
+		for (int i = 0; i < size; i++) {
+			target.set(slots[i]);
+		}
+	}
+
+	/**
+	 * True if any slot is set in `filter` too
+	 *
+	 * @param filter
+	 * @return
+	 */
+	boolean intersects(BitSet filter) {
+		if (bits != null) {
+			return bits.intersects(filter);
+		}
+		for (int i = 0; i < size; i++) {
+			if (filter.get(slots[i])) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Amount of slots that are set in `filter` too
+	 *
+	 * @param filter
+	 * @return
+	 */
+	int cardinality(BitSet filter) {
+		if (bits != null) {
+			BitSet and = (BitSet) bits.clone();
+			and.and(filter);
+			return and.cardinality();
+		}
+		int result = 0;
+		for (int i = 0; i < size; i++) {
+			if (filter.get(slots[i])) {
+				result++;
+			}
+		}
+		return result;
+	}
+
+	private void _toBits() {
+		bits = new BitSet(slots[size - 1] + 1);
+		for (int i = 0; i < size; i++) {
+			bits.set(slots[i]);
+		}
+		slots = null;
+		size = 0;
+	}
+}
@@ -0,0 +1,87 @@
+package io.github.andrewsha256.keycloak_user_search.jpa;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Values for `QueryPlan` parameters of single query execution
+ */
+class QueryArguments {
+
+	private final String realmId;
+
+	private final List<SearchTerm> terms;
+
+	private String label;
+
+	private String value;
+
+	private String orderBy;
+
+	private SearchCursor after;
+
+	private Collection<String> userIds;
+
+	/**
+	 * @param realmId
+	 * @param terms search terms in canonical order
+	 *              (`SearchTermMap::canonicalTerms`)
+	 */
+	QueryArguments(String realmId, List<SearchTerm> terms) {
+		this.realmId = realmId;
+		this.terms = terms;
+	}
+
+	String getRealmId() {
+		return realmId;
+	}
+
+	List<SearchTerm> getTerms() {
+		return terms;
+	}
+
+	String getLabel() {
+		return label;
+	}
+
+	QueryArguments setLabel(String label) {
+		this.label = label;
+		return this;
+	}
+
+	String getValue() {
+		return value;
+	}
+
+	QueryArguments setValue(String value) {
+		this.value = value;
+		return this;
+	}
+
+	String getOrderBy() {
+		return orderBy;
+	}
+
+	QueryArguments setOrderBy(String orderBy) {
+		this.orderBy = orderBy;
+		return this;
+	}
+
+	SearchCursor getAfter() {
+		return after;
+	}
+
+	QueryArguments setAfter(SearchCursor after) {
+		this.after = after;
+		return this;
+	}
+
+	Collection<String> getUserIds() {
+		return userIds;
+	}
+
+	QueryArguments setUserIds(Collection<String> userIds) {
+		this.userIds = userIds;
+		return this;
+	}
+}
@@ -0,0 +1,240 @@
+package io.github.andrewsha256.keycloak_user_search.jpa;
+
+import java.io.IOException;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.Map;
+
+import javax.persistence.EntityManager;
+import javax.persistence.Parameter;
+import javax.persistence.TypedQuery;
+
+import org.hibernate.Filter;
+import org.hibernate.Session;
+import org.hibernate.dialect.pagination.LimitHandler;
+import org.hibernate.engine.spi.RowSelection;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.hql.spi.ParameterTranslations;
+import org.hibernate.hql.spi.QueryTranslator;
+import org.keycloak.util.JsonSerialization;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * Looks at SQL that Hibernate generates for JPQL queries and asks database
+ * planner about it.
+ * 
+ * Uses Hibernate query plan cache, so translation is made only once per
+ * JPQL string (the same as for `em.createQuery`).
+ */
+class QueryInspector {
+
+	/**
+	 * Reads `EXPLAIN` result
+	 */
+	private interface ResultReader<T> {
+		T read(ResultSet resultSet) throws SQLException;
+	}
+
+	private final EntityManager em;
+
+	QueryInspector(EntityManager em) {
+		this.em = em;
+	}
+
+	/**
+	 * SQL that Hibernate generates for `jpql`
+	 * 
+	 * @param jpql
+	 * @return
+	 */
+	String toSql(String jpql) {
+		return this.translator(jpql).getSQLString();
+	}
+
+	/**
+	 * Returns `true` if planner estimates are supported for current database
+	 * @return
+	 */
+	boolean isEstimateSupported() {
+		return this.em.unwrap(Session.class).doReturningWork(
+				connection -> connection.getMetaData().getDatabaseProductName()
+						.toLowerCase().contains("postgresql"));
+	}
+
+	/**
+	 * Planner estimate of row amount returned by `jpql` query (PostgreSQL
+	 * `EXPLAIN (FORMAT JSON)`). `query` must be created from `jpql` with all
+	 * parameters set.
+	 * 
+	 * @param jpql
+	 * @param query
+	 * @return
+	 */
+	long estimateRows(String jpql, TypedQuery<?> query) {
+
+		JsonNode plan = this.explainJson(jpql, query);
+
+		return plan.path(0).path("Plan").path("Plan Rows").asLong();
+	}
+
+	/**
+	 * PostgreSQL `EXPLAIN (FORMAT JSON)` for `jpql` query
+	 * 
+	 * @param jpql
+	 * @param query
+	 * @return
+	 */
+	JsonNode explainJson(String jpql, TypedQuery<?> query) {
+		return this.explain("EXPLAIN (FORMAT JSON) ", jpql, query, resultSet -> {
+			resultSet.next();
+			try {
+				return JsonSerialization.mapper.readTree(resultSet.getString(1));
+			}
+			catch (IOException e) {
+				throw new IllegalStateException("Can't parse query plan", e);
+			}
+		});
+	}
+
+	/**
+	 * Database `EXPLAIN` output for `jpql` query as text (first column of
+	 * every row). `query` must be created from `jpql` with all parameters
+	 * set.
+	 * 
+	 * @param jpql
+	 * @param query
+	 * @return
+	 */
+	String explainText(String jpql, TypedQuery<?> query) {
+		return this.explain("EXPLAIN ", jpql, query, resultSet -> {
+			StringBuilder plan = new StringBuilder();
+			while (resultSet.next()) {
+				if (plan.length() > 0) {
+					plan.append('\n');
+				}
+				plan.append(resultSet.getString(1));
+			}
+			return plan.toString();
+		});
+	}
+
+	/**
+	 * Amount of rows of `jpql` query, but not more than `limit`, counted by
+	 * database:
+	 * <pre>
+	 *	SELECT count(*) FROM (SELECT ... LIMIT :limit) counted
+	 * </pre>
+	 * so counted rows are not transferred to JVM. `query` must be created
+	 * from `jpql` with all (scalar) parameters set.
+	 * 
+	 * Databases without `LIMIT` support in Hibernate dialect count rows of
+	 * `jpql` query cut by JDBC max rows.
+	 * 
+	 * @param jpql
+	 * @param query
+	 * @param limit
+	 * @return
+	 */
+	long countLimited(String jpql, TypedQuery<?> query, int limit) {
+
+		QueryTranslator translator = this.translator(jpql);
+		ParameterTranslations translations = translator.getParameterTranslations();
+		LimitHandler limitHandler = this.factory().getDialect().getLimitHandler();
+
+		RowSelection selection = new RowSelection();
+		selection.setFirstRow(0);
+		selection.setMaxRows(limit);
+
+		if (!limitHandler.supportsLimit()) {
+			return this.em.unwrap(Session.class).doReturningWork(connection -> {
+				try (PreparedStatement statement = connection
+						.prepareStatement(translator.getSQLString())) {
+					this.bind(statement, query, translations, 1);
+					statement.setMaxRows(limit);
+					long rows = 0;
+					try (ResultSet resultSet = statement.executeQuery()) {
+						while (resultSet.next()) {
+							rows++;
+						}
+					}
+					return rows;
+				}
+			});
+		}
+
+		String sql = "select count(*) from ("
+				+ limitHandler.processSql(translator.getSQLString(), selection)
+				+ ") counted";
+
+		return this.em.unwrap(Session.class).doReturningWork(connection -> {
+			try (PreparedStatement statement = connection.prepareStatement(sql)) {
+				int index = 1 + limitHandler
+						.bindLimitParametersAtStartOfQuery(selection, statement, 1);
+				index += this.bind(statement, query, translations, index);
+				limitHandler.bindLimitParametersAtEndOfQuery(selection,
+						statement, index);
+				try (ResultSet resultSet = statement.executeQuery()) {
+					resultSet.next();
+					return resultSet.getLong(1);
+				}
+			}
+		});
+	}
+
+	private <T> T explain(String prefix, String jpql, TypedQuery<?> query,
+			ResultReader<T> reader) {
+
+		QueryTranslator translator = this.translator(jpql);
+		String sql = prefix + translator.getSQLString();
+		ParameterTranslations translations = translator.getParameterTranslations();
+
+		return this.em.unwrap(Session.class).doReturningWork(connection -> {
+			try (PreparedStatement statement = connection.prepareStatement(sql)) {
+				this.bind(statement, query, translations, 1);
+				try (ResultSet resultSet = statement.executeQuery()) {
+					return reader.read(resultSet);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Binds parameters of `query` to their SQL locations starting from
+	 * `index`
+	 * 
+	 * @param statement
+	 * @param query
+	 * @param translations
+	 * @param index JDBC index of the first query parameter
+	 * @return amount of bound SQL parameters
+	 * @throws SQLException
+	 */
+	private int bind(PreparedStatement statement, TypedQuery<?> query,
+			ParameterTranslations translations, int index) throws SQLException {
+
+		int bound = 0;
+		for (Parameter<?> parameter : query.getParameters()) {
+			Object value = query.getParameterValue(parameter);
+			for (int location : translations
+					.getNamedParameterSqlLocations(parameter.getName())) {
+				statement.setObject(location + index, value);
+				bound++;
+			}
+		}
+		return bound;
+	}
+
+	private QueryTranslator translator(String jpql) {
+		Map<String, Filter> filters = Collections.emptyMap();
+		return this.factory().getQueryPlanCache()
+				.getHQLQueryPlan(jpql, false, filters).getTranslators()[0];
+	}
+
+	private SessionFactoryImplementor factory() {
+		return (SessionFactoryImplementor) this.em.unwrap(Session.class)
+				.getSessionFactory();
+	}
+}
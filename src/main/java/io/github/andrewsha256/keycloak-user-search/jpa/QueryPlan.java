@@ -0,0 +1,44 @@
+package io.github.andrewsha256.keycloak_user_search.jpa;
+
+import java.util.Collections;
+import java.util.List;
+
+import javax.persistence.TypedQuery;
+
+/**
+ * Prebuilt JPQL query with ordered parameter-binding plan
+ * 
+ * Plan doesn't depend on search values (and on attribute names), only on
+ * query shape, so it's built once and kept in `QueryPlanCache`.
+ */
+class QueryPlan {
+
+	private final String jpql;
+
+	private final List<ParamBinding> bindings;
+
+	QueryPlan(String jpql, List<ParamBinding> bindings) {
+		this.jpql = jpql;
+		this.bindings = Collections.unmodifiableList(bindings);
+	}
+
+	String getJpql() {
+		return jpql;
+	}
+
+	List<ParamBinding> getBindings() {
+		return bindings;
+	}
+
+	/**
+	 * Sets all query parameters from `args`
+	 * 
+	 * @param query query created from `getJpql()`
+	 * @param args
+	 */
+	<T> void bind(TypedQuery<T> query, QueryArguments args) {
+		for (ParamBinding binding : bindings) {
+			query.setParameter(binding.getName(), binding.resolve(args));
+		}
+	}
+}
@@ -0,0 +1,107 @@
+package io.github.andrewsha256.keycloak_user_search.jpa;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Builds `QueryPlan`: JPQL string and parameter-binding plan at once
+ * 
+ * Search term parameters get positional names (`:p0`, `:p1`...), so neither
+ * search term keys nor attribute names get into JPQL.
+ */
+class QueryPlanBuilder {
+
+	private final StringBuilder jpql = new StringBuilder();
+
+	private final List<ParamBinding> bindings = new ArrayList<>();
+
+	private final Set<ParamBinding.Source> boundSources = EnumSet
+			.noneOf(ParamBinding.Source.class);
+
+	QueryPlanBuilder append(String part) {
+		jpql.append(part);
+		return this;
+	}
+
+	QueryPlanBuilder append(Object part) {
+		jpql.append(part);
+		return this;
+	}
+
+	/**
+	 * Appends named parameter for query-level argument (`:realmId`,
+	 * `:label` etc.). The same parameter may be appended many times.
+	 * 
+	 * @param source
+	 * @return
+	 */
+	QueryPlanBuilder param(ParamBinding.Source source) {
+		String name = this.paramName(source);
+		if (boundSources.add(source)) {
+			bindings.add(new ParamBinding(name, source, -1, -1));
+		}
+		jpql.append(':').append(name);
+		return this;
+	}
+
+	/**
+	 * Appends parameter for attribute name of search term
+	 * 
+	 * @param termIndex
+	 * @return
+	 */
+	QueryPlanBuilder termName(int termIndex) {
+		return this.positional(ParamBinding.Source.TERM_NAME, termIndex, -1);
+	}
+
+	/**
+	 * Appends parameter for one of search term "OR" values: lower-cased
+	 * (`TERM_VALUE`), normalized by `SearchValueNormalizer` for
+	 * `USER_SEARCH_VALUE` table (`TERM_SEARCH_VALUE`) or prefix range bound
+	 * 
+	 * @param source
+	 * @param termIndex
+	 * @param valueIndex
+	 * @return
+	 */
+	QueryPlanBuilder termParam(ParamBinding.Source source, int termIndex,
+			int valueIndex) {
+		return this.positional(source, termIndex, valueIndex);
+	}
+
+	QueryPlan build() {
+		return new QueryPlan(jpql.toString(), bindings);
+	}
+
+	private QueryPlanBuilder positional(ParamBinding.Source source,
+			int termIndex, int valueIndex) {
+		String name = "p" + bindings.size();
+		bindings.add(new ParamBinding(name, source, termIndex, valueIndex));
+		jpql.append(':').append(name);
+		return this;
+	}
+
+	private String paramName(ParamBinding.Source source) {
+		switch (source) {
+			case REALM_ID:
+				return "realmId";
+			case LABEL:
+				return "label";
+			case VALUE:
+				return "value";
+			case ORDER_BY_NAME:
+				return "orderByName";
+			case AFTER_KEY:
+				return "afterKey";
+			case AFTER_ID:
+				return "afterId";
+			case USER_IDS:
+				return "userIds";
+			default:
+				throw new IllegalArgumentException(
+						source + " is not query-level parameter");
+		}
+	}
+}
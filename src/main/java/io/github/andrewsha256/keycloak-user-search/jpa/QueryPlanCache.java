@@ -0,0 +1,99 @@
+package io.github.andrewsha256.keycloak_user_search.jpa;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Bounded LRU cache of `QueryPlan`s keyed by canonical query-shape
+ * fingerprint
+ * 
+ * Shape consists of operation, search term kinds (default field, group or
+ * attribute) with amount of "OR" values, order field and direction, so real
+ * traffic has only a few hundreds of them.
+ * 
+ * One instance per deployment, shared by all providers.
+ */
+public class QueryPlanCache {
+
+	private final int maxSize;
+
+	private final Map<String, QueryPlan> plans;
+
+	private final AtomicLong hits = new AtomicLong();
+
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * @param maxSize max amount of cached plans, `0` disables caching
+	 */
+	public QueryPlanCache(final int maxSize) {
+		this.maxSize = maxSize;
+		this.plans = new LinkedHashMap<String, QueryPlan>(16, 0.75f, true) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(
+					Map.Entry<String, QueryPlan> eldest) {
+				return size() > maxSize;
+			}
+		};
+	}
+
+	/**
+	 * Returns cached plan for `shape` or builds and caches new one
+	 * 
+	 * @param shape
+	 * @param builder
+	 * @return
+	 */
+	QueryPlan getOrBuild(String shape, Supplier<QueryPlan> builder) {
+		QueryPlan plan;
+		synchronized (plans) {
+			plan = plans.get(shape);
+		}
+		if (plan != null) {
+			hits.incrementAndGet();
+			return plan;
+		}
+
+		misses.incrementAndGet();
+		plan = builder.get();
+		if (maxSize > 0) {
+			synchronized (plans) {
+				plans.put(shape, plan);
+			}
+		}
+		return plan;
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * Current amount of cached plans
+	 * @return
+	 */
+	public int getSize() {
+		synchronized (plans) {
+			return plans.size();
+		}
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public void clear() {
+		synchronized (plans) {
+			plans.clear();
+		}
+	}
+}
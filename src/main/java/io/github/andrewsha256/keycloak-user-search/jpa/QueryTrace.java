@@ -0,0 +1,51 @@
+package io.github.andrewsha256.keycloak_user_search.jpa;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Timings of phases of one provider operation for `SlowQueryLog`
+ *
+ * `phase(name)` closes phase that started with the previous call (or with
+ * trace creation).
+ */
+class QueryTrace {
+
+	private final String operation;
+
+	private final long started = System.nanoTime();
+
+	private long phaseStarted = started;
+
+	private final Map<String, Long> phases = new LinkedHashMap<>();
+
+	QueryTrace(String operation) {
+		this.operation = operation;
+	}
+
+	/**
+	 * Ends current phase
+	 *
+	 * @param name
+	 */
+	void phase(String name) {
+		long now = System.nanoTime();
+		phases.merge(name, now - phaseStarted, Long::sum);
+		phaseStarted = now;
+	}
+
+	String getOperation() {
+		return operation;
+	}
+
+	long getElapsedNanos() {
+		return System.nanoTime() - started;
+	}
+
+	/**
+	 * @return `phase => nanoseconds` in order of phases
+	 */
+	Map<String, Long> getPhases() {
+		return phases;
+	}
+}
@@ -0,0 +1,406 @@
+package io.github.andrewsha256.keycloak_user_search.jpa;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.PersistenceException;
+
+import org.hibernate.HibernateException;
+import org.hibernate.Session;
+import org.jboss.logging.Logger;
+import org.keycloak.connections.jpa.util.JpaUtils;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.KeycloakTransaction;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+/**
+ * Read-only database replica for `UserProviderExtended` reads
+ *
+ * Replica has its own `EntityManagerFactory` (Keycloak persistence unit
+ * with entities of Keycloak entity providers) over JNDI datasource or JDBC
+ * URL. Every Keycloak session gets one read-only `EntityManager` with
+ * transaction that ends with session transaction.
+ *
+ * Replica is checked at most once per `checkIntervalMillis`: it's used
+ * while it answers and its replication lag is not bigger than
+ * `maxLagMillis` (PostgreSQL `pg_last_xact_replay_timestamp()`, MySQL
+ * `Seconds_Behind_Master` or custom lag query, other databases are only
+ * checked to be alive). Otherwise, and after failed replica query, reads go
+ * to primary database until the next check.
+ *
+ * One instance per deployment, created by `UserResourceProviderFactory`.
+ */
+public class ReadReplica {
+
+	private static final Logger logger = Logger.getLogger(ReadReplica.class);
+
+	public static final long DEFAULT_MAX_LAG = 10000L;
+
+	public static final long DEFAULT_CHECK_INTERVAL = 5000L;
+
+	/**
+	 * Keycloak persistence unit
+	 */
+	public static final String PERSISTENCE_UNIT = "keycloak-default";
+
+	private static final String ATTRIBUTE = ReadReplica.class.getName();
+
+	/**
+	 * `UserProviderExtended` reads that must not be repeated on primary
+	 * database after replica failure (export could have written part of
+	 * users), their replica errors are rethrown
+	 */
+	private static final Set<String> NOT_REPEATED_METHODS = new HashSet<>(
+			Arrays.asList("exportUsers"));
+
+	private final Map<String, Object> properties;
+
+	private final long maxLagMillis;
+
+	private final long checkIntervalMillis;
+
+	private final String lagQuery;
+
+	private final AtomicBoolean checking = new AtomicBoolean();
+
+	private volatile KeycloakSessionFactory sessionFactory;
+
+	private volatile EntityManagerFactory emf;
+
+	private volatile boolean available;
+
+	private volatile long checkedAt;
+
+	private volatile long lagMillis = -1;
+
+	private volatile String error;
+
+	/**
+	 * Replica that is opened by `start`
+	 *
+	 * @param properties persistence unit properties: datasource or JDBC
+	 *                   connection
+	 * @param maxLagMillis max replication lag
+	 * @param checkIntervalMillis
+	 * @param lagQuery SQL that returns replication lag in milliseconds,
+	 *                 `null` for built-in queries
+	 */
+	public ReadReplica(Map<String, Object> properties, long maxLagMillis,
+			long checkIntervalMillis, String lagQuery) {
+		this.properties = properties;
+		this.maxLagMillis = maxLagMillis;
+		this.checkIntervalMillis = checkIntervalMillis;
+		this.lagQuery = lagQuery;
+	}
+
+	/**
+	 * Replica over already opened `emf` (eg second embedded database)
+	 *
+	 * @param emf
+	 * @param maxLagMillis max replication lag
+	 * @param checkIntervalMillis
+	 * @param lagQuery SQL that returns replication lag in milliseconds,
+	 *                 `null` for built-in queries
+	 */
+	public ReadReplica(EntityManagerFactory emf, long maxLagMillis,
+			long checkIntervalMillis, String lagQuery) {
+		this((Map<String, Object>) null, maxLagMillis, checkIntervalMillis,
+				lagQuery);
+		this.emf = emf;
+	}
+
+	/**
+	 * Opens replica `EntityManagerFactory` (if replica is not available now,
+	 * it's opened by one of the next checks)
+	 *
+	 * @param sessionFactory
+	 */
+	public void start(KeycloakSessionFactory sessionFactory) {
+		this.sessionFactory = sessionFactory;
+		this._check();
+	}
+
+	/**
+	 * Read-only `EntityManager` of `session` or `null` if replica can't be
+	 * used now
+	 *
+	 * @param session
+	 * @return
+	 */
+	public EntityManager entityManager(KeycloakSession session) {
+		EntityManager em = session.getAttribute(ATTRIBUTE,
+				EntityManager.class);
+		if (em != null) {
+			return em;
+		}
+		if (!this.isAvailable()) {
+			return null;
+		}
+		try {
+			em = emf.createEntityManager();
+			ReplicaTransaction transaction = new ReplicaTransaction(em);
+			session.getTransactionManager().enlistAfterCompletion(transaction);
+			if (!transaction.isActive()) {
+				transaction.begin();
+			}
+		}
+		catch (RuntimeException e) {
+			if (em != null) {
+				em.close();
+			}
+			this.failed(e);
+			return null;
+		}
+		session.setAttribute(ATTRIBUTE, em);
+		return em;
+	}
+
+	/**
+	 * Provider that makes `UserProviderExtended` reads with `replica` while
+	 * replica is available, other calls (and reads after replica failure) go
+	 * to `primary`
+	 *
+	 * @param replica provider with replica `EntityManager`
+	 * @param primary
+	 * @return
+	 */
+	public UserProviderExtended route(UserProviderExtended replica,
+			UserProviderExtended primary) {
+
+		return (UserProviderExtended) Proxy.newProxyInstance(
+				UserProviderExtended.class.getClassLoader(),
+				new Class<?>[] { UserProviderExtended.class },
+				(proxy, method, args) -> {
+					if (method.getDeclaringClass() != UserProviderExtended.class
+							|| !available) {
+						return _invoke(primary, method, args);
+					}
+					try {
+						return _invoke(replica, method, args);
+					}
+					catch (PersistenceException | HibernateException e) {
+						this.failed(e);
+						if (NOT_REPEATED_METHODS.contains(method.getName())) {
+							throw e;
+						}
+						return _invoke(primary, method, args);
+					}
+				});
+	}
+
+	/**
+	 * Returns `true` if reads should go to replica (checks replica if the
+	 * last check is older than `checkIntervalMillis`)
+	 *
+	 * @return
+	 */
+	public boolean isAvailable() {
+		if (System.currentTimeMillis() - checkedAt >= checkIntervalMillis) {
+			this._check();
+		}
+		return available;
+	}
+
+	/**
+	 * Marks replica unavailable until the next check
+	 *
+	 * @param e
+	 */
+	void failed(RuntimeException e) {
+		logger.warnf(e, "Read replica failed, reads go to primary database");
+		this.error = String.valueOf(e.getMessage());
+		this.available = false;
+		this.checkedAt = System.currentTimeMillis();
+	}
+
+	/**
+	 * Replica state for `/stats`
+	 *
+	 * @return
+	 */
+	public Map<String, Object> getStatus() {
+		Map<String, Object> status = new LinkedHashMap<>();
+		status.put("available", available);
+		status.put("lag", lagMillis);
+		status.put("maxLag", maxLagMillis);
+		status.put("checkedAt", checkedAt);
+		status.put("error", error);
+		return status;
+	}
+
+	public void close() {
+		if (emf != null && emf.isOpen()) {
+			emf.close();
+		}
+	}
+
+	/**
+	 * Opens `EntityManagerFactory` if needed and measures replication lag.
+	 * Only one thread checks at once, others use the last result.
+	 */
+	private void _check() {
+		if (!checking.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			if (emf == null) {
+				if (sessionFactory == null) {
+					return;
+				}
+				KeycloakModelUtils.runJobInTransaction(sessionFactory,
+						session -> emf = JpaUtils.createEntityManagerFactory(
+								session, PERSISTENCE_UNIT, properties,
+								JpaUtils.class.getClassLoader(), false));
+			}
+
+			EntityManager em = emf.createEntityManager();
+			try {
+				lagMillis = em.unwrap(Session.class)
+						.doReturningWork(this::_lag);
+			}
+			finally {
+				em.close();
+			}
+
+			boolean wasAvailable = available;
+			available = lagMillis <= maxLagMillis;
+			error = available ? null
+					: "Replication lag " + lagMillis + " ms";
+			if (available != wasAvailable) {
+				logger.infof("Read replica is %s (lag %d ms)",
+						available ? "available" : "behind primary", lagMillis);
+			}
+		}
+		catch (RuntimeException e) {
+			logger.warnf(e, "Read replica check failed, reads go to primary database");
+			error = String.valueOf(e.getMessage());
+			lagMillis = -1;
+			available = false;
+		}
+		finally {
+			checkedAt = System.currentTimeMillis();
+			checking.set(false);
+		}
+	}
+
+	/**
+	 * Replication lag in milliseconds, `0` if database can only be checked
+	 * to be alive
+	 *
+	 * @param connection
+	 * @return
+	 * @throws SQLException
+	 */
+	private long _lag(Connection connection) throws SQLException {
+		String product = connection.getMetaData().getDatabaseProductName()
+				.toLowerCase();
+		String query = lagQuery;
+		if (query == null && product.contains("postgresql")) {
+			query = "select case when pg_is_in_recovery() then coalesce("
+					+ "extract(epoch from now() - pg_last_xact_replay_timestamp())"
+					+ " * 1000, 0) else 0 end";
+		}
+		try (Statement statement = connection.createStatement()) {
+			if (query != null) {
+				try (ResultSet result = statement.executeQuery(query)) {
+					return result.next() ? result.getLong(1) : 0;
+				}
+			}
+			if (product.contains("mysql") || product.contains("mariadb")) {
+				try (ResultSet result = statement
+						.executeQuery("show slave status")) {
+					if (!result.next()) {
+						return 0;
+					}
+					long seconds = result.getLong("Seconds_Behind_Master");
+					if (result.wasNull()) {
+						throw new SQLException("Replication is stopped");
+					}
+					return seconds * 1000;
+				}
+			}
+		}
+		if (!connection.isValid(5)) {
+			throw new SQLException("Connection is not valid");
+		}
+		return 0;
+	}
+
+	private static Object _invoke(UserProviderExtended provider, Method method,
+			Object[] args) throws Throwable {
+		try {
+			return method.invoke(provider, args);
+		}
+		catch (InvocationTargetException e) {
+			throw e.getCause();
+		}
+	}
+
+	/**
+	 * Read-only transaction of replica `EntityManager` that ends (and closes
+	 * it) with Keycloak session transaction
+	 */
+	private static class ReplicaTransaction implements KeycloakTransaction {
+
+		private final EntityManager em;
+
+		ReplicaTransaction(EntityManager em) {
+			this.em = em;
+		}
+
+		@Override
+		public void begin() {
+			em.getTransaction().begin();
+			Session session = em.unwrap(Session.class);
+			session.setDefaultReadOnly(true);
+			session.doWork(connection -> connection.setReadOnly(true));
+		}
+
+		@Override
+		public void commit() {
+			// nothing to commit: reads only
+			this.rollback();
+		}
+
+		@Override
+		public void rollback() {
+			try {
+				if (em.getTransaction().isActive()) {
+					em.getTransaction().rollback();
+				}
+			}
+			finally {
+				em.close();
+			}
+		}
+
+		@Override
+		public void setRollbackOnly() {
+			em.getTransaction().setRollbackOnly();
+		}
+
+		@Override
+		public boolean getRollbackOnly() {
+			return em.getTransaction().getRollbackOnly();
+		}
+
+		@Override
+		public boolean isActive() {
+			return em.isOpen() && em.getTransaction().isActive();
+		}
+	}
+}
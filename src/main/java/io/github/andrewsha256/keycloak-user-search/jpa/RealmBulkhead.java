@@ -0,0 +1,414 @@
+package io.github.andrewsha256.keycloak_user_search.jpa;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.keycloak.models.RealmModel;
+
+/**
+ * Per-realm concurrency limiter of provider search calls
+ *
+ * At most `permits` search calls (`searchForUserExtended`, counts, `index`,
+ * `facets`, `exportUsers` etc.) run at once on all realms, and at most
+ * `realmPermits * weight` of them belong to one realm. Waiting calls of all
+ * realms are served in fair order: free permit goes to realm with the
+ * smallest amount of running calls per weight, so realm that floods
+ * service with slow searches waits for its own calls, while calls of other
+ * realms get the next free permits.
+ *
+ * Calls over `queueSize` waiting ones of realm and calls that wait longer
+ * than `timeoutMillis` are rejected with `RealmBusyException`.
+ *
+ * One instance per deployment, shared by all providers.
+ */
+public class RealmBulkhead {
+
+	public static final int DEFAULT_QUEUE_SIZE = 20;
+
+	public static final long DEFAULT_TIMEOUT = 5000L;
+
+	/**
+	 * Provider methods limited by `limit`
+	 */
+	private static final Set<String> LIMITED_METHODS = new HashSet<>(
+			Arrays.asList("searchForUserExtended", "searchForUserFields",
+					"searchIdsExtended", "countUsers", "index", "countIndex",
+					"facets", "exportUsers"));
+
+	private final int permits;
+
+	private final int realmPermits;
+
+	private final int queueSize;
+
+	private final long timeoutMillis;
+
+	private final Map<String, Double> weights;
+
+	private final ReentrantLock lock = new ReentrantLock();
+
+	/**
+	 * State of realms that made calls, guarded by `lock`
+	 */
+	private final Map<String, RealmState> realms = new HashMap<>();
+
+	private int active;
+
+	private long arrivals;
+
+	/**
+	 * @param permits max amount of calls at once on all realms, `0`
+	 *                disables limiter
+	 * @param realmPermits max amount of calls at once of realm with weight
+	 *                     `1`
+	 * @param queueSize max amount of waiting calls of realm
+	 * @param timeoutMillis max time call waits for permit
+	 * @param weights realm weights by realm name (`1` if realm is not there)
+	 */
+	public RealmBulkhead(int permits, int realmPermits, int queueSize,
+			long timeoutMillis, Map<String, Double> weights) {
+		this.permits = permits;
+		this.realmPermits = realmPermits;
+		this.queueSize = queueSize;
+		this.timeoutMillis = timeoutMillis;
+		this.weights = weights;
+	}
+
+	/**
+	 * Parses realm weights: `realm1:2,realm2:0.5`
+	 *
+	 * @param weights
+	 * @return
+	 * @throws IllegalArgumentException if weight is malformed or not
+	 *                                  positive
+	 */
+	public static Map<String, Double> parseWeights(String weights) {
+		if (weights == null || weights.trim().isEmpty()) {
+			return Collections.emptyMap();
+		}
+		Map<String, Double> result = new HashMap<>();
+		for (String item : weights.split(",")) {
+			int colon = item.lastIndexOf(':');
+			if (colon < 1) {
+				throw new IllegalArgumentException(
+						"Realm weight `" + item.trim() + "` is not `realm:weight`");
+			}
+			double weight;
+			try {
+				weight = Double.parseDouble(item.substring(colon + 1).trim());
+			}
+			catch (NumberFormatException e) {
+				throw new IllegalArgumentException(
+						"Realm weight `" + item.trim() + "` is not a number");
+			}
+			if (!(weight > 0)) {
+				throw new IllegalArgumentException(
+						"Realm weight `" + item.trim() + "` is not positive");
+			}
+			result.put(item.substring(0, colon).trim(), weight);
+		}
+		return result;
+	}
+
+	public boolean isEnabled() {
+		return permits > 0;
+	}
+
+	/**
+	 * Provider that takes realm permit for every search call, other methods
+	 * are passed to `provider` as is
+	 *
+	 * @param provider
+	 * @return
+	 */
+	public UserProviderExtended limit(UserProviderExtended provider) {
+
+		return (UserProviderExtended) Proxy.newProxyInstance(
+				UserProviderExtended.class.getClassLoader(),
+				new Class<?>[] { UserProviderExtended.class },
+				(proxy, method, args) -> {
+					String realm = null;
+					if (LIMITED_METHODS.contains(method.getName())) {
+						for (Object arg : args) {
+							if (arg instanceof RealmModel) {
+								realm = ((RealmModel) arg).getName();
+								break;
+							}
+						}
+					}
+					if (realm == null) {
+						return _invoke(provider, method, args);
+					}
+					this.acquire(realm);
+					try {
+						return _invoke(provider, method, args);
+					}
+					finally {
+						this.release(realm);
+					}
+				});
+	}
+
+	/**
+	 * Waits for permit of `realm`
+	 *
+	 * @param realm realm name
+	 * @throws RealmBusyException if realm queue is full or permit is not
+	 *                            given in `timeoutMillis`
+	 */
+	void acquire(String realm) {
+		lock.lock();
+		try {
+			RealmState state = this._state(realm);
+			// call that gets free permit at once doesn't wait (so it's not
+			// rejected even with `queueSize` 0)
+			boolean free = state.waiting.isEmpty() && active < permits
+					&& state.active < this._realmPermits(realm);
+			if (!free && state.waiting.size() >= queueSize) {
+				state.rejected++;
+				throw new RealmBusyException(realm, "Too many searches of realm "
+						+ realm + " are waiting", this._retryAfter());
+			}
+
+			Waiter waiter = new Waiter(arrivals++, lock.newCondition());
+			state.waiting.addLast(waiter);
+			this._dispatch();
+
+			long nanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+			try {
+				while (!waiter.granted && nanos > 0) {
+					nanos = waiter.condition.awaitNanos(nanos);
+				}
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+
+			if (!waiter.granted) {
+				state.waiting.remove(waiter);
+				state.rejected++;
+				throw new RealmBusyException(realm, "Search of realm " + realm
+						+ " waited too long", this._retryAfter());
+			}
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	void release(String realm) {
+		lock.lock();
+		try {
+			RealmState state = realms.get(realm);
+			state.active--;
+			active--;
+			this._dispatch();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Limiter state for `/stats`: permits and calls of all realms, running,
+	 * waiting and rejected calls of `realm`
+	 *
+	 * @param realm realm name
+	 * @return
+	 */
+	public Map<String, Object> getStatus(String realm) {
+		Map<String, Object> status = new LinkedHashMap<>();
+		lock.lock();
+		try {
+			RealmState state = realms.get(realm);
+			status.put("permits", permits);
+			status.put("active", active);
+			status.put("realmPermits", this._realmPermits(realm));
+			status.put("realmActive", state == null ? 0 : state.active);
+			status.put("realmWaiting", state == null ? 0 : state.waiting.size());
+			status.put("realmRejected", state == null ? 0 : state.rejected);
+		}
+		finally {
+			lock.unlock();
+		}
+		return status;
+	}
+
+	/**
+	 * Writes running, waiting and rejected calls of `realm` in Prometheus
+	 * text format
+	 *
+	 * @param out
+	 * @param realm realm name
+	 * @throws IOException
+	 */
+	public void write(Writer out, String realm) throws IOException {
+		long realmActive = 0;
+		long realmWaiting = 0;
+		long realmRejected = 0;
+		lock.lock();
+		try {
+			RealmState state = realms.get(realm);
+			if (state != null) {
+				realmActive = state.active;
+				realmWaiting = state.waiting.size();
+				realmRejected = state.rejected;
+			}
+		}
+		finally {
+			lock.unlock();
+		}
+		String labels = "{realm=\"" + SearchMetrics.escape(realm) + "\"}";
+		_write(out, "user_search_bulkhead_active", "gauge",
+				"Running provider search calls", labels, realmActive);
+		_write(out, "user_search_bulkhead_waiting", "gauge",
+				"Provider search calls waiting for permit", labels,
+				realmWaiting);
+		_write(out, "user_search_bulkhead_rejected_total", "counter",
+				"Provider search calls rejected by bulkhead", labels,
+				realmRejected);
+	}
+
+	/**
+	 * Gives free permits to waiting calls: each permit goes to realm with
+	 * the smallest amount of running calls per weight (ties go to the
+	 * earliest call). Called under `lock`.
+	 */
+	private void _dispatch() {
+		while (active < permits) {
+			RealmState next = null;
+			for (RealmState state : realms.values()) {
+				if (state.waiting.isEmpty()
+						|| state.active >= this._realmPermits(state.name)) {
+					continue;
+				}
+				if (next == null || this._share(state) < this._share(next)
+						|| (this._share(state) == this._share(next)
+								&& state.waiting.peekFirst().arrival < next.waiting
+										.peekFirst().arrival)) {
+					next = state;
+				}
+			}
+			if (next == null) {
+				return;
+			}
+			Waiter waiter = next.waiting.pollFirst();
+			waiter.granted = true;
+			next.active++;
+			active++;
+			waiter.condition.signal();
+		}
+	}
+
+	/**
+	 * Running calls of realm per its weight
+	 *
+	 * @param state
+	 * @return
+	 */
+	private double _share(RealmState state) {
+		return state.active / this._weight(state.name);
+	}
+
+	private double _weight(String realm) {
+		Double weight = weights.get(realm);
+		return weight == null ? 1.0 : weight;
+	}
+
+	/**
+	 * Max amount of running calls of realm: `realmPermits * weight`, at least
+	 * `1` and at most `permits`
+	 *
+	 * @param realm
+	 * @return
+	 */
+	private int _realmPermits(String realm) {
+		long result = Math.round(realmPermits * this._weight(realm));
+		return (int) Math.max(1, Math.min(permits, result));
+	}
+
+	private RealmState _state(String realm) {
+		RealmState state = realms.get(realm);
+		if (state == null) {
+			state = new RealmState(realm);
+			realms.put(realm, state);
+		}
+		return state;
+	}
+
+	/**
+	 * `Retry-After` of rejected calls: permit wait timeout in seconds
+	 *
+	 * @return
+	 */
+	private int _retryAfter() {
+		return (int) Math.max(1, (timeoutMillis + 999) / 1000);
+	}
+
+	private static void _write(Writer out, String name, String type,
+			String help, String labels, long value) throws IOException {
+		out.write("# HELP " + name + " " + help + "\n");
+		out.write("# TYPE " + name + " " + type + "\n");
+		out.write(name + labels + " " + value + "\n");
+	}
+
+	private static Object _invoke(UserProviderExtended provider, Method method,
+			Object[] args) throws Throwable {
+		try {
+			return method.invoke(provider, args);
+		}
+		catch (InvocationTargetException e) {
+			throw e.getCause();
+		}
+	}
+
+	/**
+	 * Running and waiting calls of one realm
+	 */
+	private static class RealmState {
+
+		final String name;
+
+		final Deque<Waiter> waiting = new ArrayDeque<>();
+
+		int active;
+
+		long rejected;
+
+		RealmState(String name) {
+			this.name = name;
+		}
+	}
+
+	/**
+	 * Call waiting for permit
+	 */
+	private static class Waiter {
+
+		final long arrival;
+
+		final Condition condition;
+
+		boolean granted;
+
+		Waiter(long arrival, Condition condition) {
+			this.arrival = arrival;
+			this.condition = condition;
+		}
+	}
+}
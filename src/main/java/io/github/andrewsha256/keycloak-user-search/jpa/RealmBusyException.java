@@ -0,0 +1,33 @@
+package io.github.andrewsha256.keycloak_user_search.jpa;
+
+/**
+ * Provider call is rejected by `RealmBulkhead`: realm's queue is full or
+ * call waited for permit too long
+ */
+public class RealmBusyException extends RuntimeException {
+
+	private static final long serialVersionUID = 1L;
+
+	private final String realm;
+
+	private final int retryAfter;
+
+	/**
+	 * @param realm realm name
+	 * @param message
+	 * @param retryAfter seconds before call should be repeated
+	 */
+	public RealmBusyException(String realm, String message, int retryAfter) {
+		super(message);
+		this.realm = realm;
+		this.retryAfter = retryAfter;
+	}
+
+	public String getRealm() {
+		return realm;
+	}
+
+	public int getRetryAfter() {
+		return retryAfter;
+	}
+}
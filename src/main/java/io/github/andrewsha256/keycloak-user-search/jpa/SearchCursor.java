@@ -0,0 +1,83 @@
+package io.github.andrewsha256.keycloak_user_search.jpa;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * Keyset ("seek") pagination cursor
+ *
+ * Cursor points to the last row of the previous page: its sort key value
+ * and user id. Next page is selected with
+ * `(sortKey, id) > (:afterKey, :afterId)` predicate instead of skipping
+ * `_first` rows, so deep pages cost the same as the first one.
+ *
+ * For clients cursor is an opaque URL-safe string.
+ */
+public class SearchCursor {
+
+	private static final char DELIMITER = '.';
+
+	private final String sortKey;
+
+	private final String id;
+
+	public SearchCursor(String sortKey, String id) {
+		this.sortKey = sortKey == null ? "" : sortKey;
+		this.id = id;
+	}
+
+	/**
+	 * Sort key value of the last row (`null` values are stored as empty
+	 * strings as they are sorted by `coalesce(<key>, '')`)
+	 * @return
+	 */
+	public String getSortKey() {
+		return sortKey;
+	}
+
+	/**
+	 * User id of the last row
+	 * @return
+	 */
+	public String getId() {
+		return id;
+	}
+
+	/**
+	 * Opaque string representation of cursor
+	 * @return
+	 */
+	public String encode() {
+		Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+		return encoder.encodeToString(id.getBytes(StandardCharsets.UTF_8))
+				+ DELIMITER
+				+ encoder.encodeToString(sortKey.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Parses string made by `encode`
+	 *
+	 * @param value
+	 * @return
+	 * @throws IllegalArgumentException if value is not a valid cursor
+	 */
+	public static SearchCursor decode(String value) {
+		int delimiterIndex = value.indexOf(DELIMITER);
+		if (delimiterIndex < 1) {
+			throw new IllegalArgumentException("Malformed search cursor");
+		}
+		Base64.Decoder decoder = Base64.getUrlDecoder();
+		String id = new String(
+				decoder.decode(value.substring(0, delimiterIndex)),
+				StandardCharsets.UTF_8);
+		String sortKey = new String(
+				decoder.decode(value.substring(delimiterIndex + 1)),
+				StandardCharsets.UTF_8);
+		return new SearchCursor(sortKey, id);
+	}
+
+	@Override
+	public String toString() {
+		return encode();
+	}
+}
@@ -0,0 +1,359 @@
+package io.github.andrewsha256.keycloak_user_search.jpa;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.keycloak.models.RealmModel;
+
+/**
+ * Latency, rows and SQL statements histograms of REST endpoints and
+ * provider methods in Prometheus text format
+ *
+ * Series are tagged by realm name, endpoint (or provider method) and
+ * canonical query shape (`UserProviderExtended::queryShape`), so their
+ * amount doesn't depend on search values. After `maxSeries` series of a
+ * kind new shapes are recorded as `other`. Failed calls are counted by
+ * `_errors_total` only.
+ *
+ * One instance per deployment, shared by all providers.
+ */
+public class SearchMetrics {
+
+	public static final int DEFAULT_MAX_SERIES = 1000;
+
+	public static final String OTHER_SHAPE = "other";
+
+	static final double[] DURATION_BUCKETS = { 0.005, 0.01, 0.025, 0.05,
+			0.1, 0.25, 0.5, 1, 2.5, 5, 10 };
+
+	static final double[] ROWS_BUCKETS = { 0, 1, 5, 15, 50, 100, 500, 1000,
+			5000, 10000 };
+
+	static final double[] STATEMENTS_BUCKETS = { 1, 2, 3, 5, 10, 20, 50,
+			100 };
+
+	/**
+	 * Provider methods measured by `instrument`
+	 */
+	private static final Set<String> MEASURED_METHODS = new HashSet<>(
+			Arrays.asList("searchForUserExtended", "searchForUserFields",
+					"searchIdsExtended", "countUsers", "index", "countIndex",
+					"facets"));
+
+	private final Family requests;
+
+	private final Family queries;
+
+	/**
+	 * @param maxSeries max amount of endpoint series and of provider method
+	 *                  series
+	 */
+	public SearchMetrics(int maxSeries) {
+		this.requests = new Family("user_search_request", "endpoint",
+				"REST endpoint request", maxSeries);
+		this.queries = new Family("user_search_query", "method",
+				"provider method call", maxSeries);
+	}
+
+	/**
+	 * Records successful endpoint request
+	 *
+	 * @param realm realm name
+	 * @param endpoint
+	 * @param shape
+	 * @param nanos
+	 * @param rows users or values returned
+	 * @param statements
+	 */
+	public void recordRequest(String realm, String endpoint, String shape,
+			long nanos, long rows, long statements) {
+		requests.series(realm, endpoint, shape).observe(nanos, rows,
+				statements);
+	}
+
+	/**
+	 * Records failed endpoint request
+	 *
+	 * @param realm realm name
+	 * @param endpoint
+	 * @param shape
+	 */
+	public void recordRequestError(String realm, String endpoint,
+			String shape) {
+		requests.series(realm, endpoint, shape).errors.increment();
+	}
+
+	/**
+	 * Provider that records calls of search methods (`searchForUserExtended`,
+	 * `searchForUserFields`, `searchIdsExtended`, `countUsers`, `index`,
+	 * `countIndex`, `facets`), other methods are passed to `provider` as is
+	 *
+	 * @param provider
+	 * @param statements counter of provider's session
+	 * @return
+	 */
+	public UserProviderExtended instrument(UserProviderExtended provider,
+			StatementCounter statements) {
+
+		return (UserProviderExtended) Proxy.newProxyInstance(
+				UserProviderExtended.class.getClassLoader(),
+				new Class<?>[] { UserProviderExtended.class },
+				(proxy, method, args) -> {
+					if (!MEASURED_METHODS.contains(method.getName())) {
+						return _invoke(provider, method, args);
+					}
+					String realm = null;
+					Map<String, List<String>> query = null;
+					for (Object arg : args) {
+						if (arg instanceof RealmModel) {
+							realm = ((RealmModel) arg).getName();
+						}
+						else if (arg instanceof Map && query == null) {
+							@SuppressWarnings("unchecked")
+							Map<String, List<String>> map = (Map<String, List<String>>) arg;
+							query = map;
+						}
+					}
+					Series series = queries.series(realm, method.getName(),
+							query == null ? "" : provider.queryShape(query));
+
+					long statementsBefore = statements.get();
+					long started = System.nanoTime();
+					Object result;
+					try {
+						result = _invoke(provider, method, args);
+					}
+					catch (RuntimeException e) {
+						series.errors.increment();
+						throw e;
+					}
+					series.observe(System.nanoTime() - started, _rows(result),
+							statements.get() - statementsBefore);
+					return result;
+				});
+	}
+
+	/**
+	 * Writes series of `realm` (all series if `null`) in Prometheus text
+	 * format
+	 *
+	 * @param out
+	 * @param realm realm name
+	 * @throws IOException
+	 */
+	public void write(Writer out, String realm) throws IOException {
+		requests.write(out, realm);
+		queries.write(out, realm);
+	}
+
+	private static Object _invoke(UserProviderExtended provider, Method method,
+			Object[] args) throws Throwable {
+		try {
+			return method.invoke(provider, args);
+		}
+		catch (InvocationTargetException e) {
+			throw e.getCause();
+		}
+	}
+
+	/**
+	 * Amount of rows of provider method result: users, values or facet
+	 * values, `1` for counts
+	 *
+	 * @param result
+	 * @return
+	 */
+	private static long _rows(Object result) {
+		if (result instanceof Collection) {
+			return ((Collection<?>) result).size();
+		}
+		if (result instanceof UserList) {
+			return ((UserList) result).getUsers().size();
+		}
+		if (result instanceof UserRowList) {
+			return ((UserRowList) result).getRows().size();
+		}
+		if (result instanceof UserIdList) {
+			return ((UserIdList) result).getIds().size();
+		}
+		if (result instanceof Map) {
+			long rows = 0;
+			for (Object values : ((Map<?, ?>) result).values()) {
+				rows += ((Collection<?>) values).size();
+			}
+			return rows;
+		}
+		return 1;
+	}
+
+	/**
+	 * Prometheus label value escaping
+	 *
+	 * @param value
+	 * @return
+	 */
+	static String escape(String value) {
+		return value.replace("\\", "\\\\").replace("\"", "\\\"")
+				.replace("\n", "\\n");
+	}
+
+	/**
+	 * Series of one kind: `<name>_duration_seconds`, `<name>_rows`,
+	 * `<name>_statements` histograms and `<name>_errors_total` counter
+	 */
+	private static class Family {
+
+		private final String name;
+
+		private final String operationLabel;
+
+		private final String help;
+
+		private final int maxSeries;
+
+		private final ConcurrentMap<List<String>, Series> series =
+				new ConcurrentHashMap<>();
+
+		Family(String name, String operationLabel, String help,
+				int maxSeries) {
+			this.name = name;
+			this.operationLabel = operationLabel;
+			this.help = help;
+			this.maxSeries = maxSeries;
+		}
+
+		Series series(String realm, String operation, String shape) {
+			List<String> key = Arrays.asList(String.valueOf(realm), operation,
+					shape);
+			Series result = series.get(key);
+			if (result != null) {
+				return result;
+			}
+			if (series.size() >= maxSeries) {
+				key = Arrays.asList(String.valueOf(realm), operation,
+						OTHER_SHAPE);
+			}
+			return series.computeIfAbsent(key, k -> new Series());
+		}
+
+		void write(Writer out, String realm) throws IOException {
+			Map<String, Map.Entry<List<String>, Series>> sorted = new TreeMap<>();
+			for (Map.Entry<List<String>, Series> entry : series.entrySet()) {
+				if (realm == null || realm.equals(entry.getKey().get(0))) {
+					sorted.put(String.join("\u0000", entry.getKey()), entry);
+				}
+			}
+
+			this._header(out, "_duration_seconds", "histogram",
+					"Duration of " + help + " in seconds");
+			for (Map.Entry<List<String>, Series> entry : sorted.values()) {
+				entry.getValue().duration.write(out, name + "_duration_seconds",
+						this._labels(entry.getKey()));
+			}
+			this._header(out, "_rows", "histogram",
+					"Rows returned by " + help);
+			for (Map.Entry<List<String>, Series> entry : sorted.values()) {
+				entry.getValue().rows.write(out, name + "_rows",
+						this._labels(entry.getKey()));
+			}
+			this._header(out, "_statements", "histogram",
+					"SQL statements executed by " + help);
+			for (Map.Entry<List<String>, Series> entry : sorted.values()) {
+				entry.getValue().statements.write(out, name + "_statements",
+						this._labels(entry.getKey()));
+			}
+			this._header(out, "_errors_total", "counter",
+					"Failed " + help + "s");
+			for (Map.Entry<List<String>, Series> entry : sorted.values()) {
+				out.write(name + "_errors_total{" + this._labels(entry.getKey())
+						+ "} " + entry.getValue().errors.sum() + "\n");
+			}
+		}
+
+		private void _header(Writer out, String suffix, String type,
+				String text) throws IOException {
+			out.write("# HELP " + name + suffix + " " + text + "\n");
+			out.write("# TYPE " + name + suffix + " " + type + "\n");
+		}
+
+		private String _labels(List<String> key) {
+			return "realm=\"" + escape(key.get(0)) + "\"," + operationLabel
+					+ "=\"" + escape(key.get(1)) + "\",shape=\""
+					+ escape(key.get(2)) + "\"";
+		}
+	}
+
+	private static class Series {
+
+		final Histogram duration = new Histogram(DURATION_BUCKETS);
+
+		final Histogram rows = new Histogram(ROWS_BUCKETS);
+
+		final Histogram statements = new Histogram(STATEMENTS_BUCKETS);
+
+		final LongAdder errors = new LongAdder();
+
+		void observe(long nanos, long rowAmount, long statementAmount) {
+			duration.observe(nanos / 1e9);
+			rows.observe(rowAmount);
+			statements.observe(statementAmount);
+		}
+	}
+
+	/**
+	 * Histogram with fixed upper bounds, buckets are written cumulatively
+	 */
+	private static class Histogram {
+
+		private final double[] bounds;
+
+		private final LongAdder[] buckets;
+
+		private final DoubleAdder sum = new DoubleAdder();
+
+		Histogram(double[] bounds) {
+			this.bounds = bounds;
+			this.buckets = new LongAdder[bounds.length + 1];
+			for (int i = 0; i < buckets.length; i++) {
+				buckets[i] = new LongAdder();
+			}
+		}
+
+		void observe(double value) {
+			int bucket = 0;
+			while (bucket < bounds.length && value > bounds[bucket]) {
+				bucket++;
+			}
+			buckets[bucket].increment();
+			sum.add(value);
+		}
+
+		void write(Writer out, String name, String labels)
+				throws IOException {
+			long count = 0;
+			for (int i = 0; i < buckets.length; i++) {
+				count += buckets[i].sum();
+				String bound = i < bounds.length ? String.valueOf(bounds[i])
+						: "+Inf";
+				out.write(name + "_bucket{" + labels + ",le=\"" + bound + "\"} "
+						+ count + "\n");
+			}
+			out.write(name + "_sum{" + labels + "} " + sum.sum() + "\n");
+			out.write(name + "_count{" + labels + "} " + count + "\n");
+		}
+	}
+}
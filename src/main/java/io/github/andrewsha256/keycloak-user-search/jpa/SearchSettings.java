@@ -0,0 +1,139 @@
+package io.github.andrewsha256.keycloak_user_search.jpa;
+
+import java.util.Collections;
+
+/**
+ * Components shared by all `UserProviderExtended` of one deployment
+ *
+ * Everything is off by default: caches and planner are disabled, filters
+ * look for values in `SearchSource.ENTITIES`, there are no bitmaps,
+ * metrics, read replica or bulkhead and slow operations are not recorded.
+ */
+public class SearchSettings {
+
+	private QueryPlanCache planCache = new QueryPlanCache(0);
+
+	private IndexResultCache indexCache = new IndexResultCache(0, 0);
+
+	private SearchSource searchSource = SearchSource.ENTITIES;
+
+	private FilterPlanner planner = new FilterPlanner(0);
+
+	private BitmapIndexRegistry bitmaps;
+
+	private SearchMetrics metrics;
+
+	private SlowQueryLog slowLog = new SlowQueryLog(0, 0, false);
+
+	private ReadReplica replica;
+
+	private RealmBulkhead bulkhead = new RealmBulkhead(0, 0, 0, 0,
+			Collections.emptyMap());
+
+	public QueryPlanCache getPlanCache() {
+		return planCache;
+	}
+
+	public SearchSettings setPlanCache(QueryPlanCache planCache) {
+		this.planCache = planCache;
+		return this;
+	}
+
+	public IndexResultCache getIndexCache() {
+		return indexCache;
+	}
+
+	public SearchSettings setIndexCache(IndexResultCache indexCache) {
+		this.indexCache = indexCache;
+		return this;
+	}
+
+	public SearchSource getSearchSource() {
+		return searchSource;
+	}
+
+	/**
+	 * @param searchSource where search filters look for values (plan cache
+	 *                     must not be shared between different sources)
+	 * @return
+	 */
+	public SearchSettings setSearchSource(SearchSource searchSource) {
+		this.searchSource = searchSource;
+		return this;
+	}
+
+	public FilterPlanner getPlanner() {
+		return planner;
+	}
+
+	public SearchSettings setPlanner(FilterPlanner planner) {
+		this.planner = planner;
+		return this;
+	}
+
+	/**
+	 * In-memory indexes or `null` if they are not used
+	 *
+	 * @return
+	 */
+	public BitmapIndexRegistry getBitmaps() {
+		return bitmaps;
+	}
+
+	/**
+	 * @param bitmaps in-memory indexes for `BitmapUserProviderExtended`,
+	 *                `null` for `JpaUserProviderExtended`
+	 * @return
+	 */
+	public SearchSettings setBitmaps(BitmapIndexRegistry bitmaps) {
+		this.bitmaps = bitmaps;
+		return this;
+	}
+
+	/**
+	 * Metrics or `null` if they are disabled
+	 *
+	 * @return
+	 */
+	public SearchMetrics getMetrics() {
+		return metrics;
+	}
+
+	public SearchSettings setMetrics(SearchMetrics metrics) {
+		this.metrics = metrics;
+		return this;
+	}
+
+	public SlowQueryLog getSlowQueryLog() {
+		return slowLog;
+	}
+
+	public SearchSettings setSlowQueryLog(SlowQueryLog slowLog) {
+		this.slowLog = slowLog;
+		return this;
+	}
+
+	/**
+	 * Read replica or `null` if reads go to primary database
+	 *
+	 * @return
+	 */
+	public ReadReplica getReplica() {
+		return replica;
+	}
+
+	public SearchSettings setReplica(ReadReplica replica) {
+		this.replica = replica;
+		return this;
+	}
+
+	public RealmBulkhead getBulkhead() {
+		return bulkhead;
+	}
+
+	public SearchSettings setBulkhead(RealmBulkhead bulkhead) {
+		this.bulkhead = bulkhead;
+		return this;
+	}
+
+}
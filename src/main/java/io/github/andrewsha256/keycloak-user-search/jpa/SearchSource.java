@@ -0,0 +1,29 @@
+package io.github.andrewsha256.keycloak_user_search.jpa;
+
+/**
+ * Where search filters look for values
+ */
+public enum SearchSource {
+
+	/**
+	 * Keycloak's tables via `lower(x) like lower(:value)`
+	 */
+	ENTITIES,
+
+	/**
+	 * Normalized `USER_SEARCH_VALUE` table (see `UserSearchValueEntity`),
+	 * which has to be filled by backfill job and kept in sync by
+	 * `user-search` event listener
+	 */
+	SHADOW;
+
+	/**
+	 * Case-insensitive `valueOf`
+	 * 
+	 * @param value
+	 * @return
+	 */
+	public static SearchSource fromString(String value) {
+		return SearchSource.valueOf(value.trim().toUpperCase());
+	}
+}
@@ -11,6 +11,38 @@ import java.util.List;
  */
 class SearchTerm {
 
+	/**
+	 * How value is compared, decided by its `%` and `_` wildcards
+	 */
+	enum ValueKind {
+
+		/**
+		 * No wildcards: `=`
+		 */
+		EXACT('E'),
+
+		/**
+		 * Single trailing `%` (`ivan%`): index range plus `like`
+		 */
+		PREFIX('P'),
+
+		/**
+		 * Single leading `%` (`%gmail.com`): `like`
+		 */
+		SUFFIX('S'),
+
+		/**
+		 * Any other pattern (`%ome val%`, `iv_n`): `like`
+		 */
+		CONTAINS('C');
+
+		private final char code;
+
+		ValueKind(char code) {
+			this.code = code;
+		}
+	}
+
 	private String label;
 
 	private List<String> values;
@@ -27,6 +59,106 @@ class SearchTerm {
 		this.isLabelDefault = isLabelDefault;
 	}
 
+	/**
+	 * Query-shape part of term: kind of label (default field with its name,
+	 * group or attribute) and kinds of "OR" values. Attribute name is not a
+	 * part of shape as it's a query parameter.
+	 * 
+	 * @return
+	 */
+	public String shape() {
+		String kind;
+		if (isLabelDefault) {
+			kind = "u." + label;
+		}
+		else if (JpaUserProviderExtended.GROUP_FIELD.equals(label)) {
+			kind = "group";
+		}
+		else {
+			kind = "attr";
+		}
+		StringBuilder shape = new StringBuilder(kind).append(':');
+		for (String value : values) {
+			shape.append(classify(value).code);
+		}
+		return shape.toString();
+	}
+
+	/**
+	 * Kind of one of "OR" values
+	 * 
+	 * @param valueIndex
+	 * @return
+	 */
+	public ValueKind getValueKind(int valueIndex) {
+		return classify(values.get(valueIndex));
+	}
+
+	/**
+	 * Value kind. `_` matches any character like in SQL, so values with it
+	 * are never exact. Prefix has to have upper bound (see `upperBound`),
+	 * otherwise it's searched by `like` only.
+	 * 
+	 * @param value
+	 * @return
+	 */
+	static ValueKind classify(String value) {
+		int percents = 0;
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '_') {
+				return ValueKind.CONTAINS;
+			}
+			if (c == '%') {
+				percents++;
+			}
+		}
+		if (percents == 0) {
+			return ValueKind.EXACT;
+		}
+		if (percents == 1 && value.length() > 1) {
+			if (value.charAt(value.length() - 1) == '%'
+					&& upperBound(prefix(value.toLowerCase())) != null) {
+				return ValueKind.PREFIX;
+			}
+			if (value.charAt(0) == '%') {
+				return ValueKind.SUFFIX;
+			}
+		}
+		return ValueKind.CONTAINS;
+	}
+
+	/**
+	 * Prefix value without trailing `%`
+	 * 
+	 * @param value
+	 * @return
+	 */
+	static String prefix(String value) {
+		return value.endsWith("%") ? value.substring(0, value.length() - 1)
+				: value;
+	}
+
+	/**
+	 * Exclusive upper bound of strings starting with lower-cased `prefix`:
+	 * its last latin letter or digit incremented, the rest is cut
+	 * (`ivan` => `ivao`, `az-` => `b`). Only `a`-`y` and `0`-`8` are
+	 * incremented, so bound orders the same way in linguistic collations,
+	 * which ignore punctuation.
+	 * 
+	 * @param prefix
+	 * @return bound or `null` if prefix has no letters or digits to increment
+	 */
+	static String upperBound(String prefix) {
+		for (int i = prefix.length() - 1; i >= 0; i--) {
+			char c = prefix.charAt(i);
+			if ((c >= 'a' && c < 'z') || (c >= '0' && c < '9')) {
+				return prefix.substring(0, i) + (char) (c + 1);
+			}
+		}
+		return null;
+	}
+
 	public boolean isEmpty() {
 		return label.isEmpty() || values.isEmpty();
 	}
@@ -1,14 +1,23 @@
 package io.github.andrewsha256.keycloak_user_search.jpa;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 
 class SearchTermMap extends HashMap<String, SearchTerm> {
 
 	private static final long serialVersionUID = 1L;
 
+	private static final Comparator<SearchTerm> CANONICAL_ORDER =
+			Comparator.comparing(SearchTerm::shape)
+				.thenComparing(SearchTerm::getLabel)
+				.thenComparing(term -> term.getValues().toString());
+
 	public SearchTermMap() {
 	}
 
@@ -24,6 +33,24 @@ class SearchTermMap extends HashMap<String, SearchTerm> {
 		super(initialCapacity, loadFactor);
 	}
 
+	/**
+	 * Terms in canonical order: sorted by shape, so queries with the same
+	 * set of term shapes are built the same way regardless of `HashMap`
+	 * order, then by label and values to make order stable.
+	 * 
+	 * @return
+	 */
+	public List<SearchTerm> canonicalTerms() {
+		List<SearchTerm> terms = new ArrayList<>();
+		for (SearchTerm term : this.values()) {
+			if (!term.isEmpty()) {
+				terms.add(term);
+			}
+		}
+		Collections.sort(terms, CANONICAL_ORDER);
+		return terms;
+	}
+
 	public boolean hasNoneDefaultLabels() {
 		Collection<SearchTerm> values = this.values();
 		if(values.size() < 1) {
@@ -0,0 +1,30 @@
+package io.github.andrewsha256.keycloak_user_search.jpa;
+
+import java.text.Normalizer;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/**
+ * Normalizes values of `USER_SEARCH_VALUE` table and search terms compared
+ * with them: accent folding (`Jérôme` -> `jerome`) and lower case
+ */
+public final class SearchValueNormalizer {
+
+	private static final Pattern MARKS = Pattern.compile("\\p{M}+");
+
+	private SearchValueNormalizer() {
+	}
+
+	/**
+	 * @param value
+	 * @return normalized value or `null` for `null`
+	 */
+	public static String normalize(String value) {
+		if (value == null) {
+			return null;
+		}
+		return MARKS
+				.matcher(Normalizer.normalize(value, Normalizer.Form.NFD))
+				.replaceAll("").toLowerCase(Locale.ROOT);
+	}
+}
@@ -0,0 +1,186 @@
+package io.github.andrewsha256.keycloak_user_search.jpa;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import javax.persistence.EntityManager;
+
+import org.keycloak.models.jpa.entities.GroupEntity;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+import io.github.andrewsha256.keycloak_user_search.jpa.entities.UserSearchValueEntity;
+
+/**
+ * Writes `USER_SEARCH_VALUE` rows (see `UserSearchValueEntity`)
+ *
+ * Works in caller's transaction: event listener uses request's
+ * EntityManager, backfill job runs every batch in its own transaction.
+ */
+public class ShadowSearchIndexer {
+
+	/**
+	 * `USER_SEARCH_VALUE.VALUE` and `NAME` columns length
+	 */
+	public static final int MAX_LENGTH = 255;
+
+	private final EntityManager em;
+
+	public ShadowSearchIndexer(EntityManager em) {
+		this.em = em;
+	}
+
+	/**
+	 * Replaces rows of users with their current fields, attributes and
+	 * groups. Rows of removed users are just deleted.
+	 *
+	 * @param realmId
+	 * @param userIds
+	 */
+	public void reindexUsers(String realmId, Collection<String> userIds) {
+		List<String> ids = new ArrayList<>(userIds);
+		for (int from = 0; from < ids.size();
+				from += JpaUserProviderExtended.IN_PARAMS_CHUNK_SIZE) {
+			List<String> chunk = ids.subList(from, Math.min(ids.size(),
+					from + JpaUserProviderExtended.IN_PARAMS_CHUNK_SIZE));
+			this._reindexChunk(realmId, chunk);
+		}
+	}
+
+	/**
+	 * Reindexes next batch of realm's users in id order
+	 *
+	 * @param realmId
+	 * @param afterId last user id of previous batch, `null` for the first one
+	 * @param batchSize
+	 * @return ids of reindexed users (empty if there are no more users)
+	 */
+	public List<String> reindexBatch(String realmId, String afterId,
+			int batchSize) {
+		List<UserDocument> documents = UserDocument.loadBatch(em, realmId,
+				afterId, batchSize);
+		List<String> ids = new ArrayList<>(documents.size());
+		for (UserDocument document : documents) {
+			ids.add(document.getUserId());
+		}
+		this.removeUsers(ids);
+		this._persist(realmId, documents);
+		return ids;
+	}
+
+	/**
+	 * Updates group name in rows of all its members
+	 *
+	 * @param groupId
+	 */
+	public void reindexGroup(String groupId) {
+		GroupEntity group = em.find(GroupEntity.class, groupId);
+		if (group == null) {
+			this.removeGroup(groupId);
+			return;
+		}
+		em.createQuery("update UserSearchValueEntity v set v.value = :value"
+				+ " where v.kind = :kind and v.name = :groupId")
+				.setParameter("value", _value(group.getName()))
+				.setParameter("kind", UserSearchValueEntity.KIND_GROUP)
+				.setParameter("groupId", groupId)
+				.executeUpdate();
+	}
+
+	public void removeGroup(String groupId) {
+		em.createQuery("delete from UserSearchValueEntity v"
+				+ " where v.kind = :kind and v.name = :groupId")
+				.setParameter("kind", UserSearchValueEntity.KIND_GROUP)
+				.setParameter("groupId", groupId)
+				.executeUpdate();
+	}
+
+	/**
+	 * Removes group rows of realm's groups that don't exist anymore (eg
+	 * subgroups removed with their parent)
+	 *
+	 * @param realmId
+	 */
+	public void removeStaleGroups(String realmId) {
+		em.createQuery("delete from UserSearchValueEntity v"
+				+ " where v.realmId = :realmId and v.kind = :kind"
+				+ " and v.name not in (select g.id from GroupEntity g"
+				+ " where g.realm.id = :realmId)")
+				.setParameter("realmId", realmId)
+				.setParameter("kind", UserSearchValueEntity.KIND_GROUP)
+				.executeUpdate();
+	}
+
+	public void removeUsers(Collection<String> userIds) {
+		List<String> ids = new ArrayList<>(userIds);
+		for (int from = 0; from < ids.size();
+				from += JpaUserProviderExtended.IN_PARAMS_CHUNK_SIZE) {
+			em.createQuery("delete from UserSearchValueEntity v"
+					+ " where v.userId in (:ids)")
+					.setParameter("ids", ids.subList(from, Math.min(ids.size(),
+							from + JpaUserProviderExtended.IN_PARAMS_CHUNK_SIZE)))
+					.executeUpdate();
+		}
+	}
+
+	public void removeRealm(String realmId) {
+		em.createQuery("delete from UserSearchValueEntity v"
+				+ " where v.realmId = :realmId")
+				.setParameter("realmId", realmId)
+				.executeUpdate();
+	}
+
+	private void _reindexChunk(String realmId, List<String> ids) {
+		this.removeUsers(ids);
+		this._persist(realmId, UserDocument.load(em, ids));
+	}
+
+	private void _persist(String realmId, List<UserDocument> documents) {
+		for (UserDocument document : documents) {
+			String userId = document.getUserId();
+			for (Map.Entry<String, String> field : document.getFields()
+					.entrySet()) {
+				this._persist(realmId, userId, UserSearchValueEntity.KIND_FIELD,
+						field.getKey(), field.getValue());
+			}
+			for (String[] attr : document.getAttributes()) {
+				this._persist(realmId, userId,
+						UserSearchValueEntity.KIND_ATTRIBUTE, attr[0], attr[1]);
+			}
+			for (Map.Entry<String, String> group : document.getGroups()
+					.entrySet()) {
+				this._persist(realmId, userId, UserSearchValueEntity.KIND_GROUP,
+						group.getKey(), group.getValue());
+			}
+		}
+	}
+
+	private void _persist(String realmId, String userId, String kind,
+			String name, String value) {
+		if (value == null || name == null || name.length() > MAX_LENGTH) {
+			return;
+		}
+		UserSearchValueEntity entity = new UserSearchValueEntity();
+		entity.setId(KeycloakModelUtils.generateId());
+		entity.setRealmId(realmId);
+		entity.setUserId(userId);
+		entity.setKind(kind);
+		entity.setName(name);
+		entity.setValue(_value(value));
+		em.persist(entity);
+	}
+
+	/**
+	 * Normalized value cut to column length
+	 *
+	 * @param value
+	 * @return
+	 */
+	private static String _value(String value) {
+		String result = SearchValueNormalizer.normalize(value);
+		return result.length() > MAX_LENGTH
+				? result.substring(0, MAX_LENGTH)
+				: result;
+	}
+}
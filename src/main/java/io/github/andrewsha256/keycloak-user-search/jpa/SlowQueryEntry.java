@@ -0,0 +1,126 @@
+package io.github.andrewsha256.keycloak_user_search.jpa;
+
+import java.util.Map;
+
+/**
+ * One record of `SlowQueryLog`
+ */
+public class SlowQueryEntry {
+
+	private final long timestamp;
+
+	private final String realmId;
+
+	private final String operation;
+
+	private final String shape;
+
+	private final String sql;
+
+	private final Map<String, String> parameters;
+
+	private final long rows;
+
+	private final double durationMillis;
+
+	private final Map<String, Double> phases;
+
+	private final String plan;
+
+	SlowQueryEntry(long timestamp, String realmId, String operation,
+			String shape, String sql, Map<String, String> parameters,
+			long rows, double durationMillis, Map<String, Double> phases,
+			String plan) {
+		this.timestamp = timestamp;
+		this.realmId = realmId;
+		this.operation = operation;
+		this.shape = shape;
+		this.sql = sql;
+		this.parameters = parameters;
+		this.rows = rows;
+		this.durationMillis = durationMillis;
+		this.phases = phases;
+		this.plan = plan;
+	}
+
+	/**
+	 * Epoch milliseconds of operation end
+	 *
+	 * @return
+	 */
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	public String getRealmId() {
+		return realmId;
+	}
+
+	/**
+	 * `search`, `countUsers`, `countIndex` or `index`
+	 *
+	 * @return
+	 */
+	public String getOperation() {
+		return operation;
+	}
+
+	/**
+	 * Canonical query shape (`QueryPlanCache` key)
+	 *
+	 * @return
+	 */
+	public String getShape() {
+		return shape;
+	}
+
+	/**
+	 * SQL of main query without `limit`/`offset`
+	 *
+	 * @return
+	 */
+	public String getSql() {
+		return sql;
+	}
+
+	/**
+	 * Parameter names with types and sizes of their values (values
+	 * themselves are not kept)
+	 *
+	 * @return
+	 */
+	public Map<String, String> getParameters() {
+		return parameters;
+	}
+
+	/**
+	 * Users or values returned, counted amount for counts
+	 *
+	 * @return
+	 */
+	public long getRows() {
+		return rows;
+	}
+
+	public double getDurationMillis() {
+		return durationMillis;
+	}
+
+	/**
+	 * `phase => milliseconds` in order of phases
+	 *
+	 * @return
+	 */
+	public Map<String, Double> getPhases() {
+		return phases;
+	}
+
+	/**
+	 * Database `EXPLAIN` output or `null` if it's not captured
+	 *
+	 * @return
+	 */
+	public String getPlan() {
+		return plan;
+	}
+}
@@ -0,0 +1,173 @@
+package io.github.andrewsha256.keycloak_user_search.jpa;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.persistence.EntityManager;
+import javax.persistence.Parameter;
+import javax.persistence.TypedQuery;
+
+import org.jboss.logging.Logger;
+
+/**
+ * Log of provider operations that took longer than threshold
+ *
+ * Every slow operation is logged at `WARN` level and kept in ring buffer of
+ * the last `size` entries: canonical query shape, SQL, parameter types
+ * (values are redacted), rows, phase timings and optionally database
+ * `EXPLAIN` (made by extra statement right after slow query).
+ *
+ * One instance per deployment, shared by all providers.
+ */
+public class SlowQueryLog {
+
+	private static final Logger logger = Logger.getLogger(SlowQueryLog.class);
+
+	public static final long DEFAULT_THRESHOLD = 1000L;
+
+	public static final int DEFAULT_SIZE = 100;
+
+	private final long thresholdNanos;
+
+	private final int size;
+
+	private final boolean explain;
+
+	private final Deque<SlowQueryEntry> entries = new ArrayDeque<>();
+
+	/**
+	 * @param thresholdMillis min duration of logged operation, `0` disables
+	 *                        log
+	 * @param size amount of kept entries
+	 * @param explain captures `EXPLAIN` of slow queries
+	 */
+	public SlowQueryLog(long thresholdMillis, int size, boolean explain) {
+		this.thresholdNanos = thresholdMillis * 1000000L;
+		this.size = size;
+		this.explain = explain;
+	}
+
+	public boolean isEnabled() {
+		return thresholdNanos > 0;
+	}
+
+	/**
+	 * Starts trace of operation
+	 *
+	 * @param operation
+	 * @return
+	 */
+	QueryTrace start(String operation) {
+		return new QueryTrace(operation);
+	}
+
+	/**
+	 * Ends `trace` and records it if it's slow
+	 *
+	 * @param trace
+	 * @param em
+	 * @param realmId
+	 * @param shape
+	 * @param jpql main query of operation
+	 * @param query `jpql` query with all parameters set
+	 * @param rows
+	 */
+	void finish(QueryTrace trace, EntityManager em, String realmId,
+			String shape, String jpql, TypedQuery<?> query, long rows) {
+
+		long elapsed = trace.getElapsedNanos();
+		if (!this.isEnabled() || elapsed < thresholdNanos) {
+			return;
+		}
+
+		QueryInspector inspector = new QueryInspector(em);
+
+		String sql;
+		try {
+			sql = inspector.toSql(jpql);
+		}
+		catch (RuntimeException e) {
+			sql = jpql;
+		}
+
+		Map<String, String> parameters = new TreeMap<>();
+		for (Parameter<?> parameter : query.getParameters()) {
+			parameters.put(parameter.getName(),
+					_redact(query.getParameterValue(parameter)));
+		}
+
+		Map<String, Double> phases = new LinkedHashMap<>();
+		for (Map.Entry<String, Long> phase : trace.getPhases().entrySet()) {
+			phases.put(phase.getKey(), phase.getValue() / 1e6);
+		}
+
+		String plan = null;
+		if (explain) {
+			try {
+				plan = inspector.explainText(jpql, query);
+			}
+			catch (RuntimeException e) {
+				plan = "EXPLAIN failed: " + e.getMessage();
+			}
+		}
+
+		SlowQueryEntry entry = new SlowQueryEntry(System.currentTimeMillis(),
+				realmId, trace.getOperation(), shape, sql, parameters, rows,
+				elapsed / 1e6, phases, plan);
+
+		logger.warnf("Slow %s in realm %s: %.1f ms, %d rows, phases %s, "
+				+ "shape %s, SQL %s, parameters %s%s", entry.getOperation(),
+				realmId, entry.getDurationMillis(), rows, phases, shape, sql,
+				parameters, plan == null ? "" : ", plan:\n" + plan);
+
+		synchronized (entries) {
+			entries.addFirst(entry);
+			while (entries.size() > size) {
+				entries.removeLast();
+			}
+		}
+	}
+
+	/**
+	 * Kept entries of realm, the most recent first
+	 *
+	 * @param realmId
+	 * @return
+	 */
+	public List<SlowQueryEntry> getEntries(String realmId) {
+		List<SlowQueryEntry> result = new ArrayList<>();
+		synchronized (entries) {
+			for (SlowQueryEntry entry : entries) {
+				if (entry.getRealmId().equals(realmId)) {
+					result.add(entry);
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Type and size of parameter value instead of value itself
+	 *
+	 * @param value
+	 * @return
+	 */
+	private static String _redact(Object value) {
+		if (value == null) {
+			return "null";
+		}
+		if (value instanceof String) {
+			return "String(" + ((String) value).length() + ")";
+		}
+		if (value instanceof Collection) {
+			return "Collection(" + ((Collection<?>) value).size() + ")";
+		}
+		return value.getClass().getSimpleName();
+	}
+}
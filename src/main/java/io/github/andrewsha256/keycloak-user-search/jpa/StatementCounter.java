@@ -0,0 +1,78 @@
+package io.github.andrewsha256.keycloak_user_search.jpa;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+import javax.persistence.EntityManager;
+
+import org.hibernate.BaseSessionEventListener;
+import org.hibernate.Session;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.KeycloakSession;
+
+/**
+ * Counts SQL statements executed by Hibernate session of Keycloak session
+ * (queries of providers, lazy loads of `UserModel`s etc.)
+ *
+ * Statements of a call are the difference of `get()` before and after it.
+ * Keycloak session is used by one thread, so counter is not synchronized.
+ */
+public class StatementCounter extends BaseSessionEventListener {
+
+	private static final long serialVersionUID = 1L;
+
+	private static final String ATTRIBUTE = StatementCounter.class.getName();
+
+	private final Set<EntityManager> registered = Collections
+			.newSetFromMap(new IdentityHashMap<>());
+
+	private long statements;
+
+	/**
+	 * Counter of `session`: registered in its Hibernate session on first
+	 * call
+	 *
+	 * @param session
+	 * @return
+	 */
+	public static StatementCounter of(KeycloakSession session) {
+		StatementCounter counter = session.getAttribute(ATTRIBUTE,
+				StatementCounter.class);
+		if (counter == null) {
+			counter = new StatementCounter();
+			counter.register(session.getProvider(JpaConnectionProvider.class)
+					.getEntityManager());
+			session.setAttribute(ATTRIBUTE, counter);
+		}
+		return counter;
+	}
+
+	/**
+	 * Counts statements of one more `EntityManager` of Keycloak session (eg
+	 * read replica)
+	 *
+	 * @param em
+	 * @return
+	 */
+	public StatementCounter register(EntityManager em) {
+		if (registered.add(em)) {
+			em.unwrap(Session.class).addEventListeners(this);
+		}
+		return this;
+	}
+
+	@Override
+	public void jdbcExecuteStatementStart() {
+		statements++;
+	}
+
+	/**
+	 * Amount of statements executed since counter is registered
+	 *
+	 * @return
+	 */
+	public long get() {
+		return statements;
+	}
+}
@@ -0,0 +1,44 @@
+package io.github.andrewsha256.keycloak_user_search.jpa;
+
+/**
+ * Total amount of search (or index) results and strategy it was counted with
+ */
+public class TotalCount {
+
+	private final long value;
+
+	private final CountStrategy strategy;
+
+	public TotalCount(long value, CountStrategy strategy) {
+		this.value = value;
+		this.strategy = strategy;
+	}
+
+	/**
+	 * Counted value: exact amount, not more than `cap + 1` for `capped`,
+	 * estimated amount for `estimate` and `UserList.TOTAL_UNKNOWN` for `none`
+	 * @return
+	 */
+	public long getValue() {
+		return value;
+	}
+
+	/**
+	 * Strategy that was really used (`estimate` may fall back to `capped`)
+	 * @return
+	 */
+	public CountStrategy getStrategy() {
+		return strategy;
+	}
+
+	/**
+	 * Returns `true` if it's known for sure that nothing matches query, so
+	 * there is no need to select results
+	 * @return
+	 */
+	public boolean isZero() {
+		return value == 0
+				&& (strategy.getType() == CountStrategy.Type.EXACT
+					|| strategy.getType() == CountStrategy.Type.CAPPED);
+	}
+}
@@ -0,0 +1,165 @@
+package io.github.andrewsha256.keycloak_user_search.jpa;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.persistence.EntityManager;
+
+import org.keycloak.models.UserModel;
+import org.keycloak.models.jpa.entities.UserAttributeEntity;
+import org.keycloak.models.jpa.entities.UserEntity;
+
+/**
+ * Searchable data of single user: default fields, attributes and groups
+ *
+ * Snapshot loaded by few queries per batch of users for search indexes
+ * (`USER_SEARCH_VALUE` table, `BitmapIndex`).
+ */
+public class UserDocument {
+
+	private final String userId;
+
+	private final Map<String, String> fields = new LinkedHashMap<>();
+
+	private final List<String[]> attributes = new ArrayList<>();
+
+	private final Map<String, String> groups = new LinkedHashMap<>();
+
+	public UserDocument(String userId) {
+		this.userId = userId;
+	}
+
+	/**
+	 * Loads documents of realm's users that follow `afterId` in id order
+	 *
+	 * @param em
+	 * @param realmId
+	 * @param afterId last user id of previous batch, `null` for the first one
+	 * @param batchSize
+	 * @return documents in user id order (empty if there are no more users)
+	 */
+	public static List<UserDocument> loadBatch(EntityManager em,
+			String realmId, String afterId, int batchSize) {
+
+		List<String> ids = em.createQuery("select u.id from UserEntity u"
+				+ " where u.realmId = :realmId and u.id > :afterId"
+				+ " order by u.id", String.class)
+				.setParameter("realmId", realmId)
+				.setParameter("afterId", afterId == null ? "" : afterId)
+				.setMaxResults(batchSize)
+				.getResultList();
+
+		Map<String, UserDocument> loaded = new LinkedHashMap<>();
+		for (UserDocument document : load(em, ids)) {
+			loaded.put(document.getUserId(), document);
+		}
+		List<UserDocument> result = new ArrayList<>(ids.size());
+		for (String id : ids) {
+			if (loaded.containsKey(id)) {
+				result.add(loaded.get(id));
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Loads documents of users. Removed users are not presented in result.
+	 *
+	 * @param em
+	 * @param userIds
+	 * @return
+	 */
+	public static List<UserDocument> load(EntityManager em,
+			Collection<String> userIds) {
+
+		List<String> ids = new ArrayList<>(userIds);
+		List<UserDocument> result = new ArrayList<>(ids.size());
+		for (int from = 0; from < ids.size();
+				from += JpaUserProviderExtended.IN_PARAMS_CHUNK_SIZE) {
+			result.addAll(_loadChunk(em, ids.subList(from, Math.min(ids.size(),
+					from + JpaUserProviderExtended.IN_PARAMS_CHUNK_SIZE))));
+		}
+		return result;
+	}
+
+	public String getUserId() {
+		return userId;
+	}
+
+	/**
+	 * Not `null` default fields: `username`, `email`, `firstName`, `lastName`
+	 *
+	 * @return
+	 */
+	public Map<String, String> getFields() {
+		return fields;
+	}
+
+	/**
+	 * Attribute values: `[name, value]` pairs
+	 *
+	 * @return
+	 */
+	public List<String[]> getAttributes() {
+		return attributes;
+	}
+
+	/**
+	 * User groups: `groupId => group name`
+	 *
+	 * @return
+	 */
+	public Map<String, String> getGroups() {
+		return groups;
+	}
+
+	private static List<UserDocument> _loadChunk(EntityManager em,
+			List<String> ids) {
+
+		Map<String, UserDocument> documents = new LinkedHashMap<>();
+
+		List<UserEntity> users = em.createQuery("select distinct u"
+				+ " from UserEntity u left join fetch u.attributes"
+				+ " where u.id in (:ids)", UserEntity.class)
+				.setParameter("ids", ids)
+				.getResultList();
+		for (UserEntity user : users) {
+			UserDocument document = new UserDocument(user.getId());
+			document._putField(UserModel.USERNAME, user.getUsername());
+			document._putField(UserModel.EMAIL, user.getEmail());
+			document._putField(UserModel.FIRST_NAME, user.getFirstName());
+			document._putField(UserModel.LAST_NAME, user.getLastName());
+			for (UserAttributeEntity attr : user.getAttributes()) {
+				if (attr.getValue() != null) {
+					document.attributes.add(new String[] { attr.getName(),
+							attr.getValue() });
+				}
+			}
+			documents.put(user.getId(), document);
+		}
+
+		List<Object[]> groups = em.createQuery("select gm.user.id, g.id, g.name"
+				+ " from UserGroupMembershipEntity gm"
+				+ " join GroupEntity g on gm.groupId = g.id"
+				+ " where gm.user.id in (:ids)", Object[].class)
+				.setParameter("ids", ids)
+				.getResultList();
+		for (Object[] row : groups) {
+			UserDocument document = documents.get(row[0]);
+			if (document != null) {
+				document.groups.put((String) row[1], (String) row[2]);
+			}
+		}
+
+		return new ArrayList<>(documents.values());
+	}
+
+	private void _putField(String name, String value) {
+		if (value != null) {
+			fields.put(name, value);
+		}
+	}
+}
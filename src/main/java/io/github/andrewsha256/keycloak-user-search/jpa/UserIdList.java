@@ -0,0 +1,34 @@
+package io.github.andrewsha256.keycloak_user_search.jpa;
+
+import java.util.List;
+
+/**
+ * Search result with user ids only
+ */
+public class UserIdList {
+
+	private final List<String> ids;
+
+	private final SearchCursor nextCursor;
+
+	public UserIdList(List<String> ids, SearchCursor nextCursor) {
+		this.ids = ids;
+		this.nextCursor = nextCursor;
+	}
+
+	/**
+	 * Ids of portion of users
+	 * @return
+	 */
+	public List<String> getIds() {
+		return ids;
+	}
+
+	/**
+	 * Cursor of the last user in portion or `null` if there are no more users
+	 * @return
+	 */
+	public SearchCursor getNextCursor() {
+		return nextCursor;
+	}
+}
@@ -9,13 +9,26 @@ import org.keycloak.models.UserModel;
  */
 public class UserList {
 
+	/**
+	 * `total` value for results that were made without counting
+	 */
+	public static final long TOTAL_UNKNOWN = -1;
+
 	private long total;
 
 	private List<UserModel> users;
 
+	private SearchCursor nextCursor;
+
 	public UserList(long total, List<UserModel> users) {
+		this(total, users, null);
+	}
+
+	public UserList(long total, List<UserModel> users,
+			SearchCursor nextCursor) {
 		this.total = total;
 		this.users = users;
+		this.nextCursor = nextCursor;
 	}
 
 	/**
@@ -33,4 +46,12 @@ public class UserList {
 	public List<UserModel> getUsers() {
 		return users;
 	}
+
+	/**
+	 * Cursor of the last user in portion or `null` if there are no more users
+	 * @return
+	 */
+	public SearchCursor getNextCursor() {
+		return nextCursor;
+	}
 }
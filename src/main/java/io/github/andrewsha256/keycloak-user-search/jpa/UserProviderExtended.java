@@ -1,7 +1,10 @@
 package io.github.andrewsha256.keycloak_user_search.jpa;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
 
 import org.keycloak.models.RealmModel;
 import org.keycloak.models.UserModel;
@@ -53,6 +56,84 @@ public interface UserProviderExtended extends UserProvider {
 			int firstResult, int maxResults,
 			String orderBy, OrderDirect orderDirect);
 
+	/**
+	 * `searchForUserExtended` with keyset pagination: users are selected
+	 * right after `after` cursor (if it is not `null`) and result contains
+	 * cursor of the last returned user to request the next portion.
+	 *
+	 * Total amount of users is not counted.
+	 *
+	 * @param attributes
+	 * @param realm
+	 * @param firstResult
+	 * @param after
+	 * @param maxResults
+	 * @param orderBy
+	 * @param orderDirect
+	 * @return
+	 */
+	public UserList searchForUserExtended(
+			Map<String, List<String>> attributes, RealmModel realm,
+			int firstResult, SearchCursor after, int maxResults,
+			String orderBy, OrderDirect orderDirect);
+
+	/**
+	 * `searchForUserExtended` that selects requested fields only: no user
+	 * entities are loaded.
+	 *
+	 * @param attributes
+	 * @param realm
+	 * @param firstResult
+	 * @param after
+	 * @param maxResults
+	 * @param orderBy
+	 * @param orderDirect
+	 * @param fields
+	 * @return
+	 */
+	public UserRowList searchForUserFields(
+			Map<String, List<String>> attributes, RealmModel realm,
+			int firstResult, SearchCursor after, int maxResults,
+			String orderBy, OrderDirect orderDirect, FieldProjection fields);
+
+	/**
+	 * `searchForUserExtended` that selects user ids only
+	 *
+	 * @param attributes
+	 * @param realm
+	 * @param firstResult
+	 * @param after
+	 * @param maxResults
+	 * @param orderBy
+	 * @param orderDirect
+	 * @return
+	 */
+	public UserIdList searchIdsExtended(
+			Map<String, List<String>> attributes, RealmModel realm,
+			int firstResult, SearchCursor after, int maxResults,
+			String orderBy, OrderDirect orderDirect);
+
+	/**
+	 * All users matching search query in `orderBy` order without loading
+	 * them at once: rows are read by forward-only cursor and passed to
+	 * `consumer` in portions of `fetchSize` users. Persistence context is
+	 * cleared after every portion, so users of previous portions must not be
+	 * used by consumer, and provider must be created for Keycloak session of
+	 * export only (eg `AsyncRequestExecutor.run`): entities and pending
+	 * changes of other work would be lost.
+	 * 
+	 * @param attributes
+	 * @param realm
+	 * @param orderBy default field or attribute name
+	 * @param orderDirect
+	 * @param fetchSize
+	 * @param consumer
+	 * @return amount of exported users
+	 */
+	public long exportUsers(Map<String, List<String>> attributes,
+			RealmModel realm, String orderBy, OrderDirect orderDirect,
+			int fetchSize, Consumer<List<UserModel>> consumer);
+
 	/**
 	 * Returns total amount of users matching search query
 	 * 
@@ -67,6 +148,18 @@ public interface UserProviderExtended extends UserProvider {
 	public long countUsers(Map<String, List<String>> attributes,
 			RealmModel realm);
 
+	/**
+	 * Returns total amount of users matching search query counted with
+	 * `strategy`
+	 * 
+	 * @param attributes
+	 * @param realm
+	 * @param strategy
+	 * @return
+	 */
+	public TotalCount countUsers(Map<String, List<String>> attributes,
+			RealmModel realm, CountStrategy strategy);
+
 	/**
 	 * Users index via `label` that starts from `value`
 	 * 
@@ -94,6 +187,48 @@ public interface UserProviderExtended extends UserProvider {
 	public long countIndex(RealmModel realm, String label, String value,
 			Map<String, List<String>> filter);
 
+	/**
+	 * Total amount in users index counted with `strategy`
+	 * @param realm
+	 * @param label
+	 * @param value
+	 * @param filter
+	 * @param strategy
+	 * @return
+	 */
+	public TotalCount countIndex(RealmModel realm, String label, String value,
+			Map<String, List<String>> filter, CountStrategy strategy);
+
+	/**
+	 * Facets of search results: for every label (`group`, default field or
+	 * attribute name) `topK` values that users matching search query have
+	 * most often, with amounts of those users.
+	 * 
+	 * Matching users are selected once for all facets.
+	 * 
+	 * @param attributes
+	 * @param realm
+	 * @param labels
+	 * @param topK
+	 * @return map `label => values` in order of `labels`
+	 */
+	public Map<String, List<FacetValue>> facets(
+			Map<String, List<String>> attributes, RealmModel realm,
+			List<String> labels, int topK);
+
+	/**
+	 * Names of groups of every user in `userIds` via single query (per
+	 * `userIds` chunk) instead of `UserModel::getGroups` call for every user.
+	 * 
+	 * Users without groups are not presented in result map.
+	 * 
+	 * @param realm
+	 * @param userIds
+	 * @return map `userId => group names`
+	 */
+	public Map<String, List<String>> getGroupNames(RealmModel realm,
+			Collection<String> userIds);
+
 	/**
 	 * Returns true if search field with `name` is "default" Keycloak field:
 	 * `username`, `email`, `firstName`, `lastName`.
@@ -103,4 +238,14 @@ public interface UserProviderExtended extends UserProvider {
 	 */
 	public boolean isDefaultField(String name);
 
+	/**
+	 * Canonical query shape of search query: kinds of search terms (default
+	 * field, group or attribute) with kinds of their "OR" values, without
+	 * attribute names and values (eg for metrics).
+	 * 
+	 * @param attributes
+	 * @return
+	 */
+	public String queryShape(Map<String, List<String>> attributes);
+
 }
@@ -1,12 +1,113 @@
 package io.github.andrewsha256.keycloak_user_search.jpa;
 
+import javax.persistence.EntityManager;
+
 import org.keycloak.models.KeycloakSession;
 
+/**
+ * Creates `UserProviderExtended` for session
+ * 
+ * Holds state that is shared by all providers (eg `QueryPlanCache`), so
+ * one instance should be used per deployment.
+ */
 public class UserProviderExtendedFactory {
 
+	public static final int DEFAULT_PLAN_CACHE_SIZE = 500;
+
+	public static final int DEFAULT_INDEX_CACHE_SIZE = 1000;
+
+	public static final long DEFAULT_INDEX_CACHE_TTL = 60000L;
+
+	private final SearchSettings settings;
+
+	private final JpaUserProviderExtendedFactory jpaFactory;
+
+	/**
+	 * @param settings components shared by created providers
+	 */
+	public UserProviderExtendedFactory(SearchSettings settings) {
+		this.settings = settings;
+		this.jpaFactory = new JpaUserProviderExtendedFactory(settings);
+	}
+
 	public UserProviderExtended create(KeycloakSession session) {
-		JpaUserProviderExtendedFactory JpaUserProviderExtendedFactory = new JpaUserProviderExtendedFactory();
-		return (UserProviderExtended) JpaUserProviderExtendedFactory.create(session);
+		UserProviderExtended provider = (UserProviderExtended) jpaFactory
+				.create(session);
+		ReadReplica replica = settings.getReplica();
+		SearchMetrics metrics = settings.getMetrics();
+		RealmBulkhead bulkhead = settings.getBulkhead();
+
+		EntityManager replicaEm = replica == null ? null
+				: replica.entityManager(session);
+		if (replicaEm != null) {
+			provider = replica.route((UserProviderExtended) jpaFactory
+					.create(session, replicaEm), provider);
+		}
+
+		if (metrics != null) {
+			StatementCounter counter = StatementCounter.of(session);
+			if (replicaEm != null) {
+				counter.register(replicaEm);
+			}
+			provider = metrics.instrument(provider, counter);
+		}
+
+		if (bulkhead.isEnabled()) {
+			// waiting for permit is not a part of provider metrics
+			provider = bulkhead.limit(provider);
+		}
+		return provider;
+	}
+
+	public QueryPlanCache getPlanCache() {
+		return settings.getPlanCache();
+	}
+
+	public IndexResultCache getIndexCache() {
+		return settings.getIndexCache();
+	}
+
+	public FilterPlanner getPlanner() {
+		return settings.getPlanner();
+	}
+
+	public SearchSource getSearchSource() {
+		return settings.getSearchSource();
+	}
+
+	public SlowQueryLog getSlowQueryLog() {
+		return settings.getSlowQueryLog();
+	}
+
+	/**
+	 * Metrics or `null` if they are disabled
+	 * 
+	 * @return
+	 */
+	public SearchMetrics getMetrics() {
+		return settings.getMetrics();
+	}
+
+	/**
+	 * In-memory indexes or `null` if they are not used
+	 * 
+	 * @return
+	 */
+	public BitmapIndexRegistry getBitmaps() {
+		return settings.getBitmaps();
+	}
+
+	/**
+	 * Read replica or `null` if reads go to primary database
+	 * 
+	 * @return
+	 */
+	public ReadReplica getReplica() {
+		return settings.getReplica();
+	}
+
+	public RealmBulkhead getBulkhead() {
+		return settings.getBulkhead();
 	}
 
 }
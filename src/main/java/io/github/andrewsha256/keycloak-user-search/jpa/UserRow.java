@@ -0,0 +1,58 @@
+package io.github.andrewsha256.keycloak_user_search.jpa;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.fasterxml.jackson.annotation.JsonAnyGetter;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
+/**
+ * User with requested fields only (see `FieldProjection`)
+ *
+ * Serialized as `UserRepresentation` subset: columns, `attributes`
+ * (`name => values`) and `groups` (group names) properties that were
+ * requested.
+ */
+public class UserRow {
+
+	private final String id;
+
+	private final Map<String, Object> properties = new LinkedHashMap<>();
+
+	UserRow(String id) {
+		this.id = id;
+	}
+
+	/**
+	 * User id (even if it's not requested)
+	 *
+	 * @return
+	 */
+	@JsonIgnore
+	public String getId() {
+		return id;
+	}
+
+	/**
+	 * Requested properties in order of `FieldProjection`
+	 *
+	 * @return
+	 */
+	@JsonAnyGetter
+	public Map<String, Object> getProperties() {
+		return properties;
+	}
+
+	void put(String name, Object value) {
+		properties.put(name, value);
+	}
+
+	@SuppressWarnings("unchecked")
+	void addAttribute(String name, String value) {
+		Map<String, List<String>> attributes = (Map<String, List<String>>) properties
+				.get("attributes");
+		attributes.computeIfAbsent(name, n -> new ArrayList<>()).add(value);
+	}
+}
@@ -0,0 +1,34 @@
+package io.github.andrewsha256.keycloak_user_search.jpa;
+
+import java.util.List;
+
+/**
+ * Search result with requested fields only (see `FieldProjection`)
+ */
+public class UserRowList {
+
+	private final List<UserRow> rows;
+
+	private final SearchCursor nextCursor;
+
+	public UserRowList(List<UserRow> rows, SearchCursor nextCursor) {
+		this.rows = rows;
+		this.nextCursor = nextCursor;
+	}
+
+	/**
+	 * Portion of users
+	 * @return
+	 */
+	public List<UserRow> getRows() {
+		return rows;
+	}
+
+	/**
+	 * Cursor of the last user in portion or `null` if there are no more users
+	 * @return
+	 */
+	public SearchCursor getNextCursor() {
+		return nextCursor;
+	}
+}
@@ -0,0 +1,35 @@
+package io.github.andrewsha256.keycloak_user_search.jpa;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.keycloak.connections.jpa.entityprovider.JpaEntityProvider;
+
+import io.github.andrewsha256.keycloak_user_search.jpa.entities.UserSearchValueEntity;
+
+/**
+ * Registers module's JPA entities and Liquibase changelog in Keycloak's
+ * persistence unit
+ */
+public class UserSearchEntityProvider implements JpaEntityProvider {
+
+	@Override
+	public List<Class<?>> getEntities() {
+		return Collections.<Class<?>>singletonList(UserSearchValueEntity.class);
+	}
+
+	@Override
+	public String getChangelogLocation() {
+		return "META-INF/user-search-changelog.xml";
+	}
+
+	@Override
+	public String getFactoryId() {
+		return UserSearchEntityProviderFactory.ID;
+	}
+
+	@Override
+	public void close() {
+	}
+
+}
@@ -0,0 +1,39 @@
+package io.github.andrewsha256.keycloak_user_search.jpa;
+
+import org.keycloak.Config.Scope;
+import org.keycloak.connections.jpa.entityprovider.JpaEntityProvider;
+import org.keycloak.connections.jpa.entityprovider.JpaEntityProviderFactory;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+
+public class UserSearchEntityProviderFactory
+		implements JpaEntityProviderFactory {
+
+	public static final String ID = "user-search-entity-provider";
+
+	@Override
+	public JpaEntityProvider create(KeycloakSession session) {
+		return new UserSearchEntityProvider();
+	}
+
+	@Override
+	public String getId() {
+		return ID;
+	}
+
+	@Override
+	public void init(Scope config) {
+		// we have nothing to do here
+	}
+
+	@Override
+	public void postInit(KeycloakSessionFactory factory) {
+		// we have nothing to do here
+	}
+
+	@Override
+	public void close() {
+		// we have nothing to do here
+	}
+
+}
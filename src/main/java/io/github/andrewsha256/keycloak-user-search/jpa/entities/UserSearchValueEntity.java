@@ -0,0 +1,124 @@
+package io.github.andrewsha256.keycloak_user_search.jpa.entities;
+
+import javax.persistence.Access;
+import javax.persistence.AccessType;
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Table;
+
+/**
+ * Row of normalized "shadow" search table
+ * 
+ * Every searchable user value (default field, group name or attribute)
+ * is stored lower-cased and accent-folded, so search predicates compare
+ * plain column values and can use B-tree indexes instead of
+ * `lower(x) like lower(:v)` scans.
+ * 
+ * Table is created by `META-INF/user-search-changelog.xml` and maintained by
+ * `ShadowSearchIndexer`.
+ */
+@Entity
+@Table(name = "USER_SEARCH_VALUE")
+public class UserSearchValueEntity {
+
+	/**
+	 * `kind` of Keycloak user fields (`username`, `email` etc.)
+	 */
+	public static final String KIND_FIELD = "F";
+
+	/**
+	 * `kind` of group names (`name` is group id)
+	 */
+	public static final String KIND_GROUP = "G";
+
+	/**
+	 * `kind` of user attributes
+	 */
+	public static final String KIND_ATTRIBUTE = "A";
+
+	@Id
+	@Column(name = "ID", length = 36)
+	@Access(AccessType.PROPERTY)
+	protected String id;
+
+	@Column(name = "REALM_ID")
+	protected String realmId;
+
+	@Column(name = "USER_ID")
+	protected String userId;
+
+	@Column(name = "KIND")
+	protected String kind;
+
+	@Column(name = "NAME")
+	protected String name;
+
+	@Column(name = "VALUE")
+	protected String value;
+
+	public String getId() {
+		return id;
+	}
+
+	public void setId(String id) {
+		this.id = id;
+	}
+
+	public String getRealmId() {
+		return realmId;
+	}
+
+	public void setRealmId(String realmId) {
+		this.realmId = realmId;
+	}
+
+	public String getUserId() {
+		return userId;
+	}
+
+	public void setUserId(String userId) {
+		this.userId = userId;
+	}
+
+	public String getKind() {
+		return kind;
+	}
+
+	public void setKind(String kind) {
+		this.kind = kind;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public void setName(String name) {
+		this.name = name;
+	}
+
+	public String getValue() {
+		return value;
+	}
+
+	public void setValue(String value) {
+		this.value = value;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (this == o) {
+			return true;
+		}
+		if (!(o instanceof UserSearchValueEntity)) {
+			return false;
+		}
+		UserSearchValueEntity that = (UserSearchValueEntity) o;
+		return id != null && id.equals(that.getId());
+	}
+
+	@Override
+	public int hashCode() {
+		return id == null ? 0 : id.hashCode();
+	}
+}
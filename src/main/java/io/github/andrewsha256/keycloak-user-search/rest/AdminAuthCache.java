@@ -0,0 +1,302 @@
+package io.github.andrewsha256.keycloak_user_search.rest;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.keycloak.services.resources.admin.permissions.AdminPermissionEvaluator;
+import org.keycloak.services.resources.admin.permissions.UserPermissionEvaluator;
+
+/**
+ * Cache of resolved admin authorization of bearer tokens
+ *
+ * Entries are keyed by SHA-256 of token and current realm and kept in LRU map
+ * of `maxSize` entries until token's `exp`. They hold ids of token's realm,
+ * user and admin client (models are bound to Keycloak session, so they are
+ * loaded by id through Keycloak caches) and results of user permission
+ * checks without arguments (`canQuery`, `canView`, `canManage`). Token
+ * signature and expiration are checked on every request anyway (see
+ * `AuthProviderAbstract`).
+ *
+ * Entries are dropped on role mapping, role, group membership and
+ * authorization admin events after their transaction is committed (see
+ * `UserSearchEventListenerProvider`). Every invalidation increments
+ * generation of user (of one of `GENERATION_STRIPES` user stripes): it is
+ * read before user is loaded and `put` drops entry if it has changed since
+ * then, so concurrent request can't cache authorization of changed user
+ * again. Invalidation is local to Keycloak node: in cluster other nodes see
+ * changes after token expiration, that's why cache is disabled by default.
+ *
+ * One instance per deployment, created by `UserResourceProviderFactory`.
+ */
+public class AdminAuthCache {
+
+	/**
+	 * Amount of user generation counters: users of one stripe share counter,
+	 * so memory doesn't grow with amount of changed users
+	 */
+	static final int GENERATION_STRIPES = 1024;
+
+	/**
+	 * `UserPermissionEvaluator` checks without arguments that are cached,
+	 * `require<Check>` methods use them too
+	 */
+	private static final Set<String> CACHED_CHECKS = new HashSet<>(
+			Arrays.asList("canQuery", "canView", "canManage"));
+
+	private final int maxSize;
+
+	private final Map<String, Entry> entries;
+
+	private final AtomicLongArray generations = new AtomicLongArray(
+			GENERATION_STRIPES);
+
+	/**
+	 * Generation of `invalidateAll` calls, part of every user's generation
+	 */
+	private final AtomicLong allGeneration = new AtomicLong();
+
+	/**
+	 * @param maxSize max amount of cached tokens, `0` disables cache
+	 */
+	public AdminAuthCache(int maxSize) {
+		this.maxSize = maxSize;
+		this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(
+					Map.Entry<String, Entry> eldest) {
+				return size() > AdminAuthCache.this.maxSize;
+			}
+		};
+	}
+
+	public boolean isEnabled() {
+		return maxSize > 0;
+	}
+
+	/**
+	 * Cache key of token in current realm
+	 *
+	 * @param token
+	 * @param realmId current realm
+	 * @return
+	 */
+	static String key(String token, String realmId) {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		digest.update(token.getBytes(StandardCharsets.UTF_8));
+		StringBuilder key = new StringBuilder(realmId).append(':');
+		for (byte b : digest.digest()) {
+			key.append(String.format("%02x", b));
+		}
+		return key.toString();
+	}
+
+	/**
+	 * Not expired entry or `null`
+	 *
+	 * @param key
+	 * @return
+	 */
+	Entry get(String key) {
+		synchronized (entries) {
+			Entry entry = entries.get(key);
+			if (entry != null && entry.expiresAt < System.currentTimeMillis()) {
+				entries.remove(key);
+				entry = null;
+			}
+			return entry;
+		}
+	}
+
+	/**
+	 * Current generation of user's authorization: it is read before user is
+	 * loaded and passed to `Entry`
+	 *
+	 * @param userId
+	 * @return
+	 */
+	long generation(String userId) {
+		return allGeneration.get() + generations.get(_stripe(userId));
+	}
+
+	/**
+	 * Caches entry if its user is not invalidated since entry's generation
+	 *
+	 * @param key
+	 * @param entry
+	 */
+	void put(String key, Entry entry) {
+		if (!this.isEnabled()) {
+			return;
+		}
+		synchronized (entries) {
+			// invalidation increments generation before it drops entries
+			if (entry.generation != this.generation(entry.userId)) {
+				return;
+			}
+			entries.put(key, entry);
+		}
+	}
+
+	/**
+	 * Drops entries of tokens of user
+	 *
+	 * @param userId
+	 */
+	public void invalidateUser(String userId) {
+		generations.incrementAndGet(_stripe(userId));
+		synchronized (entries) {
+			Iterator<Entry> it = entries.values().iterator();
+			while (it.hasNext()) {
+				if (it.next().userId.equals(userId)) {
+					it.remove();
+				}
+			}
+		}
+	}
+
+	public void invalidateAll() {
+		allGeneration.incrementAndGet();
+		synchronized (entries) {
+			entries.clear();
+		}
+	}
+
+	/**
+	 * Evaluator that takes results of cached checks from `entry` (and stores
+	 * them there), other checks are passed to `auth` as is
+	 *
+	 * @param auth evaluator of current session
+	 * @param entry
+	 * @return
+	 */
+	AdminPermissionEvaluator cached(AdminPermissionEvaluator auth,
+			Entry entry) {
+
+		UserPermissionEvaluator users = auth.users();
+
+		UserPermissionEvaluator cachedUsers = (UserPermissionEvaluator) Proxy
+				.newProxyInstance(UserPermissionEvaluator.class.getClassLoader(),
+						new Class<?>[] { UserPermissionEvaluator.class },
+						(proxy, method, args) -> {
+							if (args != null && args.length > 0) {
+								return _invoke(users, method, args);
+							}
+							String name = method.getName();
+							if (CACHED_CHECKS.contains(name)) {
+								Boolean allowed = entry.checks.get(name);
+								if (allowed == null) {
+									allowed = (Boolean) _invoke(users, method,
+											args);
+									entry.checks.put(name, allowed);
+								}
+								return allowed;
+							}
+							String check = name.replaceFirst("^require", "can");
+							if (name.startsWith("require")
+									&& CACHED_CHECKS.contains(check)) {
+								if (!Boolean.TRUE.equals(entry.checks.get(check))) {
+									// throws if it's not allowed
+									_invoke(users, method, args);
+									entry.checks.put(check, Boolean.TRUE);
+								}
+								return null;
+							}
+							return _invoke(users, method, args);
+						});
+
+		return (AdminPermissionEvaluator) Proxy.newProxyInstance(
+				AdminPermissionEvaluator.class.getClassLoader(),
+				new Class<?>[] { AdminPermissionEvaluator.class },
+				(proxy, method, args) -> {
+					if ("users".equals(method.getName())) {
+						return cachedUsers;
+					}
+					return _invoke(auth, method, args);
+				});
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * Current amount of cached tokens
+	 *
+	 * @return
+	 */
+	public int getSize() {
+		synchronized (entries) {
+			return entries.size();
+		}
+	}
+
+	private static int _stripe(String userId) {
+		return (userId.hashCode() & Integer.MAX_VALUE) % GENERATION_STRIPES;
+	}
+
+	private static Object _invoke(Object target, Method method, Object[] args)
+			throws Throwable {
+		try {
+			return method.invoke(target, args);
+		}
+		catch (InvocationTargetException e) {
+			throw e.getCause();
+		}
+	}
+
+	/**
+	 * Resolved authorization of one token
+	 */
+	static class Entry {
+
+		final String userRealmId;
+
+		final String userId;
+
+		final String clientId;
+
+		final long expiresAt;
+
+		final long generation;
+
+		final Map<String, Boolean> checks = new ConcurrentHashMap<>();
+
+		/**
+		 * @param userRealmId realm that issued token
+		 * @param userId
+		 * @param clientId admin client of current realm
+		 * @param expiresAt token expiration in epoch milliseconds
+		 * @param generation user generation read before user was loaded
+		 */
+		Entry(String userRealmId, String userId, String clientId,
+				long expiresAt, long generation) {
+			this.userRealmId = userRealmId;
+			this.userId = userId;
+			this.clientId = clientId;
+			this.expiresAt = expiresAt;
+			this.generation = generation;
+		}
+	}
+}
@@ -0,0 +1,299 @@
+package io.github.andrewsha256.keycloak_user_search.rest;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.persistence.EntityManager;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+import org.jboss.logging.Logger;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+import io.github.andrewsha256.keycloak_user_search.jpa.ReadReplica;
+import io.github.andrewsha256.keycloak_user_search.jpa.UserProviderExtended;
+import io.github.andrewsha256.keycloak_user_search.jpa.UserProviderExtendedFactory;
+
+/**
+ * Runs suspended `search` and `index` requests on its own bounded thread
+ * pool, so slow searches don't hold Undertow worker threads that Keycloak
+ * needs for logins.
+ *
+ * Every request runs in its own Keycloak session (so on its own database
+ * connection and transaction) like counts of `SearchExecutor`. When pool
+ * queue is full request is not queued: it's answered at once with `429 Too
+ * Many Requests` and `Retry-After` header. Request that is not answered in
+ * `timeoutMillis` (waiting in queue or running) is answered with `503
+ * Service Unavailable` and `Retry-After`; if it's still in queue it's not
+ * started at all. Started request gets the rest of `timeoutMillis` as
+ * query timeout of its session (`javax.persistence.query.timeout` rounded
+ * up to seconds), so its running query is cancelled by database within a
+ * second after `503`; work between queries is not interrupted.
+ *
+ * One instance per deployment, created by `UserResourceProviderFactory`.
+ */
+public class AsyncRequestExecutor {
+
+	private static final Logger logger = Logger
+			.getLogger(AsyncRequestExecutor.class);
+
+	public static final int TOO_MANY_REQUESTS = 429;
+
+	public static final int DEFAULT_QUEUE_SIZE = 100;
+
+	public static final int DEFAULT_RETRY_AFTER = 1;
+
+	public static final long DEFAULT_TIMEOUT = 30000L;
+
+	private static final String QUERY_TIMEOUT = "javax.persistence.query.timeout";
+
+	/**
+	 * Request task: runs with provider and realm of its own session
+	 */
+	public interface RequestTask<T> {
+		T run(KeycloakSession session, RealmModel realm,
+				UserProviderExtended provider);
+	}
+
+	private final ThreadPoolExecutor executor;
+
+	private final UserProviderExtendedFactory providerFactory;
+
+	private final int retryAfter;
+
+	private final long timeoutMillis;
+
+	private final AtomicLong rejected = new AtomicLong();
+
+	private final AtomicLong timedOut = new AtomicLong();
+
+	/**
+	 * @param threads amount of threads, `0` disables executor (requests are
+	 *                made by request thread)
+	 * @param queueSize max amount of waiting requests
+	 * @param retryAfter `Retry-After` of rejected and timed out requests in
+	 *                   seconds
+	 * @param timeoutMillis max time of request (waiting and running), `0`
+	 *                      disables timeout
+	 * @param providerFactory
+	 */
+	public AsyncRequestExecutor(int threads, int queueSize, int retryAfter,
+			long timeoutMillis, UserProviderExtendedFactory providerFactory) {
+		this.providerFactory = providerFactory;
+		this.retryAfter = retryAfter;
+		this.timeoutMillis = timeoutMillis;
+		if (threads > 0) {
+			executor = new ThreadPoolExecutor(threads, threads, 60L,
+					TimeUnit.SECONDS,
+					new ArrayBlockingQueue<Runnable>(Math.max(queueSize, 1)),
+					new SearchExecutor.NamedThreadFactory("user-search-request-"),
+					new ThreadPoolExecutor.AbortPolicy());
+			executor.allowCoreThreadTimeOut(true);
+		}
+		else {
+			executor = null;
+		}
+	}
+
+	public boolean isEnabled() {
+		return executor != null;
+	}
+
+	/**
+	 * Starts `task` in separate session and resumes `response` with its
+	 * result or exception (or with `503 Service Unavailable` after
+	 * `timeoutMillis`)
+	 *
+	 * @param session request session (used only to get session factory)
+	 * @param realm
+	 * @param response
+	 * @param task
+	 * @return `false` if queue is full and task is rejected (`response` is
+	 *         not resumed)
+	 */
+	public <T> boolean submit(KeycloakSession session, RealmModel realm,
+			AsyncResponse response, RequestTask<T> task) {
+
+		final KeycloakSessionFactory sessionFactory = session
+				.getKeycloakSessionFactory();
+		final String realmId = realm.getId();
+		final long deadline = System.currentTimeMillis() + timeoutMillis;
+
+		FutureTask<Void> future = new FutureTask<>(() -> {
+			T result;
+			try {
+				result = this._run(sessionFactory, realmId, task,
+						timeoutMillis > 0
+								? deadline - System.currentTimeMillis() : 0);
+			}
+			catch (Throwable e) {
+				// errors too: otherwise response is never resumed
+				response.resume(e);
+				return;
+			}
+			response.resume(result);
+		}, null);
+
+		if (timeoutMillis > 0) {
+			response.setTimeoutHandler(timedOutResponse -> {
+				// not started yet: don't start it at all
+				future.cancel(false);
+				timedOut.incrementAndGet();
+				timedOutResponse.resume(this.timedOut());
+			});
+			response.setTimeout(timeoutMillis, TimeUnit.MILLISECONDS);
+		}
+
+		try {
+			executor.execute(future);
+		}
+		catch (RejectedExecutionException e) {
+			rejected.incrementAndGet();
+			logger.debugf("Request queue is full, request to realm %s is rejected",
+					realm.getName());
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Runs `task` by calling thread in its own session and transaction (eg
+	 * in `StreamingOutput`, when request transaction is already committed),
+	 * whether executor is enabled or not
+	 *
+	 * @param sessionFactory
+	 * @param realmId
+	 * @param task
+	 * @return result of `task`
+	 */
+	public <T> T run(KeycloakSessionFactory sessionFactory, String realmId,
+			RequestTask<T> task) {
+		return this._run(sessionFactory, realmId, task, 0);
+	}
+
+	/**
+	 * @param sessionFactory
+	 * @param realmId
+	 * @param task
+	 * @param queryTimeout query timeout of task session in ms, `0` if
+	 *                     queries are not limited
+	 * @return result of `task`
+	 */
+	private <T> T _run(KeycloakSessionFactory sessionFactory, String realmId,
+			RequestTask<T> task, long queryTimeout) {
+
+		final List<T> result = new ArrayList<>(1);
+		KeycloakModelUtils.runJobInTransaction(sessionFactory,
+				(KeycloakSession requestSession) -> {
+					RealmModel requestRealm = requestSession.realms()
+							.getRealm(realmId);
+					requestSession.getContext().setRealm(requestRealm);
+					UserProviderExtended provider = providerFactory
+							.create(requestSession);
+					if (queryTimeout != 0) {
+						this._limitQueries(requestSession, queryTimeout);
+					}
+					result.add(task.run(requestSession, requestRealm,
+							provider));
+				});
+		return result.get(0);
+	}
+
+	/**
+	 * Sets query timeout of primary and read replica `EntityManager`s of
+	 * `session`
+	 *
+	 * Hibernate rounds timeout down to seconds, so it's rounded up here:
+	 * query must not fail before request is answered with `503`.
+	 *
+	 * @param session
+	 * @param queryTimeout ms
+	 */
+	private void _limitQueries(KeycloakSession session, long queryTimeout) {
+		int timeout = (int) (Math.max(1, (queryTimeout + 999) / 1000) * 1000);
+		session.getProvider(JpaConnectionProvider.class).getEntityManager()
+				.setProperty(QUERY_TIMEOUT, timeout);
+		ReadReplica replica = providerFactory.getReplica();
+		EntityManager replicaEm = replica == null ? null
+				: replica.entityManager(session);
+		if (replicaEm != null) {
+			replicaEm.setProperty(QUERY_TIMEOUT, timeout);
+		}
+	}
+
+	/**
+	 * `429 Too Many Requests` response of rejected request
+	 *
+	 * @return
+	 */
+	public Response tooManyRequests() {
+		return tooManyRequests("Too many search requests, retry after "
+				+ retryAfter + " s", retryAfter);
+	}
+
+	/**
+	 * `503 Service Unavailable` response of timed out request
+	 *
+	 * @return
+	 */
+	public Response timedOut() {
+		return Response.status(Response.Status.SERVICE_UNAVAILABLE)
+				.header("Retry-After", retryAfter)
+				.entity("Search request is not completed in " + timeoutMillis
+						+ " ms, retry after " + retryAfter + " s")
+				.type(MediaType.TEXT_PLAIN)
+				.build();
+	}
+
+	/**
+	 * `429 Too Many Requests` response with `Retry-After` header
+	 *
+	 * @param message
+	 * @param retryAfter seconds
+	 * @return
+	 */
+	public static Response tooManyRequests(String message, int retryAfter) {
+		return Response.status(TOO_MANY_REQUESTS)
+				.header("Retry-After", retryAfter)
+				.entity(message)
+				.type(MediaType.TEXT_PLAIN)
+				.build();
+	}
+
+	/**
+	 * Executor state for `/stats`: threads, running and waiting requests,
+	 * amount of rejected and timed out requests
+	 *
+	 * @return
+	 */
+	public Map<String, Object> getStatus() {
+		Map<String, Object> status = new LinkedHashMap<>();
+		status.put("threads", executor.getMaximumPoolSize());
+		status.put("active", executor.getActiveCount());
+		status.put("queued", executor.getQueue().size());
+		status.put("queueSize", executor.getQueue().size()
+				+ executor.getQueue().remainingCapacity());
+		status.put("rejected", rejected.get());
+		status.put("timedOut", timedOut.get());
+		return status;
+	}
+
+	public void close() {
+		if (executor != null) {
+			executor.shutdown();
+		}
+	}
+}
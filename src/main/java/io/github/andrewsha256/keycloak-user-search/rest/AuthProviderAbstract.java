@@ -2,8 +2,15 @@ package io.github.andrewsha256.keycloak_user_search.rest;
 
 import javax.ws.rs.NotAuthorizedException;
 
-import org.keycloak.jose.jws.JWSInput;
-import org.keycloak.jose.jws.JWSInputException;
+import org.keycloak.TokenVerifier;
+import org.keycloak.common.VerificationException;
+import org.keycloak.crypto.AsymmetricSignatureVerifierContext;
+import org.keycloak.crypto.KeyType;
+import org.keycloak.crypto.KeyUse;
+import org.keycloak.crypto.KeyWrapper;
+import org.keycloak.crypto.MacSignatureVerifierContext;
+import org.keycloak.crypto.SignatureVerifierContext;
+import org.keycloak.jose.jws.JWSHeader;
 import org.keycloak.models.ClientModel;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.RealmModel;
@@ -19,15 +26,27 @@ class AuthProviderAbstract {
 
 	protected final KeycloakSession session;
 
+	private final AdminAuthCache authCache;
+
 	private AdminPermissionEvaluator auth;
 
+	private AdminAuth adminAuth;
+
 	AuthProviderAbstract(KeycloakSession session) {
+		this(session, new AdminAuthCache(0));
+	}
+
+	AuthProviderAbstract(KeycloakSession session, AdminAuthCache authCache) {
 		this.session = session;
+		this.authCache = authCache;
 	}
 
 	/**
 	 * Checks user's permissions and throws `NotAuthorizedException` if user is
 	 * not allowed to `query-users`.
+	 *
+	 * Token's realm, user and admin client are taken from `AdminAuthCache` if
+	 * token was seen before, its signature and expiration are checked anyway.
 	 */
 	protected AdminPermissionEvaluator getAuth() {
 
@@ -36,9 +55,6 @@ class AuthProviderAbstract {
 
 			RealmModel currentRealm = session.getContext().getRealm();
 
-			RealmModel masterRealm = realmManager
-					.getKeycloakAdminstrationRealm();
-
 			AppAuthManager authManager = new AppAuthManager();
 
 			String tokenString = authManager.extractAuthorizationHeaderToken(
@@ -47,43 +63,152 @@ class AuthProviderAbstract {
 				throw new NotAuthorizedException("Bearer");
 			}
 
+			TokenVerifier<AccessToken> verifier = TokenVerifier
+					.create(tokenString, AccessToken.class);
 			AccessToken token;
 			try {
-				JWSInput input = new JWSInput(tokenString);
-				token = input.readJsonContent(AccessToken.class);
+				token = verifier.getToken();
 			}
-			catch (JWSInputException e) {
+			catch (VerificationException e) {
 				throw new NotAuthorizedException("Bearer token format error");
 			}
 
-			String userRealmName = token.getIssuer()
-					.substring(token.getIssuer().lastIndexOf('/') + 1);
-			RealmModel userRealm = realmManager.getRealmByName(userRealmName);
+			String cacheKey = authCache.isEnabled()
+					? AdminAuthCache.key(tokenString, currentRealm.getId())
+					: null;
+			AdminAuthCache.Entry cached = cacheKey == null ? null
+					: authCache.get(cacheKey);
+			// read before user and its roles are loaded (token subject is
+			// user id)
+			long generation = cacheKey == null || token.getSubject() == null
+					? 0 : authCache.generation(token.getSubject());
+
+			RealmModel userRealm;
+			if (cached != null) {
+				userRealm = session.realms().getRealm(cached.userRealmId);
+			}
+			else {
+				String userRealmName = token.getIssuer()
+						.substring(token.getIssuer().lastIndexOf('/') + 1);
+				userRealm = realmManager.getRealmByName(userRealmName);
+			}
 			if (userRealm == null) {
 				throw new NotAuthorizedException("Unknown realm in token");
 			}
 
-			UserModel currentUser = session.users()
-					.getUserByUsername(token.getPreferredUsername(), userRealm);
+			this._verify(verifier, userRealm);
 
+			UserModel currentUser;
 			ClientModel client;
-			if (currentRealm.getName().equals(masterRealm.getName())) {
-				client = masterRealm.getMasterAdminClient();
+			if (cached != null) {
+				currentUser = session.users().getUserById(cached.userId,
+						userRealm);
+				client = cached.clientId == null ? null
+						: currentRealm.getClientById(cached.clientId);
 			}
 			else {
-				client = currentRealm.getClientByClientId(
-						realmManager.getRealmAdminClientId(currentRealm));
+				currentUser = session.users().getUserByUsername(
+						token.getPreferredUsername(), userRealm);
+				client = this._adminClient(realmManager, currentRealm);
+			}
+			if (currentUser == null) {
+				throw new NotAuthorizedException("Unknown user in token");
 			}
 
-			AdminAuth adminAuth = new AdminAuth(userRealm, token, currentUser,
-					client);
+			adminAuth = new AdminAuth(userRealm, token, currentUser, client);
 
 			auth = AdminPermissions.evaluator(session, currentRealm, adminAuth);
 
 			if (auth == null) {
 				throw new NotAuthorizedException("Bearer");
 			}
+
+			if (cached == null && cacheKey != null
+					&& token.getExpiration() > 0
+					&& currentUser.getId().equals(token.getSubject())) {
+				cached = new AdminAuthCache.Entry(userRealm.getId(),
+						currentUser.getId(),
+						client == null ? null : client.getId(),
+						token.getExpiration() * 1000L, generation);
+				authCache.put(cacheKey, cached);
+			}
+			if (cached != null) {
+				auth = authCache.cached(auth, cached);
+			}
 		}
 		return auth;
-	} 
+	}
+
+	/**
+	 * Authenticated token, realm, user and admin client (`getAuth` has to be
+	 * called first)
+	 *
+	 * @return
+	 */
+	protected AdminAuth getAdminAuth() {
+		return adminAuth;
+	}
+
+	/**
+	 * Evaluator of `adminAuth` in another session (eg of `AsyncRequestExecutor`
+	 * thread): its realm, user and client are loaded by id in `session`
+	 *
+	 * @param session
+	 * @param realm current realm of `session`
+	 * @param adminAuth authorization of request session
+	 * @return
+	 */
+	static AdminPermissionEvaluator evaluator(KeycloakSession session,
+			RealmModel realm, AdminAuth adminAuth) {
+		RealmModel userRealm = session.realms()
+				.getRealm(adminAuth.getRealm().getId());
+		UserModel user = session.users()
+				.getUserById(adminAuth.getUser().getId(), userRealm);
+		if (user == null) {
+			throw new NotAuthorizedException("Unknown user in token");
+		}
+		ClientModel client = adminAuth.getClient() == null ? null
+				: realm.getClientById(adminAuth.getClient().getId());
+		return AdminPermissions.evaluator(session, realm, new AdminAuth(
+				userRealm, adminAuth.getToken(), user, client));
+	}
+
+	/**
+	 * Checks token signature with key of realm that issued it and token
+	 * expiration
+	 *
+	 * @param verifier
+	 * @param userRealm
+	 */
+	@SuppressWarnings("unchecked")
+	private void _verify(TokenVerifier<AccessToken> verifier,
+			RealmModel userRealm) {
+		try {
+			JWSHeader header = verifier.getHeader();
+			KeyWrapper key = header.getAlgorithm() == null ? null
+					: session.keys().getKey(userRealm, header.getKeyId(),
+							KeyUse.SIG, header.getAlgorithm().name());
+			if (key == null) {
+				throw new NotAuthorizedException("Unknown token key");
+			}
+			SignatureVerifierContext context = KeyType.OCT.equals(key.getType())
+					? new MacSignatureVerifierContext(key)
+					: new AsymmetricSignatureVerifierContext(key);
+			verifier.withChecks(TokenVerifier.IS_ACTIVE).verifierContext(context)
+					.verify();
+		}
+		catch (VerificationException e) {
+			throw new NotAuthorizedException("Bearer token is not valid");
+		}
+	}
+
+	private ClientModel _adminClient(RealmManager realmManager,
+			RealmModel currentRealm) {
+		RealmModel masterRealm = realmManager.getKeycloakAdminstrationRealm();
+		if (currentRealm.getName().equals(masterRealm.getName())) {
+			return masterRealm.getMasterAdminClient();
+		}
+		return currentRealm.getClientByClientId(
+				realmManager.getRealmAdminClientId(currentRealm));
+	}
 }
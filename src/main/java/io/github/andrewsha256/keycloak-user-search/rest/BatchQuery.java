@@ -0,0 +1,166 @@
+package io.github.andrewsha256.keycloak_user_search.rest;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import io.github.andrewsha256.keycloak_user_search.jpa.OrderDirect;
+
+/**
+ * Single query of `batch` request
+ * 
+ * `type` is `search`, `index` or `count`, other properties are arguments
+ * of the same endpoints without leading `_`, search terms are in `query`:
+ * 
+ * <pre>
+ * { "type": "search", "query": { "group": ["admin"] }, "max": 5 }
+ * </pre>
+ */
+public class BatchQuery {
+
+	public static final String SEARCH = "search";
+
+	public static final String INDEX = "index";
+
+	public static final String COUNT = "count";
+
+	private String type = SEARCH;
+
+	private Map<String, List<String>> query = new HashMap<>();
+
+	private int first = 0;
+
+	private int max = Integer.parseInt(UserResource.DEFAULT_PORTION_SIZE);
+
+	private String orderBy = "username";
+
+	private OrderDirect orderDirect = OrderDirect.ASC;
+
+	private String after;
+
+	private String count = "exact";
+
+	private String label;
+
+	private String value = "%";
+
+	private String facets;
+
+	private int facetSize = Integer.parseInt(UserResource.DEFAULT_FACET_SIZE);
+
+	private String fields;
+
+	private boolean idsOnly;
+
+	public String getType() {
+		return type;
+	}
+
+	public void setType(String type) {
+		this.type = type;
+	}
+
+	public Map<String, List<String>> getQuery() {
+		return query;
+	}
+
+	public void setQuery(Map<String, List<String>> query) {
+		this.query = query == null ? new HashMap<>() : query;
+	}
+
+	public int getFirst() {
+		return first;
+	}
+
+	public void setFirst(int first) {
+		this.first = first;
+	}
+
+	public int getMax() {
+		return max;
+	}
+
+	public void setMax(int max) {
+		this.max = max;
+	}
+
+	public String getOrderBy() {
+		return orderBy;
+	}
+
+	public void setOrderBy(String orderBy) {
+		this.orderBy = orderBy;
+	}
+
+	public OrderDirect getOrderDirect() {
+		return orderDirect;
+	}
+
+	public void setOrderDirect(OrderDirect orderDirect) {
+		this.orderDirect = orderDirect;
+	}
+
+	public String getAfter() {
+		return after;
+	}
+
+	public void setAfter(String after) {
+		this.after = after;
+	}
+
+	public String getCount() {
+		return count;
+	}
+
+	public void setCount(String count) {
+		this.count = count;
+	}
+
+	public String getLabel() {
+		return label;
+	}
+
+	public void setLabel(String label) {
+		this.label = label;
+	}
+
+	public String getValue() {
+		return value;
+	}
+
+	public void setValue(String value) {
+		this.value = value;
+	}
+
+	public String getFacets() {
+		return facets;
+	}
+
+	public void setFacets(String facets) {
+		this.facets = facets;
+	}
+
+	public int getFacetSize() {
+		return facetSize;
+	}
+
+	public void setFacetSize(int facetSize) {
+		this.facetSize = facetSize;
+	}
+
+	public String getFields() {
+		return fields;
+	}
+
+	public void setFields(String fields) {
+		this.fields = fields;
+	}
+
+	public boolean isIdsOnly() {
+		return idsOnly;
+	}
+
+	public void setIdsOnly(boolean idsOnly) {
+		this.idsOnly = idsOnly;
+	}
+}
@@ -0,0 +1,45 @@
+package io.github.andrewsha256.keycloak_user_search.rest;
+
+/**
+ * Result of single `batch` query: `SearchResponse`, `IndexResponse` or
+ * `CountResponse`, or error of this query only
+ */
+public class BatchResult {
+
+	private final int status;
+
+	private final Object result;
+
+	private final String error;
+
+	public BatchResult(Object result) {
+		this(200, result, null);
+	}
+
+	public BatchResult(int status, String error) {
+		this(status, null, error);
+	}
+
+	private BatchResult(int status, Object result, String error) {
+		this.status = status;
+		this.result = result;
+		this.error = error;
+	}
+
+	/**
+	 * HTTP status the query would have as separate request
+	 * 
+	 * @return
+	 */
+	public int getStatus() {
+		return this.status;
+	}
+
+	public Object getResult() {
+		return this.result;
+	}
+
+	public String getError() {
+		return this.error;
+	}
+}
@@ -0,0 +1,34 @@
+package io.github.andrewsha256.keycloak_user_search.rest;
+
+/**
+ * Count response (`batch` query of `count` type)
+ */
+public class CountResponse {
+
+	private final long totalSize;
+
+	private final String totalStrategy;
+
+	public CountResponse(long totalSize, String totalStrategy) {
+		this.totalSize = totalSize;
+		this.totalStrategy = totalStrategy;
+	}
+
+	/**
+	 * Total amount of users that matching search query
+	 * 
+	 * @return
+	 */
+	public long getTotalSize() {
+		return this.totalSize;
+	}
+
+	/**
+	 * How `totalSize` was counted: `exact`, `capped:N`, `estimate` or `none`
+	 * 
+	 * @return
+	 */
+	public String getTotalStrategy() {
+		return this.totalStrategy;
+	}
+}
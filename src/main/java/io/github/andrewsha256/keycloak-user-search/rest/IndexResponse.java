@@ -9,10 +9,18 @@ public class IndexResponse {
 
 	private long totalSize;
 
+	private String totalStrategy;
+
 	List<String> values;
 
 	public IndexResponse(long totalSize, List<String> values) {
+		this(totalSize, "exact", values);
+	}
+
+	public IndexResponse(long totalSize, String totalStrategy,
+			List<String> values) {
 		this.totalSize = totalSize;
+		this.totalStrategy = totalStrategy;
 		this.values = values;
 	}
 
@@ -24,6 +32,14 @@ public class IndexResponse {
 		return this.totalSize;
 	}
 
+	/**
+	 * How `totalSize` was counted: `exact`, `capped:N`, `estimate` or `none`
+	 * @return
+	 */
+	public String getTotalStrategy() {
+		return this.totalStrategy;
+	}
+
 	/**
 	 * Portion of users
 	 * @return
@@ -0,0 +1,29 @@
+package io.github.andrewsha256.keycloak_user_search.rest;
+
+/**
+ * How search endpoints run "count" and "portion" queries
+ */
+public enum SearchExecutionMode {
+
+	/**
+	 * Count first, then select portion (if count is not 0) in the same
+	 * request session
+	 */
+	SEQUENTIAL,
+
+	/**
+	 * Count in separate session (and database connection) on
+	 * `SearchExecutor` thread while portion is selected in request session
+	 */
+	CONCURRENT;
+
+	/**
+	 * Case-insensitive `valueOf`
+	 * 
+	 * @param value
+	 * @return
+	 */
+	public static SearchExecutionMode fromString(String value) {
+		return SearchExecutionMode.valueOf(value.trim().toUpperCase());
+	}
+}
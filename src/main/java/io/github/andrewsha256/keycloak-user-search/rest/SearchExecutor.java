@@ -0,0 +1,150 @@
+package io.github.andrewsha256.keycloak_user_search.rest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+import io.github.andrewsha256.keycloak_user_search.jpa.UserProviderExtended;
+import io.github.andrewsha256.keycloak_user_search.jpa.UserProviderExtendedFactory;
+
+/**
+ * Runs "count" queries of search endpoints according to
+ * `SearchExecutionMode`.
+ * 
+ * In `CONCURRENT` mode count runs in its own Keycloak session (so on its own
+ * database connection and transaction) on bounded thread pool, while request
+ * thread selects portion of users. When pool queue is full count is made by
+ * request thread, which is the same as `SEQUENTIAL` mode.
+ * 
+ * One instance per deployment, created by `UserResourceProviderFactory`.
+ */
+public class SearchExecutor {
+
+	/**
+	 * Count task: runs with provider and realm of its own session
+	 */
+	public interface CountTask<T> {
+		T count(UserProviderExtended provider, RealmModel realm);
+	}
+
+	private final SearchExecutionMode mode;
+
+	private final ThreadPoolExecutor executor;
+
+	private final UserProviderExtendedFactory providerFactory;
+
+	public SearchExecutor(SearchExecutionMode mode, int threads,
+			int queueSize, UserProviderExtendedFactory providerFactory) {
+		this.mode = mode;
+		this.providerFactory = providerFactory;
+		if (mode == SearchExecutionMode.CONCURRENT) {
+			executor = new ThreadPoolExecutor(threads, threads, 60L,
+					TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(queueSize),
+					new NamedThreadFactory("user-search-count-"),
+					new ThreadPoolExecutor.CallerRunsPolicy());
+			executor.allowCoreThreadTimeOut(true);
+		}
+		else {
+			executor = null;
+		}
+	}
+
+	public SearchExecutionMode getMode() {
+		return mode;
+	}
+
+	public boolean isConcurrent() {
+		return mode == SearchExecutionMode.CONCURRENT;
+	}
+
+	/**
+	 * Starts count task in separate session
+	 * 
+	 * @param session request session (used only to get session factory)
+	 * @param realm
+	 * @param task
+	 * @return
+	 */
+	public <T> Future<T> submitCount(KeycloakSession session,
+			RealmModel realm, final CountTask<T> task) {
+
+		final KeycloakSessionFactory sessionFactory = session
+				.getKeycloakSessionFactory();
+		final String realmId = realm.getId();
+
+		return executor.submit(() -> {
+			final List<T> result = new ArrayList<>(1);
+			KeycloakModelUtils.runJobInTransaction(sessionFactory,
+					(KeycloakSession countSession) -> {
+						RealmModel countRealm = countSession.realms()
+								.getRealm(realmId);
+						UserProviderExtended provider = providerFactory
+								.create(countSession);
+						result.add(task.count(provider, countRealm));
+					});
+			return result.get(0);
+		});
+	}
+
+	/**
+	 * Waits for result of `submitCount`
+	 * 
+	 * @param future
+	 * @return
+	 */
+	public <T> T await(Future<T> future) {
+		try {
+			return future.get();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Count query was interrupted", e);
+		}
+		catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new IllegalStateException(cause);
+		}
+	}
+
+	public void close() {
+		if (executor != null) {
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * Daemon threads with readable names
+	 */
+	static class NamedThreadFactory implements ThreadFactory {
+
+		private final String prefix;
+
+		private final AtomicInteger counter = new AtomicInteger();
+
+		NamedThreadFactory(String prefix) {
+			this.prefix = prefix;
+		}
+
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable,
+					prefix + counter.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
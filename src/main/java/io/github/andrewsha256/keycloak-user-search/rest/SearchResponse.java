@@ -1,18 +1,39 @@
 package io.github.andrewsha256.keycloak_user_search.rest;
 
 import java.util.List;
+import java.util.Map;
 
-import org.keycloak.representations.idm.UserRepresentation;
+import io.github.andrewsha256.keycloak_user_search.jpa.FacetValue;
 
 public class SearchResponse {
 	
 	long totalSize;
 
-	List<UserRepresentation> users;
+	String totalStrategy;
 
-	public SearchResponse(long totalSize, List<UserRepresentation> users) {
+	List<?> users;
+
+	String nextCursor;
+
+	Map<String, List<FacetValue>> facets;
+
+	public SearchResponse(long totalSize, List<?> users) {
+		this(totalSize, "exact", users, null);
+	}
+
+	public SearchResponse(long totalSize, String totalStrategy,
+			List<?> users, String nextCursor) {
+		this(totalSize, totalStrategy, users, nextCursor, null);
+	}
+
+	public SearchResponse(long totalSize, String totalStrategy,
+			List<?> users, String nextCursor,
+			Map<String, List<FacetValue>> facets) {
 		this.totalSize = totalSize;
+		this.totalStrategy = totalStrategy;
 		this.users = users;
+		this.nextCursor = nextCursor;
+		this.facets = facets;
 	}
 
 	/**
@@ -25,11 +46,41 @@ public class SearchResponse {
 	}
 
 	/**
-	 * Portion of users
+	 * How `totalSize` was counted: `exact`, `capped:N`, `estimate` or `none`
+	 * 
+	 * @return
+	 */
+	public String getTotalStrategy() {
+		return this.totalStrategy;
+	}
+
+	/**
+	 * Portion of users: `UserRepresentation`s, `UserRow`s when `_fields` is
+	 * set or user ids when `_idsOnly` is set
 	 * 
 	 * @return
 	 */
-	public List<UserRepresentation> getUsers() {
+	public List<?> getUsers() {
 		return this.users;
 	}
+
+	/**
+	 * Cursor for `_after` argument to get the next portion, `null` if it is
+	 * the last portion
+	 * 
+	 * @return
+	 */
+	public String getNextCursor() {
+		return this.nextCursor;
+	}
+
+	/**
+	 * Requested facets: `label => values` with amounts of users, `null` if
+	 * `_facets` is not set
+	 * 
+	 * @return
+	 */
+	public Map<String, List<FacetValue>> getFacets() {
+		return this.facets;
+	}
 }
@@ -0,0 +1,114 @@
+package io.github.andrewsha256.keycloak_user_search.rest;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jboss.logging.Logger;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+import io.github.andrewsha256.keycloak_user_search.jpa.ShadowSearchIndexer;
+
+/**
+ * Fills `USER_SEARCH_VALUE` table with realm's users
+ *
+ * Users are reindexed in id order by batches, every batch in its own
+ * transaction, on single background thread. Job may be restarted at any
+ * time: every batch replaces rows of its users.
+ *
+ * One instance per deployment, created by `UserResourceProviderFactory`.
+ */
+public class ShadowSearchBackfill {
+
+	private static final Logger logger = Logger
+			.getLogger(ShadowSearchBackfill.class);
+
+	public static final int DEFAULT_BATCH_SIZE = 500;
+
+	private final int batchSize;
+
+	private final ExecutorService executor = Executors.newSingleThreadExecutor(
+			new SearchExecutor.NamedThreadFactory("user-search-backfill-"));
+
+	/**
+	 * Realms with started (and not finished) jobs => processed users
+	 */
+	private final Map<String, AtomicLong> running = new ConcurrentHashMap<>();
+
+	public ShadowSearchBackfill(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Starts backfill of realm if it is not running already
+	 *
+	 * @param sessionFactory
+	 * @param realmId
+	 * @return `false` if job for realm is running already
+	 */
+	public boolean start(final KeycloakSessionFactory sessionFactory,
+			final String realmId) {
+
+		final AtomicLong processed = new AtomicLong();
+		if (running.putIfAbsent(realmId, processed) != null) {
+			return false;
+		}
+		executor.submit(() -> {
+			try {
+				this._run(sessionFactory, realmId, processed);
+				logger.infof("User search backfill of realm %s is done: %d users",
+						realmId, processed.get());
+			}
+			catch (RuntimeException e) {
+				logger.errorf(e, "User search backfill of realm %s failed",
+						realmId);
+			}
+			finally {
+				running.remove(realmId);
+			}
+		});
+		return true;
+	}
+
+	/**
+	 * Amount of users processed by running job or `-1` if job for realm is
+	 * not running
+	 *
+	 * @param realmId
+	 * @return
+	 */
+	public long getProcessed(String realmId) {
+		AtomicLong processed = running.get(realmId);
+		return processed == null ? -1 : processed.get();
+	}
+
+	public void close() {
+		executor.shutdownNow();
+	}
+
+	private void _run(KeycloakSessionFactory sessionFactory, String realmId,
+			AtomicLong processed) {
+
+		final String[] lastId = { null };
+		do {
+			KeycloakModelUtils.runJobInTransaction(sessionFactory,
+					(KeycloakSession session) -> {
+						ShadowSearchIndexer indexer = new ShadowSearchIndexer(
+								session.getProvider(JpaConnectionProvider.class)
+										.getEntityManager());
+						List<String> ids = indexer.reindexBatch(realmId,
+								lastId[0], batchSize);
+						processed.addAndGet(ids.size());
+						lastId[0] = ids.isEmpty() ? null
+								: ids.get(ids.size() - 1);
+					});
+		}
+		while (lastId[0] != null && !Thread.currentThread().isInterrupted());
+	}
+}
@@ -0,0 +1,113 @@
+package io.github.andrewsha256.keycloak_user_search.rest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javax.persistence.EntityManager;
+
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.jpa.JpaModel;
+import org.keycloak.models.jpa.entities.CredentialEntity;
+import org.keycloak.models.utils.ModelToRepresentation;
+import org.keycloak.representations.idm.UserRepresentation;
+import org.keycloak.storage.StorageId;
+
+import io.github.andrewsha256.keycloak_user_search.jpa.JpaUserProviderExtended;
+import io.github.andrewsha256.keycloak_user_search.jpa.UserProviderExtended;
+
+/**
+ * Converts portion of found users to `UserRepresentation`s
+ *
+ * Every user is converted by `ModelToRepresentation.toRepresentation`, so
+ * `totp` and disableable credential types are answered by credential
+ * providers (custom ones too) as in admin console. Everything else it reads
+ * is loaded for the whole portion: attributes and required actions by
+ * search (see `JpaUserProviderExtended`), groups by one query, and local
+ * users' credentials with their attributes are put into persistence context
+ * of session, so credential store queries find them there instead of lazy
+ * loading attributes of every credential.
+ */
+public class UserRepresentations {
+
+	private UserRepresentations() {
+	}
+
+	/**
+	 * Representations of `users` with groups, without `access`
+	 *
+	 * @param session
+	 * @param realm
+	 * @param provider
+	 * @param users
+	 * @return
+	 */
+	public static List<UserRepresentation> toRepresentations(
+			KeycloakSession session, RealmModel realm,
+			UserProviderExtended provider, List<UserModel> users) {
+
+		List<String> ids = new ArrayList<>(users.size());
+		List<String> localIds = new ArrayList<>(users.size());
+		for (UserModel user : users) {
+			ids.add(user.getId());
+			if (_isLocal(user)) {
+				localIds.add(user.getId());
+			}
+		}
+
+		Map<String, List<String>> groupNames = provider.getGroupNames(realm,
+				ids);
+		_loadCredentials(session.getProvider(JpaConnectionProvider.class)
+				.getEntityManager(), localIds);
+
+		List<UserRepresentation> results = new ArrayList<>(users.size());
+		for (UserModel user : users) {
+			UserRepresentation userRep = ModelToRepresentation
+					.toRepresentation(session, realm, user);
+			List<String> userGroupNames = groupNames.get(user.getId());
+			if (userGroupNames == null) {
+				userGroupNames = new ArrayList<>();
+			}
+			userRep.setGroups(userGroupNames);
+			results.add(userRep);
+		}
+		return results;
+	}
+
+	/**
+	 * Returns `true` if user is stored by Keycloak's JPA provider and is not
+	 * linked to federation provider (so its credentials are in
+	 * `CredentialEntity`)
+	 *
+	 * @param user
+	 * @return
+	 */
+	private static boolean _isLocal(UserModel user) {
+		return user instanceof JpaModel && StorageId.isLocalStorage(user)
+				&& user.getFederationLink() == null;
+	}
+
+	/**
+	 * Loads credentials of `userIds` with their attributes into persistence
+	 * context of `em`: one query per `IN_PARAMS_CHUNK_SIZE` users
+	 *
+	 * @param em
+	 * @param userIds
+	 */
+	private static void _loadCredentials(EntityManager em,
+			List<String> userIds) {
+
+		int chunkSize = JpaUserProviderExtended.IN_PARAMS_CHUNK_SIZE;
+		for (int from = 0; from < userIds.size(); from += chunkSize) {
+			em.createQuery("select distinct c from CredentialEntity c "
+					+ " left join fetch c.credentialAttributes"
+					+ " where c.user.id in (:ids)", CredentialEntity.class)
+				.setParameter("ids", userIds.subList(from,
+						Math.min(from + chunkSize, userIds.size())))
+				.getResultList();
+		}
+	}
+}
@@ -1,31 +1,69 @@
 package io.github.andrewsha256.keycloak_user_search.rest;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.function.ToIntFunction;
 
+import javax.ws.rs.BadRequestException;
+import javax.ws.rs.Consumes;
 import javax.ws.rs.DefaultValue;
 import javax.ws.rs.GET;
+import javax.ws.rs.NotFoundException;
+import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
 import javax.ws.rs.core.Context;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
 import javax.ws.rs.core.UriInfo;
 
-import org.keycloak.models.GroupModel;
 import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
 import org.keycloak.models.RealmModel;
 import org.keycloak.models.UserModel;
-import org.keycloak.models.utils.ModelToRepresentation;
 import org.keycloak.representations.idm.UserRepresentation;
+import org.keycloak.services.resources.admin.AdminAuth;
 import org.keycloak.services.resources.admin.permissions.AdminPermissionEvaluator;
+import org.keycloak.util.JsonSerialization;
 
+import io.github.andrewsha256.keycloak_user_search.jpa.BitmapIndexRegistry;
+import io.github.andrewsha256.keycloak_user_search.jpa.CountStrategy;
+import io.github.andrewsha256.keycloak_user_search.jpa.FacetValue;
+import io.github.andrewsha256.keycloak_user_search.jpa.FieldProjection;
+import io.github.andrewsha256.keycloak_user_search.jpa.IndexResultCache;
+import io.github.andrewsha256.keycloak_user_search.jpa.JpaUserProviderExtended;
 import io.github.andrewsha256.keycloak_user_search.jpa.OrderDirect;
+import io.github.andrewsha256.keycloak_user_search.jpa.QueryPlanCache;
+import io.github.andrewsha256.keycloak_user_search.jpa.ReadReplica;
+import io.github.andrewsha256.keycloak_user_search.jpa.RealmBulkhead;
+import io.github.andrewsha256.keycloak_user_search.jpa.RealmBusyException;
+import io.github.andrewsha256.keycloak_user_search.jpa.SearchCursor;
+import io.github.andrewsha256.keycloak_user_search.jpa.SearchMetrics;
+import io.github.andrewsha256.keycloak_user_search.jpa.SlowQueryEntry;
+import io.github.andrewsha256.keycloak_user_search.jpa.SlowQueryLog;
+import io.github.andrewsha256.keycloak_user_search.jpa.StatementCounter;
+import io.github.andrewsha256.keycloak_user_search.jpa.TotalCount;
+import io.github.andrewsha256.keycloak_user_search.jpa.UserIdList;
+import io.github.andrewsha256.keycloak_user_search.jpa.UserList;
 import io.github.andrewsha256.keycloak_user_search.jpa.UserProviderExtended;
+import io.github.andrewsha256.keycloak_user_search.jpa.UserRowList;
 
 /**
  * REST-point resource
@@ -43,6 +81,39 @@ public class UserResource {
 
 	public static final String DEFAULT_PORTION_SIZE = "15";
 
+	/**
+	 * Newline-delimited JSON: one JSON document per line
+	 */
+	public static final String NDJSON = "application/x-ndjson";
+
+	/**
+	 * Prometheus text exposition format
+	 */
+	public static final String PROMETHEUS_TEXT = "text/plain; version=0.0.4";
+
+	/**
+	 * Amount of users read from database and written to export response at
+	 * once
+	 */
+	public static final int EXPORT_FETCH_SIZE = 500;
+
+	/**
+	 * Max amount of queries in one `batch` request
+	 */
+	public static final int MAX_BATCH_SIZE = 20;
+
+	public static final String DEFAULT_FACET_SIZE = "10";
+
+	/**
+	 * Max amount of facets in one `search` request
+	 */
+	public static final int MAX_FACETS = 10;
+
+	/**
+	 * Max amount of values of single facet
+	 */
+	public static final int MAX_FACET_SIZE = 100;
+
 	private final RealmModel realm;
 
 	private final UserProviderExtended provider;
@@ -51,12 +122,74 @@ public class UserResource {
 
 	private final KeycloakSession session;
 
+	private final SearchExecutor searchExecutor;
+
+	private final QueryPlanCache planCache;
+
+	private final IndexResultCache indexCache;
+
+	private final ShadowSearchBackfill backfill;
+
+	private final BitmapIndexRegistry bitmaps;
+
+	private final SearchMetrics metrics;
+
+	private final StatementCounter statements;
+
+	private final SlowQueryLog slowLog;
+
+	private final ReadReplica replica;
+
+	private final RealmBulkhead bulkhead;
+
+	private final AsyncRequestExecutor asyncExecutor;
+
+	private final AdminAuth adminAuth;
+
+	/**
+	 * @param realm
+	 * @param provider
+	 * @param auth
+	 * @param session
+	 * @param searchExecutor
+	 * @param planCache
+	 * @param indexCache
+	 * @param backfill
+	 * @param bitmaps
+	 * @param metrics
+	 * @param statements
+	 * @param slowLog
+	 * @param replica
+	 * @param bulkhead
+	 * @param asyncExecutor runs `search` and `index` if it's enabled, `null`
+	 *                      for resource of `asyncExecutor` session
+	 * @param adminAuth authorization of `auth` (used to make `auth` of
+	 *                  `asyncExecutor` session)
+	 */
 	public UserResource(RealmModel realm, UserProviderExtended provider,
-			AdminPermissionEvaluator auth, KeycloakSession session) {
+			AdminPermissionEvaluator auth, KeycloakSession session,
+			SearchExecutor searchExecutor, QueryPlanCache planCache,
+			IndexResultCache indexCache, ShadowSearchBackfill backfill,
+			BitmapIndexRegistry bitmaps, SearchMetrics metrics,
+			StatementCounter statements, SlowQueryLog slowLog,
+			ReadReplica replica, RealmBulkhead bulkhead,
+			AsyncRequestExecutor asyncExecutor, AdminAuth adminAuth) {
 		this.realm = realm;
 		this.auth = auth;
 		this.provider = provider;
 		this.session = session;
+		this.searchExecutor = searchExecutor;
+		this.planCache = planCache;
+		this.indexCache = indexCache;
+		this.backfill = backfill;
+		this.bitmaps = bitmaps;
+		this.metrics = metrics;
+		this.statements = statements;
+		this.slowLog = slowLog;
+		this.replica = replica;
+		this.bulkhead = bulkhead;
+		this.asyncExecutor = asyncExecutor;
+		this.adminAuth = adminAuth;
 	}
 
 	/**
@@ -68,10 +201,148 @@ public class UserResource {
 	@Path("/info")
 	@Produces(MediaType.TEXT_PLAIN)
 	public String helloWorld() {
-		return String.format(
+		return this.measured("info", null, () -> String.format(
 			"Keycloak User Search. Web-service for searching by user attributes and groups. Version %s.",
 			VERSION
-		);
+		), text -> 0);
+	}
+
+	/**
+	 * Service statistics: caches sizes and hit/miss counters, read replica,
+	 * async executor and realm's bulkhead state
+	 * 
+	 * @return
+	 */
+	@GET
+	@Path("/stats")
+	@Produces(MediaType.APPLICATION_JSON)
+	public Map<String, Object> stats() {
+
+		auth.users().requireQuery();
+
+		Map<String, Object> cache = new LinkedHashMap<>();
+		cache.put("size", planCache.getSize());
+		cache.put("maxSize", planCache.getMaxSize());
+		cache.put("hits", planCache.getHits());
+		cache.put("misses", planCache.getMisses());
+
+		Map<String, Object> index = new LinkedHashMap<>();
+		index.put("size", indexCache.getSize());
+		index.put("maxSize", indexCache.getMaxSize());
+		index.put("ttl", indexCache.getTtlMillis());
+		index.put("hits", indexCache.getHits());
+		index.put("misses", indexCache.getMisses());
+
+		Map<String, Object> result = new LinkedHashMap<>();
+		result.put("planCache", cache);
+		result.put("indexCache", index);
+		if (bitmaps != null) {
+			Map<String, Object> bitmap = new LinkedHashMap<>();
+			bitmap.put("realms", bitmaps.getSize());
+			bitmap.put("users", bitmaps.getUsers());
+			result.put("bitmapIndex", bitmap);
+		}
+		if (replica != null) {
+			result.put("readReplica", replica.getStatus());
+		}
+		if (asyncExecutor != null && asyncExecutor.isEnabled()) {
+			result.put("asyncExecutor", asyncExecutor.getStatus());
+		}
+		if (bulkhead != null && bulkhead.isEnabled()) {
+			result.put("bulkhead", bulkhead.getStatus(realm.getName()));
+		}
+		return result;
+	}
+
+	/**
+	 * Realm's endpoint and provider metrics in Prometheus text format (see
+	 * `SearchMetrics`)
+	 * 
+	 * @return
+	 */
+	@GET
+	@Path("/metrics")
+	@Produces(PROMETHEUS_TEXT)
+	public String metrics() {
+
+		auth.users().requireQuery();
+
+		if (metrics == null) {
+			throw new NotFoundException("Metrics are disabled");
+		}
+
+		StringWriter out = new StringWriter();
+		try {
+			metrics.write(out, realm.getName());
+			if (bulkhead != null && bulkhead.isEnabled()) {
+				bulkhead.write(out, realm.getName());
+			}
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return out.toString();
+	}
+
+	/**
+	 * Realm's operations that were slower than `slowQueryThreshold`, the
+	 * most recent first (see `SlowQueryLog`)
+	 * 
+	 * @return
+	 */
+	@GET
+	@Path("/diagnostics/slow")
+	@Produces(MediaType.APPLICATION_JSON)
+	public List<SlowQueryEntry> slowQueries() {
+
+		auth.users().requireManage();
+
+		if (!slowLog.isEnabled()) {
+			throw new NotFoundException("Slow query log is disabled");
+		}
+
+		return slowLog.getEntries(realm.getId());
+	}
+
+	/**
+	 * Starts filling of `USER_SEARCH_VALUE` table with realm's users in
+	 * background
+	 * 
+	 * @return
+	 */
+	@POST
+	@Path("/shadow/backfill")
+	@Produces(MediaType.APPLICATION_JSON)
+	public Response startBackfill() {
+
+		auth.users().requireManage();
+
+		boolean started = backfill.start(session.getKeycloakSessionFactory(),
+				realm.getId());
+
+		Map<String, Object> result = this.backfillStatus();
+		result.put("started", started);
+		return Response.status(Response.Status.ACCEPTED).entity(result).build();
+	}
+
+	/**
+	 * Status of realm's `USER_SEARCH_VALUE` backfill
+	 * 
+	 * @return
+	 */
+	@GET
+	@Path("/shadow/backfill")
+	@Produces(MediaType.APPLICATION_JSON)
+	public Map<String, Object> backfillStatus() {
+
+		auth.users().requireQuery();
+
+		long processed = backfill.getProcessed(realm.getId());
+
+		Map<String, Object> result = new LinkedHashMap<>();
+		result.put("running", processed >= 0);
+		result.put("processed", Math.max(processed, 0));
+		return result;
 	}
 
 	/**
@@ -79,100 +350,714 @@ public class UserResource {
 	 * 
 	 * Inspired by `org.keycloak.services.resources.admin.UsersResource::getUsers`
 	 * 
+	 * `_after` is a cursor from `nextCursor` of the previous response. When
+	 * it is set `_first` is ignored and the portion starts right after the
+	 * cursor, which is much cheaper than big `_first` values.
+	 * 
+	 * `_count` sets how `totalSize` is counted: `exact` (default),
+	 * `capped:N`, `estimate` or `none`.
+	 * 
+	 * `_facets` is comma-separated list of labels (`group`, default fields,
+	 * attribute names): response `facets` has `_facetSize` most frequent
+	 * values of every label among all matching users (not only the
+	 * portion) with amounts of those users.
+	 * 
+	 * `_fields` is comma-separated list of user columns (`id`, `username`,
+	 * `email`, `firstName`, `lastName`, `enabled`, `emailVerified`,
+	 * `createdTimestamp`), `attr:<name>` and `groups`: users have only those
+	 * properties and are selected without loading user entities. It requires
+	 * `view-users` role for all realm's users and users have no `access`.
+	 * 
+	 * `_idsOnly=true` makes `users` array of user ids: query selects ids only,
+	 * so `_max` can be thousands. It requires `view-users` role too and can't
+	 * be used with `_fields`.
+	 * 
+	 * With `asyncThreads` request is made by `AsyncRequestExecutor` (see
+	 * `respond`).
+	 * 
+	 * @param response
 	 * @param info
 	 * @param firstResult
 	 * @param maxResults
+	 * @param after
+	 * @param count
+	 * @param facets
+	 * @param facetSize
+	 * @param fields
+	 * @param idsOnly
 	 * @return
 	 */
 	@GET
 	@Produces(MediaType.APPLICATION_JSON)
-	public SearchResponse search(
+	public void search(
+			@Suspended AsyncResponse response,
 			@Context UriInfo info,
 			@DefaultValue("0") @QueryParam("_first") int firstResult,
 			@DefaultValue(DEFAULT_PORTION_SIZE) @QueryParam("_max") int maxResults,
 			@DefaultValue("username") @QueryParam("_orderBy") String orderBy,
-			@DefaultValue("ASC") @QueryParam("_orderDirect") OrderDirect orderDirect) {
+			@DefaultValue("ASC") @QueryParam("_orderDirect") OrderDirect orderDirect,
+			@QueryParam("_after") String after,
+			@DefaultValue("exact") @QueryParam("_count") String count,
+			@QueryParam("_facets") String facets,
+			@DefaultValue(DEFAULT_FACET_SIZE) @QueryParam("_facetSize") int facetSize,
+			@QueryParam("_fields") String fields,
+			@DefaultValue("false") @QueryParam("_idsOnly") boolean idsOnly) {
 
 		auth.users().requireQuery();
 
-		MultivaluedMap<String, String> params = info.getQueryParameters();
+		Map<String, List<String>> query = this.filterParams(info,
+				"_first", "_max", "_orderBy", "_orderDirect", "_after", "_count",
+				"_facets", "_facetSize", "_fields", "_idsOnly");
 
-		Map<String, List<String>> query = new HashMap<>();
-		for (Map.Entry<String, List<String>> entry : params.entrySet()) {
-			String key = entry.getKey();
-			if (!"_first".equals(key) && !"_max".equals(key)
-					&& !"_orderBy".equals(key) && !"_orderDirect".equals(key)) {
-				query.put(key, entry.getValue());
-			}
+		this.respond(response, "search", query, resource -> resource
+				.searchUsers(query, firstResult, maxResults, orderBy,
+						orderDirect, after, count, facets, facetSize, fields,
+						idsOnly),
+				result -> result.getUsers().size());
+	}
+
+	/**
+	 * `search` with already extracted search terms (also used by `batch`)
+	 * 
+	 * @param query
+	 * @param firstResult
+	 * @param maxResults
+	 * @param orderBy
+	 * @param orderDirect
+	 * @param after
+	 * @param count
+	 * @param facets
+	 * @param facetSize
+	 * @param fields
+	 * @param idsOnly
+	 * @return
+	 */
+	private SearchResponse searchUsers(Map<String, List<String>> query,
+			int firstResult, int maxResults, String orderBy,
+			OrderDirect orderDirect, String after, String count,
+			String facets, int facetSize, String fields, boolean idsOnly) {
+
+		CountStrategy countStrategy = this.countStrategy(count);
+		List<String> facetLabels = this.facetLabels(facets, facetSize);
+		FieldProjection projection = this.fieldProjection(fields);
+
+		if (idsOnly && projection != null) {
+			throw new BadRequestException(
+					"`_idsOnly` can't be used with `_fields`");
+		}
+		if (idsOnly || projection != null) {
+			// there are no models for per-user permission checks
+			auth.users().requireView();
 		}
 
-		long totalSize = provider.countUsers(query, realm);
+		SearchCursor afterCursor = null;
+		if (after != null && !after.isEmpty()) {
+			try {
+				afterCursor = SearchCursor.decode(after);
+			}
+			catch (IllegalArgumentException e) {
+				throw new BadRequestException("Malformed `_after` cursor");
+			}
+			firstResult = -1;
+		}
 
-		List<UserModel> userModels;
+		TotalCount total;
+		SearchPortion portion;
+		Map<String, List<FacetValue>> facetValues = null;
 
-		if(totalSize > 0) {
-			userModels = provider.searchForUserExtended(query, realm,
-					firstResult, maxResults, orderBy, orderDirect);
+		if (searchExecutor.isConcurrent()
+				&& countStrategy.getType() != CountStrategy.Type.NONE) {
+			Future<TotalCount> totalFuture = searchExecutor.submitCount(
+					session, realm, (countProvider, countRealm) -> countProvider
+							.countUsers(query, countRealm, countStrategy));
+			Future<Map<String, List<FacetValue>>> facetsFuture = null;
+			if (!facetLabels.isEmpty()) {
+				facetsFuture = searchExecutor.submitCount(session, realm,
+						(facetProvider, facetRealm) -> facetProvider.facets(
+								query, facetRealm, facetLabels, facetSize));
+			}
+			portion = this.searchPortion(query, firstResult, afterCursor,
+					maxResults, orderBy, orderDirect, projection, idsOnly);
+			total = searchExecutor.await(totalFuture);
+			if (facetsFuture != null) {
+				facetValues = searchExecutor.await(facetsFuture);
+			}
 		}
 		else {
-			userModels = new ArrayList<>();
+			total = provider.countUsers(query, realm, countStrategy);
+
+			if(!total.isZero()) {
+				portion = this.searchPortion(query, firstResult, afterCursor,
+						maxResults, orderBy, orderDirect, projection, idsOnly);
+			}
+			else {
+				portion = new SearchPortion(new ArrayList<>(), null);
+			}
+
+			if (!facetLabels.isEmpty() && !total.isZero()) {
+				facetValues = provider.facets(query, realm, facetLabels,
+						facetSize);
+			}
+			else if (!facetLabels.isEmpty()) {
+				facetValues = new LinkedHashMap<>();
+				for (String label : facetLabels) {
+					facetValues.put(label, new ArrayList<>());
+				}
+			}
 		}
 		return new SearchResponse(
-				totalSize,
-				this.userSearchResponse(userModels));
+				total.getValue(),
+				total.getStrategy().toString(),
+				portion.users,
+				portion.nextCursor == null ? null : portion.nextCursor.encode(),
+				facetValues);
+	}
+
+	/**
+	 * Selects portion of users: `UserRepresentation`s, `UserRow`s of
+	 * `projection` or user ids
+	 * 
+	 * @param query
+	 * @param firstResult
+	 * @param after
+	 * @param maxResults
+	 * @param orderBy
+	 * @param orderDirect
+	 * @param projection `null` if `_fields` is not set
+	 * @param idsOnly
+	 * @return
+	 */
+	private SearchPortion searchPortion(Map<String, List<String>> query,
+			int firstResult, SearchCursor after, int maxResults,
+			String orderBy, OrderDirect orderDirect,
+			FieldProjection projection, boolean idsOnly) {
+
+		if (idsOnly) {
+			UserIdList ids = provider.searchIdsExtended(query, realm,
+					firstResult, after, maxResults, orderBy, orderDirect);
+			return new SearchPortion(ids.getIds(), ids.getNextCursor());
+		}
+		if (projection != null) {
+			UserRowList rows = provider.searchForUserFields(query, realm,
+					firstResult, after, maxResults, orderBy, orderDirect,
+					projection);
+			return new SearchPortion(rows.getRows(), rows.getNextCursor());
+		}
+		UserList userList = provider.searchForUserExtended(query, realm,
+				firstResult, after, maxResults, orderBy, orderDirect);
+		return new SearchPortion(this.userSearchResponse(userList.getUsers()),
+				userList.getNextCursor());
 	}
 
 	/**
 	 * User index
 	 * 
+	 * `_count` sets how `totalSize` is counted, see `search`.
+	 * 
+	 * With `asyncThreads` request is made by `AsyncRequestExecutor` (see
+	 * `respond`).
+	 * 
+	 * @param response
+	 * @param info
 	 * @param label
 	 * @param value
 	 * @param firstResult
 	 * @param maxResults
+	 * @param count
 	 * @return
 	 */
 	@Path("/index")
 	@GET
 	@Produces(MediaType.APPLICATION_JSON)
-	public IndexResponse index(
+	public void index(
+			@Suspended AsyncResponse response,
 			@Context UriInfo info,
 			@QueryParam("_label") String label,
 			@DefaultValue("%") @QueryParam("_value") String value,
 			@DefaultValue("0") @QueryParam("_first") int firstResult,
 			@DefaultValue(DEFAULT_PORTION_SIZE) @QueryParam("_max") int maxResults,
-			@DefaultValue("ASC") @QueryParam("_orderDirect") OrderDirect orderDirect) {
+			@DefaultValue("ASC") @QueryParam("_orderDirect") OrderDirect orderDirect,
+			@DefaultValue("exact") @QueryParam("_count") String count) {
 
 		auth.users().requireQuery();
 
-		MultivaluedMap<String, String> params = info.getQueryParameters();
+		Map<String, List<String>> query = this.filterParams(info,
+				"_first", "_max", "_orderDirect", "_label", "_value", "_count");
 
-		Map<String, List<String>> query = new HashMap<>();
-		for (Map.Entry<String, List<String>> entry : params.entrySet()) {
-			String key = entry.getKey();
-			if (!"_first".equals(key) && !"_max".equals(key)
-					&& !"_orderDirect".equals(key)
-					&& !"_label".equals(key) && !"_value".equals(key)) {
-				query.put(key, entry.getValue());
-			}
-		}
+		this.respond(response, "index", query, resource -> resource
+				.indexValues(query, label, value, firstResult, maxResults,
+						orderDirect, count),
+				result -> result.getValues().size());
+	}
 
-		long total = provider.countIndex(realm, label, value, query);
+	/**
+	 * `index` with already extracted search terms (also used by `batch`)
+	 * 
+	 * @param query
+	 * @param label
+	 * @param value
+	 * @param firstResult
+	 * @param maxResults
+	 * @param orderDirect
+	 * @param count
+	 * @return
+	 */
+	private IndexResponse indexValues(Map<String, List<String>> query,
+			String label, String value, int firstResult, int maxResults,
+			OrderDirect orderDirect, String count) {
+
+		CountStrategy countStrategy = this.countStrategy(count);
+
+		TotalCount total;
 		List<String> values;
-		if(total > 0) {
+
+		if (searchExecutor.isConcurrent()
+				&& countStrategy.getType() != CountStrategy.Type.NONE) {
+			Future<TotalCount> totalFuture = searchExecutor.submitCount(session,
+					realm, (countProvider, countRealm) -> countProvider
+							.countIndex(countRealm, label, value, query,
+									countStrategy));
 			values = provider.index(realm, label, value, query,
 					firstResult, maxResults, orderDirect);
+			total = searchExecutor.await(totalFuture);
 		}
 		else {
-			values = new ArrayList<>();
+			total = provider.countIndex(realm, label, value, query,
+					countStrategy);
+			if(!total.isZero()) {
+				values = provider.index(realm, label, value, query,
+						firstResult, maxResults, orderDirect);
+			}
+			else {
+				values = new ArrayList<>();
+			}
+		}
+
+		return new IndexResponse(total.getValue(),
+				total.getStrategy().toString(), values);
+	}
+
+	/**
+	 * Several `search`, `index` and `count` queries in one request
+	 * 
+	 * Queries share request's authorization and session. In `concurrent`
+	 * search mode `index` and `count` queries run at the same time in their
+	 * own sessions (see `SearchExecutor`) while `search` queries are made by
+	 * request thread.
+	 * 
+	 * Results are in order of queries. Client error of single query (eg
+	 * malformed cursor) is returned in its result, other queries are still
+	 * made.
+	 * 
+	 * @param queries
+	 * @return
+	 */
+	@POST
+	@Path("/batch")
+	@Consumes(MediaType.APPLICATION_JSON)
+	@Produces(MediaType.APPLICATION_JSON)
+	public List<BatchResult> batch(List<BatchQuery> queries) {
+
+		auth.users().requireQuery();
+
+		if (queries == null || queries.isEmpty()) {
+			throw new BadRequestException("Batch has no queries");
+		}
+		if (queries.size() > MAX_BATCH_SIZE) {
+			throw new BadRequestException(
+					"Batch can't have more than " + MAX_BATCH_SIZE + " queries");
+		}
+		for (int i = 0; i < queries.size(); i++) {
+			if (queries.get(i) == null) {
+				throw new BadRequestException("Batch query " + i + " is null");
+			}
+			if (queries.get(i).getQuery() == null) {
+				throw new BadRequestException(
+						"Batch query " + i + " has null `query`");
+			}
 		}
 
-		return new IndexResponse(total, values);
+		List<Future<Object>> futures = new ArrayList<>(queries.size());
+		for (BatchQuery query : queries) {
+			if (searchExecutor.isConcurrent()
+					&& !BatchQuery.SEARCH.equals(query.getType())) {
+				futures.add(searchExecutor.submitCount(session, realm,
+						(queryProvider, queryRealm) -> this.batchQuery(query,
+								queryProvider, queryRealm)));
+			}
+			else {
+				futures.add(null);
+			}
+		}
+
+		List<BatchResult> results = new ArrayList<>(queries.size());
+		for (int i = 0; i < queries.size(); i++) {
+			try {
+				Future<Object> future = futures.get(i);
+				results.add(new BatchResult(future != null
+						? searchExecutor.await(future)
+						: this.batchQuery(queries.get(i), provider, realm)));
+			}
+			catch (WebApplicationException e) {
+				results.add(new BatchResult(e.getResponse().getStatus(),
+						e.getMessage()));
+			}
+			catch (RealmBusyException e) {
+				results.add(new BatchResult(
+						AsyncRequestExecutor.TOO_MANY_REQUESTS, e.getMessage()));
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Makes single `batch` query with provider of request or of separate
+	 * session (`search` queries are made with request session only)
+	 * 
+	 * @param query
+	 * @param queryProvider
+	 * @param queryRealm
+	 * @return
+	 */
+	private Object batchQuery(BatchQuery query,
+			UserProviderExtended queryProvider, RealmModel queryRealm) {
+
+		String type = query.getType() == null ? BatchQuery.SEARCH
+				: query.getType();
+
+		switch (type) {
+			case BatchQuery.SEARCH:
+				return this.searchUsers(query.getQuery(), query.getFirst(),
+						query.getMax(), query.getOrderBy(),
+						query.getOrderDirect(), query.getAfter(),
+						query.getCount(), query.getFacets(),
+						query.getFacetSize(), query.getFields(),
+						query.isIdsOnly());
+
+			case BatchQuery.INDEX: {
+				if (query.getLabel() == null) {
+					throw new BadRequestException(
+							"`label` is required for index query");
+				}
+				CountStrategy countStrategy = this.countStrategy(
+						query.getCount());
+				TotalCount total = queryProvider.countIndex(queryRealm,
+						query.getLabel(), query.getValue(), query.getQuery(),
+						countStrategy);
+				List<String> values = total.isZero() ? new ArrayList<>()
+						: queryProvider.index(queryRealm, query.getLabel(),
+								query.getValue(), query.getQuery(),
+								query.getFirst(), query.getMax(),
+								query.getOrderDirect());
+				return new IndexResponse(total.getValue(),
+						total.getStrategy().toString(), values);
+			}
+
+			case BatchQuery.COUNT: {
+				TotalCount total = queryProvider.countUsers(query.getQuery(),
+						queryRealm, this.countStrategy(query.getCount()));
+				return new CountResponse(total.getValue(),
+						total.getStrategy().toString());
+			}
+
+			default:
+				throw new BadRequestException("Unknown query type `" + type
+						+ "`");
+		}
+	}
+
+	/**
+	 * Export of all users matching search query
+	 * 
+	 * Takes the same search terms as `search` and streams one
+	 * `UserRepresentation` per line without counting and paging: users are
+	 * read by database cursor `EXPORT_FETCH_SIZE` at a time, so memory usage
+	 * doesn't depend on amount of users.
+	 * 
+	 * @param info
+	 * @param orderBy default field or attribute name (not `group`)
+	 * @param orderDirect
+	 * @return
+	 */
+	@GET
+	@Path("/export")
+	@Produces(NDJSON)
+	public Response export(
+			@Context UriInfo info,
+			@DefaultValue("username") @QueryParam("_orderBy") String orderBy,
+			@DefaultValue("ASC") @QueryParam("_orderDirect") OrderDirect orderDirect) {
+
+		auth.users().requireQuery();
+
+		if (JpaUserProviderExtended.GROUP_FIELD.equals(orderBy)) {
+			throw new BadRequestException(
+					"Export can't be ordered by `group`");
+		}
+
+		Map<String, List<String>> query = this.filterParams(info,
+				"_orderBy", "_orderDirect");
+
+		// output is written after request transaction is committed, so
+		// export runs in its own session and transaction
+		KeycloakSessionFactory sessionFactory = session
+				.getKeycloakSessionFactory();
+		String realmId = realm.getId();
+
+		StreamingOutput output = out -> {
+			try {
+				asyncExecutor.run(sessionFactory, realmId,
+						(exportSession, exportRealm, exportProvider) -> {
+							UserResource resource = this.inSession(exportSession,
+									exportRealm, exportProvider);
+							return exportProvider.exportUsers(query, exportRealm,
+									orderBy, orderDirect, EXPORT_FETCH_SIZE,
+									users -> resource.writeUsers(out, users));
+						});
+			}
+			catch (UncheckedIOException e) {
+				throw e.getCause();
+			}
+			catch (RealmBusyException e) {
+				throw this.tooManyRequests(e);
+			}
+		};
+
+		return Response.ok(output).build();
+	}
+
+	/**
+	 * Writes portion of exported users, one `UserRepresentation` per line
+	 * 
+	 * @param out
+	 * @param users
+	 */
+	void writeUsers(OutputStream out, List<UserModel> users) {
+		try {
+			for (UserRepresentation user : this.userSearchResponse(users)) {
+				out.write(JsonSerialization.writeValueAsBytes(user));
+				out.write('\n');
+			}
+			out.flush();
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Makes endpoint `call` and resumes `response` with its result
+	 * 
+	 * If `asyncExecutor` is enabled `call` is made by its thread with
+	 * resource of its own session (request thread is released at once), and
+	 * if its queue is full `response` is `429 Too Many Requests`. Otherwise
+	 * `call` is made by request thread with this resource.
+	 * 
+	 * @param response
+	 * @param endpoint
+	 * @param query search terms
+	 * @param call
+	 * @param rows amount of rows of result
+	 */
+	private <T> void respond(AsyncResponse response, String endpoint,
+			Map<String, List<String>> query, Function<UserResource, T> call,
+			ToIntFunction<T> rows) {
+
+		if (asyncExecutor == null || !asyncExecutor.isEnabled()) {
+			response.resume(this.measured(endpoint, query,
+					() -> call.apply(this), rows));
+			return;
+		}
+
+		boolean submitted = asyncExecutor.submit(session, realm, response,
+				(asyncSession, asyncRealm, asyncProvider) -> {
+					UserResource resource = this.inSession(asyncSession,
+							asyncRealm, asyncProvider);
+					return resource.measured(endpoint, query,
+							() -> call.apply(resource), rows);
+				});
+		if (!submitted) {
+			if (metrics != null) {
+				metrics.recordRequestError(realm.getName(), endpoint,
+						provider.queryShape(query));
+			}
+			response.resume(asyncExecutor.tooManyRequests());
+		}
+	}
+
+	/**
+	 * The same resource in `asyncExecutor` session: provider, authorization
+	 * and statement counter of that session
+	 * 
+	 * @param asyncSession
+	 * @param asyncRealm
+	 * @param asyncProvider
+	 * @return
+	 */
+	private UserResource inSession(KeycloakSession asyncSession,
+			RealmModel asyncRealm, UserProviderExtended asyncProvider) {
+		return new UserResource(asyncRealm, asyncProvider,
+				AuthProviderAbstract.evaluator(asyncSession, asyncRealm,
+						adminAuth),
+				asyncSession, searchExecutor, planCache, indexCache, backfill,
+				bitmaps, metrics,
+				metrics == null ? null : StatementCounter.of(asyncSession),
+				slowLog, replica, bulkhead, null, adminAuth);
+	}
+
+	/**
+	 * Makes endpoint `call` recording its latency, rows and SQL statements
+	 * of request session (counts made in their own sessions in `concurrent`
+	 * mode are recorded by provider metrics only)
+	 * 
+	 * @param endpoint
+	 * @param query search terms, `null` if endpoint has none
+	 * @param call
+	 * @param rows amount of rows of result
+	 * @return
+	 */
+	private <T> T measured(String endpoint, Map<String, List<String>> query,
+			Supplier<T> call, ToIntFunction<T> rows) {
+
+		if (metrics == null) {
+			try {
+				return call.get();
+			}
+			catch (RealmBusyException e) {
+				throw this.tooManyRequests(e);
+			}
+		}
+
+		String shape = query == null ? "" : provider.queryShape(query);
+		long statementsBefore = statements.get();
+		long started = System.nanoTime();
+		T result;
+		try {
+			result = call.get();
+		}
+		catch (RealmBusyException e) {
+			metrics.recordRequestError(realm.getName(), endpoint, shape);
+			throw this.tooManyRequests(e);
+		}
+		catch (RuntimeException e) {
+			metrics.recordRequestError(realm.getName(), endpoint, shape);
+			throw e;
+		}
+		metrics.recordRequest(realm.getName(), endpoint, shape,
+				System.nanoTime() - started, rows.applyAsInt(result),
+				statements.get() - statementsBefore);
+		return result;
+	}
+
+	/**
+	 * `429 Too Many Requests` of call rejected by `RealmBulkhead`
+	 * 
+	 * @param e
+	 * @return
+	 */
+	private WebApplicationException tooManyRequests(RealmBusyException e) {
+		return new WebApplicationException(e.getMessage(), AsyncRequestExecutor
+				.tooManyRequests(e.getMessage(), e.getRetryAfter()));
+	}
+
+	/**
+	 * Parses `_count` argument
+	 * 
+	 * @param count
+	 * @return
+	 */
+	private CountStrategy countStrategy(String count) {
+		try {
+			return CountStrategy.parse(count);
+		}
+		catch (IllegalArgumentException e) {
+			throw new BadRequestException("Wrong `_count` value");
+		}
+	}
+
+	/**
+	 * Parses `_fields` argument
+	 * 
+	 * @param fields
+	 * @return `null` if `fields` is not set
+	 */
+	private FieldProjection fieldProjection(String fields) {
+		if (fields == null || fields.trim().isEmpty()) {
+			return null;
+		}
+		FieldProjection projection;
+		try {
+			projection = FieldProjection.parse(fields);
+		}
+		catch (IllegalArgumentException e) {
+			throw new BadRequestException("Wrong `_fields` value: "
+					+ e.getMessage());
+		}
+		return projection;
+	}
+
+	/**
+	 * Parses `_facets` argument
+	 * 
+	 * @param facets comma-separated labels
+	 * @param facetSize
+	 * @return distinct labels, empty if `facets` is not set
+	 */
+	private List<String> facetLabels(String facets, int facetSize) {
+		List<String> labels = new ArrayList<>();
+		if (facets == null) {
+			return labels;
+		}
+		for (String label : facets.split(",")) {
+			label = label.trim();
+			if (!label.isEmpty() && !labels.contains(label)) {
+				labels.add(label);
+			}
+		}
+		if (labels.size() > MAX_FACETS) {
+			throw new BadRequestException(
+					"Search can't have more than " + MAX_FACETS + " facets");
+		}
+		if (!labels.isEmpty() && (facetSize < 1 || facetSize > MAX_FACET_SIZE)) {
+			throw new BadRequestException(
+					"`_facetSize` must be from 1 to " + MAX_FACET_SIZE);
+		}
+		return labels;
+	}
+
+	/**
+	 * Extracts search terms from query parameters skipping service
+	 * parameters (`_first`, `_max` etc.)
+	 * 
+	 * @param info
+	 * @param serviceParams
+	 * @return
+	 */
+	private Map<String, List<String>> filterParams(UriInfo info,
+			String... serviceParams) {
+
+		MultivaluedMap<String, String> params = info.getQueryParameters();
+
+		List<String> skip = Arrays.asList(serviceParams);
+
+		Map<String, List<String>> query = new HashMap<>();
+		for (Map.Entry<String, List<String>> entry : params.entrySet()) {
+			String key = entry.getKey();
+			if (!skip.contains(key)) {
+				query.put(key, entry.getValue());
+			}
+		}
+		return query;
 	}
 
 	/**
 	 * Gets `JpaUserProviderExtended` response `List<UserModel>` and converts it to
 	 * web-response `List<UserRepresentation>`
 	 * 
+	 * Groups and credentials of the whole portion are selected by one query
+	 * each (see `UserRepresentations`). With realm-level `manage-users` role
+	 * `access` doesn't depend on user (except `impersonate`), so it is
+	 * evaluated once per portion.
+	 * 
 	 * @param realm
 	 * @param userModels
 	 * @return
@@ -180,27 +1065,57 @@ public class UserResource {
 	private List<UserRepresentation> userSearchResponse(
 			List<UserModel> userModels) {
 
-		List<UserRepresentation> results = new ArrayList<UserRepresentation>();
-
 		boolean canViewGlobal = auth.users().canView();
 
+		List<UserModel> visibleUsers = new ArrayList<>();
 		for (UserModel user : userModels) {
-			if (!canViewGlobal && !auth.users().canView(user)) {
-				continue;
+			if (canViewGlobal || auth.users().canView(user)) {
+				visibleUsers.add(user);
 			}
-			UserRepresentation userRep = ModelToRepresentation
-					.toRepresentation(session, realm, user);
-			Set<GroupModel> groups = user.getGroups();
-			List<String> userGroupNames = new ArrayList<>();
-			for(GroupModel group : groups) {
-				userGroupNames.add(group.getName());
+		}
+
+		List<UserRepresentation> results = UserRepresentations
+				.toRepresentations(session, realm, provider, visibleUsers);
+
+		boolean canManageGlobal = !visibleUsers.isEmpty()
+				&& auth.users().canManage();
+		Map<String, Boolean> managerAccess = null;
+
+		for (int i = 0; i < results.size(); i++) {
+			UserModel user = visibleUsers.get(i);
+			Map<String, Boolean> access;
+			if (canManageGlobal) {
+				if (managerAccess == null) {
+					managerAccess = auth.users().getAccess(user);
+					access = managerAccess;
+				}
+				else {
+					access = new HashMap<>(managerAccess);
+					access.put("impersonate", auth.users().canImpersonate(user));
+				}
+			}
+			else {
+				access = auth.users().getAccess(user);
 			}
-			userRep.setGroups(userGroupNames);
-			userRep.setAccess(auth.users().getAccess(user));
-			results.add(userRep);
+			results.get(i).setAccess(access);
 		}
 
 		return results;
 	}
 
+	/**
+	 * Users of `search` response with cursor of the last one
+	 */
+	private static class SearchPortion {
+
+		final List<?> users;
+
+		final SearchCursor nextCursor;
+
+		SearchPortion(List<?> users, SearchCursor nextCursor) {
+			this.users = users;
+			this.nextCursor = nextCursor;
+		}
+	}
+
 }
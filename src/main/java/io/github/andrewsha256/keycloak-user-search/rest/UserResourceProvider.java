@@ -5,14 +5,31 @@ import org.keycloak.models.RealmModel;
 import org.keycloak.services.resource.RealmResourceProvider;
 import org.keycloak.services.resources.admin.permissions.AdminPermissionEvaluator;
 
+import io.github.andrewsha256.keycloak_user_search.jpa.SearchMetrics;
+import io.github.andrewsha256.keycloak_user_search.jpa.StatementCounter;
 import io.github.andrewsha256.keycloak_user_search.jpa.UserProviderExtended;
 import io.github.andrewsha256.keycloak_user_search.jpa.UserProviderExtendedFactory;
 
 public class UserResourceProvider extends AuthProviderAbstract
 		implements RealmResourceProvider {
 
-	UserResourceProvider(KeycloakSession session) {
-		super(session);
+	private final UserProviderExtendedFactory providerFactory;
+
+	private final SearchExecutor searchExecutor;
+
+	private final ShadowSearchBackfill backfill;
+
+	private final AsyncRequestExecutor asyncExecutor;
+
+	UserResourceProvider(KeycloakSession session,
+			UserProviderExtendedFactory providerFactory,
+			SearchExecutor searchExecutor, ShadowSearchBackfill backfill,
+			AdminAuthCache authCache, AsyncRequestExecutor asyncExecutor) {
+		super(session, authCache);
+		this.providerFactory = providerFactory;
+		this.searchExecutor = searchExecutor;
+		this.backfill = backfill;
+		this.asyncExecutor = asyncExecutor;
 	}
 
 	@Override
@@ -24,12 +41,19 @@ public class UserResourceProvider extends AuthProviderAbstract
 
 		RealmModel realm = session.getContext().getRealm();
 
-		UserProviderExtendedFactory factory = new UserProviderExtendedFactory();
-		UserProviderExtended provider = factory.create(session);
+		UserProviderExtended provider = providerFactory.create(session);
 
 		AdminPermissionEvaluator auth = getAuth();
 
-		return new UserResource(realm, provider, auth, session);
+		SearchMetrics metrics = providerFactory.getMetrics();
+
+		return new UserResource(realm, provider, auth, session,
+				searchExecutor, providerFactory.getPlanCache(),
+				providerFactory.getIndexCache(), backfill,
+				providerFactory.getBitmaps(), metrics,
+				metrics == null ? null : StatementCounter.of(session),
+				providerFactory.getSlowQueryLog(), providerFactory.getReplica(),
+				providerFactory.getBulkhead(), asyncExecutor, getAdminAuth());
 	}
 
 }
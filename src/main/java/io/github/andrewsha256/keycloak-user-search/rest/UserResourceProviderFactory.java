@@ -1,11 +1,27 @@
 package io.github.andrewsha256.keycloak_user_search.rest;
 
+import java.util.HashMap;
+import java.util.Map;
+
 import org.keycloak.Config.Scope;
+import org.keycloak.connections.jpa.util.JpaUtils;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.KeycloakSessionFactory;
 import org.keycloak.services.resource.RealmResourceProvider;
 import org.keycloak.services.resource.RealmResourceProviderFactory;
 
+import io.github.andrewsha256.keycloak_user_search.jpa.BitmapIndexRegistry;
+import io.github.andrewsha256.keycloak_user_search.jpa.FilterPlanner;
+import io.github.andrewsha256.keycloak_user_search.jpa.IndexResultCache;
+import io.github.andrewsha256.keycloak_user_search.jpa.QueryPlanCache;
+import io.github.andrewsha256.keycloak_user_search.jpa.ReadReplica;
+import io.github.andrewsha256.keycloak_user_search.jpa.RealmBulkhead;
+import io.github.andrewsha256.keycloak_user_search.jpa.SearchMetrics;
+import io.github.andrewsha256.keycloak_user_search.jpa.SearchSettings;
+import io.github.andrewsha256.keycloak_user_search.jpa.SearchSource;
+import io.github.andrewsha256.keycloak_user_search.jpa.SlowQueryLog;
+import io.github.andrewsha256.keycloak_user_search.jpa.UserProviderExtendedFactory;
+
 public class UserResourceProviderFactory
 		implements RealmResourceProviderFactory {
 
@@ -16,6 +32,16 @@ public class UserResourceProviderFactory
 	 */
 	public static final String ID = "user-search";
 
+	private UserProviderExtendedFactory providerFactory;
+
+	private SearchExecutor searchExecutor;
+
+	private ShadowSearchBackfill backfill;
+
+	private AdminAuthCache authCache;
+
+	private AsyncRequestExecutor asyncExecutor;
+
 	public UserResourceProviderFactory() {
 	}
 
@@ -26,21 +52,177 @@ public class UserResourceProviderFactory
 
 	@Override
 	public RealmResourceProvider create(KeycloakSession session) {
-		return new UserResourceProvider(session);
+		return new UserResourceProvider(session, providerFactory,
+				searchExecutor, backfill, authCache, asyncExecutor);
 	}
 
 	@Override
 	public void init(Scope config) {
-		// we have nothing to do here
+		BitmapIndexRegistry bitmaps = null;
+		if ("bitmap".equalsIgnoreCase(config.get("searchEngine", "jpa"))) {
+			bitmaps = new BitmapIndexRegistry(
+					config.getLong("bitmapRefreshInterval",
+							BitmapIndexRegistry.DEFAULT_REFRESH_INTERVAL),
+					BitmapIndexRegistry.DEFAULT_BATCH_SIZE);
+		}
+
+		int metricsMaxSeries = config.getInt("metricsMaxSeries",
+				SearchMetrics.DEFAULT_MAX_SERIES);
+
+		SearchSettings settings = new SearchSettings()
+				.setPlanCache(new QueryPlanCache(config.getInt("planCacheSize",
+						UserProviderExtendedFactory.DEFAULT_PLAN_CACHE_SIZE)))
+				.setIndexCache(new IndexResultCache(
+						config.getInt("indexCacheSize",
+								UserProviderExtendedFactory.DEFAULT_INDEX_CACHE_SIZE),
+						config.getLong("indexCacheTtl",
+								UserProviderExtendedFactory.DEFAULT_INDEX_CACHE_TTL)))
+				.setSearchSource(SearchSource.fromString(config.get(
+						"searchSource", SearchSource.ENTITIES.name())))
+				.setPlanner(new FilterPlanner(config.getLong(
+						"plannerStatisticsTtl",
+						FilterPlanner.DEFAULT_STATISTICS_TTL)))
+				.setBitmaps(bitmaps)
+				.setMetrics(metricsMaxSeries > 0
+						? new SearchMetrics(metricsMaxSeries) : null)
+				.setSlowQueryLog(new SlowQueryLog(
+						config.getLong("slowQueryThreshold",
+								SlowQueryLog.DEFAULT_THRESHOLD),
+						config.getInt("slowQueryLogSize",
+								SlowQueryLog.DEFAULT_SIZE),
+						config.getBoolean("slowQueryExplain", false)))
+				.setReplica(this.readReplica(config))
+				.setBulkhead(this.bulkhead(config));
+		providerFactory = new UserProviderExtendedFactory(settings);
+
+		SearchExecutionMode mode = SearchExecutionMode.fromString(
+				config.get("searchMode", SearchExecutionMode.SEQUENTIAL.name()));
+		searchExecutor = new SearchExecutor(mode,
+				config.getInt("searchThreads", 4),
+				config.getInt("searchQueueSize", 100), providerFactory);
+
+		backfill = new ShadowSearchBackfill(config.getInt(
+				"backfillBatchSize", ShadowSearchBackfill.DEFAULT_BATCH_SIZE));
+
+		// opt-in: invalidation is local to Keycloak node
+		authCache = new AdminAuthCache(config.getInt("authCacheSize", 0));
+
+		asyncExecutor = new AsyncRequestExecutor(
+				config.getInt("asyncThreads", 0),
+				config.getInt("asyncQueueSize",
+						AsyncRequestExecutor.DEFAULT_QUEUE_SIZE),
+				config.getInt("asyncRetryAfter",
+						AsyncRequestExecutor.DEFAULT_RETRY_AFTER),
+				config.getLong("asyncTimeout",
+						AsyncRequestExecutor.DEFAULT_TIMEOUT),
+				providerFactory);
+	}
+
+	/**
+	 * Read replica of `replicaDataSource` (JNDI name) or `replicaUrl` (JDBC
+	 * URL), `null` if none of them is set
+	 * 
+	 * @param config
+	 * @return
+	 */
+	private ReadReplica readReplica(Scope config) {
+		Map<String, Object> properties = new HashMap<>();
+		String dataSource = config.get("replicaDataSource");
+		String url = config.get("replicaUrl");
+		if (dataSource != null) {
+			properties.put("javax.persistence.nonJtaDataSource", dataSource);
+		}
+		else if (url != null) {
+			properties.put("javax.persistence.jdbc.url", url);
+			properties.put("javax.persistence.jdbc.user",
+					config.get("replicaUser", ""));
+			properties.put("javax.persistence.jdbc.password",
+					config.get("replicaPassword", ""));
+			if (config.get("replicaDriver") != null) {
+				properties.put("javax.persistence.jdbc.driver",
+						config.get("replicaDriver"));
+			}
+		}
+		else {
+			return null;
+		}
+		if (config.get("replicaSchema") != null) {
+			properties.put(JpaUtils.HIBERNATE_DEFAULT_SCHEMA,
+					config.get("replicaSchema"));
+		}
+
+		return new ReadReplica(properties,
+				config.getLong("replicaMaxLag", ReadReplica.DEFAULT_MAX_LAG),
+				config.getLong("replicaCheckInterval",
+						ReadReplica.DEFAULT_CHECK_INTERVAL),
+				config.get("replicaLagQuery"));
+	}
+
+	/**
+	 * Limiter of `bulkheadPermits` search calls (disabled if it's `0`), realm
+	 * with weight `1` gets `bulkheadRealmPermits` of them (half by default)
+	 * 
+	 * @param config
+	 * @return
+	 */
+	private RealmBulkhead bulkhead(Scope config) {
+		int permits = config.getInt("bulkheadPermits", 0);
+		return new RealmBulkhead(permits,
+				config.getInt("bulkheadRealmPermits", Math.max(1, permits / 2)),
+				config.getInt("bulkheadQueueSize",
+						RealmBulkhead.DEFAULT_QUEUE_SIZE),
+				config.getLong("bulkheadTimeout", RealmBulkhead.DEFAULT_TIMEOUT),
+				RealmBulkhead.parseWeights(config.get("bulkheadWeights")));
+	}
+
+	/**
+	 * Provider factory with shared caches (used by event listener)
+	 * 
+	 * @return
+	 */
+	public UserProviderExtendedFactory getProviderFactory() {
+		return providerFactory;
+	}
+
+	/**
+	 * Cache of admin authorization (used by event listener)
+	 * 
+	 * @return
+	 */
+	public AdminAuthCache getAuthCache() {
+		return authCache;
 	}
 
 	@Override
 	public void postInit(KeycloakSessionFactory factory) {
-		// we have nothing to do here
+		providerFactory.getPlanner().start(factory);
+		if (providerFactory.getBitmaps() != null) {
+			providerFactory.getBitmaps().start(factory);
+		}
+		if (providerFactory.getReplica() != null) {
+			providerFactory.getReplica().start(factory);
+		}
 	}
 
 	@Override
 	public void close() {
-		// we have nothing to do here
+		if (searchExecutor != null) {
+			searchExecutor.close();
+		}
+		if (backfill != null) {
+			backfill.close();
+		}
+		if (asyncExecutor != null) {
+			asyncExecutor.close();
+		}
+		if (providerFactory != null) {
+			providerFactory.getPlanner().close();
+		}
+		if (providerFactory != null && providerFactory.getBitmaps() != null) {
+			providerFactory.getBitmaps().close();
+		}
+		if (providerFactory != null && providerFactory.getReplica() != null) {
+			providerFactory.getReplica().close();
+		}
 	}
 }